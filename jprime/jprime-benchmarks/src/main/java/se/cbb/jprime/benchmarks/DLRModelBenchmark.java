@@ -0,0 +1,68 @@
+package se.cbb.jprime.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.cbb.jprime.apps.dlrs.DLRModel;
+import se.cbb.jprime.math.LogDouble;
+import se.cbb.jprime.mcmc.ChangeInfo;
+import se.cbb.jprime.mcmc.Dependent;
+
+/**
+ * Benchmarks a full DP update of the DLR model, triggered by changed duplication-loss probabilities.
+ *
+ * @author Joel Sjöstrand.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class DLRModelBenchmark {
+
+	@Param({ "16", "64" })
+	public int hostLeaves;
+
+	@Param({ "32", "128" })
+	public int guestLeaves;
+
+	@Param({ "0.02" })
+	public String timestep;
+
+	private DLRSFixture fixture;
+
+	private DLRModel model;
+
+	private Map<Dependent, ChangeInfo> changeInfos;
+
+	@Setup
+	public void setup() throws Exception {
+		SyntheticData data = new SyntheticData(this.hostLeaves, this.guestLeaves, 100, 42);
+		this.fixture = new DLRSFixture(data, 1, "-dts", this.timestep);
+		this.model = this.fixture.dlrModel;
+		this.changeInfos = new HashMap<Dependent, ChangeInfo>();
+	}
+
+	@Benchmark
+	public LogDouble fullUpdate() {
+		this.changeInfos.clear();
+		this.changeInfos.put(this.fixture.dupLoss.third, new ChangeInfo(this.fixture.dupLoss.third));
+		this.model.cacheAndUpdate(this.changeInfos, false);
+		this.model.clearCache(false);
+		return this.model.getDataProbability();
+	}
+}
@@ -0,0 +1,178 @@
+package se.cbb.jprime.benchmarks;
+
+import java.io.BufferedWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.biojava3.core.sequence.template.Compound;
+import org.biojava3.core.sequence.template.Sequence;
+
+import se.cbb.jprime.apps.dlrs.DLRModel;
+import se.cbb.jprime.apps.dlrs.DupLossProbs;
+import se.cbb.jprime.apps.dlrs.ParameterParser;
+import se.cbb.jprime.apps.dlrs.Parameters;
+import se.cbb.jprime.apps.dlrs.ReconciliationHelper;
+import se.cbb.jprime.io.SampleDoubleArray;
+import se.cbb.jprime.io.SampleWriter;
+import se.cbb.jprime.math.Continuous1DPDDependent;
+import se.cbb.jprime.math.PRNG;
+import se.cbb.jprime.math.RealInterval;
+import se.cbb.jprime.mcmc.DoubleParameter;
+import se.cbb.jprime.mcmc.FineProposerStatistics;
+import se.cbb.jprime.mcmc.Iteration;
+import se.cbb.jprime.mcmc.MCMCManager;
+import se.cbb.jprime.mcmc.MultiProposerSelector;
+import se.cbb.jprime.mcmc.NormalProposer;
+import se.cbb.jprime.mcmc.Proposer;
+import se.cbb.jprime.mcmc.RealParameterUniformPrior;
+import se.cbb.jprime.misc.Pair;
+import se.cbb.jprime.misc.Triple;
+import se.cbb.jprime.seqevo.GammaSiteRateHandler;
+import se.cbb.jprime.seqevo.MSAData;
+import se.cbb.jprime.seqevo.SubstitutionMatrixHandler;
+import se.cbb.jprime.seqevo.SubstitutionMatrixHandlerFactory;
+import se.cbb.jprime.seqevo.SubstitutionModel;
+import se.cbb.jprime.topology.DoubleMap;
+import se.cbb.jprime.topology.GuestHostMap;
+import se.cbb.jprime.topology.MPRMap;
+import se.cbb.jprime.topology.NamesMap;
+import se.cbb.jprime.topology.RBTree;
+import se.cbb.jprime.topology.RBTreeArcDiscretiser;
+import se.cbb.jprime.topology.TimesMap;
+
+import com.beust.jcommander.JCommander;
+
+/**
+ * Creates the model hierarchy of Delirious (the DLRS model) for synthetic data,
+ * in the same way as the application does. The guest tree is read from file
+ * rather than inferred, so that the setup is deterministic.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class DLRSFixture {
+
+	/** Parsed options. */
+	public final Parameters params;
+
+	/** Host tree, names and times. */
+	public final Triple<RBTree, NamesMap, TimesMap> sNamesTimes;
+
+	/** Guest tree, names and branch lengths. */
+	public final Triple<RBTree, NamesMap, DoubleMap> gNamesLengths;
+
+	/** Site rates. */
+	public final Pair<DoubleParameter, GammaSiteRateHandler> siteRates;
+
+	/** Edge rate distribution. */
+	public final Triple<DoubleParameter, DoubleParameter, Continuous1DPDDependent> edgeRatePD;
+
+	/** Reconciliation info. */
+	public final MPRMap mprMap;
+
+	/** Duplication and loss rates and probabilities. */
+	public final Triple<DoubleParameter, DoubleParameter, DupLossProbs> dupLoss;
+
+	/** Substitution model. */
+	public final SubstitutionModel substitutionModel;
+
+	/** DLR model. */
+	public final DLRModel dlrModel;
+
+	/** PRNG. */
+	public final PRNG prng;
+
+	/**
+	 * Constructor.
+	 * @param data synthetic data.
+	 * @param threads number of worker threads of the substitution model.
+	 * @param extraArgs additional Delirious options, e.g. for the discretisation.
+	 * @throws Exception if the model hierarchy could not be created.
+	 */
+	public DLRSFixture(SyntheticData data, int threads, String... extraArgs) throws Exception {
+		List<String> args = new ArrayList<String>();
+		args.add("-s");
+		args.add("1234");
+		args.add("-g");
+		args.add(data.guestTree.getPath());
+		args.add("-threads");
+		args.add("" + threads);
+		for (String arg : extraArgs) {
+			args.add(arg);
+		}
+		args.add(data.hostTree.getPath());
+		args.add(data.alignment.getPath());
+		args.add(data.leafMap.getPath());
+		this.params = new Parameters();
+		new JCommander(this.params, args.toArray(new String[args.size()]));
+		BufferedWriter info = new BufferedWriter(new NullWriter());
+
+		this.sNamesTimes = ParameterParser.getHostTree(this.params, info);
+		GuestHostMap gsMap = ParameterParser.getGSMap(this.params);
+		SubstitutionMatrixHandler Q = SubstitutionMatrixHandlerFactory.create(this.params.substitutionModel, 4 * gsMap.getNoOfLeafNames());
+		LinkedHashMap<String, ? extends Sequence<? extends Compound>> sequences = ParameterParser.getMultialignment(this.params, Q.getSequenceType());
+		MSAData D = new MSAData(Q.getSequenceType(), sequences);
+		this.siteRates = ParameterParser.getSiteRates(this.params);
+		this.prng = ParameterParser.getPRNG(this.params);
+		this.gNamesLengths = ParameterParser.getGuestTreeAndLengths(this.params, gsMap, this.prng, sequences, info, null, D);
+		this.mprMap = new MPRMap(gsMap, this.gNamesLengths.first, this.gNamesLengths.second, this.sNamesTimes.first, this.sNamesTimes.second);
+		this.edgeRatePD = ParameterParser.getEdgeRatePD(this.params);
+		RBTreeArcDiscretiser dtimes = ParameterParser.getDiscretizer(this.params, this.sNamesTimes.first, this.sNamesTimes.second,
+				this.sNamesTimes.third, this.gNamesLengths.first);
+		ReconciliationHelper rHelper = ParameterParser.getReconciliationHelper(this.params, this.gNamesLengths.first, this.sNamesTimes.first,
+				dtimes, this.mprMap);
+		this.dupLoss = ParameterParser.getDupLossProbs(this.params, this.mprMap, this.sNamesTimes.first, this.gNamesLengths.first, dtimes);
+		this.substitutionModel = new SubstitutionModel("SubstitutionModel", D, this.siteRates.second, Q, this.gNamesLengths.first,
+				this.gNamesLengths.second, this.gNamesLengths.third, true, this.params.threads);
+		this.dlrModel = new DLRModel(this.gNamesLengths.first, this.sNamesTimes.first, rHelper, this.gNamesLengths.third,
+				this.dupLoss.third, this.edgeRatePD.third);
+	}
+
+	/**
+	 * Creates an MCMC manager with the proposers of Delirious. Samples are discarded.
+	 * The models of this fixture are shared between all created managers, and each run
+	 * continues from the state where the previous run ended.
+	 * @param iterations number of iterations.
+	 * @param thinning thinning factor.
+	 * @return the manager.
+	 */
+	public MCMCManager createManager(int iterations, int thinning) {
+		Parameters ps = this.params;
+		Iteration iter = new Iteration(iterations);
+		ps.thinning = thinning;
+		NormalProposer dupRateProposer = ParameterParser.getNormalProposer(ps, this.dupLoss.first, iter, this.prng, ps.tuningDupRate);
+		NormalProposer lossRateProposer = ParameterParser.getNormalProposer(ps, this.dupLoss.second, iter, this.prng, ps.tuningLossRate);
+		NormalProposer edgeRateMeanProposer = ParameterParser.getNormalProposer(ps, this.edgeRatePD.first, iter, this.prng, ps.tuningEdgeRateMean);
+		NormalProposer edgeRateCVProposer = ParameterParser.getNormalProposer(ps, this.edgeRatePD.second, iter, this.prng, ps.tuningEdgeRateCV);
+		Proposer guestTreeProposer = ParameterParser.getBranchSwapper(ps, this.gNamesLengths.first, this.gNamesLengths.third, this.mprMap,
+				iter, this.prng, null);
+		NormalProposer lengthsProposer = ParameterParser.getNormalProposer(ps, this.gNamesLengths.third, iter, this.prng, ps.tuningLengths);
+		lengthsProposer.setSubParameterWeights(SampleDoubleArray.toDoubleArray(ps.tuningLengthsSelectorWeights));
+		MultiProposerSelector selector = ParameterParser.getSelector(ps, this.prng);
+		selector.add(dupRateProposer, ParameterParser.getProposerWeight(ps.tuningWeightDupRate, iter));
+		selector.add(lossRateProposer, ParameterParser.getProposerWeight(ps.tuningWeightLossRate, iter));
+		selector.add(edgeRateMeanProposer, ParameterParser.getProposerWeight(ps.tuningWeightEdgeRateMean, iter));
+		selector.add(edgeRateCVProposer, ParameterParser.getProposerWeight(ps.tuningWeightEdgeRateCV, iter));
+		selector.add(guestTreeProposer, ParameterParser.getProposerWeight(ps.tuningWeightG, iter));
+		selector.add(lengthsProposer, ParameterParser.getProposerWeight(ps.tuningWeightLengths, iter));
+
+		RealInterval priorRange = new RealInterval(1e-16, 1e16, false, false);
+		SampleWriter sampler = new SampleWriter(new BufferedWriter(new NullWriter()), 10);
+		MCMCManager manager = new MCMCManager(iter, ParameterParser.getThinner(ps, iter), selector,
+				ParameterParser.getAcceptor(ps, this.prng), sampler, this.prng, new FineProposerStatistics(iter, 8));
+		manager.addModel(new RealParameterUniformPrior(this.edgeRatePD.first, priorRange));
+		manager.addModel(new RealParameterUniformPrior(this.edgeRatePD.second, priorRange));
+		manager.addModel(new RealParameterUniformPrior(this.gNamesLengths.third, priorRange));
+		manager.addModel(this.substitutionModel);
+		manager.addModel(this.dlrModel);
+		manager.addSampleable(iter);
+		manager.addSampleable(manager);
+		manager.addSampleable(this.substitutionModel);
+		manager.addSampleable(this.dlrModel);
+		manager.addSampleable(this.dupLoss.first);
+		manager.addSampleable(this.dupLoss.second);
+		manager.addSampleable(this.edgeRatePD.first);
+		manager.addSampleable(this.edgeRatePD.second);
+		return manager;
+	}
+}
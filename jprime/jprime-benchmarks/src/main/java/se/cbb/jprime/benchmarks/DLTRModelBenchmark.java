@@ -0,0 +1,78 @@
+package se.cbb.jprime.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.cbb.jprime.apps.dltrs.DLTRModel;
+import se.cbb.jprime.apps.dltrs.EpochDLTProbs;
+import se.cbb.jprime.math.LogDouble;
+import se.cbb.jprime.mcmc.ChangeInfo;
+import se.cbb.jprime.mcmc.Dependent;
+
+/**
+ * Benchmarks the DLTR model: the ODE solves of the epoch-based duplication-loss-transfer
+ * probabilities when the rates change, and a full DP update of the DLTR model.
+ *
+ * @author Joel Sjöstrand.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class DLTRModelBenchmark {
+
+	@Param({ "8", "32" })
+	public int hostLeaves;
+
+	@Param({ "16", "64" })
+	public int guestLeaves;
+
+	private DLTRSFixture fixture;
+
+	private DLTRModel model;
+
+	private EpochDLTProbs dltProbs;
+
+	private Map<Dependent, ChangeInfo> changeInfos;
+
+	@Setup
+	public void setup() throws Exception {
+		SyntheticData data = new SyntheticData(this.hostLeaves, this.guestLeaves, 100, 42);
+		this.fixture = new DLTRSFixture(data);
+		this.model = this.fixture.dltrModel;
+		this.dltProbs = this.fixture.dlt.fourth;
+		this.changeInfos = new HashMap<Dependent, ChangeInfo>();
+	}
+
+	@Benchmark
+	public void epochDLTProbsUpdate() {
+		this.changeInfos.clear();
+		this.changeInfos.put(this.fixture.dlt.first, new ChangeInfo(this.fixture.dlt.first));
+		this.dltProbs.cacheAndUpdate(this.changeInfos, false);
+		this.dltProbs.clearCache(false);
+	}
+
+	@Benchmark
+	public LogDouble fullUpdate() {
+		this.changeInfos.clear();
+		this.changeInfos.put(this.dltProbs, new ChangeInfo(this.dltProbs));
+		this.model.cacheAndUpdate(this.changeInfos, false);
+		this.model.clearCache(false);
+		return this.model.getDataProbability();
+	}
+}
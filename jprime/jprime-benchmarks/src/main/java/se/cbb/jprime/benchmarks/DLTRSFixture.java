@@ -0,0 +1,101 @@
+package se.cbb.jprime.benchmarks;
+
+import java.io.BufferedWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.biojava3.core.sequence.template.Compound;
+import org.biojava3.core.sequence.template.Sequence;
+
+import se.cbb.jprime.apps.dltrs.DLTRModel;
+import se.cbb.jprime.apps.dltrs.EpochDLTProbs;
+import se.cbb.jprime.apps.dltrs.ParameterParser;
+import se.cbb.jprime.apps.dltrs.Parameters;
+import se.cbb.jprime.apps.dltrs.ReconciliationHelper;
+import se.cbb.jprime.math.Continuous1DPDDependent;
+import se.cbb.jprime.math.PRNG;
+import se.cbb.jprime.mcmc.DoubleParameter;
+import se.cbb.jprime.misc.Quadruple;
+import se.cbb.jprime.misc.Triple;
+import se.cbb.jprime.seqevo.SubstitutionMatrixHandler;
+import se.cbb.jprime.seqevo.SubstitutionMatrixHandlerFactory;
+import se.cbb.jprime.topology.DoubleMap;
+import se.cbb.jprime.topology.GuestHostMap;
+import se.cbb.jprime.topology.LeafLeafMap;
+import se.cbb.jprime.topology.NamesMap;
+import se.cbb.jprime.topology.RBTree;
+import se.cbb.jprime.topology.RBTreeEpochDiscretiser;
+import se.cbb.jprime.topology.TimesMap;
+
+import com.beust.jcommander.JCommander;
+
+/**
+ * Creates the DLTR part of the model hierarchy of Deleterious (the DLTRS model) for
+ * synthetic data, in the same way as the application does. The guest tree is read
+ * from file rather than inferred, so that the setup is deterministic.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class DLTRSFixture {
+
+	/** Parsed options. */
+	public final Parameters params;
+
+	/** Host tree, names and times. */
+	public final Triple<RBTree, NamesMap, TimesMap> sNamesTimes;
+
+	/** Guest tree, names and branch lengths. */
+	public final Triple<RBTree, NamesMap, DoubleMap> gNamesLengths;
+
+	/** Edge rate distribution. */
+	public final Triple<DoubleParameter, DoubleParameter, Continuous1DPDDependent> edgeRatePD;
+
+	/** Discretised host tree. */
+	public final RBTreeEpochDiscretiser dtimes;
+
+	/** Duplication, loss and transfer rates and probabilities. */
+	public final Quadruple<DoubleParameter, DoubleParameter, DoubleParameter, EpochDLTProbs> dlt;
+
+	/** DLTR model. */
+	public final DLTRModel dltrModel;
+
+	/**
+	 * Constructor.
+	 * @param data synthetic data.
+	 * @param extraArgs additional Deleterious options, e.g. for the discretisation.
+	 * @throws Exception if the model hierarchy could not be created.
+	 */
+	public DLTRSFixture(SyntheticData data, String... extraArgs) throws Exception {
+		List<String> args = new ArrayList<String>();
+		args.add("-s");
+		args.add("1234");
+		args.add("-g");
+		args.add(data.guestTree.getPath());
+		for (String arg : extraArgs) {
+			args.add(arg);
+		}
+		args.add(data.hostTree.getPath());
+		args.add(data.alignment.getPath());
+		args.add(data.leafMap.getPath());
+		this.params = new Parameters();
+		new JCommander(this.params, args.toArray(new String[args.size()]));
+		BufferedWriter info = new BufferedWriter(new NullWriter());
+
+		this.sNamesTimes = ParameterParser.getHostTree(this.params, info);
+		GuestHostMap gsMap = ParameterParser.getGSMap(this.params);
+		SubstitutionMatrixHandler Q = SubstitutionMatrixHandlerFactory.create(this.params.substitutionModel, 4 * gsMap.getNoOfLeafNames());
+		LinkedHashMap<String, ? extends Sequence<? extends Compound>> sequences = ParameterParser.getMultialignment(this.params, Q.getSequenceType());
+		PRNG prng = ParameterParser.getPRNG(this.params);
+		this.gNamesLengths = ParameterParser.getGuestTreeAndLengths(this.params, gsMap, prng, sequences, info, null);
+		this.edgeRatePD = ParameterParser.getEdgeRatePD(this.params);
+		this.dtimes = ParameterParser.getDiscretizer(this.params, this.sNamesTimes.first, this.sNamesTimes.second,
+				this.sNamesTimes.third, this.gNamesLengths.first);
+		ReconciliationHelper rHelper = ParameterParser.getReconciliationHelper(this.params, this.gNamesLengths.first, this.sNamesTimes.first,
+				this.dtimes, new LeafLeafMap(gsMap, this.gNamesLengths.first, this.gNamesLengths.second, this.sNamesTimes.first, this.sNamesTimes.second));
+		this.dlt = ParameterParser.getDLTProbs(this.params, this.sNamesTimes.first, this.sNamesTimes.second,
+				this.gNamesLengths.first, this.gNamesLengths.second, gsMap, this.dtimes);
+		this.dltrModel = new DLTRModel(this.gNamesLengths.first, this.sNamesTimes.first, rHelper, this.gNamesLengths.third,
+				this.dlt.fourth, this.edgeRatePD.third);
+	}
+}
@@ -0,0 +1,70 @@
+package se.cbb.jprime.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.cbb.jprime.mcmc.MCMCManager;
+
+/**
+ * Benchmarks MCMC iterations per second of a Delirious chain. Each invocation runs
+ * a fresh manager for a fixed number of iterations on models shared across invocations.
+ *
+ * @author Joel Sjöstrand.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class MCMCManagerBenchmark {
+
+	/** Iterations per invocation. */
+	private static final int ITERATIONS = 1000;
+
+	@Param({ "16" })
+	public int hostLeaves;
+
+	@Param({ "32", "128" })
+	public int guestLeaves;
+
+	@Param({ "1000" })
+	public int sites;
+
+	@Param({ "100" })
+	public int thinning;
+
+	private DLRSFixture fixture;
+
+	private MCMCManager manager;
+
+	@Setup(Level.Trial)
+	public void setupTrial() throws Exception {
+		SyntheticData data = new SyntheticData(this.hostLeaves, this.guestLeaves, this.sites, 42);
+		this.fixture = new DLRSFixture(data, 1);
+	}
+
+	@Setup(Level.Invocation)
+	public void setupInvocation() {
+		this.manager = this.fixture.createManager(ITERATIONS, this.thinning);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ITERATIONS)
+	public void iterations() throws Exception {
+		this.manager.run();
+	}
+}
@@ -0,0 +1,69 @@
+package se.cbb.jprime.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.cbb.jprime.io.NewickTree;
+import se.cbb.jprime.io.NewickTreeReader;
+
+/**
+ * Benchmarks parsing of a string holding many Newick trees with PrIME meta info,
+ * mimicking the reading of an MCMC tree sample file.
+ *
+ * @author Joel Sjöstrand.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class NewickTreeReaderBenchmark {
+
+	@Param({ "64" })
+	public int guestLeaves;
+
+	@Param({ "100", "1000" })
+	public int noOfTrees;
+
+	@Param({ "false", "true" })
+	public boolean doSort;
+
+	private String trees;
+
+	@Setup
+	public void setup() throws Exception {
+		StringBuilder sb = new StringBuilder(65536);
+		for (int i = 0; i < 10; ++i) {
+			SyntheticData data = new SyntheticData(16, this.guestLeaves, 1, 42 + i);
+			BufferedReader in = new BufferedReader(new FileReader(data.guestTree));
+			sb.append(in.readLine().trim()).append('\n');
+			in.close();
+		}
+		String tenTrees = sb.toString();
+		sb = new StringBuilder(tenTrees.length() * (this.noOfTrees / 10 + 1));
+		for (int i = 0; i < this.noOfTrees / 10; ++i) {
+			sb.append(tenTrees);
+		}
+		this.trees = sb.toString();
+	}
+
+	@Benchmark
+	public List<NewickTree> readTrees() throws Exception {
+		return NewickTreeReader.readTrees(this.trees, this.doSort);
+	}
+}
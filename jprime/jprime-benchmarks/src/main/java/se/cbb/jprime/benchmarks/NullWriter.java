@@ -0,0 +1,27 @@
+package se.cbb.jprime.benchmarks;
+
+import java.io.Writer;
+
+/**
+ * Writer which discards all output, used for samples and run info in the benchmarks.
+ *
+ * @author Joel Sjöstrand.
+ */
+class NullWriter extends Writer {
+
+	@Override
+	public void write(char[] cbuf, int off, int len) {
+	}
+
+	@Override
+	public void write(String str, int off, int len) {
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() {
+	}
+}
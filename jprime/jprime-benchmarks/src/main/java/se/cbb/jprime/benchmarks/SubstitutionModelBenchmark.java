@@ -0,0 +1,90 @@
+package se.cbb.jprime.benchmarks;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.cbb.jprime.math.LogDouble;
+import se.cbb.jprime.mcmc.ChangeInfo;
+import se.cbb.jprime.mcmc.Dependent;
+import se.cbb.jprime.seqevo.SubstitutionModel;
+
+/**
+ * Benchmarks full and partial updates of the substitution model likelihood.
+ * A partial update corresponds to a single changed branch length, cycling over all leaves.
+ *
+ * @author Joel Sjöstrand.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class SubstitutionModelBenchmark {
+
+	@Param({ "16" })
+	public int hostLeaves;
+
+	@Param({ "32", "128" })
+	public int guestLeaves;
+
+	@Param({ "500", "5000" })
+	public int sites;
+
+	@Param({ "1" })
+	public int threads;
+
+	private DLRSFixture fixture;
+
+	private SubstitutionModel model;
+
+	private Map<Dependent, ChangeInfo> changeInfos;
+
+	private List<Integer> leaves;
+
+	private int nextLeaf;
+
+	@Setup
+	public void setup() throws Exception {
+		SyntheticData data = new SyntheticData(this.hostLeaves, this.guestLeaves, this.sites, 42);
+		this.fixture = new DLRSFixture(data, this.threads);
+		this.model = this.fixture.substitutionModel;
+		this.changeInfos = new HashMap<Dependent, ChangeInfo>();
+		this.leaves = this.fixture.gNamesLengths.first.getLeaves();
+		this.nextLeaf = 0;
+	}
+
+	@Benchmark
+	public LogDouble fullUpdate() {
+		this.changeInfos.clear();
+		this.changeInfos.put(this.fixture.gNamesLengths.first, new ChangeInfo(this.fixture.gNamesLengths.first));
+		this.model.cacheAndUpdate(this.changeInfos, false);
+		this.model.clearCache(false);
+		return this.model.getDataProbability();
+	}
+
+	@Benchmark
+	public LogDouble partialUpdate() {
+		int leaf = this.leaves.get(this.nextLeaf);
+		this.nextLeaf = (this.nextLeaf + 1) % this.leaves.size();
+		this.changeInfos.clear();
+		this.changeInfos.put(this.fixture.gNamesLengths.third, new ChangeInfo(this.fixture.gNamesLengths.third, "", new int[] { leaf }));
+		this.model.cacheAndUpdate(this.changeInfos, false);
+		this.model.clearCache(false);
+		return this.model.getDataProbability();
+	}
+}
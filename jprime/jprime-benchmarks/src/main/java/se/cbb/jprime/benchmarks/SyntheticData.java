@@ -0,0 +1,124 @@
+package se.cbb.jprime.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import se.cbb.jprime.apps.genphylodata.GuestTreeGen;
+import se.cbb.jprime.apps.genphylodata.HostTreeGen;
+
+/**
+ * Synthetic input files for the benchmarks. A dated host tree and a guest tree
+ * evolving inside it are generated with the GenPhyloData tools, and a multiple
+ * sequence alignment of uniformly random nucleotides is created for the guest tree leaves.
+ * All files are written to a temporary directory which is removed on JVM exit.
+ * Generation is deterministic for a given seed.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class SyntheticData {
+
+	/** Nucleotides of the random alignment. */
+	private static final char[] NUCLEOTIDES = new char[] { 'A', 'C', 'G', 'T' };
+
+	/** Directory of all files. */
+	public final File dir;
+
+	/** Host tree file, PrIME Newick with times. */
+	public final File hostTree;
+
+	/** Pruned guest tree file, PrIME Newick with branch lengths. */
+	public final File guestTree;
+
+	/** Guest-to-host leaf map file. */
+	public final File leafMap;
+
+	/** Multiple sequence alignment file, FASTA. */
+	public final File alignment;
+
+	/** Guest tree leaf names. */
+	public final List<String> guestLeaves;
+
+	/**
+	 * Constructor. Generates all data.
+	 * @param hostLeaves exact number of host tree leaves.
+	 * @param guestLeaves minimum number of guest tree leaves. At most twice as many are allowed.
+	 * @param sites number of alignment columns.
+	 * @param seed PRNG seed.
+	 * @throws Exception if the data could not be generated.
+	 */
+	public SyntheticData(int hostLeaves, int guestLeaves, int sites, long seed) throws Exception {
+		this.dir = File.createTempFile("jprime-benchmarks", "");
+		if (!this.dir.delete() || !this.dir.mkdir()) {
+			throw new IOException("Could not create temporary directory " + this.dir + '.');
+		}
+		this.dir.deleteOnExit();
+		String hostPrefix = new File(this.dir, "host").getPath();
+		String guestPrefix = new File(this.dir, "guest").getPath();
+
+		// Host tree over [0,1] with a forced bifurcation at the top. The birth rate is set
+		// so that the expected number of leaves roughly matches the desired one.
+		double birthRate = Math.log(hostLeaves) * 1.5;
+		double deathRate = birthRate * 0.5;
+		new HostTreeGen().main(new String[] { "-s", "" + seed, "-min", "" + hostLeaves, "-max", "" + hostLeaves,
+				"-bi", "-stem", "0.1", "-a", "1000000", "1.0", "" + birthRate, "" + deathRate, hostPrefix });
+		this.hostTree = this.getGenerated(hostPrefix + ".pruned.tree");
+
+		// Guest tree with duplications and losses only.
+		new GuestTreeGen().main(new String[] { "-s", "" + seed, "-min", "" + guestLeaves, "-max", "" + (2 * guestLeaves),
+				"-a", "1000000", this.hostTree.getPath(), "0.5", "0.5", "0.0", guestPrefix });
+		this.guestTree = this.getGenerated(guestPrefix + ".pruned.tree");
+		this.leafMap = this.getGenerated(guestPrefix + ".pruned.leafmap");
+		for (String suffix : new String[] { ".unpruned.tree", ".unpruned.info", ".pruned.info", ".unpruned.guest2host",
+				".pruned.guest2host", ".unpruned.leafmap" }) {
+			new File(hostPrefix + suffix).deleteOnExit();
+			new File(guestPrefix + suffix).deleteOnExit();
+		}
+
+		// Random alignment.
+		this.guestLeaves = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new FileReader(this.leafMap));
+		String ln;
+		while ((ln = in.readLine()) != null) {
+			ln = ln.trim();
+			if (!ln.isEmpty()) {
+				this.guestLeaves.add(ln.split("[ \t]+")[0]);
+			}
+		}
+		in.close();
+		this.alignment = new File(this.dir, "guest.fa");
+		this.alignment.deleteOnExit();
+		Random rnd = new Random(seed);
+		BufferedWriter out = new BufferedWriter(new FileWriter(this.alignment));
+		for (String leaf : this.guestLeaves) {
+			out.write('>');
+			out.write(leaf);
+			out.write('\n');
+			for (int i = 0; i < sites; ++i) {
+				out.write(NUCLEOTIDES[rnd.nextInt(NUCLEOTIDES.length)]);
+			}
+			out.write('\n');
+		}
+		out.close();
+	}
+
+	/**
+	 * Verifies that a file has been created by a generator.
+	 * @param fn the file name.
+	 * @return the file.
+	 */
+	private File getGenerated(String fn) {
+		File f = new File(fn);
+		if (!f.exists()) {
+			throw new IllegalStateException("Failed to generate synthetic data file " + fn + '.');
+		}
+		f.deleteOnExit();
+		return f;
+	}
+}
@@ -1,28 +1,66 @@
 package se.cbb.jprime.apps;
 
-import java.util.Set;
+import java.util.Collections;
+import java.util.Map;
 import java.util.TreeMap;
 
-import org.reflections.Reflections;
-import org.reflections.scanners.SubTypesScanner;
-import org.reflections.util.ClasspathHelper;
-import org.reflections.util.ConfigurationBuilder;
-import org.reflections.util.FilterBuilder;
-
-import ch.qos.logback.classic.Level;
-import ch.qos.logback.classic.Logger;
-
 /**
- * Starter class for all apps. Uses reflection to search for main methods in the
- * <code>se.cbb.jprime.apps</code> package, and uses the corresponding class name
- * as a program name identifier. Apps are thus started as an ordinary executable:
+ * Starter class for all apps. Apps are listed in a static registry mapping the program name
+ * identifier to the app class, and only the requested app is loaded and instantiated. Apps are thus
+ * started as an ordinary executable:
  * <code>./jprime-X.Y.Z.jar &lt;application&gt; [options] &lt;arguments&gt;</code> etc.,
  * or alternatively: <code>java -jar jprime-X.Y.Z.jar &lt;application&gt; [options] &lt;arguments&gt;</code> etc.
+ * <p/>
+ * New apps in the <code>se.cbb.jprime.apps</code> package (or sub-package) must be added to the registry.
+ * A unit test verifies that the registry is complete and that names match <code>getAppName()</code>.
  * 
  * @author Joel Sjöstrand.
  */
 public class JPrIMEStarter {
 
+	/** Registry of app names and classes. Classes are given by name so that they are only loaded when started. */
+	private static final String[][] APPS = {
+		{ "Age",                       "se.cbb.jprime.apps.age.Age" },
+		{ "Analyze",                   "se.cbb.jprime.apps.realise.Analyze" },
+		{ "BranchRelaxer",             "se.cbb.jprime.apps.genphylodata.BranchRelaxer" },
+		{ "Deleterious",               "se.cbb.jprime.apps.dltrs.Deleterious" },
+		{ "Delirious",                 "se.cbb.jprime.apps.dlrs.Delirious" },
+		{ "FilterInparalogues",        "se.cbb.jprime.apps.phylotools.FilterInparalogues" },
+		{ "GuestTreeGen",              "se.cbb.jprime.apps.genphylodata.GuestTreeGen" },
+		{ "HostTreeGen",               "se.cbb.jprime.apps.genphylodata.HostTreeGen" },
+		{ "LCAAnalysis",               "se.cbb.jprime.apps.phylotools.LCAAnalysis" },
+		{ "ParsimoniousTimeEstimator", "se.cbb.jprime.apps.phylotools.ParsimoniousTimeEstimator" },
+		{ "RobinsonFouldsDistance",    "se.cbb.jprime.apps.phylotools.RobinsonFouldsDistance" },
+		{ "pDelirious",                "se.cbb.jprime.apps.pdlrs.pDelirious" }
+	};
+	
+	/**
+	 * Returns the registry of apps.
+	 * @return map linking app name and fully qualified class name, sorted by name.
+	 */
+	public static Map<String, String> getApps() {
+		TreeMap<String, String> map = new TreeMap<String, String>();
+		for (String[] app : APPS) {
+			map.put(app[0], app[1]);
+		}
+		return Collections.unmodifiableMap(map);
+	}
+	
+	/**
+	 * Instantiates an app of the registry.
+	 * @param name the app name.
+	 * @return the app; null if there is no such app.
+	 * @throws Exception if the app could not be instantiated.
+	 */
+	public static JPrIMEApp getApp(String name) throws Exception {
+		String cls = getApps().get(name);
+		if (cls == null) {
+			return null;
+		}
+		// NOTE: Empty constructor assumed!!!!
+		return Class.forName(cls).asSubclass(JPrIMEApp.class).newInstance();
+	}
+
 	/**
 	 * Starts a JPrIME application located in the <code>se.cbb.jprime.apps</code> folder
 	 * (or sub-folder).
@@ -31,33 +69,7 @@ public class JPrIMEStarter {
 	 */
 	public static void main(String[] args) throws Exception {
 		
-		// Find all starter methods in apps package.
-		Logger logger = (Logger) Reflections.log;
-		Level oldLvl = logger.getLevel();
-		logger.setLevel(Level.OFF);
-		Reflections reflections = new Reflections(
-			    new ConfigurationBuilder()
-			        .filterInputsBy(new FilterBuilder().include(FilterBuilder.prefix("se.cbb.jprime.apps")))
-			        .setUrls(ClasspathHelper.forPackage("se.cbb.jprime.apps"))
-			        .setScanners(new SubTypesScanner())
-			        
-			);
-		Set<Class<? extends JPrIMEApp>> apps = reflections.getSubTypesOf(JPrIMEApp.class);
-		logger.setLevel(oldLvl);
-		
-		// Create map linking name and app (we assume uniqueness).
-		TreeMap<String, JPrIMEApp> map = new TreeMap<String, JPrIMEApp>();
-		for (Class<? extends JPrIMEApp> c : apps) {
-			try {
-				// NOTE: Empty constructor assumed!!!!
-				JPrIMEApp app = c.newInstance();
-				map.put(app.getAppName(), app);
-			} catch (InstantiationException e) {
-				e.printStackTrace();
-			} catch (IllegalAccessException e) {
-				e.printStackTrace();
-			}
-		}
+		Map<String, String> map = getApps();
 		
 		if (args.length < 1 || args[0].equalsIgnoreCase("-h") || args[0].equalsIgnoreCase("--help")) {
 			// No app specified.
@@ -84,7 +96,7 @@ public class JPrIMEStarter {
 			// Start app. Remove app name first, though.
 			String[] appArgs = new String[args.length - 1];
 			System.arraycopy(args, 1, appArgs, 0, appArgs.length);
-			JPrIMEApp app = map.get(args[0]);
+			JPrIMEApp app = getApp(args[0]);
 			app.main(appArgs);
 		}
 	}
@@ -0,0 +1,126 @@
+package se.cbb.jprime.apps.dlrs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs the jobs of a batch concurrently on a fixed thread pool, subject to a memory budget.
+ * Jobs are started in the order they are submitted, so submitting the largest jobs first lets threads
+ * finishing early pick up the small jobs at the end. A dispatcher in the calling thread hands the next
+ * job to the pool once a thread is idle and the estimated memory requirement of the job has been reserved
+ * from the budget, so that a few very large jobs do not exhaust the heap. Pool threads never wait for memory;
+ * while the next job waits for memory held by running jobs, idle threads stay idle rather than
+ * overtaking it with smaller jobs.
+ * <p/>
+ * A failing job does not affect the others; its exception is recorded and returned to the caller.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class BatchScheduler {
+
+	/**
+	 * Job of a batch.
+	 */
+	public interface Job {
+
+		/**
+		 * Returns the estimated memory requirement of the job.
+		 * @return the requirement, in the unit of the budget.
+		 */
+		public int getMemory();
+
+		/**
+		 * Runs the job.
+		 * @throws Exception if the job failed.
+		 */
+		public void run() throws Exception;
+	}
+
+	/** Number of concurrent jobs. */
+	private int noOfThreads;
+
+	/** Memory budget. */
+	private int budget;
+
+	/**
+	 * Constructor.
+	 * @param noOfThreads number of concurrent jobs.
+	 * @param budget memory budget, e.g. in MB. A job requiring more is given the entire budget.
+	 */
+	public BatchScheduler(int noOfThreads, int budget) {
+		if (noOfThreads < 1) {
+			throw new IllegalArgumentException("Number of batch threads must be at least 1.");
+		}
+		if (budget < 1) {
+			throw new IllegalArgumentException("Batch memory budget must be at least 1.");
+		}
+		this.noOfThreads = noOfThreads;
+		this.budget = budget;
+	}
+
+	/**
+	 * Runs jobs, and waits for all of them to finish.
+	 * @param jobs the jobs, in the order they should be started.
+	 * @return for each job, the exception it failed with; null if it succeeded.
+	 * @throws InterruptedException if interrupted while waiting.
+	 */
+	public Exception[] run(List<? extends Job> jobs) throws InterruptedException {
+		final Semaphore threads = new Semaphore(this.noOfThreads);
+		final Semaphore memory = new Semaphore(this.budget);
+		final Exception[] failures = new Exception[jobs.size()];
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>(jobs.size());
+		ExecutorService pool = Executors.newFixedThreadPool(this.noOfThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "BatchScheduler");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		try {
+			// Dispatch jobs in order, each when a thread is idle and its memory is reserved.
+			for (int i = 0; i < jobs.size(); ++i) {
+				final Job job = jobs.get(i);
+				final int idx = i;
+				final int mem = Math.max(Math.min(job.getMemory(), this.budget), 0);
+				threads.acquire();
+				try {
+					memory.acquire(mem);
+				} catch (InterruptedException e) {
+					threads.release();
+					throw e;
+				}
+				futures.add(pool.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							job.run();
+						} catch (Exception e) {
+							failures[idx] = e;
+						} finally {
+							memory.release(mem);
+							threads.release();
+						}
+					}
+				}));
+			}
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error in batch job.", e.getCause());
+		} catch (InterruptedException e) {
+			pool.shutdownNow();
+			throw e;
+		} finally {
+			pool.shutdown();
+		}
+		return failures;
+	}
+}
@@ -1,14 +1,17 @@
 package se.cbb.jprime.apps.dlrs;
 
-import java.util.Arrays;
 import java.util.Map;
 import se.cbb.jprime.io.SampleLogDouble;
+import se.cbb.jprime.io.SampleSnapshot;
+import se.cbb.jprime.io.SampleSnapshots;
+import se.cbb.jprime.io.SnapshotSampleable;
 import se.cbb.jprime.math.Continuous1DPDDependent;
 import se.cbb.jprime.math.LogDouble;
+import se.cbb.jprime.math.LogDoubleArray;
 import se.cbb.jprime.mcmc.ChangeInfo;
 import se.cbb.jprime.mcmc.Dependent;
 import se.cbb.jprime.mcmc.InferenceModel;
-import se.cbb.jprime.topology.DoubleArrayLogMap;
+import se.cbb.jprime.topology.DoubleBufferedMap;
 import se.cbb.jprime.topology.DoubleMap;
 import se.cbb.jprime.topology.RootedBifurcatingTreeParameter;
 import se.cbb.jprime.topology.TreeAlgorithms;
@@ -30,12 +33,17 @@ import se.cbb.jprime.topology.TreeAlgorithms;
  * To sum all probability density contributions of ways to temporally embed G within S,
  * S is discretised and a dynamic programming algorithm is applied w.r.t. the
  * discretisation points.
+ * <p/>
+ * For changes in the guest tree, its branch lengths or the reconciliation helper alone,
+ * the DP is updated incrementally: each vertex's inputs (parent, children, length,
+ * lower limit and number of placements, and those of its parent) are compared with
+ * those of the last update, and only the root paths of vertices which differ are recomputed.
  * 
  * @author Joel Sjöstrand.
  * @author Sayyed Auwn Muhammad.
  * @author Raja Hashim Ali.
  */
-public class DLRModel implements InferenceModel {
+public class DLRModel implements InferenceModel, SnapshotSampleable {
 
 	/** The guest tree G. */
 	protected RootedBifurcatingTreeParameter g;
@@ -58,13 +66,55 @@ public class DLRModel implements InferenceModel {
 	/**
 	 * Probability of rooted subtree G_u for each valid placement of u in S'.
 	 */
-	protected DoubleArrayLogMap ats;
+	protected DoubleBufferedMap<LogDoubleArray> ats;
 	
 	/**
 	 * Probability of planted subtree G^u for each valid placement of tip of u's
 	 * parent arc in S'.
 	 */
-	protected DoubleArrayLogMap belows;
+	protected DoubleBufferedMap<LogDoubleArray> belows;
+	
+	/** For each vertex u, its parent at the last DP update. */
+	protected int[] dpParents;
+	
+	/** For each vertex u, its left child at the last DP update. */
+	protected int[] dpLeftChildren;
+	
+	/** For each vertex u, its right child at the last DP update. */
+	protected int[] dpRightChildren;
+	
+	/** For each vertex u, its lower placement limit at the last DP update. */
+	protected int[] dpLoLims;
+	
+	/** For each vertex u, its number of placements at the last DP update. */
+	protected int[] dpNoOfPlacements;
+	
+	/** For each vertex u, its branch length at the last DP update. */
+	protected double[] dpLengths;
+	
+	/** Cached parents. Swapped with the current array on restore. */
+	protected int[] cacheParents;
+	
+	/** Cached left children. Swapped with the current array on restore. */
+	protected int[] cacheLeftChildren;
+	
+	/** Cached right children. Swapped with the current array on restore. */
+	protected int[] cacheRightChildren;
+	
+	/** Cached lower placement limits. Swapped with the current array on restore. */
+	protected int[] cacheLoLims;
+	
+	/** Cached number of placements. Swapped with the current array on restore. */
+	protected int[] cacheNoOfPlacements;
+	
+	/** Cached branch lengths. Swapped with the current array on restore. */
+	protected double[] cacheLengths;
+	
+	/** True if the DP inputs are cached. */
+	protected boolean isDPInputsCached = false;
+	
+	/** Reused buffer of the vertices whose DP inputs have changed. */
+	protected int[] dirtyVertices;
 	
 	/**
 	 * Constructor.
@@ -84,8 +134,22 @@ public class DLRModel implements InferenceModel {
 		this.lengths = lengths;
 		this.dupLossProbs = dupLossProbs;
 		this.substPD = substPD;
-		this.ats = new DoubleArrayLogMap("DLR.ats", g.getNoOfVertices());
-		this.belows = new DoubleArrayLogMap("DLR.belows", g.getNoOfVertices());
+		this.ats = new DoubleBufferedMap<LogDoubleArray>("DLR.ats", g.getNoOfVertices());
+		this.belows = new DoubleBufferedMap<LogDoubleArray>("DLR.belows", g.getNoOfVertices());
+		int n = g.getNoOfVertices();
+		this.dpParents = new int[n];
+		this.dpLeftChildren = new int[n];
+		this.dpRightChildren = new int[n];
+		this.dpLoLims = new int[n];
+		this.dpNoOfPlacements = new int[n];
+		this.dpLengths = new double[n];
+		this.cacheParents = new int[n];
+		this.cacheLeftChildren = new int[n];
+		this.cacheRightChildren = new int[n];
+		this.cacheLoLims = new int[n];
+		this.cacheNoOfPlacements = new int[n];
+		this.cacheLengths = new double[n];
+		this.dirtyVertices = new int[n];
 				
 		// Update.
 		this.fullUpdate();
@@ -105,43 +169,145 @@ public class DLRModel implements InferenceModel {
 		ChangeInfo dpci = changeInfos.get(this.dupLossProbs);
 		ChangeInfo rci = changeInfos.get(this.substPD);
 
-		// One could think of many optimisations here, especially when there are 
-		// time perturbations involved, possibly combined with length perturbations.
-		// However, it is easy to make algorithmic mistakes in such situations,
-		// so at the only moment solitary length changes result in a partial DP update.
-		if (gci == null && sci == null && rhci == null && dpci == null && rci == null) {
-			if (lci != null && lci.getAffectedElements() != null) {
+		if (sci == null && dpci == null && rci == null) {
+			if (gci == null && rhci == null && lci == null) {
+				return;
+			}
+			if (gci == null && rhci == null && lci.getAffectedElements() != null) {
 				// Only certain branch lengths have changed. We do a partial update.
-				
 				int[] affected = TreeAlgorithms.getSpanningRootSubtree(this.g, lci.getAffectedElements());
-				this.ats.cache(affected);
-				this.belows.cache(affected);
 				this.partialUpdate(affected);
 				changeInfos.put(this, new ChangeInfo(this, "Partial DLR update", affected));
-			} else if (lci != null) {
-				this.ats.cache(null);
-				this.belows.cache(null);
-				this.fullUpdate();
-				changeInfos.put(this, new ChangeInfo(this, "Full DLR update."));
+			} else {
+				// Guest tree, placements and/or undisclosed lengths may have changed. We find
+				// the vertices whose DP inputs differ from the last update.
+				int[] nos = this.reconcHelper.getNoOfPlacements();
+				int noOfDirty = this.updateDirtyVertices(nos);
+				if (noOfDirty == 0) {
+					return;
+				}
+				int[] affected = TreeAlgorithms.getSpanningRootSubtree(this.g, this.dirtyVertices, noOfDirty);
+				this.partialUpdate(affected, nos);
+				changeInfos.put(this, new ChangeInfo(this, "Partial DLR update", affected));
 			}
 		} else {
+			// Host tree, times, rates or edge rate distribution have changed:
+			// all probabilities are affected.
 			this.ats.cache(null);
 			this.belows.cache(null);
+			this.cacheDPInputs();
 			this.fullUpdate();
 			changeInfos.put(this, new ChangeInfo(this, "Full DLR update."));
 		}
 	}
+	
+	/**
+	 * Stores the vertices whose DP inputs differ from those of the last update
+	 * first in the dirty vertices buffer.
+	 * Precondition: the tree has the same number of vertices.
+	 * @param nos the current number of placements, indexed by vertex.
+	 * @return the number of such vertices.
+	 */
+	protected int updateDirtyVertices(int[] nos) {
+		int n = this.g.getNoOfVertices();
+		int[] dirty = this.dirtyVertices;
+		int k = 0;
+		for (int u = 0; u < n; ++u) {
+			int p = this.g.getParent(u);
+			boolean isDirty = (p != this.dpParents[u] ||
+					this.g.getLeftChild(u) != this.dpLeftChildren[u] ||
+					this.g.getRightChild(u) != this.dpRightChildren[u] ||
+					this.reconcHelper.getLoLimAsInt(u) != this.dpLoLims[u] ||
+					nos[u] != this.dpNoOfPlacements[u] ||
+					this.lengths.get(u) != this.dpLengths[u]);
+			if (!isDirty && p != RootedBifurcatingTreeParameter.NULL) {
+				// Planted tree probabilities depend on the parent's placements.
+				isDirty = (this.reconcHelper.getLoLimAsInt(p) != this.dpLoLims[p] || nos[p] != this.dpNoOfPlacements[p]);
+			}
+			if (isDirty) {
+				dirty[k++] = u;
+			}
+		}
+		return k;
+	}
+	
+	/**
+	 * Stores the current DP inputs of some vertices, so that later changes may be detected.
+	 * @param vertices the vertices. Null will store all vertices.
+	 * @param nos the current number of placements, indexed by vertex.
+	 */
+	protected void storeDPInputs(int[] vertices, int[] nos) {
+		if (vertices == null) {
+			for (int u = 0; u < this.g.getNoOfVertices(); ++u) {
+				this.storeDPInputs(u, nos);
+			}
+		} else {
+			for (int u : vertices) {
+				this.storeDPInputs(u, nos);
+			}
+		}
+	}
+	
+	/**
+	 * Stores the current DP inputs of a vertex.
+	 * @param u the vertex.
+	 * @param nos the current number of placements, indexed by vertex.
+	 */
+	private void storeDPInputs(int u, int[] nos) {
+		this.dpParents[u] = this.g.getParent(u);
+		this.dpLeftChildren[u] = this.g.getLeftChild(u);
+		this.dpRightChildren[u] = this.g.getRightChild(u);
+		this.dpLoLims[u] = this.reconcHelper.getLoLimAsInt(u);
+		this.dpNoOfPlacements[u] = nos[u];
+		this.dpLengths[u] = this.lengths.get(u);
+	}
+	
+	/**
+	 * Caches the stored DP inputs.
+	 */
+	private void cacheDPInputs() {
+		int n = this.dpParents.length;
+		System.arraycopy(this.dpParents, 0, this.cacheParents, 0, n);
+		System.arraycopy(this.dpLeftChildren, 0, this.cacheLeftChildren, 0, n);
+		System.arraycopy(this.dpRightChildren, 0, this.cacheRightChildren, 0, n);
+		System.arraycopy(this.dpLoLims, 0, this.cacheLoLims, 0, n);
+		System.arraycopy(this.dpNoOfPlacements, 0, this.cacheNoOfPlacements, 0, n);
+		System.arraycopy(this.dpLengths, 0, this.cacheLengths, 0, n);
+		this.isDPInputsCached = true;
+	}
 
 	@Override
 	public void clearCache(boolean willSample) {
 		this.ats.clearCache();
 		this.belows.clearCache();
+		this.isDPInputsCached = false;
 	}
 
 	@Override
 	public void restoreCache(boolean willSample) {
 		this.ats.restoreCache();
 		this.belows.restoreCache();
+		if (this.isDPInputsCached) {
+			int[] tmp = this.dpParents;
+			this.dpParents = this.cacheParents;
+			this.cacheParents = tmp;
+			tmp = this.dpLeftChildren;
+			this.dpLeftChildren = this.cacheLeftChildren;
+			this.cacheLeftChildren = tmp;
+			tmp = this.dpRightChildren;
+			this.dpRightChildren = this.cacheRightChildren;
+			this.cacheRightChildren = tmp;
+			tmp = this.dpLoLims;
+			this.dpLoLims = this.cacheLoLims;
+			this.cacheLoLims = tmp;
+			tmp = this.dpNoOfPlacements;
+			this.dpNoOfPlacements = this.cacheNoOfPlacements;
+			this.cacheNoOfPlacements = tmp;
+			double[] dtmp = this.dpLengths;
+			this.dpLengths = this.cacheLengths;
+			this.cacheLengths = dtmp;
+			this.isDPInputsCached = false;
+		}
 	}
 
 	@Override
@@ -159,26 +325,45 @@ public class DLRModel implements InferenceModel {
 		return this.getDataProbability().toString();
 	}
 
+	@Override
+	public SampleSnapshot getSampleSnapshot(SampleSnapshot reuse, SamplingMode mode) {
+		return SampleSnapshots.ofLogDouble(reuse, this.getDataProbability());
+	}
+
 	@Override
 	public LogDouble getDataProbability() {
-		return new LogDouble(this.belows.get(this.g.getRoot(), 0));
+		return this.belows.get(this.g.getRoot()).get(0);
 	}
 	
 	
 	/**
-	 * Creates (and thus clears) the DP data structures.
-	 * @param u the root of the subtree of G.
-	 * @param noOfAncestors the number of ancestors of u.
+	 * Creates the DP data structures where needed. Existing arrays are reused
+	 * if they have the correct number of placements, since all their elements
+	 * are overwritten during an update.
 	 */
 	protected void clearAtsAndBelows() {
 		int[] nos = this.reconcHelper.getNoOfPlacements();
 		for (int u = 0; u < this.g.getNoOfVertices(); ++u) {
-			this.ats.set(u, new LogDouble[nos[u]]);
-			if (this.g.isRoot(u)) {
-				this.belows.set(u, new LogDouble[1]);  // Only tip of host tree.
-			} else {
-				this.belows.set(u, new LogDouble[nos[this.g.getParent(u)]]);
-			}	
+			// Only tip of host tree for root.
+			this.prepareAtsAndBelows(u, nos[u], this.g.isRoot(u) ? 1 : nos[this.g.getParent(u)]);
+		}
+	}
+	
+	/**
+	 * Ensures that the current DP arrays of a vertex exist and have the
+	 * correct number of placements.
+	 * @param u the vertex of G.
+	 * @param noOfAts the number of placements of u.
+	 * @param noOfBelows the number of placements of the tip of u's parent arc.
+	 */
+	private void prepareAtsAndBelows(int u, int noOfAts, int noOfBelows) {
+		LogDoubleArray uAts = this.ats.get(u);
+		if (uAts == null || uAts.length() != noOfAts) {
+			this.ats.set(u, new LogDoubleArray(noOfAts));
+		}
+		LogDoubleArray uBelows = this.belows.get(u);
+		if (uBelows == null || uBelows.length() != noOfBelows) {
+			this.belows.set(u, new LogDoubleArray(noOfBelows));
 		}
 	}
 	
@@ -189,18 +374,43 @@ public class DLRModel implements InferenceModel {
 		int r = this.g.getRoot();
 		this.clearAtsAndBelows();
 		this.updateAtProbs(r, true);
+		this.storeDPInputs(null, this.reconcHelper.getNoOfPlacements());
 	}
 	
 	/**
-	 * Performs a partial DP update.
+	 * Performs a partial DP update when only branch lengths have changed.
 	 * It is assumed that lower limits and number of discretisation points
 	 * are up-to-date.
 	 * @param sortedAffectedVertices all affected vertices, sorted in reverse topological order.
 	 */
 	private void partialUpdate(int[] sortedAffectedVertices) {
+		this.ats.cache(sortedAffectedVertices);
+		this.belows.cache(sortedAffectedVertices);
+		this.cacheDPInputs();
+		for (int u : sortedAffectedVertices) {
+			// Placements are unchanged, so sizes are given by the cached arrays.
+			this.prepareAtsAndBelows(u, this.ats.getSpare(u).length(), this.belows.getSpare(u).length());
+			this.updateAtProbs(u, false);
+			this.dpLengths[u] = this.lengths.get(u);
+		}
+	}
+	
+	/**
+	 * Performs a partial DP update where placements may have changed.
+	 * It is assumed that lower limits and number of discretisation points
+	 * are up-to-date.
+	 * @param sortedAffectedVertices all affected vertices, sorted in reverse topological order.
+	 * @param nos the current number of placements, indexed by vertex.
+	 */
+	private void partialUpdate(int[] sortedAffectedVertices, int[] nos) {
+		this.ats.cache(sortedAffectedVertices);
+		this.belows.cache(sortedAffectedVertices);
+		this.cacheDPInputs();
 		for (int u : sortedAffectedVertices) {
+			this.prepareAtsAndBelows(u, nos[u], this.g.isRoot(u) ? 1 : nos[this.g.getParent(u)]);
 			this.updateAtProbs(u, false);
 		}
+		this.storeDPInputs(sortedAffectedVertices, nos);
 	}
 
 	/**
@@ -212,7 +422,7 @@ public class DLRModel implements InferenceModel {
 	 */
 	protected void updateAtProbs(int u, boolean doRecurse) {
 		if (this.g.isLeaf(u)) {
-			this.ats.set(u, 0, new LogDouble(1.0));
+			this.ats.get(u).setLog(0, 0.0);
 		} else {
 			int lc = this.g.getLeftChild(u);
 			int rc = this.g.getRightChild(u);
@@ -227,21 +437,22 @@ public class DLRModel implements InferenceModel {
 			int[] x_i = this.reconcHelper.getLoLim(u);
 			int idx = 0;                                // No. of processed viable placements.
 
-			LogDouble[] uAts = this.ats.get(u);
-			LogDouble[] lcBelows = this.belows.get(lc);
-			LogDouble[] rcBelows = this.belows.get(rc);
+			double[] uAts = this.ats.get(u).getLogs();
+			double[] lcBelows = this.belows.get(lc).getLogs();
+			double[] rcBelows = this.belows.get(rc).getLogs();
 			
 			// First placement might correspond to a speciation.
 			if (x_i[1] == 0) {
-				uAts[0] = lcBelows[0].multToNew(rcBelows[0]);
+				uAts[0] = lcBelows[0] + rcBelows[0];
 				++idx;
 				++x_i[1];
 			}
 			
 			// Remaining placements correspond to duplications for sure.
+			double logDupRate = Math.log(2 * this.dupLossProbs.getDuplicationRate());
 			for (; idx < uAts.length; ++idx) {
-				double dupRateSliceTimeProduct = 2 * this.dupLossProbs.getDuplicationRate() * this.reconcHelper.getSliceTime(x_i);
-				uAts[idx] = lcBelows[idx].multToNew(rcBelows[idx]).multToNew(dupRateSliceTimeProduct);	
+				double logDupRateSliceTimeProduct = logDupRate + Math.log(this.reconcHelper.getSliceTime(x_i));
+				uAts[idx] = lcBelows[idx] + rcBelows[idx] + logDupRateSliceTimeProduct;
 				// Move onto next pure discretisation point above.
 				this.reconcHelper.incrementPt(x_i);
 			}
@@ -262,16 +473,16 @@ public class DLRModel implements InferenceModel {
 		// y refers to point where u is placed (strictly below x).
 
 		double length = this.lengths.get(u);
-		LogDouble[] uAts = this.ats.get(u);
-		LogDouble[] uBelows = this.belows.get(u);
+		double[] uAts = this.ats.get(u).getLogs();
+		double[] uBelows = this.belows.get(u).getLogs();
 		
 		// Get limits.
 		int[] x_i = (this.g.isRoot(u) ? this.reconcHelper.getTipPt() : this.reconcHelper.getLoLim(this.g.getParent(u)));
 		
 		// For each x_i.
 		for (int xcnt = 0; xcnt < uBelows.length; ++xcnt) {
-			// Clear old value.
-			uBelows[xcnt] = new LogDouble(0.0);
+			// Accumulate in log-space, starting from 0.
+			double sum = Double.NEGATIVE_INFINITY;
 			// For each y_j strictly below x_i.
 			int[] y_j = this.reconcHelper.getLoLim(u);
 			double xt = this.reconcHelper.getDiscretisationTime(x_i);
@@ -280,12 +491,12 @@ public class DLRModel implements InferenceModel {
 				// Note: We now allow edge rates over stem arc as well.
 				double rateDens = this.substPD.getPDF(length / (xt - yt));
 				double p11 = this.dupLossProbs.getP11Probability(x_i[0], x_i[1], y_j[0], y_j[1]);
-				LogDouble product = uAts[ycnt].multToNew(rateDens * p11);
-				uBelows[xcnt].add(product);
+				sum = LogDoubleArray.logSumExp(sum, uAts[ycnt] + Math.log(rateDens * p11));
 				// Move y_j onto next pure discretisation point above.
 				this.reconcHelper.incrementPt(y_j);
 				if (y_j[0] == x_i[0] && y_j[1] >= x_i[1]) { break; }
 			}
+			uBelows[xcnt] = sum;
 			// Move x_i onto next pure discretisation point above.
 			this.reconcHelper.incrementPt(x_i);
 		}
@@ -298,11 +509,11 @@ public class DLRModel implements InferenceModel {
 		for (int u = 0; u < this.g.getNoOfVertices(); ++u) {
 			sb.append(u).append('\t');
 			sb.append(this.reconcHelper.getLoLimAsString(u)).append('\t');
-			sb.append(this.ats.get(u).length).append('\t');
+			sb.append(this.ats.get(u).length()).append('\t');
 			//sb.append((this.upLims.get(u) << 16) >>> 16).append('_').append(this.upLims.get(u) >>> 16).append('\t');
 			sb.append(this.g.isLeaf(u) ? "Leaf" : (this.reconcHelper.isDuplication(u) ? "Duplication" : "Speciation/duplication")).append('\t');
-			sb.append(Arrays.toString(this.ats.get(u))).append('\t');
-			sb.append(Arrays.toString(this.belows.get(u))).append('\n');
+			sb.append(this.ats.get(u)).append('\t');
+			sb.append(this.belows.get(u)).append('\n');
 		}
 		return sb.toString();
 	}
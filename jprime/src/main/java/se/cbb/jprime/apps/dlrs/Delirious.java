@@ -7,6 +7,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.LinkedHashMap;
@@ -19,13 +20,17 @@ import se.cbb.jprime.io.JCommanderUsageWrapper;
 import se.cbb.jprime.io.NewickRBTreeSamples;
 import se.cbb.jprime.io.RBTreeSampleWrapper;
 import se.cbb.jprime.io.SampleDoubleArray;
-import se.cbb.jprime.io.SampleWriter;
+import se.cbb.jprime.io.Sampler;
 import se.cbb.jprime.math.Continuous1DPDDependent;
 import se.cbb.jprime.math.PRNG;
 import se.cbb.jprime.math.RealInterval;
+import se.cbb.jprime.mcmc.AdaptiveMetropolisProposer;
+import se.cbb.jprime.mcmc.ConvergenceDiagnostics;
 import se.cbb.jprime.mcmc.DoubleParameter;
 import se.cbb.jprime.mcmc.FineProposerStatistics;
+import se.cbb.jprime.mcmc.IndependentRunsManager;
 import se.cbb.jprime.mcmc.Iteration;
+import se.cbb.jprime.mcmc.MC3Manager;
 import se.cbb.jprime.mcmc.MCMCManager;
 import se.cbb.jprime.mcmc.MultiProposerSelector;
 import se.cbb.jprime.mcmc.NormalProposer;
@@ -66,12 +71,12 @@ public class Delirious implements JPrIMEApp {
 	
 	@Override
 	public void main(String[] args) {
-		BufferedWriter info = null;
+		Parameters params = null;
 		try {
 			
 			// ================ PARSE USER OPTIONS AND ARGUMENTS ================
 			
-			Parameters params = new Parameters();
+			params = new Parameters();
 			JCommander jc = new JCommander(params, args);
 			if (args.length == 0 || params.help) {
 				StringBuilder sb = new StringBuilder(65536);
@@ -93,42 +98,83 @@ public class Delirious implements JPrIMEApp {
 						"License: JPrIME is available under the New BSD License.\n" +
 						"================================================================================\n");
 				sb.append("Usage:\n" +
-						"    java -jar jprime-X.Y.Z.jar Delirious [options] <args>\n");
+						"    java -jar jprime-X.Y.Z.jar Delirious [options] <args>\n" +
+						"    java -jar jprime-X.Y.Z.jar Delirious -batch <manifest> [options] <Host tree>\n");
 				JCommanderUsageWrapper.getUnsortedUsage(jc, params, sb);
 				System.out.println(sb.toString());
 				return;
 			}
 			
+			if (params.batch != null) {
+				new DeliriousBatch(this, params, args).run();
+			} else {
+				this.run(params, args, null);
+			}
+			
+		} catch (Exception e) {
+		    //			e.printStackTrace(System.err);
+		    String msg = e.getMessage();
+			System.err.print("\nERROR: " + msg + "\n\nUse option -h or --help to show usage.\nSee .info file for more information.\n");
+			if (params != null && params.batch != null) {
+				// Let job schedulers and scripts detect failed gene families.
+				System.exit(1);
+			}
+		}
+	}
+	
+	/**
+	 * Performs a complete analysis of a gene family. If the analysis fails, the reason is written to
+	 * the info output before the exception is rethrown.
+	 * @param params parameters.
+	 * @param args the original arguments.
+	 * @param batch batch run providing a shared host tree, discretisations and substitution model; null if not part of a batch.
+	 * @return the total number of iterations performed by the chains.
+	 * @throws Exception if the analysis failed.
+	 */
+	long run(Parameters params, String[] args, DeliriousBatch batch) throws Exception {
+		BufferedWriter info = null;
+		ArrayList<MCMCManager> chains = new ArrayList<MCMCManager>();
+		Sampler[] samplers = null;
+		RealisationSampler realisationSampler = null;
+		try {
+			
 			// ================ READ AND CREATE ALL PARAMETERS ================
 			
 			// MCMC chain output and auxiliary info.
-			SampleWriter sampler = ParameterParser.getOut(params);
+			samplers = new Sampler[params.runs];
+			for (int r = 0; r < samplers.length; ++r) {
+				samplers[r] = ParameterParser.getOut(params, r);
+			}
 			info = ParameterParser.getInfo(params);
 			info.write("# =========================================================================\n");
 			info.write("# ||                             PRE-RUN INFO                            ||\n");
 			info.write("# =========================================================================\n");
 			info.write("# DELIRIOUS\n");
 			info.write("# Arguments: " + Arrays.toString(args) + '\n');
+			if (batch != null) {
+				info.write("# Batch gene family: " + params.files.get(1) + ' ' + params.files.get(2) + '\n');
+			}
 			Calendar cal = Calendar.getInstance();
 		    SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
 			info.write("# Current time: " + df.format(cal.getTime()) + '\n');
 			
 			// Read S and t.
-			Triple<RBTree, NamesMap, TimesMap> sNamesTimes = ParameterParser.getHostTree(params, info);
+			Triple<RBTree, NamesMap, TimesMap> sNamesTimes = (batch == null ? ParameterParser.getHostTree(params, info) : batch.getHostTree());
 			
 			// Read guest-to-host leaf map.
 			GuestHostMap gsMap = ParameterParser.getGSMap(params);
 			
-			// Substitution model first, then sequence alignment D and site rates.
-			SubstitutionMatrixHandler Q = SubstitutionMatrixHandlerFactory.create(params.substitutionModel, 4 * gsMap.getNoOfLeafNames());
+			// Substitution model first, then sequence alignment D. The alignment is shared by all chains.
+			SubstitutionMatrixHandler Q = (batch == null ? SubstitutionMatrixHandlerFactory.create(params.substitutionModel, 4 * gsMap.getNoOfLeafNames()) :
+				batch.getSubstitutionMatrixHandler(4 * gsMap.getNoOfLeafNames()));
 			LinkedHashMap<String, ? extends Sequence<? extends Compound>> sequences = ParameterParser.getMultialignment(params, Q.getSequenceType());
 			MSAData D = new MSAData(Q.getSequenceType(), sequences);
-			Pair<DoubleParameter, GammaSiteRateHandler> siteRates = ParameterParser.getSiteRates(params);
 			
-			// Pseudo-random number generator.
+			// Pseudo-random number generator(s).
 			PRNG prng = ParameterParser.getPRNG(params);
+			PRNG[] runPRNGs = ParameterParser.getRunPRNGs(params, prng);
 			
-			// Read/create G and l.
+			// Read guest tree samples, if any.
 			NewickRBTreeSamples guestTreeSamples = null;
 			if (params.guestTreeSet != null) {
 				Double burninProp = Double.parseDouble(params.guestTreeSetBurninProp);
@@ -141,141 +187,84 @@ public class Delirious implements JPrIMEApp {
 							params.guestTreeSetFileRelColNo, burninProp, minCvg);
 				}
 			}
-			Triple<RBTree, NamesMap, DoubleMap> gNamesLengths = ParameterParser.getGuestTreeAndLengths(params, gsMap, prng, sequences, info, guestTreeSamples, D);
-			
-			for(int i = 0; i < gNamesLengths.third.getSize(); i++)
-				gNamesLengths.third.set(i, gNamesLengths.third.get(i)/Double.parseDouble(params.normp));
-			
-			// Read number of iterations and thinning factor.
-			Iteration iter = ParameterParser.getIteration(params);
-			Thinner thinner = ParameterParser.getThinner(params, iter);
-			
-			// Sigma (mapping between G and S).
-			MPRMap mprMap = new MPRMap(gsMap, gNamesLengths.first, gNamesLengths.second, sNamesTimes.first, sNamesTimes.second);
-			
-			// Read probability distribution for iid guest tree edge rates (molecular clock relaxation). 
-			Triple<DoubleParameter, DoubleParameter, Continuous1DPDDependent> edgeRatePD = ParameterParser.getEdgeRatePD(params);
-			
-			// Create discretisation of S.
-			RBTreeArcDiscretiser dtimes = ParameterParser.getDiscretizer(params, sNamesTimes.first, sNamesTimes.second, sNamesTimes.third, gNamesLengths.first);
-			
-			// Create reconciliation helper.
-			ReconciliationHelper rHelper = ParameterParser.getReconciliationHelper(params, gNamesLengths.first, sNamesTimes.first, dtimes, mprMap);
-			
-			// Duplication-loss probabilities over discretised S.
-			Triple<DoubleParameter, DoubleParameter, DupLossProbs> dupLoss = ParameterParser.getDupLossProbs(params, mprMap, sNamesTimes.first, gNamesLengths.first, dtimes);
-			
-			// ================ CREATE MODELS, PROPOSERS, ETC. ================
-			
-			// Priors. We only have them for parameters which might cause issues.
-			RealInterval priorRange = new RealInterval(1e-16, 1e16, false, false);
-			RealParameterUniformPrior edgeRateMeanPrior = new RealParameterUniformPrior(edgeRatePD.first, priorRange);
-			RealParameterUniformPrior edgeRateCVPrior = new RealParameterUniformPrior(edgeRatePD.second, priorRange);
-			RealParameterUniformPrior lengthsPrior = new RealParameterUniformPrior(gNamesLengths.third, priorRange);
-			
-			// Substitution model. NOTE: Root arc is turned on!!!!
-			SubstitutionModel sm = new SubstitutionModel("SubstitutionModel", D, siteRates.second, Q, gNamesLengths.first, gNamesLengths.second, gNamesLengths.third, true);
-			
-			// DLR model.
-			DLRModel dlr = new DLRModel(gNamesLengths.first, sNamesTimes.first, rHelper, gNamesLengths.third, dupLoss.third, edgeRatePD.third);
-			
-			// Realisation sampler.
-			RealisationSampler realisationSampler = ParameterParser.getRealisationSampler(params, iter, prng, dlr, gNamesLengths.second);
-			
-			// Proposers.
-			NormalProposer dupRateProposer = ParameterParser.getNormalProposer(params, dupLoss.first, iter, prng, params.tuningDupRate);
-			NormalProposer lossRateProposer = ParameterParser.getNormalProposer(params, dupLoss.second, iter, prng, params.tuningLossRate);
-			NormalProposer edgeRateMeanProposer = ParameterParser.getNormalProposer(params, edgeRatePD.first, iter, prng, params.tuningEdgeRateMean);
-			NormalProposer edgeRateCVProposer = ParameterParser.getNormalProposer(params, edgeRatePD.second, iter, prng, params.tuningEdgeRateCV);
-			NormalProposer siteRateShapeProposer = ParameterParser.getNormalProposer(params, siteRates.first, iter, prng, params.tuningSiteRateShape);
-			Proposer guestTreeProposer = ParameterParser.getBranchSwapper(params, gNamesLengths.first, gNamesLengths.third, mprMap, iter, prng, guestTreeSamples);
-			NormalProposer lengthsProposer = ParameterParser.getNormalProposer(params, gNamesLengths.third, iter, prng, params.tuningLengths);
-			double[] lengthsWeights = SampleDoubleArray.toDoubleArray(params.tuningLengthsSelectorWeights);
-			lengthsProposer.setSubParameterWeights(lengthsWeights);
-			
-			// Proposer selector.
-			MultiProposerSelector selector = ParameterParser.getSelector(params, prng);
-			selector.add(dupRateProposer, ParameterParser.getProposerWeight(params.tuningWeightDupRate, iter));
-			selector.add(lossRateProposer, ParameterParser.getProposerWeight(params.tuningWeightLossRate, iter));
-			selector.add(edgeRateMeanProposer, ParameterParser.getProposerWeight(params.tuningWeightEdgeRateMean, iter));
-			selector.add(edgeRateCVProposer, ParameterParser.getProposerWeight(params.tuningWeightEdgeRateCV, iter));
-			selector.add(siteRateShapeProposer, ParameterParser.getProposerWeight(params.tuningWeightSiteRateShape, iter));
-			selector.add(guestTreeProposer, ParameterParser.getProposerWeight(params.tuningWeightG, iter));
-			selector.add(lengthsProposer, ParameterParser.getProposerWeight(params.tuningWeightLengths, iter));
-			
-			// Inactivate fixed proposers.
-			if (params.dupRate != null        && params.dupRate.matches("FIXED|Fixed|fixed"))        { dupRateProposer.setEnabled(false); }
-			if (params.lossRate != null       && params.lossRate.matches("FIXED|Fixed|fixed"))       { lossRateProposer.setEnabled(false); }
-			if (params.edgeRatePDMean != null && params.edgeRatePDMean.matches("FIXED|Fixed|fixed")) { edgeRateMeanProposer.setEnabled(false); }
-			if (params.edgeRatePDCV != null   && params.edgeRatePDCV.matches("FIXED|Fixed|fixed"))   { edgeRateCVProposer.setEnabled(false); }
-			if (params.siteRateCats == 1      || params.siteRateShape.matches("FIXED|Fixed|fixed"))  { siteRateShapeProposer.setEnabled(false); }
-			if (params.guestTreeFixed)                                                               { guestTreeProposer.setEnabled(false); }
-			if (params.lengthsFixed)                                                                 { lengthsProposer.setEnabled(false); }
-			
-			// Proposal acceptor.
-			ProposalAcceptor acceptor = ParameterParser.getAcceptor(params, prng);
 			
-			// Overall statistics.
-			FineProposerStatistics stats = new FineProposerStatistics(iter, 8);
-			
-			// ================ SETUP MCMC HIERARCHY ================
-			
-			MCMCManager manager = new MCMCManager(iter, thinner, selector, acceptor, sampler, prng, stats);
-			manager.setDebugMode(params.debug);
-			
-			manager.addModel(edgeRateMeanPrior);
-			manager.addModel(edgeRateCVPrior);
-			manager.addModel(lengthsPrior);
-			manager.addModel(sm);
-			manager.addModel(dlr);
-			
-			manager.addSampleable(iter);
-			manager.addSampleable(manager);			// Overall likelihood.
-			//manager.addSampleable(edgeRateMeanPrior);
-			//manager.addSampleable(edgeRateCVPrior);
-			//manager.addSampleable(lengthsPrior);
-			manager.addSampleable(sm);
-			manager.addSampleable(dlr);
-			manager.addSampleable(dupLoss.first);
-			manager.addSampleable(dupLoss.second);
-			manager.addSampleable(edgeRatePD.first);
-			manager.addSampleable(edgeRatePD.second);
-			if (siteRateShapeProposer.isEnabled()) {
-				manager.addSampleable(siteRates.first);
-			}
-			manager.addSampleable(new RBTreeSampleWrapper(gNamesLengths.first, gNamesLengths.second));
-			if (params.outputLengths) {
-				manager.addSampleable(new RBTreeSampleWrapper(gNamesLengths.first, gNamesLengths.second, gNamesLengths.third));
-			}
-			if (realisationSampler != null) {
-				manager.addSampleable(realisationSampler);
+			// ================ CREATE CHAINS ================
+			
+			// The discretisation of S and the substitution model eigensystem are shared by all chains.
+			RBTreeArcDiscretiser dtimes = (batch == null ?
+					ParameterParser.getDiscretizer(params, sNamesTimes.first, sNamesTimes.second, sNamesTimes.third, gsMap.getNoOfLeafNames()) :
+					batch.getDiscretizer(params, gsMap.getNoOfLeafNames()));
+			ConvergenceDiagnostics diagnostics = ParameterParser.getConvergenceDiagnostics(params);
+			for (int r = 0; r < runPRNGs.length; ++r) {
+				PRNG[] chainPRNGs = ParameterParser.getChainPRNGs(params, runPRNGs[r]);
+				for (int c = 0; c < chainPRNGs.length; ++c) {
+					SubstitutionMatrixHandler chainQ = (chains.isEmpty() ? Q : new SubstitutionMatrixHandler(Q));
+					Pair<MCMCManager, RealisationSampler> chain = this.createChain(params, samplers[r], info, sNamesTimes, gsMap, chainQ, sequences, D,
+							guestTreeSamples, dtimes, chainPRNGs[c], diagnostics, r);
+					chains.add(chain.first);
+					realisationSampler = chain.second;
+				}
 			}
+			MCMCManager manager = chains.get(0);
+			ParameterParser.setCheckpointing(params, manager);
+			MC3Manager mc3 = (params.chains > 1 ? ParameterParser.getMC3Manager(params, chains, prng) : null);
+			IndependentRunsManager runs = (params.runs > 1 ? new IndependentRunsManager(chains) : null);
 			
 			// ================ WRITE PRE-INFO ================
-			info.write("# MCMC manager:\n");
-			info.write(manager.getPreInfo("# \t"));
+			if (mc3 != null) {
+				info.write("# MC3 manager:\n");
+				info.write(mc3.getPreInfo("# \t"));
+			} else if (runs != null) {
+				info.write("# Independent runs manager:\n");
+				info.write(runs.getPreInfo("# \t"));
+			} else {
+				info.write("# MCMC manager:\n");
+				info.write(manager.getPreInfo("# \t"));
+			}
 			info.flush();   // Don't close, maybe use stdout for both sampling and info...
 			
 			// ================ RUN ================
-			manager.run();
+			if (mc3 != null) {
+				mc3.run();
+			} else if (runs != null) {
+				runs.run();
+			} else {
+				manager.run();
+			}
 			
 			// ================ WRITE POST-INFO ================
 			info.write("# =========================================================================\n");
 			info.write("# ||                             POST-RUN INFO                           ||\n");
 			info.write("# =========================================================================\n");
 			info.write("# DELIRIOUS\n");
-			info.write("# MCMC manager:\n");
-			info.write(manager.getPostInfo("# \t"));
+			if (mc3 != null) {
+				info.write("# MC3 manager:\n");
+				info.write(mc3.getPostInfo("# \t"));
+			} else if (runs != null) {
+				info.write("# Independent runs manager:\n");
+				info.write(runs.getPostInfo("# \t"));
+			} else {
+				info.write("# MCMC manager:\n");
+				info.write(manager.getPostInfo("# \t"));
+			}
 			info.flush();
-			sampler.close();
+			for (int r = 0; r < samplers.length; ++r) {
+				samplers[r].close();
+				samplers[r] = null;
+			}
 			info.close();
-			if (realisationSampler != null) { realisationSampler.close(); }
+			if (realisationSampler != null) {
+				realisationSampler.close();
+				realisationSampler = null;
+			}
 			
+			long iterations = 0;
+			for (MCMCManager chain : chains) {
+				iterations += chain.getIteration().getIteration();
+			}
+			return iterations;
 			
 		} catch (Exception e) {
-		    //			e.printStackTrace(System.err);
-		    String msg = e.getMessage();
-			System.err.print("\nERROR: " + msg + "\n\nUse option -h or --help to show usage.\nSee .info file for more information.\n");
 			if (info != null) {
 				Writer w = new StringWriter();
 			    PrintWriter pw = new PrintWriter(w);
@@ -288,8 +277,183 @@ public class Delirious implements JPrIMEApp {
 				} catch (IOException f) {
 				}
 			}
+			throw e;
+		} finally {
+			// Release worker threads of the chains and any output still open after a failure.
+			// Close failures are only reported, so that they cannot mask the original exception.
+			for (MCMCManager chain : chains) {
+				try {
+					chain.close();
+				} catch (IOException ex) {
+					System.err.println("Failed to close MCMC chain: " + ex.getMessage());
+				}
+			}
+			if (samplers != null) {
+				for (Sampler sampler : samplers) {
+					if (sampler == null) { continue; }
+					try {
+						sampler.close();
+					} catch (IOException ex) {
+						System.err.println("Failed to close sample output: " + ex.getMessage());
+					}
+				}
+			}
+			if (realisationSampler != null) {
+				try {
+					realisationSampler.close();
+				} catch (IOException ex) {
+					System.err.println("Failed to close realisation output: " + ex.getMessage());
+				}
+			}
 		}
 	}
 	
+	/**
+	 * Creates an MCMC chain with its own parameters, models and proposers. Input data is shared.
+	 * @param params parameters.
+	 * @param sampler sample output.
+	 * @param info info output.
+	 * @param sNamesTimes host tree.
+	 * @param gsMap guest-to-host leaf map.
+	 * @param Q substitution matrix handler of the chain.
+	 * @param sequences multialignment.
+	 * @param D multialignment data.
+	 * @param guestTreeSamples guest tree samples, possibly null.
+	 * @param dtimes discretisation of S.
+	 * @param prng PRNG of the chain.
+	 * @param diagnostics convergence diagnostics shared by all chains, possibly null.
+	 * @param run index of the independent run of the chain.
+	 * @return the chain and its realisation sampler, the latter possibly null.
+	 * @throws Exception if the chain could not be created.
+	 */
+	private Pair<MCMCManager, RealisationSampler> createChain(Parameters params, Sampler sampler, BufferedWriter info,
+			Triple<RBTree, NamesMap, TimesMap> sNamesTimes, GuestHostMap gsMap, SubstitutionMatrixHandler Q,
+			LinkedHashMap<String, ? extends Sequence<? extends Compound>> sequences, MSAData D,
+			NewickRBTreeSamples guestTreeSamples, RBTreeArcDiscretiser dtimes, PRNG prng, ConvergenceDiagnostics diagnostics, int run) throws Exception {
+		// Site rates.
+		Pair<DoubleParameter, GammaSiteRateHandler> siteRates = ParameterParser.getSiteRates(params);
+		
+		// Read/create G and l.
+		Triple<RBTree, NamesMap, DoubleMap> gNamesLengths = ParameterParser.getGuestTreeAndLengths(params, gsMap, prng, sequences, info, guestTreeSamples, D);
+		
+		for(int i = 0; i < gNamesLengths.third.getSize(); i++)
+			gNamesLengths.third.set(i, gNamesLengths.third.get(i)/Double.parseDouble(params.normp));
+		
+		// Read number of iterations and thinning factor.
+		Iteration iter = ParameterParser.getIteration(params);
+		Thinner thinner = ParameterParser.getThinner(params, iter);
+		
+		// Sigma (mapping between G and S).
+		MPRMap mprMap = new MPRMap(gsMap, gNamesLengths.first, gNamesLengths.second, sNamesTimes.first, sNamesTimes.second);
+		
+		// Read probability distribution for iid guest tree edge rates (molecular clock relaxation). 
+		Triple<DoubleParameter, DoubleParameter, Continuous1DPDDependent> edgeRatePD = ParameterParser.getEdgeRatePD(params);
+		
+		// Create reconciliation helper.
+		ReconciliationHelper rHelper = ParameterParser.getReconciliationHelper(params, gNamesLengths.first, sNamesTimes.first, dtimes, mprMap);
+		
+		// Duplication-loss probabilities over discretised S.
+		Triple<DoubleParameter, DoubleParameter, DupLossProbs> dupLoss = ParameterParser.getDupLossProbs(params, mprMap, sNamesTimes.first, gNamesLengths.first, dtimes);
+		
+		// ================ CREATE MODELS, PROPOSERS, ETC. ================
+		
+		// Priors. We only have them for parameters which might cause issues.
+		RealInterval priorRange = new RealInterval(1e-16, 1e16, false, false);
+		RealParameterUniformPrior edgeRateMeanPrior = new RealParameterUniformPrior(edgeRatePD.first, priorRange);
+		RealParameterUniformPrior edgeRateCVPrior = new RealParameterUniformPrior(edgeRatePD.second, priorRange);
+		RealParameterUniformPrior lengthsPrior = new RealParameterUniformPrior(gNamesLengths.third, priorRange);
+		
+		// Substitution model. NOTE: Root arc is turned on!!!!
+		SubstitutionModel sm = new SubstitutionModel("SubstitutionModel", D, siteRates.second, Q, gNamesLengths.first, gNamesLengths.second, gNamesLengths.third, true, params.threads);
+		
+		// DLR model.
+		DLRModel dlr = new DLRModel(gNamesLengths.first, sNamesTimes.first, rHelper, gNamesLengths.third, dupLoss.third, edgeRatePD.third);
+		
+		// Realisation sampler.
+		RealisationSampler realisationSampler = ParameterParser.getRealisationSampler(params, iter, prng, dlr, gNamesLengths.second);
+		
+		// Proposers.
+		NormalProposer dupRateProposer = ParameterParser.getNormalProposer(params, dupLoss.first, iter, prng, params.tuningDupRate);
+		NormalProposer lossRateProposer = ParameterParser.getNormalProposer(params, dupLoss.second, iter, prng, params.tuningLossRate);
+		NormalProposer edgeRateMeanProposer = ParameterParser.getNormalProposer(params, edgeRatePD.first, iter, prng, params.tuningEdgeRateMean);
+		NormalProposer edgeRateCVProposer = ParameterParser.getNormalProposer(params, edgeRatePD.second, iter, prng, params.tuningEdgeRateCV);
+		NormalProposer siteRateShapeProposer = ParameterParser.getNormalProposer(params, siteRates.first, iter, prng, params.tuningSiteRateShape);
+		Proposer guestTreeProposer = ParameterParser.getBranchSwapper(params, gNamesLengths.first, gNamesLengths.third, mprMap, iter, prng, guestTreeSamples);
+		NormalProposer lengthsProposer = ParameterParser.getNormalProposer(params, gNamesLengths.third, iter, prng, params.tuningLengths);
+		double[] lengthsWeights = SampleDoubleArray.toDoubleArray(params.tuningLengthsSelectorWeights);
+		lengthsProposer.setSubParameterWeights(lengthsWeights);
+		
+		// Proposer selector.
+		MultiProposerSelector selector = ParameterParser.getSelector(params, prng);
+		selector.add(dupRateProposer, ParameterParser.getProposerWeight(params.tuningWeightDupRate, iter));
+		selector.add(lossRateProposer, ParameterParser.getProposerWeight(params.tuningWeightLossRate, iter));
+		selector.add(edgeRateMeanProposer, ParameterParser.getProposerWeight(params.tuningWeightEdgeRateMean, iter));
+		selector.add(edgeRateCVProposer, ParameterParser.getProposerWeight(params.tuningWeightEdgeRateCV, iter));
+		selector.add(siteRateShapeProposer, ParameterParser.getProposerWeight(params.tuningWeightSiteRateShape, iter));
+		selector.add(guestTreeProposer, ParameterParser.getProposerWeight(params.tuningWeightG, iter));
+		selector.add(lengthsProposer, ParameterParser.getProposerWeight(params.tuningWeightLengths, iter));
+		
+		// Inactivate fixed proposers.
+		if (params.dupRate != null        && params.dupRate.matches("FIXED|Fixed|fixed"))        { dupRateProposer.setEnabled(false); }
+		if (params.lossRate != null       && params.lossRate.matches("FIXED|Fixed|fixed"))       { lossRateProposer.setEnabled(false); }
+		if (params.edgeRatePDMean != null && params.edgeRatePDMean.matches("FIXED|Fixed|fixed")) { edgeRateMeanProposer.setEnabled(false); }
+		if (params.edgeRatePDCV != null   && params.edgeRatePDCV.matches("FIXED|Fixed|fixed"))   { edgeRateCVProposer.setEnabled(false); }
+		if (params.siteRateCats == 1      || params.siteRateShape.matches("FIXED|Fixed|fixed"))  { siteRateShapeProposer.setEnabled(false); }
+		if (params.guestTreeFixed)                                                               { guestTreeProposer.setEnabled(false); }
+		if (params.lengthsFixed)                                                                 { lengthsProposer.setEnabled(false); }
+		
+		// Adaptive proposer jointly perturbing the non-fixed scalar parameters.
+		AdaptiveMetropolisProposer adaptiveProposer = ParameterParser.getAdaptiveProposer(params,
+				new NormalProposer[] { dupRateProposer, lossRateProposer, edgeRateMeanProposer, edgeRateCVProposer, siteRateShapeProposer }, iter, prng);
+		if (adaptiveProposer != null) {
+			selector.add(adaptiveProposer, ParameterParser.getProposerWeight(params.tuningWeightAdaptive, iter));
+		}
+		
+		// Proposal acceptor.
+		ProposalAcceptor acceptor = ParameterParser.getAcceptor(params, prng);
+		
+		// Overall statistics.
+		FineProposerStatistics stats = new FineProposerStatistics(iter, 8);
+		
+		// ================ SETUP MCMC HIERARCHY ================
+		
+		MCMCManager manager = new MCMCManager(iter, thinner, selector, acceptor, sampler, prng, stats);
+		manager.setDebugMode(params.debug);
+		
+		manager.addModel(edgeRateMeanPrior);
+		manager.addModel(edgeRateCVPrior);
+		manager.addModel(lengthsPrior);
+		manager.addModel(sm);
+		manager.addModel(dlr);
+		
+		manager.addSampleable(iter);
+		manager.addSampleable(manager);			// Overall likelihood.
+		//manager.addSampleable(edgeRateMeanPrior);
+		//manager.addSampleable(edgeRateCVPrior);
+		//manager.addSampleable(lengthsPrior);
+		manager.addSampleable(sm);
+		manager.addSampleable(dlr);
+		manager.addSampleable(dupLoss.first);
+		manager.addSampleable(dupLoss.second);
+		manager.addSampleable(edgeRatePD.first);
+		manager.addSampleable(edgeRatePD.second);
+		if (siteRateShapeProposer.isEnabled()) {
+			manager.addSampleable(siteRates.first);
+		}
+		RBTreeSampleWrapper guestTreeWrapper = new RBTreeSampleWrapper(gNamesLengths.first, gNamesLengths.second);
+		manager.addSampleable(guestTreeWrapper);
+		if (params.outputLengths) {
+			manager.addSampleable(new RBTreeSampleWrapper(gNamesLengths.first, gNamesLengths.second, gNamesLengths.third));
+		}
+		if (realisationSampler != null) {
+			manager.addSampleable(realisationSampler);
+		}
+		
+		// Convergence diagnostics for early stopping.
+		ParameterParser.setConvergenceDiagnostics(params, manager, diagnostics, run,
+				new NormalProposer[] { dupRateProposer, lossRateProposer, edgeRateMeanProposer, edgeRateCVProposer, siteRateShapeProposer }, guestTreeWrapper);
+		
+		return new Pair<MCMCManager, RealisationSampler>(manager, realisationSampler);
+	}
 	
 }
@@ -0,0 +1,361 @@
+package se.cbb.jprime.apps.dlrs;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Scanner;
+
+import se.cbb.jprime.io.GuestHostMapReader;
+import se.cbb.jprime.math.PRNG;
+import se.cbb.jprime.misc.Triple;
+import se.cbb.jprime.seqevo.SubstitutionMatrixHandler;
+import se.cbb.jprime.seqevo.SubstitutionMatrixHandlerFactory;
+import se.cbb.jprime.topology.NamesMap;
+import se.cbb.jprime.topology.RBTree;
+import se.cbb.jprime.topology.RBTreeArcDiscretiser;
+import se.cbb.jprime.topology.TimesMap;
+
+import com.beust.jcommander.JCommander;
+
+/**
+ * Batch mode of Delirious, analysing many gene families with a common host tree in the same process,
+ * thus avoiding the start-up cost of one JVM per family. The families are read from a manifest with one
+ * family per line: <code>&lt;multialignment&gt; &lt;guest-to-host leaf map&gt; &lt;output prefix&gt;</code>.
+ * All other options are shared by the families.
+ * <p/>
+ * The host tree is read once, discretisations of it are cached by their number of stem points,
+ * and the eigensystem of the substitution model is computed once, with each family using its own
+ * P matrix cache on top of it. Families are run concurrently, largest first and subject to a memory
+ * budget, see <code>BatchScheduler</code>. A throughput report is written to the info output of the batch,
+ * along with the reasons of failed families.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class DeliriousBatch {
+
+	/** Estimated baseline memory of a family in bytes. */
+	public static final long BASE_MEMORY = 4L * 1024 * 1024;
+
+	/**
+	 * Gene family of the manifest.
+	 */
+	private static class Family {
+
+		/** Index in manifest. */
+		int index;
+
+		/** Multialignment file. */
+		String msa;
+
+		/** Guest-to-host leaf map file. */
+		String gsMap;
+
+		/** Output prefix. */
+		String prefix;
+
+		/** PRNG seed. */
+		String seed;
+
+		/** Number of guest tree leaves. */
+		int noOfLeaves;
+
+		/** Estimated memory requirement in MB. */
+		int memory;
+	}
+
+	/** The app. */
+	private Delirious app;
+
+	/** Batch parameters. */
+	private Parameters params;
+
+	/** Original arguments. */
+	private String[] args;
+
+	/** Batch info output. */
+	private BufferedWriter info;
+
+	/** Host tree, names and times. */
+	private Triple<RBTree, NamesMap, TimesMap> hostTree;
+
+	/** Substitution model whose eigensystem is shared by all families. */
+	private SubstitutionMatrixHandler Q;
+
+	/** Discretisations of the host tree, indexed by number of stem points. */
+	private HashMap<Integer, RBTreeArcDiscretiser> discretisations;
+
+	/**
+	 * Constructor.
+	 * @param app the app running the families.
+	 * @param params batch parameters.
+	 * @param args original arguments.
+	 */
+	public DeliriousBatch(Delirious app, Parameters params, String[] args) {
+		if (params.files.size() != 1) {
+			throw new IllegalArgumentException("Batch mode takes the host tree as only argument.");
+		}
+		if (params.checkpoint != null || params.resume) {
+			throw new IllegalArgumentException("Checkpointing is not supported in batch mode.");
+		}
+		this.app = app;
+		this.params = params;
+		this.args = args;
+		this.discretisations = new HashMap<Integer, RBTreeArcDiscretiser>();
+	}
+
+	/**
+	 * Returns the shared host tree.
+	 * @return host tree, names and times.
+	 */
+	public Triple<RBTree, NamesMap, TimesMap> getHostTree() {
+		return this.hostTree;
+	}
+
+	/**
+	 * Returns a substitution model sharing the eigensystem of all families.
+	 * @param cacheSize number of P matrices to cache.
+	 * @return the substitution model.
+	 */
+	public SubstitutionMatrixHandler getSubstitutionMatrixHandler(int cacheSize) {
+		return new SubstitutionMatrixHandler(this.Q, cacheSize);
+	}
+
+	/**
+	 * Returns a discretisation of the host tree for a gene family, shared with all families requiring
+	 * the same number of stem points.
+	 * @param ps parameters of the family.
+	 * @param noOfGuestLeaves number of leaves of the guest tree.
+	 * @return the discretisation.
+	 */
+	public synchronized RBTreeArcDiscretiser getDiscretizer(Parameters ps, int noOfGuestLeaves) {
+		Integer stem = ParameterParser.getDiscStem(ps, noOfGuestLeaves);
+		RBTreeArcDiscretiser dtimes = this.discretisations.get(stem);
+		if (dtimes == null) {
+			dtimes = ParameterParser.getDiscretizer(ps, this.hostTree.first, this.hostTree.second, this.hostTree.third, noOfGuestLeaves);
+			this.discretisations.put(stem, dtimes);
+		}
+		return dtimes;
+	}
+
+	/**
+	 * Estimates the memory requirement of a gene family, dominated by the partial likelihoods of the
+	 * substitution model and the probabilities of the DLR model over the discretised host tree.
+	 * @param noOfLeaves number of guest tree leaves.
+	 * @param msaBytes size of the multialignment file.
+	 * @param alphabetSize alphabet size of the substitution model.
+	 * @param siteRateCats number of site rate categories.
+	 * @param noOfDiscPoints number of points of the host tree discretisation.
+	 * @param noOfChains number of chains of the family.
+	 * @return the estimate in bytes.
+	 */
+	public static long estimateMemory(int noOfLeaves, long msaBytes, int alphabetSize, int siteRateCats, int noOfDiscPoints, int noOfChains) {
+		long n = Math.max(noOfLeaves, 1);
+		long noOfVertices = 2 * n - 1;
+		long noOfSites = msaBytes / n + 1;
+		// Alignment, shared by chains.
+		long mem = BASE_MEMORY + 8 * msaBytes;
+		// Partial likelihoods and their caches.
+		long sm = 2 * 8 * noOfVertices * noOfSites * siteRateCats * alphabetSize;
+		// Probabilities and their caches at the discretisation points.
+		long dlr = 4 * 8 * noOfVertices * noOfDiscPoints;
+		return mem + noOfChains * (sm + dlr);
+	}
+
+	/**
+	 * Returns the total number of points of a host tree discretisation.
+	 * @param dtimes the discretisation.
+	 * @return the number of points.
+	 */
+	private int getNoOfDiscPoints(RBTreeArcDiscretiser dtimes) {
+		int n = 0;
+		for (int x = 0; x < this.hostTree.first.getNoOfVertices(); ++x) {
+			n += dtimes.getNoOfSlices(x) + 1;
+		}
+		return n;
+	}
+
+	/**
+	 * Reads the manifest, assigning each family a seed in manifest order.
+	 * @param prng the PRNG of the batch.
+	 * @return the families.
+	 * @throws IOException if unable to read the manifest or a leaf map.
+	 */
+	private ArrayList<Family> readManifest(PRNG prng) throws IOException {
+		ArrayList<Family> families = new ArrayList<Family>();
+		Scanner sc = new Scanner(new File(this.params.batch));
+		try {
+			int lnNo = 0;
+			while (sc.hasNextLine()) {
+				String ln = sc.nextLine().trim();
+				++lnNo;
+				if (ln.equals("") || ln.startsWith("#")) {
+					continue;
+				}
+				String[] parts = ln.split("[ \t]+");
+				if (parts.length != 3) {
+					throw new IllegalArgumentException("Invalid batch manifest line " + lnNo + ": expected multialignment, leaf map and output prefix.");
+				}
+				Family f = new Family();
+				f.index = families.size();
+				f.msa = parts[0];
+				f.gsMap = parts[1];
+				f.prefix = parts[2];
+				f.seed = "" + prng.nextLong();
+				f.noOfLeaves = GuestHostMapReader.readGuestHostMap(new File(f.gsMap)).getNoOfLeafNames();
+				families.add(f);
+			}
+		} finally {
+			sc.close();
+		}
+		if (families.isEmpty()) {
+			throw new IllegalArgumentException("Empty batch manifest.");
+		}
+		return families;
+	}
+
+	/**
+	 * Returns the parameters of a gene family: the batch options with the family's files, output and seed.
+	 * @param f the family.
+	 * @return the parameters.
+	 */
+	private Parameters getFamilyParameters(Family f) {
+		Parameters ps = new Parameters();
+		new JCommander(ps, this.args);
+		ps.batch = null;
+		ps.files = new ArrayList<String>(Arrays.asList(this.params.files.get(0), f.msa, f.gsMap));
+		ps.outfile = f.prefix;
+		ps.infofile = null;
+		ps.seed = f.seed;
+		return ps;
+	}
+
+	/**
+	 * Runs all families, and writes the throughput report.
+	 * @throws Exception if the batch could not be set up, or if any family failed. Failed families do not
+	 *         prevent the others from being run.
+	 */
+	public void run() throws Exception {
+		this.info = ParameterParser.getInfo(this.params);
+		if (this.info == null) {
+			throw new IllegalArgumentException("Batch mode requires an info output for its report.");
+		}
+		this.info.write("# =========================================================================\n");
+		this.info.write("# ||                             BATCH INFO                              ||\n");
+		this.info.write("# =========================================================================\n");
+		this.info.write("# DELIRIOUS BATCH\n");
+		this.info.write("# Arguments: " + Arrays.toString(this.args) + '\n');
+		Calendar cal = Calendar.getInstance();
+	    SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
+		this.info.write("# Current time: " + df.format(cal.getTime()) + '\n');
+
+		// Shared data.
+		this.hostTree = ParameterParser.getHostTree(this.params, this.info);
+		this.Q = SubstitutionMatrixHandlerFactory.create(this.params.substitutionModel, 1);
+		PRNG prng = ParameterParser.getPRNG(this.params);
+		ArrayList<Family> families = this.readManifest(prng);
+
+		// Memory estimates.
+		int budget = (this.params.batchMemory != null ? this.params.batchMemory :
+			(int) (0.8 * Runtime.getRuntime().maxMemory() / (1024 * 1024)));
+		if (budget < 1) {
+			throw new IllegalArgumentException("Batch memory budget must be at least 1 MB.");
+		}
+		int noOfChains = this.params.runs * this.params.chains;
+		int alphabetSize = this.Q.getSequenceType().getAlphabetSize();
+		long totalMemory = 0;
+		for (Family f : families) {
+			Parameters ps = this.getFamilyParameters(f);
+			int noOfDiscPoints = this.getNoOfDiscPoints(this.getDiscretizer(ps, f.noOfLeaves));
+			long bytes = estimateMemory(f.noOfLeaves, new File(f.msa).length(), alphabetSize, this.params.siteRateCats, noOfDiscPoints, noOfChains);
+			f.memory = (int) Math.min((bytes + 1024 * 1024 - 1) / (1024 * 1024), budget);
+			totalMemory += f.memory;
+		}
+		int noOfThreads = (this.params.batchThreads != null ? this.params.batchThreads : Runtime.getRuntime().availableProcessors());
+		BatchScheduler scheduler = new BatchScheduler(noOfThreads, budget);
+		this.info.write("# Number of gene families: " + families.size() + '\n');
+		this.info.write("# Number of concurrent families: " + noOfThreads + '\n');
+		this.info.write("# Memory budget: " + budget + " MB\n");
+		this.info.write("# Total estimated memory of families: " + totalMemory + " MB\n");
+		this.info.write("# Number of shared host tree discretisations: " + this.discretisations.size() + '\n');
+		this.info.write("# Family\tStatus\tLeaves\tEstimatedMemoryMB\tIterations\tWallTime(s)\tIterations/s\tOutput\n");
+		this.info.flush();
+
+		// Largest families first.
+		List<Family> queue = new ArrayList<Family>(families);
+		Collections.sort(queue, new Comparator<Family>() {
+			@Override
+			public int compare(Family a, Family b) {
+				return (a.memory != b.memory ? (b.memory - a.memory) : (b.noOfLeaves - a.noOfLeaves));
+			}
+		});
+
+		ArrayList<BatchScheduler.Job> jobs = new ArrayList<BatchScheduler.Job>(queue.size());
+		for (final Family f : queue) {
+			jobs.add(new BatchScheduler.Job() {
+				@Override
+				public int getMemory() {
+					return f.memory;
+				}
+				@Override
+				public void run() throws Exception {
+					runFamily(f);
+				}
+			});
+		}
+		long startTime = System.nanoTime();
+		Exception[] failures = scheduler.run(jobs);
+		long ns = System.nanoTime() - startTime;
+
+		double s = (double) ns / 1000000000.0;
+		DecimalFormat dfm = new DecimalFormat("#.##");
+		int noOfFailures = 0;
+		for (int i = 0; i < failures.length; ++i) {
+			if (failures[i] != null) {
+				Family f = queue.get(i);
+				this.info.write("# Family " + (f.index + 1) + " (" + f.prefix + ") failed: " + failures[i].getMessage() + '\n');
+				++noOfFailures;
+			}
+		}
+		this.info.write("# Completed gene families: " + (families.size() - noOfFailures) + '\n');
+		this.info.write("# Failed gene families: " + noOfFailures + '\n');
+		this.info.write("# Wall time: " + ns + " ns = " + dfm.format(s) + " s = " + dfm.format(s / 3600.0) + " h\n");
+		this.info.write("# Throughput: " + dfm.format(families.size() / s * 3600.0) + " families/h\n");
+		this.info.close();
+		if (noOfFailures > 0) {
+			throw new IllegalArgumentException("" + noOfFailures + " of " + families.size() + " gene families failed. See their info files.");
+		}
+	}
+
+	/**
+	 * Runs a gene family, and reports its throughput.
+	 * @param f the family.
+	 * @throws Exception if the family failed. The reason is also written to the family's info file.
+	 */
+	private void runFamily(Family f) throws Exception {
+		long startTime = System.nanoTime();
+		long iterations = -1;
+		try {
+			// The chains of the family, and with them their worker threads, are closed by the app when done or failed.
+			iterations = this.app.run(this.getFamilyParameters(f), this.args, this);
+		} finally {
+			long ns = System.nanoTime() - startTime;
+			double s = (double) ns / 1000000000.0;
+			DecimalFormat df = new DecimalFormat("#.##");
+			synchronized (this.info) {
+				this.info.write("# " + (f.index + 1) + '\t' + (iterations >= 0 ? "OK" : "FAILED") + '\t' + f.noOfLeaves + '\t' + f.memory + '\t' +
+						(iterations >= 0 ? iterations : 0) + '\t' + df.format(s) + '\t' + (iterations >= 0 ? df.format(iterations / s) : "NaN") + '\t' + f.prefix + '\n');
+				this.info.flush();
+			}
+		}
+	}
+
+}
@@ -9,10 +9,14 @@ import se.cbb.jprime.topology.DoubleArrayMatrixMap;
 import se.cbb.jprime.topology.DoubleMap;
 import se.cbb.jprime.topology.RBTree;
 import se.cbb.jprime.topology.RBTreeArcDiscretiser;
+import se.cbb.jprime.topology.TreeAlgorithms;
 
 /**
  * Point-wise duplication and loss probabilities for a
  * discretised host tree.
+ * <p/>
+ * All p11 arrays are replaced rather than altered when updated, so caching
+ * is done by reference.
  * 
  * @author Joel Sjöstrand.
  */
@@ -61,19 +65,15 @@ public class DupLossProbs implements ProperDependent {
 	@Override
 	public void cacheAndUpdate(Map<Dependent, ChangeInfo> changeInfos, boolean willSample) {
 		ChangeInfo tci = changeInfos.get(this.times);
-		int maxAffectedVertices = 8;
+		this.p11.cacheShallow();
+		this.extinction.cache(null);
 		if (changeInfos.get(this.s) == null && changeInfos.get(this.lambda) == null &&
-			changeInfos.get(this.mu) == null && tci != null && tci.getAffectedElements() != null &&
-			tci.getAffectedElements().length < maxAffectedVertices) {
-			// TODO: Here one could find the parts of the tree spanned by
-			// tci.getAffectedElements() and do partial update.
-			this.p11.cache(null);
-			this.extinction.cache(null);
-			fullUpdate();
-			changeInfos.put(this, new ChangeInfo(this, "DupLossProbs - full update"));
+			changeInfos.get(this.mu) == null && tci != null && tci.getAffectedElements() != null) {
+			// Only the discretisation of certain arcs has changed.
+			int[] affected = TreeAlgorithms.getSpanningRootSubtree(this.s, tci.getAffectedElements());
+			this.partialUpdate(affected);
+			changeInfos.put(this, new ChangeInfo(this, "DupLossProbs - partial update", affected));
 		} else {
-			this.p11.cache(null);
-			this.extinction.cache(null);
 			fullUpdate();
 			changeInfos.put(this, new ChangeInfo(this, "DupLossProbs - full update"));
 		}
@@ -88,12 +88,16 @@ public class DupLossProbs implements ProperDependent {
 	}
 
 	/**
-	 * Partial update. Not implemented.
-	 * @param affectedElements.
+	 * Partial update. Within-arc probabilities and extinction probabilities are only
+	 * recomputed for the affected arcs. However, since extinction probabilities of the affected
+	 * arcs enter p11 between arcs, the latter are recomputed for all pairs of arcs.
+	 * @param affectedElements the affected arcs and all their ancestors, in reverse topological order.
 	 */
-	@SuppressWarnings("unused")
 	private void partialUpdate(int[] affectedElements) {
-		// TODO: Implement. Probably mostly useful if tree and/or discretisation has changed.
+		for (int x : affectedElements) {
+			this.computeP11AndExtinctionForArc(x, false);
+		}
+		this.computeP11ForRootPath(this.s.getRoot(), true);
 	}
 	
 	/**
@@ -8,11 +8,13 @@ import java.io.OutputStreamWriter;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 
 import org.biojava3.core.sequence.io.FastaReaderHelper;
 import org.biojava3.core.sequence.template.Compound;
 import org.biojava3.core.sequence.template.Sequence;
 
+import se.cbb.jprime.io.AsyncSampleWriter;
 import se.cbb.jprime.io.GuestHostMapReader;
 import se.cbb.jprime.io.MSAFastPhyloTree;
 import se.cbb.jprime.io.NewickRBTreeSamples;
@@ -22,18 +24,26 @@ import se.cbb.jprime.io.PrIMENewickTree.MetaProperty;
 import se.cbb.jprime.io.PrIMENewickTreeReader;
 import se.cbb.jprime.io.SampleDoubleArray;
 import se.cbb.jprime.io.SampleWriter;
+import se.cbb.jprime.io.Sampler;
 import se.cbb.jprime.math.Continuous1DPDDependent;
 import se.cbb.jprime.math.GammaDistribution;
 import se.cbb.jprime.math.PRNG;
 import se.cbb.jprime.math.RealInterval;
 import se.cbb.jprime.math.UniformDistribution;
+import se.cbb.jprime.mcmc.AdaptiveMetropolisProposer;
+import se.cbb.jprime.mcmc.CladeSource;
 import se.cbb.jprime.mcmc.ConstantThinner;
+import se.cbb.jprime.mcmc.ConstantTuningParameter;
+import se.cbb.jprime.mcmc.ConvergenceDiagnostics;
 import se.cbb.jprime.mcmc.DoubleParameter;
 import se.cbb.jprime.mcmc.FineProposerStatistics;
+import se.cbb.jprime.mcmc.HeatedAcceptor;
 import se.cbb.jprime.mcmc.HillClimbingAcceptor;
 import se.cbb.jprime.mcmc.Iteration;
 import se.cbb.jprime.mcmc.LinearProposerWeight;
 import se.cbb.jprime.mcmc.LinearTuningParameter;
+import se.cbb.jprime.mcmc.MC3Manager;
+import se.cbb.jprime.mcmc.MCMCManager;
 import se.cbb.jprime.mcmc.MetropolisHastingsAcceptor;
 import se.cbb.jprime.mcmc.MultiProposerSelector;
 import se.cbb.jprime.mcmc.NormalProposer;
@@ -151,13 +161,32 @@ public class ParameterParser {
 	}
 	
 	/**
-	 * Creates an output stream for the MCMC chain. If no parameter is found, stdout is used.
+	 * Creates an output stream for an MCMC chain. If no parameter is found, stdout is used.
+	 * With several independent runs, run k is written to &lt;outfile&gt;.run&lt;k+1&gt;.
+	 * Gzip, binary and asynchronous text output are produced by an <code>AsyncSampleWriter</code>.
 	 * @param ps parameters.
+	 * @param run index of the independent run.
 	 * @return output stream.
 	 */
-	public static SampleWriter getOut(Parameters ps) {
+	public static Sampler getOut(Parameters ps, int run) {
+		AsyncSampleWriter.Format fmt;
 		try {
-			return (ps.outfile == null ? new SampleWriter() : new SampleWriter(new File(ps.outfile), 10));
+			fmt = AsyncSampleWriter.Format.valueOf(ps.outputFormat.toUpperCase());
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid output format: " + ps.outputFormat + '.', e);
+		}
+		if (ps.outfile == null && fmt != AsyncSampleWriter.Format.TEXT) {
+			throw new IllegalArgumentException("Gzip and binary output require an output file.");
+		}
+		if (ps.outfile == null && ps.runs > 1) {
+			throw new IllegalArgumentException("Independent runs require an output file.");
+		}
+		String fn = (ps.runs > 1 ? ps.outfile + ".run" + (run + 1) : ps.outfile);
+		try {
+			if (fmt == AsyncSampleWriter.Format.TEXT && !ps.asyncOutput) {
+				return (ps.outfile == null ? new SampleWriter() : new SampleWriter(new File(fn), 10, ps.resume));
+			}
+			return (ps.outfile == null ? new AsyncSampleWriter() : new AsyncSampleWriter(new File(fn), fmt, 10, ps.resume));
 		} catch (Exception e) {
 			throw new IllegalArgumentException("Invalid output file.", e);
 		}
@@ -180,7 +209,7 @@ public class ParameterParser {
 					return new BufferedWriter(new OutputStreamWriter(System.out));
 				} else {
 					// <outfile>.info.
-					return new BufferedWriter(new FileWriter(ps.outfile.trim() + ".info"));
+					return new BufferedWriter(new FileWriter(ps.outfile.trim() + ".info", ps.resume));
 				}
 				
 			} else {
@@ -189,7 +218,7 @@ public class ParameterParser {
 					return null;
 				}
 				// User-defined info file.
-				return new BufferedWriter(new FileWriter(ps.infofile));
+				return new BufferedWriter(new FileWriter(ps.infofile, ps.resume));
 			}			
 		} catch (Exception e) {
 			throw new IllegalArgumentException("Invalid output file.", e);
@@ -205,6 +234,128 @@ public class ParameterParser {
 		return (ps.seed == null ? new PRNG() : new PRNG(new BigInteger(ps.seed)));
 	}
 	
+	/**
+	 * Returns the PRNGs of the independent runs. With a single run, this is the main PRNG itself.
+	 * With several runs, each run gets its own PRNG seeded from the main PRNG.
+	 * @param ps parameters.
+	 * @param prng main PRNG.
+	 * @return PRNGs, one per run.
+	 */
+	public static PRNG[] getRunPRNGs(Parameters ps, PRNG prng) {
+		if (ps.runs < 1) {
+			throw new IllegalArgumentException("Number of independent runs must be at least 1.");
+		}
+		if (ps.runs > 1 && ps.chains > 1) {
+			throw new IllegalArgumentException("Independent runs cannot be combined with MC3 chains.");
+		}
+		PRNG[] prngs = new PRNG[ps.runs];
+		if (ps.runs == 1) {
+			prngs[0] = prng;
+		} else {
+			for (int i = 0; i < ps.runs; ++i) {
+				prngs[i] = new PRNG(new BigInteger("" + prng.nextLong()));
+			}
+		}
+		return prngs;
+	}
+	
+	/**
+	 * Returns the PRNGs of the MCMC chains. With a single chain, this is the main PRNG itself.
+	 * With multiple chains, each chain gets its own PRNG seeded from the main PRNG, which
+	 * in turn is reserved for MC3 swaps.
+	 * @param ps parameters.
+	 * @param prng main PRNG.
+	 * @return PRNGs, one per chain.
+	 */
+	public static PRNG[] getChainPRNGs(Parameters ps, PRNG prng) {
+		if (ps.chains < 1) {
+			throw new IllegalArgumentException("Number of chains must be at least 1.");
+		}
+		PRNG[] prngs = new PRNG[ps.chains];
+		if (ps.chains == 1) {
+			prngs[0] = prng;
+		} else {
+			for (int i = 0; i < ps.chains; ++i) {
+				prngs[i] = new PRNG(new BigInteger("" + prng.nextLong()));
+			}
+		}
+		return prngs;
+	}
+	
+	/**
+	 * Enables checkpointing of an MCMC chain, and resumption from a checkpoint, if requested.
+	 * @param ps parameters.
+	 * @param manager the chain.
+	 */
+	public static void setCheckpointing(Parameters ps, MCMCManager manager) {
+		if (ps.checkpoint == null) {
+			if (ps.resume) {
+				throw new IllegalArgumentException("Cannot resume a run without a checkpoint file.");
+			}
+			return;
+		}
+		if (ps.chains > 1 || ps.runs > 1) {
+			throw new IllegalArgumentException("Checkpointing is not supported with multiple chains.");
+		}
+		if (ps.stopWhenConverged) {
+			throw new IllegalArgumentException("Checkpointing cannot be combined with -stop, since the convergence diagnostics are not checkpointed.");
+		}
+		manager.setCheckpointing(new File(ps.checkpoint), ps.checkpointInterval, ps.resume);
+	}
+	
+	/**
+	 * Returns convergence diagnostics for stopping the run early, shared by all chains.
+	 * @param ps parameters.
+	 * @return the diagnostics; null if not used.
+	 */
+	public static ConvergenceDiagnostics getConvergenceDiagnostics(Parameters ps) {
+		if (!ps.stopWhenConverged) {
+			return null;
+		}
+		if (ps.stopBurninProp < 0.0 || ps.stopBurninProp >= 1.0) {
+			throw new IllegalArgumentException("Burn-in proportion of convergence diagnostics must be in [0,1).");
+		}
+		return new ConvergenceDiagnostics(ps.runs, ps.stopMinESS, ps.stopMaxRHat, ps.stopMaxASDSF, ps.stopMinSamples);
+	}
+	
+	/**
+	 * Feeds the samples of a chain to convergence diagnostics. The monitored parameters are those of the
+	 * enabled proposers, and the guest tree unless fixed. Samples of the burn-in, which covers at least
+	 * the iterations of the adaptive proposer, are not monitored. Each independent run has its own trace, while
+	 * all MC3 chains of a run share the same trace, which follows the cold chain.
+	 * @param ps parameters.
+	 * @param manager the chain.
+	 * @param diagnostics the diagnostics, possibly null.
+	 * @param run index of the independent run of the chain.
+	 * @param proposers proposers of the scalar parameters.
+	 * @param guestTree the guest tree.
+	 */
+	public static void setConvergenceDiagnostics(Parameters ps, MCMCManager manager, ConvergenceDiagnostics diagnostics, int run,
+			NormalProposer[] proposers, CladeSource guestTree) {
+		if (diagnostics == null) {
+			return;
+		}
+		ArrayList<RealParameter> params = new ArrayList<RealParameter>(proposers.length);
+		for (NormalProposer p : proposers) {
+			if (p.isEnabled()) {
+				params.add((RealParameter) p.getParameters().get(0));
+			}
+		}
+		int burnIn = Math.max((int) (ps.stopBurninProp * ps.iterations), ps.adaptiveIterations);
+		manager.setConvergenceDiagnostics(diagnostics, run, params, (ps.guestTreeFixed ? null : guestTree), burnIn);
+	}
+	
+	/**
+	 * Returns an MC3 manager over multiple chains.
+	 * @param ps parameters.
+	 * @param chains the chains.
+	 * @param prng main PRNG, used for swaps.
+	 * @return the manager.
+	 */
+	public static MC3Manager getMC3Manager(Parameters ps, List<MCMCManager> chains, PRNG prng) {
+		return new MC3Manager(chains, ps.heat, ps.swapInterval, prng);
+	}
+	
 	/**
 	 * Reads the guest tree with names and possibly lengths. There are many options,
 	 * e.g. reading a tree with or without lengths, or randomly creating one.
@@ -411,18 +562,29 @@ public class ParameterParser {
 	 * @param ps parameters.
 	 * @param S host tree.
 	 * @param times times of the host tree.
-	 * @param G guest tree.
+	 * @param noOfGuestLeaves number of leaves of the guest tree.
 	 * @return the discretisation.
 	 */
-	public static RBTreeArcDiscretiser getDiscretizer(Parameters ps, RBTree S, NamesMap names, TimesMap times, RBTree G) {
+	public static RBTreeArcDiscretiser getDiscretizer(Parameters ps, RBTree S, NamesMap names, TimesMap times, int noOfGuestLeaves) {
+		return new RBTreeArcDiscretiser(S, names, times, ps.discMin, ps.discMax, Double.parseDouble(ps.discTimestep), getDiscStem(ps, noOfGuestLeaves));
+	}
+	
+	/**
+	 * Returns the number of discretisation points of the host tree stem, unless specified
+	 * choosing it based on the size of the guest tree.
+	 * @param ps parameters.
+	 * @param noOfGuestLeaves number of leaves of the guest tree.
+	 * @return the number of stem points.
+	 */
+	public static int getDiscStem(Parameters ps, int noOfGuestLeaves) {
 		if (ps.discStem == null) {
 			// Try to find a small but sufficient number of stem points to accommodate all
 			// duplications in the stem during G perturbation.
-			int k = G.getNoOfLeaves();
+			int k = noOfGuestLeaves;
 			int h = (int) Math.round(Math.log((double) k) / Math.log(2.0)); // Height of balanced tree...
 			ps.discStem = Math.min(Math.min(h + 12, k), 30);
 		}
-		return new RBTreeArcDiscretiser(S, names, times, ps.discMin, ps.discMax, Double.parseDouble(ps.discTimestep), ps.discStem);
+		return ps.discStem;
 	}
 		
 	/**
@@ -470,11 +632,18 @@ public class ParameterParser {
 
 	/**
 	 * Creates a proposal acceptor.
+	 * With multiple chains, a heated acceptor is returned, its temperature later set by the MC3 manager.
 	 * @param ps parameters.
 	 * @param prng PRNG.
 	 * @return proposal acceptor.
 	 */
 	public static ProposalAcceptor getAcceptor(Parameters ps, PRNG prng) {
+		if (ps.chains > 1) {
+			if (!ps.runtype.equalsIgnoreCase("MCMC")) {
+				throw new IllegalArgumentException("Multiple chains are only supported for run type MCMC.");
+			}
+			return new HeatedAcceptor(prng, 1.0);
+		}
 		if (ps.runtype.equalsIgnoreCase("MCMC")) {
 			return new MetropolisHastingsAcceptor(prng);
 		} else if (ps.runtype.equalsIgnoreCase("HILLCLIMBING")) {
@@ -500,6 +669,35 @@ public class ParameterParser {
 		return proposer;
 	}
 	
+	/**
+	 * Returns an adaptive Metropolis proposer which jointly perturbs the parameters of all enabled
+	 * scalar proposers, learning their covariance during the first iterations.
+	 * @param ps parameters.
+	 * @param proposers the scalar proposers whose parameters should be included if enabled.
+	 * @param iter iterations.
+	 * @param prng PRNG.
+	 * @return proposer; null if not requested or if there are no enabled parameters.
+	 */
+	public static AdaptiveMetropolisProposer getAdaptiveProposer(Parameters ps, NormalProposer[] proposers, Iteration iter, PRNG prng) {
+		if (ps.adaptiveIterations <= 0) {
+			return null;
+		}
+		ArrayList<RealParameter> params = new ArrayList<RealParameter>(proposers.length);
+		for (NormalProposer p : proposers) {
+			if (p.isEnabled()) {
+				params.add((RealParameter) p.getParameters().get(0));
+			}
+		}
+		if (params.isEmpty()) {
+			return null;
+		}
+		int minIterations = Math.max(Math.min(1000, ps.adaptiveIterations / 10), 2);
+		AdaptiveMetropolisProposer proposer = new AdaptiveMetropolisProposer(params, true, new ConstantTuningParameter(ps.tuningAdaptive),
+				iter, minIterations, ps.adaptiveIterations, prng);
+		proposer.setStatistics(new FineProposerStatistics(iter, 8));
+		return proposer;
+	}
+	
 	/**
 	 * Returns a branch swapper proposer.
 	 * @param tree tree.
@@ -568,6 +766,12 @@ public class ParameterParser {
 	 */
 	public static RealisationSampler getRealisationSampler(Parameters ps, Iteration iter, PRNG prng, DLRModel model, NamesMap names) throws IOException {
 		if (ps.sampleRealisations == null) { return null; }
+		if (ps.chains > 1 || ps.runs > 1) {
+			throw new IllegalArgumentException("Sampling of realisations is not supported with multiple chains.");
+		}
+		if (ps.resume) {
+			throw new IllegalArgumentException("Sampling of realisations is not supported when resuming a run.");
+		}
 		String fn = ps.sampleRealisations.get(0);
 		int n = Integer.parseInt(ps.sampleRealisations.get(1));
 		return new RealisationSampler(fn, n, iter, prng, model, names);
@@ -98,7 +98,10 @@ public class RealisationSampler implements Sampleable {
 		this.loLims = model.reconcHelper.loLims;
 		this.dupLossProbs = model.dupLossProbs;
 		this.substPD = model.substPD;
-		this.atsProbs = new DoubleArrayMap(model.ats);
+		this.atsProbs = new DoubleArrayMap(model.ats.getName(), model.ats.getSize());
+		for (int u = 0; u < model.ats.getSize(); ++u) {
+			this.atsProbs.set(u, model.ats.get(u).getValues());
+		}
 		
 		// Write header.
 		this.out.write("# Host tree: " + this.times.toString() + "\n");
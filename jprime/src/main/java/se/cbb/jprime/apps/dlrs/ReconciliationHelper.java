@@ -169,6 +169,17 @@ public class ReconciliationHelper implements ProperDependent, InfoProvider {
 		return new int[] {x, i};
 	}
 	
+	/**
+	 * Returns the lowermost viable placement in S' for a guest tree vertex
+	 * u in its internal single-integer representation. Mainly useful for
+	 * detecting changes.
+	 * @param u the guest tree vertex.
+	 * @return the point in S' as x + (index &lt;&lt; 16).
+	 */
+	public int getLoLimAsInt(int u) {
+		return this.loLims.get(u);
+	}
+	
 	/**
 	 * Returns the lowermost viable placement in S' for a guest tree vertex
 	 * u on a string format.
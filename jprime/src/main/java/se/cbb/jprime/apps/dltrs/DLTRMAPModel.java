@@ -4,6 +4,9 @@ import java.util.Map;
 
 import se.cbb.jprime.apps.dltrs.ReconciliationHelper;
 import se.cbb.jprime.io.SampleLogDouble;
+import se.cbb.jprime.io.SampleSnapshot;
+import se.cbb.jprime.io.SampleSnapshots;
+import se.cbb.jprime.io.SnapshotSampleable;
 import se.cbb.jprime.math.Continuous1DPDDependent;
 import se.cbb.jprime.math.LogDouble;
 import se.cbb.jprime.mcmc.ChangeInfo;
@@ -11,7 +14,7 @@ import se.cbb.jprime.mcmc.Dependent;
 import se.cbb.jprime.mcmc.InferenceModel;
 import se.cbb.jprime.topology.DoubleMap;
 import se.cbb.jprime.topology.RBTreeEpochDiscretiser;
-import se.cbb.jprime.topology.GenericMap;
+import se.cbb.jprime.topology.DoubleBufferedMap;
 import se.cbb.jprime.topology.RootedBifurcatingTreeParameter;
 import se.cbb.jprime.topology.TreeAlgorithms;
 import se.cbb.jprime.math.PRNG;
@@ -49,7 +52,7 @@ import se.cbb.jprime.math.PRNG;
  * 
  * @author Mehmood Alam Khan
  */
-public class DLTRMAPModel implements InferenceModel {
+public class DLTRMAPModel implements InferenceModel, SnapshotSampleable {
 
 	/** The guest tree G. */
 	protected RootedBifurcatingTreeParameter g;
@@ -70,10 +73,10 @@ public class DLTRMAPModel implements InferenceModel {
 	protected Continuous1DPDDependent substPD;
 
 	/** Probability of rooted subtree G_u for each valid placement of u in S'. */
-	protected GenericMap<EpochPtMap> ats;
+	protected DoubleBufferedMap<EpochPtMap> ats;
 
 	/** Probability of planted subtree G^u for each valid placement of tip of u's parent arc in S'. */
-	protected GenericMap<EpochPtMap> belows;
+	protected DoubleBufferedMap<EpochPtMap> belows;
 
 	/** PRNG object */
 	//protected PRNG prng;
@@ -96,8 +99,8 @@ public class DLTRMAPModel implements InferenceModel {
 		this.lengths = lengths;
 		this.dltProbs = dltProbs;
 		this.substPD = substPD;
-		this.ats = new GenericMap<EpochPtMap>("DLTRS.ats", g.getNoOfVertices());
-		this.belows = new GenericMap<EpochPtMap>("DLTRS.belows", g.getNoOfVertices());
+		this.ats = new DoubleBufferedMap<EpochPtMap>("DLTRS.ats", g.getNoOfVertices());
+		this.belows = new DoubleBufferedMap<EpochPtMap>("DLTRS.belows", g.getNoOfVertices());
 
 		// Update.
 		this.fullUpdate();
@@ -121,29 +124,26 @@ public class DLTRMAPModel implements InferenceModel {
 		// time perturbations involved, possibly combined with length perturbations.
 		// However, it is easy to make algorithmic mistakes in such situations,
 		// so at the only moment solitary length changes result in a partial DP update.
-		try {
-			if (gci == null && sci == null && rhci == null && dpci == null && rci == null) {
-				if (lci != null && lci.getAffectedElements() != null) {
-					// Only certain branch lengths have changed. We do a partial update.
-
-					int[] affected = TreeAlgorithms.getSpanningRootSubtree(this.g, lci.getAffectedElements());
-					this.ats.cache(affected);
-					this.belows.cache(affected);
-					this.partialUpdate(affected);
-					changeInfos.put(this, new ChangeInfo(this, "Partial DLTRS update", affected));
-				} else if (lci != null) {
-					this.ats.cache(null);
-					this.belows.cache(null);
-					this.fullUpdate();
-					changeInfos.put(this, new ChangeInfo(this, "Full DLTRS update."));
-				}
-			} else {
+		if (gci == null && sci == null && rhci == null && dpci == null && rci == null) {
+			if (lci != null && lci.getAffectedElements() != null) {
+				// Only certain branch lengths have changed. We do a partial update.
+
+				int[] affected = TreeAlgorithms.getSpanningRootSubtree(this.g, lci.getAffectedElements());
+				this.ats.cache(affected);
+				this.belows.cache(affected);
+				this.partialUpdate(affected);
+				changeInfos.put(this, new ChangeInfo(this, "Partial DLTRS update", affected));
+			} else if (lci != null) {
 				this.ats.cache(null);
 				this.belows.cache(null);
 				this.fullUpdate();
 				changeInfos.put(this, new ChangeInfo(this, "Full DLTRS update."));
 			}
-		} catch (CloneNotSupportedException ex) {
+		} else {
+			this.ats.cache(null);
+			this.belows.cache(null);
+			this.fullUpdate();
+			changeInfos.put(this, new ChangeInfo(this, "Full DLTRS update."));
 		}
 	}
 
@@ -349,6 +349,10 @@ public class DLTRMAPModel implements InferenceModel {
 	 * @param sortedAffectedVertices all affected vertices, sorted in reverse topological order.
 	 */
 	private void partialUpdate(int[] sortedAffectedVertices) {
+		RBTreeEpochDiscretiser disc = reconcHelper.getDiscretisation();
+		for (int u : sortedAffectedVertices) {
+			this.resetAtsAndBelows(u, disc);
+		}
 		for (int u : sortedAffectedVertices) {
 			this.updateAtProbs(u, false);
 		}
@@ -357,14 +361,32 @@ public class DLTRMAPModel implements InferenceModel {
 
 	/**
 	 * Creates (and thus clears) the DP data structures.
-	 * @param u the root of the subtree of G.
-	 * @param noOfAncestors the number of ancestors of u.
 	 */
 	protected void clearAtsAndBelows() {
 		RBTreeEpochDiscretiser disc = reconcHelper.getDiscretisation();
 		for (int u = 0; u < this.g.getNoOfVertices(); ++u) {
+			this.resetAtsAndBelows(u, disc);
+		}
+	}
+	
+	/**
+	 * Helper. Clears the current DP data structures of a vertex. Existing maps
+	 * are reset rather than recreated when they match the discretisation.
+	 * @param u the vertex of G.
+	 * @param disc the discretised host tree.
+	 */
+	private void resetAtsAndBelows(int u, RBTreeEpochDiscretiser disc) {
+		EpochPtMap uAts = this.ats.get(u);
+		if (uAts == null || !uAts.hasLayoutOf(disc)) {
 			this.ats.set(u, new EpochPtMap(disc));
+		} else {
+			uAts.reset(0.0);
+		}
+		EpochPtMap uBelows = this.belows.get(u);
+		if (uBelows == null || !uBelows.hasLayoutOf(disc)) {
 			this.belows.set(u, new EpochPtMap(disc));
+		} else {
+			uBelows.reset(0.0);
 		}
 	}
 
@@ -395,6 +417,11 @@ public class DLTRMAPModel implements InferenceModel {
 		return this.getDataProbability().toString();
 	}
 
+	@Override
+	public SampleSnapshot getSampleSnapshot(SampleSnapshot reuse, SamplingMode mode) {
+		return SampleSnapshots.ofLogDouble(reuse, this.getDataProbability());
+	}
+
 	@Override
 	public String getPreInfo(String prefix) {
 		StringBuilder sb = new StringBuilder(65536);
@@ -4,6 +4,9 @@ import java.util.Map;
 
 import se.cbb.jprime.apps.dltrs.ReconciliationHelper;
 import se.cbb.jprime.io.SampleLogDouble;
+import se.cbb.jprime.io.SampleSnapshot;
+import se.cbb.jprime.io.SampleSnapshots;
+import se.cbb.jprime.io.SnapshotSampleable;
 import se.cbb.jprime.math.Continuous1DPDDependent;
 import se.cbb.jprime.math.LogDouble;
 import se.cbb.jprime.mcmc.ChangeInfo;
@@ -11,7 +14,7 @@ import se.cbb.jprime.mcmc.Dependent;
 import se.cbb.jprime.mcmc.InferenceModel;
 import se.cbb.jprime.topology.DoubleMap;
 import se.cbb.jprime.topology.RBTreeEpochDiscretiser;
-import se.cbb.jprime.topology.GenericMap;
+import se.cbb.jprime.topology.DoubleBufferedMap;
 import se.cbb.jprime.topology.RootedBifurcatingTreeParameter;
 import se.cbb.jprime.topology.TreeAlgorithms;
 
@@ -49,7 +52,7 @@ import se.cbb.jprime.math.PRNG;
  * 
  * @author Joel Sjöstrand.
  */
-public class DLTRModel implements InferenceModel {
+public class DLTRModel implements InferenceModel, SnapshotSampleable {
 
 	/** The guest tree G. */
 	protected RootedBifurcatingTreeParameter g;
@@ -70,10 +73,19 @@ public class DLTRModel implements InferenceModel {
 	protected Continuous1DPDDependent substPD;
 	
 	/** Probability of rooted subtree G_u for each valid placement of u in S'. */
-	protected GenericMap<EpochPtMap> ats;
+	protected DoubleBufferedMap<EpochPtMap> ats;
 	
 	/** Probability of planted subtree G^u for each valid placement of tip of u's parent arc in S'. */
-	protected GenericMap<EpochPtMap> belows;
+	protected DoubleBufferedMap<EpochPtMap> belows;
+	
+	/** Work buffer of updateBelowProbs(): epoch indices of placements of a vertex. */
+	private int[] tEpochs = new int[0];
+	
+	/** Work buffer of updateBelowProbs(): time indices of placements of a vertex. */
+	private int[] tTimes = new int[0];
+	
+	/** Work buffer of updateBelowProbs(): rate densities of placements of a vertex. */
+	private double[] tRateDens = new double[0];
 	
 	/**
 	 * Constructor.
@@ -93,8 +105,8 @@ public class DLTRModel implements InferenceModel {
 		this.lengths = lengths;
 		this.dltProbs = dltProbs;
 		this.substPD = substPD;
-		this.ats = new GenericMap<EpochPtMap>("DLTR.ats", g.getNoOfVertices());
-		this.belows = new GenericMap<EpochPtMap>("DLTR.belows", g.getNoOfVertices());
+		this.ats = new DoubleBufferedMap<EpochPtMap>("DLTR.ats", g.getNoOfVertices());
+		this.belows = new DoubleBufferedMap<EpochPtMap>("DLTR.belows", g.getNoOfVertices());
 				
 		// Update.
 		this.fullUpdate();
@@ -118,29 +130,26 @@ public class DLTRModel implements InferenceModel {
 		// time perturbations involved, possibly combined with length perturbations.
 		// However, it is easy to make algorithmic mistakes in such situations,
 		// so at the only moment solitary length changes result in a partial DP update.
-		try {
-			if (gci == null && sci == null && rhci == null && dpci == null && rci == null) {
-				if (lci != null && lci.getAffectedElements() != null) {
-					// Only certain branch lengths have changed. We do a partial update.
-					
-					int[] affected = TreeAlgorithms.getSpanningRootSubtree(this.g, lci.getAffectedElements());
-					this.ats.cache(affected);
-					this.belows.cache(affected);
-					this.partialUpdate(affected);
-					changeInfos.put(this, new ChangeInfo(this, "Partial DLTR update", affected));
-				} else if (lci != null) {
-					this.ats.cache(null);
-					this.belows.cache(null);
-					this.fullUpdate();
-					changeInfos.put(this, new ChangeInfo(this, "Full DLTR update."));
-				}
-			} else {
+		if (gci == null && sci == null && rhci == null && dpci == null && rci == null) {
+			if (lci != null && lci.getAffectedElements() != null) {
+				// Only certain branch lengths have changed. We do a partial update.
+				
+				int[] affected = TreeAlgorithms.getSpanningRootSubtree(this.g, lci.getAffectedElements());
+				this.ats.cache(affected);
+				this.belows.cache(affected);
+				this.partialUpdate(affected);
+				changeInfos.put(this, new ChangeInfo(this, "Partial DLTR update", affected));
+			} else if (lci != null) {
 				this.ats.cache(null);
 				this.belows.cache(null);
 				this.fullUpdate();
 				changeInfos.put(this, new ChangeInfo(this, "Full DLTR update."));
 			}
-		} catch (CloneNotSupportedException ex) {
+		} else {
+			this.ats.cache(null);
+			this.belows.cache(null);
+			this.fullUpdate();
+			changeInfos.put(this, new ChangeInfo(this, "Full DLTR update."));
 		}
 	}
 	
@@ -273,14 +282,17 @@ public class DLTRModel implements InferenceModel {
 		double l = lengths.get(u);
 		double[] lins = belows.get(u).get(s[0], s[1]);
 		int sz = lins.length;
+		EpochPtPtMap o2o = this.dltProbs.getOneToOneProbs();
 		
 		if (g.isLeaf(u)) {
 			int sigma = this.reconcHelper.getHostLeafIndex(u);
 			double rateDens = substPD.getPDF(l / sTime);  // Assumes leaf time 0.
 			
 			// For each edge e where lineage can start at time s.
+			double[] v = o2o.getValues();
+			int row = o2o.getRowIndex(0, 0, sigma, s[0], s[1]);
 			for (int e = 0; e < sz; ++e) {
-				lins[e] = this.dltProbs.getOneToOneProbs().get(0, 0, sigma, s[0], s[1], e) * rateDens;
+				lins[e] = v[row + e] * rateDens;
 			}
 		} else {
 			// Reset values.
@@ -295,23 +307,46 @@ public class DLTRModel implements InferenceModel {
 				t = new int[] {t[0]+1, 0};
 			}
 			
-			// For each valid time t where u can be placed (strictly beneath s).
+			// Collect each valid time t where u can be placed (strictly beneath s),
+			// and its rate density, before the products.
+			int n = 0;
 			while (t[0] < s[0] || (!(s[0] < t[0]) && t[1] < s[1])) {
-				double rateDens = substPD.getPDF(l / (sTime - reconcHelper.getTime(t)));
-						
-				// For each edge e where lineage can start at time s.
-				double[] ats = this.ats.get(u).get(t[0], t[1]);
-				for (int e = 0; e < sz; ++e) {
-					// For each edge f where u can be placed at time t.
-					for (int f = 0; f < ats.length; ++f) {
-						lins[e] += dltProbs.getOneToOneProbs().get(t[0], t[1], f, s[0], s[1], e) * rateDens * ats[f];
-					}
+				if (n == this.tEpochs.length) {
+					this.growBuffers();
 				}
-				
+				this.tEpochs[n] = t[0];
+				this.tTimes[n] = t[1];
+				this.tRateDens[n] = substPD.getPDF(l / (sTime - reconcHelper.getTime(t)));
+				++n;
 				t = reconcHelper.getEpochTimeAboveNotLast(t);
 			}
+			
+			// For each such t, add the probabilities for each edge e where lineage can
+			// start at time s, summed over each edge f where u can be placed at time t.
+			EpochPtMap uAts = this.ats.get(u);
+			for (int k = 0; k < n; ++k) {
+				int te = this.tEpochs[k];
+				int tt = this.tTimes[k];
+				o2o.addProduct(te, tt, s[0], s[1], uAts.get(te, tt), this.tRateDens[k], lins);
+			}
 		}
 	}
+	
+	/**
+	 * Doubles the capacity of the work buffers of updateBelowProbs().
+	 */
+	private void growBuffers() {
+		int n = Math.max(2 * this.tEpochs.length, 64);
+		int[] tEpochs = new int[n];
+		int[] tTimes = new int[n];
+		double[] tRateDens = new double[n];
+		System.arraycopy(this.tEpochs, 0, tEpochs, 0, this.tEpochs.length);
+		System.arraycopy(this.tTimes, 0, tTimes, 0, this.tTimes.length);
+		System.arraycopy(this.tRateDens, 0, tRateDens, 0, this.tRateDens.length);
+		this.tEpochs = tEpochs;
+		this.tTimes = tTimes;
+		this.tRateDens = tRateDens;
+	}
 
 	/**
 	 * Makes a full update.
@@ -338,6 +373,10 @@ public class DLTRModel implements InferenceModel {
 	 * @param sortedAffectedVertices all affected vertices, sorted in reverse topological order.
 	 */
 	private void partialUpdate(int[] sortedAffectedVertices) {
+		RBTreeEpochDiscretiser disc = reconcHelper.getDiscretisation();
+		for (int u : sortedAffectedVertices) {
+			this.resetAtsAndBelows(u, disc);
+		}
 		for (int u : sortedAffectedVertices) {
 			this.updateAtProbs(u, false);
 		}
@@ -346,14 +385,32 @@ public class DLTRModel implements InferenceModel {
 	
 	/**
 	 * Creates (and thus clears) the DP data structures.
-	 * @param u the root of the subtree of G.
-	 * @param noOfAncestors the number of ancestors of u.
 	 */
 	protected void clearAtsAndBelows() {
 		RBTreeEpochDiscretiser disc = reconcHelper.getDiscretisation();
 		for (int u = 0; u < this.g.getNoOfVertices(); ++u) {
+			this.resetAtsAndBelows(u, disc);
+		}
+	}
+	
+	/**
+	 * Helper. Clears the current DP data structures of a vertex. Existing maps
+	 * are reset rather than recreated when they match the discretisation.
+	 * @param u the vertex of G.
+	 * @param disc the discretised host tree.
+	 */
+	private void resetAtsAndBelows(int u, RBTreeEpochDiscretiser disc) {
+		EpochPtMap uAts = this.ats.get(u);
+		if (uAts == null || !uAts.hasLayoutOf(disc)) {
 			this.ats.set(u, new EpochPtMap(disc));
+		} else {
+			uAts.reset(0.0);
+		}
+		EpochPtMap uBelows = this.belows.get(u);
+		if (uBelows == null || !uBelows.hasLayoutOf(disc)) {
 			this.belows.set(u, new EpochPtMap(disc));
+		} else {
+			uBelows.reset(0.0);
 		}
 	}
 	
@@ -384,6 +441,11 @@ public class DLTRModel implements InferenceModel {
 		return this.getDataProbability().toString();
 	}
 
+	@Override
+	public SampleSnapshot getSampleSnapshot(SampleSnapshot reuse, SamplingMode mode) {
+		return SampleSnapshots.ofLogDouble(reuse, this.getDataProbability());
+	}
+
 	@Override
 	public String getPreInfo(String prefix) {
 		StringBuilder sb = new StringBuilder(65536);
@@ -9,6 +9,7 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.LinkedHashMap;
@@ -27,14 +28,18 @@ import se.cbb.jprime.io.NewickTree;
 import se.cbb.jprime.io.NewickTreeReader;
 import se.cbb.jprime.io.RBTreeSampleWrapper;
 import se.cbb.jprime.io.SampleDoubleArray;
-import se.cbb.jprime.io.SampleWriter;
+import se.cbb.jprime.io.Sampler;
 import se.cbb.jprime.io.UnparsedRealisation;
 import se.cbb.jprime.math.Continuous1DPDDependent;
 import se.cbb.jprime.math.PRNG;
 import se.cbb.jprime.math.RealInterval;
+import se.cbb.jprime.mcmc.AdaptiveMetropolisProposer;
+import se.cbb.jprime.mcmc.ConvergenceDiagnostics;
 import se.cbb.jprime.mcmc.DoubleParameter;
 import se.cbb.jprime.mcmc.FineProposerStatistics;
+import se.cbb.jprime.mcmc.IndependentRunsManager;
 import se.cbb.jprime.mcmc.Iteration;
+import se.cbb.jprime.mcmc.MC3Manager;
 import se.cbb.jprime.mcmc.MCMCManager;
 import se.cbb.jprime.mcmc.MultiProposerSelector;
 import se.cbb.jprime.mcmc.NormalProposer;
@@ -81,6 +86,9 @@ public class Deleterious implements JPrIMEApp {
 	public void main(String[] args) {
 		BufferedWriter info = null;
 		Parameters params = null;
+		ArrayList<MCMCManager> chains = new ArrayList<MCMCManager>();
+		Sampler[] samplers = null;
+		RealisationSampler realisationSampler = null;
 		try {
 			
 			// ================ PARSE USER OPTIONS AND ARGUMENTS ================
@@ -114,7 +122,10 @@ public class Deleterious implements JPrIMEApp {
 			// ================ READ AND CREATE ALL PARAMETERS ================
 			
 			// MCMC chain output and auxiliary info.
-			SampleWriter sampler = ParameterParser.getOut(params);
+			samplers = new Sampler[params.runs];
+			for (int r = 0; r < samplers.length; ++r) {
+				samplers[r] = ParameterParser.getOut(params, r);
+			}
 			info = ParameterParser.getInfo(params);
 			info.write("# =========================================================================\n");
 			info.write("# ||                             PRE-RUN INFO                            ||\n");
@@ -131,17 +142,16 @@ public class Deleterious implements JPrIMEApp {
 			// Read guest-to-host leaf map.
 			GuestHostMap gsMap = ParameterParser.getGSMap(params);
 			
-			// Substitution model first, then sequence alignment D and site rates.
+			// Substitution model first, then sequence alignment D. The alignment is shared by all chains.
 			SubstitutionMatrixHandler Q = SubstitutionMatrixHandlerFactory.create(params.substitutionModel, 4 * gsMap.getNoOfLeafNames());
 			LinkedHashMap<String, ? extends Sequence<? extends Compound>> sequences = ParameterParser.getMultialignment(params, Q.getSequenceType());
 			MSAData D = new MSAData(Q.getSequenceType(), sequences);
-			Pair<DoubleParameter, GammaSiteRateHandler> siteRates = ParameterParser.getSiteRates(params);
 			
-			// Pseudo-random number generator.
+			// Pseudo-random number generator(s).
 			PRNG prng = ParameterParser.getPRNG(params);
+			PRNG[] runPRNGs = ParameterParser.getRunPRNGs(params, prng);
 			
-			
-			// Read/create G and l.
+			// Read guest tree samples, if any.
 			NewickRBTreeSamples guestTreeSamples = null;
 			if (params.guestTreeSet != null) {
 				Double burninProp = Double.parseDouble(params.guestTreeSetBurninProp);
@@ -154,141 +164,51 @@ public class Deleterious implements JPrIMEApp {
 							params.guestTreeSetFileRelColNo, burninProp, minCvg);
 				}
 			}
-			Triple<RBTree, NamesMap, DoubleMap> gNamesLengths = ParameterParser.getGuestTreeAndLengths(params, gsMap, prng, sequences, info, guestTreeSamples);
-			
-			// Read number of iterations and thinning factor.
-			Iteration iter = ParameterParser.getIteration(params);
-			Thinner thinner = ParameterParser.getThinner(params, iter);
-			
-			// Read probability distribution for iid guest tree edge rates (molecular clock relaxation). 
-			Triple<DoubleParameter, DoubleParameter, Continuous1DPDDependent> edgeRatePD = ParameterParser.getEdgeRatePD(params);
-			
-			// Create discretisation of S.
-			RBTreeEpochDiscretiser dtimes = ParameterParser.getDiscretizer(params, sNamesTimes.first, sNamesTimes.second, sNamesTimes.third, gNamesLengths.first);
-			
-			// Create reconciliation helper.
-			ReconciliationHelper rHelper = ParameterParser.getReconciliationHelper(params, gNamesLengths.first, sNamesTimes.first, dtimes,
-					new LeafLeafMap(gsMap, gNamesLengths.first, gNamesLengths.second, sNamesTimes.first, sNamesTimes.second));
-			
-			// Duplication-loss probabilities over discretised S.
-			Quadruple<DoubleParameter, DoubleParameter, DoubleParameter, EpochDLTProbs> dlt = ParameterParser.getDLTProbs(params, sNamesTimes.first, sNamesTimes.second,
-					gNamesLengths.first, gNamesLengths.second, gsMap, dtimes);
-			
-			// ================ CREATE MODELS, PROPOSERS, ETC. ================
-			
-			// Priors. We only have them for parameters which might cause issues.
-			RealInterval priorRange = new RealInterval(1e-16, 1e16, false, false);
-			RealParameterUniformPrior edgeRateMeanPrior = new RealParameterUniformPrior(edgeRatePD.first, priorRange);
-			RealParameterUniformPrior edgeRateCVPrior = new RealParameterUniformPrior(edgeRatePD.second, priorRange);
-			RealParameterUniformPrior lengthsPrior = new RealParameterUniformPrior(gNamesLengths.third, priorRange);
-			
-			// Substitution model. NOTE: Root arc is turned on!!!!
-			SubstitutionModel sm = new SubstitutionModel("SubstitutionModel", D, siteRates.second, Q, gNamesLengths.first, gNamesLengths.second, gNamesLengths.third, true);
-			
-			// DLTR model.
-			DLTRModel dltr = new DLTRModel(gNamesLengths.first, sNamesTimes.first, rHelper, gNamesLengths.third, dlt.fourth, edgeRatePD.third);
-			// mehmood's addtition here Ma7 24 2013
-			// Sigma (mapping between G and S).	
-			// DLTRMaxSampling model.
-			DLTRMAPModel dltrMs = new DLTRMAPModel(gNamesLengths.first, sNamesTimes.first, rHelper, gNamesLengths.third, dlt.fourth, edgeRatePD.third);
-			
-			// Realisation sampler.
-			RealisationSampler realisationSampler = ParameterParser.getRealisationSampler(params, iter, prng, dltr, dltrMs, gNamesLengths.second, params.maxRealizationFlag);
-			
-			// Proposers.
-			NormalProposer dupRateProposer 		= ParameterParser.getNormalProposer(params, dlt.first, iter, prng, params.tuningDupRate);
-			NormalProposer lossRateProposer 	= ParameterParser.getNormalProposer(params, dlt.second, iter, prng, params.tuningLossRate);
-			NormalProposer transRateProposer 	= ParameterParser.getNormalProposer(params, dlt.third, iter, prng, params.tuningTransferRate);
-			NormalProposer edgeRateMeanProposer = ParameterParser.getNormalProposer(params, edgeRatePD.first, iter, prng, params.tuningEdgeRateMean);
-			NormalProposer edgeRateCVProposer 	= ParameterParser.getNormalProposer(params, edgeRatePD.second, iter, prng, params.tuningEdgeRateCV);
-			NormalProposer siteRateShapeProposer= ParameterParser.getNormalProposer(params, siteRates.first, iter, prng, params.tuningSiteRateShape);
-			Proposer guestTreeProposer 			= ParameterParser.getBranchSwapper(params, gNamesLengths.first, gNamesLengths.third, iter, prng, guestTreeSamples);
-			NormalProposer lengthsProposer 		= ParameterParser.getNormalProposer(params, gNamesLengths.third, iter, prng, params.tuningLengths);
-			double[] lengthsWeights 			= SampleDoubleArray.toDoubleArray(params.tuningLengthsSelectorWeights);
-			lengthsProposer.setSubParameterWeights(lengthsWeights);
-			
-			// Proposer selector.
-			MultiProposerSelector selector=		ParameterParser.getSelector(params, prng);
-			selector.add(dupRateProposer, 		ParameterParser.getProposerWeight(params.tuningWeightDupRate, iter));
-			selector.add(lossRateProposer, 		ParameterParser.getProposerWeight(params.tuningWeightLossRate, iter));
-			selector.add(transRateProposer, 	ParameterParser.getProposerWeight(params.tuningWeightTransferRate, iter));
-			selector.add(edgeRateMeanProposer, 	ParameterParser.getProposerWeight(params.tuningWeightEdgeRateMean, iter));
-			selector.add(edgeRateCVProposer, 	ParameterParser.getProposerWeight(params.tuningWeightEdgeRateCV, iter));
-			selector.add(siteRateShapeProposer, ParameterParser.getProposerWeight(params.tuningWeightSiteRateShape, iter));
-			selector.add(guestTreeProposer, 	ParameterParser.getProposerWeight(params.tuningWeightG, iter));
-			selector.add(lengthsProposer, 		ParameterParser.getProposerWeight(params.tuningWeightLengths, iter));
-			
-			// Inactivate fixed proposers.
-			if (params.dupRate != null        && params.dupRate.matches("FIXED|Fixed|fixed"))        { dupRateProposer.setEnabled(false); }
-			if (params.lossRate != null       && params.lossRate.matches("FIXED|Fixed|fixed"))       { lossRateProposer.setEnabled(false); }
-			if (params.transRate != null      && params.transRate.matches("FIXED|Fixed|fixed"))      { transRateProposer.setEnabled(false); }
-			if (params.edgeRatePDMean != null && params.edgeRatePDMean.matches("FIXED|Fixed|fixed")) { edgeRateMeanProposer.setEnabled(false); }
-			if (params.edgeRatePDCV != null   && params.edgeRatePDCV.matches("FIXED|Fixed|fixed"))   { edgeRateCVProposer.setEnabled(false); }
-			if (params.siteRateCats == 1      || params.siteRateShape.matches("FIXED|Fixed|fixed"))  { siteRateShapeProposer.setEnabled(false); }
-			if (params.guestTreeFixed)                                                               { guestTreeProposer.setEnabled(false); }
-			if (params.lengthsFixed)                                                                 { lengthsProposer.setEnabled(false); }
-			
-			// Proposal acceptor.
-			ProposalAcceptor acceptor = ParameterParser.getAcceptor(params, prng);
-			
-			// Overall statistics.
-			FineProposerStatistics stats = new FineProposerStatistics(iter, 8);
-			
-			// ================ SETUP MCMC HIERARCHY ================
-			
-			MCMCManager manager = new MCMCManager(iter, thinner, selector, acceptor, sampler, prng, stats);
-			manager.setDebugMode(params.debug);
-			
-			manager.addModel(edgeRateMeanPrior);
-			manager.addModel(edgeRateCVPrior);
-			manager.addModel(lengthsPrior);
-			manager.addModel(sm);
-			
-			if (params.maxRealizationFlag == false){
-				manager.addModel(dltr);
-			}else{
-				manager.addModel(dltrMs);
-			}
-
-			
-			manager.addSampleable(iter);
-			manager.addSampleable(manager);			// Overall likelihood.
-			//manager.addSampleable(edgeRateMeanPrior);
-			//manager.addSampleable(edgeRateCVPrior);
-			//manager.addSampleable(lengthsPrior);
-			manager.addSampleable(sm);
-			if (params.maxRealizationFlag == false){
-				manager.addSampleable(dltr);
-			}else{
-				manager.addSampleable(dltrMs);
-			}
 			
-			
-			manager.addSampleable(dlt.first);
-			manager.addSampleable(dlt.second);
-			manager.addSampleable(dlt.third);
-			manager.addSampleable(edgeRatePD.first);
-			manager.addSampleable(edgeRatePD.second);
-			if (siteRateShapeProposer.isEnabled()) {
-				manager.addSampleable(siteRates.first);
-			}
-			manager.addSampleable(new RBTreeSampleWrapper(gNamesLengths.first, gNamesLengths.second));
-			if (params.outputLengths) {
-				manager.addSampleable(new RBTreeSampleWrapper(gNamesLengths.first, gNamesLengths.second, gNamesLengths.third));
-			}
-			// mehmood's addition here
-			if (realisationSampler != null) {
-				manager.addSampleable(realisationSampler);
+			// ================ CREATE CHAINS ================
+			
+			// The discretisation of S and the substitution model eigensystem are shared by all chains.
+			RBTreeEpochDiscretiser dtimes = ParameterParser.getDiscretizer(params, sNamesTimes.first, sNamesTimes.second, sNamesTimes.third, gsMap.getNoOfLeafNames());
+			ConvergenceDiagnostics diagnostics = ParameterParser.getConvergenceDiagnostics(params);
+			for (int r = 0; r < runPRNGs.length; ++r) {
+				PRNG[] chainPRNGs = ParameterParser.getChainPRNGs(params, runPRNGs[r]);
+				for (int c = 0; c < chainPRNGs.length; ++c) {
+					SubstitutionMatrixHandler chainQ = (chains.isEmpty() ? Q : new SubstitutionMatrixHandler(Q));
+					Pair<MCMCManager, RealisationSampler> chain = this.createChain(params, samplers[r], info, sNamesTimes, gsMap,
+							chainQ, sequences, D, guestTreeSamples, dtimes, chainPRNGs[c], diagnostics, r);
+					chains.add(chain.first);
+					if (chains.size() == 1) {
+						realisationSampler = chain.second;
+					}
+				}
 			}
+			MCMCManager manager = chains.get(0);
+			ParameterParser.setCheckpointing(params, manager);
+			MC3Manager mc3 = (params.chains > 1 ? ParameterParser.getMC3Manager(params, chains, prng) : null);
+			IndependentRunsManager runs = (params.runs > 1 ? new IndependentRunsManager(chains) : null);
 			
 			// ================ WRITE PRE-INFO ================
-			info.write("# MCMC manager:\n");
-			info.write(manager.getPreInfo("# \t"));
+			if (mc3 != null) {
+				info.write("# MC3 manager:\n");
+				info.write(mc3.getPreInfo("# \t"));
+			} else if (runs != null) {
+				info.write("# Independent runs manager:\n");
+				info.write(runs.getPreInfo("# \t"));
+			} else {
+				info.write("# MCMC manager:\n");
+				info.write(manager.getPreInfo("# \t"));
+			}
 			info.flush();   // Don't close, maybe using stdout for both sampling and info...
 			
 			//if(Integer.parseInt(params.heatmap.get(1)) != 1)			// Dont run MCMC chain if only generating heatmaps
 			// ================ RUN ================
+			if (mc3 != null) {
+				mc3.run();
+			} else if (runs != null) {
+				runs.run();
+			} else {
 				manager.run();
+			}
 			
 //			Code for checking if the encoding and decoding of heatmap matrix is working fine.. 			
 //			int index =0; 
@@ -329,17 +249,31 @@ public class Deleterious implements JPrIMEApp {
 			info.write("# ||                             POST-RUN INFO                           ||\n");
 			info.write("# =========================================================================\n");
 			info.write("# DELETERIOUS\n");
-			info.write("# MCMC manager:\n");
-			info.write(manager.getPostInfo("# \t"));
+			if (mc3 != null) {
+				info.write("# MC3 manager:\n");
+				info.write(mc3.getPostInfo("# \t"));
+			} else if (runs != null) {
+				info.write("# Independent runs manager:\n");
+				info.write(runs.getPostInfo("# \t"));
+			} else {
+				info.write("# MCMC manager:\n");
+				info.write(manager.getPostInfo("# \t"));
+			}
 			info.flush();
-			sampler.close();
+			for (int r = 0; r < samplers.length; ++r) {
+				samplers[r].close();
+				samplers[r] = null;
+			}
 			info.close();
 			
 			
 
 			
 			// mehmood's addition here
-			if (realisationSampler != null) { realisationSampler.close(); }
+			if (realisationSampler != null) {
+				realisationSampler.close();
+				realisationSampler = null;
+			}
 			
 			if(params.heatmap != null)
 			{
@@ -429,8 +363,199 @@ public class Deleterious implements JPrIMEApp {
 			if (params != null && params.uncatch) {
 				throw new RuntimeException(e);
 			}
+		} finally {
+			// Release worker threads of the chains and any output still open after a failure.
+			// Close failures are only reported, so that they cannot mask the original exception.
+			for (MCMCManager chain : chains) {
+				try {
+					chain.close();
+				} catch (IOException ex) {
+					System.err.println("Failed to close MCMC chain: " + ex.getMessage());
+				}
+			}
+			if (samplers != null) {
+				for (Sampler sampler : samplers) {
+					if (sampler == null) { continue; }
+					try {
+						sampler.close();
+					} catch (IOException ex) {
+						System.err.println("Failed to close sample output: " + ex.getMessage());
+					}
+				}
+			}
+			if (realisationSampler != null) {
+				try {
+					realisationSampler.close();
+				} catch (IOException ex) {
+					System.err.println("Failed to close realisation output: " + ex.getMessage());
+				}
+			}
 		}
 	}
 	
+	/**
+	 * Creates an MCMC chain with its own parameters, models and proposers. Input data is shared.
+	 * @param params parameters.
+	 * @param sampler sample output.
+	 * @param info info output.
+	 * @param sNamesTimes host tree.
+	 * @param gsMap guest-to-host leaf map.
+	 * @param Q substitution matrix handler of the chain.
+	 * @param sequences multialignment.
+	 * @param D multialignment data.
+	 * @param guestTreeSamples guest tree samples, possibly null.
+	 * @param dtimes discretisation of S.
+	 * @param prng PRNG of the chain.
+	 * @param diagnostics convergence diagnostics shared by all chains, possibly null.
+	 * @param run index of the independent run of the chain.
+	 * @return the chain and its realisation sampler, the latter possibly null.
+	 * @throws Exception if the chain could not be created.
+	 */
+	private Pair<MCMCManager, RealisationSampler> createChain(Parameters params, Sampler sampler, BufferedWriter info,
+			Triple<RBTree, NamesMap, TimesMap> sNamesTimes, GuestHostMap gsMap, SubstitutionMatrixHandler Q,
+			LinkedHashMap<String, ? extends Sequence<? extends Compound>> sequences, MSAData D,
+			NewickRBTreeSamples guestTreeSamples, RBTreeEpochDiscretiser dtimes, PRNG prng, ConvergenceDiagnostics diagnostics, int run) throws Exception {
+		// Site rates.
+		Pair<DoubleParameter, GammaSiteRateHandler> siteRates = ParameterParser.getSiteRates(params);
+		
+		// Read/create G and l.
+		Triple<RBTree, NamesMap, DoubleMap> gNamesLengths = ParameterParser.getGuestTreeAndLengths(params, gsMap, prng, sequences, info, guestTreeSamples);
+		
+		// Read number of iterations and thinning factor.
+		Iteration iter = ParameterParser.getIteration(params);
+		Thinner thinner = ParameterParser.getThinner(params, iter);
+		
+		// Read probability distribution for iid guest tree edge rates (molecular clock relaxation). 
+		Triple<DoubleParameter, DoubleParameter, Continuous1DPDDependent> edgeRatePD = ParameterParser.getEdgeRatePD(params);
+		
+		// Create reconciliation helper.
+		ReconciliationHelper rHelper = ParameterParser.getReconciliationHelper(params, gNamesLengths.first, sNamesTimes.first, dtimes,
+				new LeafLeafMap(gsMap, gNamesLengths.first, gNamesLengths.second, sNamesTimes.first, sNamesTimes.second));
+		
+		// Duplication-loss probabilities over discretised S.
+		Quadruple<DoubleParameter, DoubleParameter, DoubleParameter, EpochDLTProbs> dlt = ParameterParser.getDLTProbs(params, sNamesTimes.first, sNamesTimes.second,
+				gNamesLengths.first, gNamesLengths.second, gsMap, dtimes);
+		
+		// ================ CREATE MODELS, PROPOSERS, ETC. ================
+		
+		// Priors. We only have them for parameters which might cause issues.
+		RealInterval priorRange = new RealInterval(1e-16, 1e16, false, false);
+		RealParameterUniformPrior edgeRateMeanPrior = new RealParameterUniformPrior(edgeRatePD.first, priorRange);
+		RealParameterUniformPrior edgeRateCVPrior = new RealParameterUniformPrior(edgeRatePD.second, priorRange);
+		RealParameterUniformPrior lengthsPrior = new RealParameterUniformPrior(gNamesLengths.third, priorRange);
+		
+		// Substitution model. NOTE: Root arc is turned on!!!!
+		SubstitutionModel sm = new SubstitutionModel("SubstitutionModel", D, siteRates.second, Q, gNamesLengths.first, gNamesLengths.second, gNamesLengths.third, true, params.threads);
+		
+		// DLTR model.
+		DLTRModel dltr = new DLTRModel(gNamesLengths.first, sNamesTimes.first, rHelper, gNamesLengths.third, dlt.fourth, edgeRatePD.third);
+		// mehmood's addtition here Ma7 24 2013
+		// Sigma (mapping between G and S).	
+		// DLTRMaxSampling model.
+		DLTRMAPModel dltrMs = new DLTRMAPModel(gNamesLengths.first, sNamesTimes.first, rHelper, gNamesLengths.third, dlt.fourth, edgeRatePD.third);
+		
+		// Realisation sampler.
+		RealisationSampler realisationSampler = ParameterParser.getRealisationSampler(params, iter, prng, dltr, dltrMs, gNamesLengths.second, params.maxRealizationFlag);
+		
+		// Proposers.
+		NormalProposer dupRateProposer 		= ParameterParser.getNormalProposer(params, dlt.first, iter, prng, params.tuningDupRate);
+		NormalProposer lossRateProposer 	= ParameterParser.getNormalProposer(params, dlt.second, iter, prng, params.tuningLossRate);
+		NormalProposer transRateProposer 	= ParameterParser.getNormalProposer(params, dlt.third, iter, prng, params.tuningTransferRate);
+		NormalProposer edgeRateMeanProposer = ParameterParser.getNormalProposer(params, edgeRatePD.first, iter, prng, params.tuningEdgeRateMean);
+		NormalProposer edgeRateCVProposer 	= ParameterParser.getNormalProposer(params, edgeRatePD.second, iter, prng, params.tuningEdgeRateCV);
+		NormalProposer siteRateShapeProposer= ParameterParser.getNormalProposer(params, siteRates.first, iter, prng, params.tuningSiteRateShape);
+		Proposer guestTreeProposer 			= ParameterParser.getBranchSwapper(params, gNamesLengths.first, gNamesLengths.third, iter, prng, guestTreeSamples);
+		NormalProposer lengthsProposer 		= ParameterParser.getNormalProposer(params, gNamesLengths.third, iter, prng, params.tuningLengths);
+		double[] lengthsWeights 			= SampleDoubleArray.toDoubleArray(params.tuningLengthsSelectorWeights);
+		lengthsProposer.setSubParameterWeights(lengthsWeights);
+		
+		// Proposer selector.
+		MultiProposerSelector selector=		ParameterParser.getSelector(params, prng);
+		selector.add(dupRateProposer, 		ParameterParser.getProposerWeight(params.tuningWeightDupRate, iter));
+		selector.add(lossRateProposer, 		ParameterParser.getProposerWeight(params.tuningWeightLossRate, iter));
+		selector.add(transRateProposer, 	ParameterParser.getProposerWeight(params.tuningWeightTransferRate, iter));
+		selector.add(edgeRateMeanProposer, 	ParameterParser.getProposerWeight(params.tuningWeightEdgeRateMean, iter));
+		selector.add(edgeRateCVProposer, 	ParameterParser.getProposerWeight(params.tuningWeightEdgeRateCV, iter));
+		selector.add(siteRateShapeProposer, ParameterParser.getProposerWeight(params.tuningWeightSiteRateShape, iter));
+		selector.add(guestTreeProposer, 	ParameterParser.getProposerWeight(params.tuningWeightG, iter));
+		selector.add(lengthsProposer, 		ParameterParser.getProposerWeight(params.tuningWeightLengths, iter));
+		
+		// Inactivate fixed proposers.
+		if (params.dupRate != null        && params.dupRate.matches("FIXED|Fixed|fixed"))        { dupRateProposer.setEnabled(false); }
+		if (params.lossRate != null       && params.lossRate.matches("FIXED|Fixed|fixed"))       { lossRateProposer.setEnabled(false); }
+		if (params.transRate != null      && params.transRate.matches("FIXED|Fixed|fixed"))      { transRateProposer.setEnabled(false); }
+		if (params.edgeRatePDMean != null && params.edgeRatePDMean.matches("FIXED|Fixed|fixed")) { edgeRateMeanProposer.setEnabled(false); }
+		if (params.edgeRatePDCV != null   && params.edgeRatePDCV.matches("FIXED|Fixed|fixed"))   { edgeRateCVProposer.setEnabled(false); }
+		if (params.siteRateCats == 1      || params.siteRateShape.matches("FIXED|Fixed|fixed"))  { siteRateShapeProposer.setEnabled(false); }
+		if (params.guestTreeFixed)                                                               { guestTreeProposer.setEnabled(false); }
+		if (params.lengthsFixed)                                                                 { lengthsProposer.setEnabled(false); }
+		
+		// Adaptive proposer jointly perturbing the non-fixed scalar parameters.
+		AdaptiveMetropolisProposer adaptiveProposer = ParameterParser.getAdaptiveProposer(params,
+				new NormalProposer[] { dupRateProposer, lossRateProposer, transRateProposer, edgeRateMeanProposer, edgeRateCVProposer, siteRateShapeProposer }, iter, prng);
+		if (adaptiveProposer != null) {
+			selector.add(adaptiveProposer, ParameterParser.getProposerWeight(params.tuningWeightAdaptive, iter));
+		}
+		
+		// Proposal acceptor.
+		ProposalAcceptor acceptor = ParameterParser.getAcceptor(params, prng);
+		
+		// Overall statistics.
+		FineProposerStatistics stats = new FineProposerStatistics(iter, 8);
+		
+		// ================ SETUP MCMC HIERARCHY ================
+		
+		MCMCManager manager = new MCMCManager(iter, thinner, selector, acceptor, sampler, prng, stats);
+		manager.setDebugMode(params.debug);
+		
+		manager.addModel(edgeRateMeanPrior);
+		manager.addModel(edgeRateCVPrior);
+		manager.addModel(lengthsPrior);
+		manager.addModel(sm);
+		
+		if (params.maxRealizationFlag == false){
+			manager.addModel(dltr);
+		}else{
+			manager.addModel(dltrMs);
+		}
+
+		
+		manager.addSampleable(iter);
+		manager.addSampleable(manager);			// Overall likelihood.
+		//manager.addSampleable(edgeRateMeanPrior);
+		//manager.addSampleable(edgeRateCVPrior);
+		//manager.addSampleable(lengthsPrior);
+		manager.addSampleable(sm);
+		if (params.maxRealizationFlag == false){
+			manager.addSampleable(dltr);
+		}else{
+			manager.addSampleable(dltrMs);
+		}
+		
+		
+		manager.addSampleable(dlt.first);
+		manager.addSampleable(dlt.second);
+		manager.addSampleable(dlt.third);
+		manager.addSampleable(edgeRatePD.first);
+		manager.addSampleable(edgeRatePD.second);
+		if (siteRateShapeProposer.isEnabled()) {
+			manager.addSampleable(siteRates.first);
+		}
+		RBTreeSampleWrapper guestTreeWrapper = new RBTreeSampleWrapper(gNamesLengths.first, gNamesLengths.second);
+		manager.addSampleable(guestTreeWrapper);
+		if (params.outputLengths) {
+			manager.addSampleable(new RBTreeSampleWrapper(gNamesLengths.first, gNamesLengths.second, gNamesLengths.third));
+		}
+		// mehmood's addition here
+		if (realisationSampler != null) {
+			manager.addSampleable(realisationSampler);
+		}
+		
+		// Convergence diagnostics for early stopping.
+		ParameterParser.setConvergenceDiagnostics(params, manager, diagnostics, run,
+				new NormalProposer[] { dupRateProposer, lossRateProposer, transRateProposer, edgeRateMeanProposer, edgeRateCVProposer, siteRateShapeProposer }, guestTreeWrapper);
+		
+		return new Pair<MCMCManager, RealisationSampler>(manager, realisationSampler);
+	}
 	
 }
@@ -197,6 +197,25 @@ class EpochPtMap implements PublicCloneable {
 		}
 	}
 	
+	/**
+	 * Returns true if this map has the same layout (epochs, times and arcs)
+	 * as a map created for the specified discretisation, i.e., if it may be reused.
+	 * @param ed the discretised tree.
+	 * @return true if compatible; false if a new map must be created.
+	 */
+	public boolean hasLayoutOf(RBTreeEpochDiscretiser ed) {
+		if (m_offsets.length != ed.getNoOfEpochs() + 1) {
+			return false;
+		}
+		for (int i = 0; i < ed.getNoOfEpochs(); ++i) {
+			if (m_offsets[i+1] - m_offsets[i] != ed.getEpoch(i).getNoOfTimes() ||
+					m_vals[m_offsets[i]].length != ed.getEpoch(i).getNoOfArcs()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Saves current values in a cache.
 	 */
@@ -1,5 +1,7 @@
 package se.cbb.jprime.apps.dltrs;
 
+import java.util.Arrays;
+
 import se.cbb.jprime.topology.Epoch;
 import se.cbb.jprime.topology.RBTreeEpochDiscretiser;
 
@@ -15,6 +17,11 @@ import se.cbb.jprime.topology.RBTreeEpochDiscretiser;
  * containing the values from all points at time i to all points at
  * time j with respect to the different arcs.
  * <p/>
+ * All elements are laid out after each other in a single flat vector, with the start index of each
+ * element precomputed. Values from a point at time i to all points at time j thus form a contiguous
+ * row, which may be accessed directly through <code>getValues()</code> and <code>getRowIndex(...)</code>
+ * in inner loops.
+ * <p/>
  * If the discretisation topology of the epochs on which the map is
  * based changes, the map is invalidated and a new instance replacing
  * it must be created.
@@ -22,8 +29,6 @@ import se.cbb.jprime.topology.RBTreeEpochDiscretiser;
  * Points are referenced by triplets: epoch number, time index in epoch
  * and edge index in epoch. Values are, naturally, retrieved using
  * two points.
- * <p/>
- * The map includes functionality for caching and restoring values.
  * 
  * @author Joel Sjöstrand.
  */
@@ -35,11 +40,17 @@ class EpochPtPtMap {
 	/** For each epoch, the offset in value matrix with regard to times. */
 	private int[] m_offsets;
 	
-	/** For each time-to-time as a concatenated triangular matrix, holds the arc-to-arc values as a concatenated matrix. */
-	private double[][] m_vals;
+	/** For each epoch, the no. of arcs. */
+	private int[] m_noOfArcs;
+	
+	/** For each time it, the index in the triangular matrix of element (it,0), i.e., such that element (it,jt) is found at m_rowStarts[it]+jt. */
+	private int[] m_rowStarts;
 	
-	/** Cached values. */
-	private double[][] m_valsCache = null;
+	/** For each time-to-time element of the concatenated triangular matrix, the start index in the value vector. */
+	private int[] m_bases;
+	
+	/** For each time-to-time element, holds the arc-to-arc values as a concatenated matrix, all elements appended after each other. */
+	private double[] m_vals;
 	
 	/**
 	 * Constructor.
@@ -51,14 +62,21 @@ class EpochPtPtMap {
 		
 		// Compute offsets.
 		m_offsets = new int[noOfEps + 1];
+		m_noOfArcs = new int[noOfEps];
 		m_offsets[0] = 0;
 		for (int i = 0; i < noOfEps; ++i) {
 			m_offsets[i+1] = m_offsets[i] + ed.getEpoch(i).getNoOfTimes();
+			m_noOfArcs[i] = ed.getEpoch(i).getNoOfArcs();
 		}
-		
-		// Create and fill value matrix.
 		noOfTimes = m_offsets[m_offsets.length-1];
-		m_vals = new double[noOfTimes*(noOfTimes+1)/2][];
+		m_rowStarts = new int[noOfTimes];
+		for (int it = 0; it < noOfTimes; ++it) {
+			m_rowStarts[it] = it * (2 * noOfTimes - it - 1) / 2;
+		}
+		
+		// Compute start index of each element.
+		m_bases = new int[noOfTimes*(noOfTimes+1)/2];
+		long sz = 0;
 		for (int i = 0; i < noOfEps; ++i) {
 			Epoch iep = ed.getEpoch(i);
 			int wdi = iep.getNoOfArcs();
@@ -69,23 +87,103 @@ class EpochPtPtMap {
 					for (int t = (i==j) ? s : 0; t < jep.getNoOfTimes(); ++t) {
 						int it = m_offsets[i] + s;
 						int jt = m_offsets[j] + t;
-						m_vals[it * (2 * noOfTimes - it - 1) / 2 + jt] = new double[wdi * wdj];
+						m_bases[m_rowStarts[it] + jt] = (int) sz;
+						sz += wdi * wdj;
 					}
 				}
 			}
 		}
+		if (sz > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Too many discretisation points for point-to-point map: " + sz + " values.");
+		}
+		m_vals = new double[(int) sz];
 	}
 	
 	/**
-	 * Copy-constructor. Cached values are not copied.
+	 * Copy-constructor.
 	 */
 	public EpochPtPtMap(EpochPtPtMap ptPtMap) {
-		m_offsets = new int[ptPtMap.m_offsets.length];
-		System.arraycopy(ptPtMap.m_offsets, 0, m_offsets, 0, m_offsets.length);
-		m_vals = new double[ptPtMap.m_vals.length][];
-		for (int i = 0; i < m_vals.length; ++i) {
-			m_vals[i] =  new double[ptPtMap.m_vals[i].length];
-			System.arraycopy(ptPtMap.m_vals[i], 0, m_vals[i], 0, m_vals[i].length);
+		noOfTimes = ptPtMap.noOfTimes;
+		m_offsets = ptPtMap.m_offsets.clone();
+		m_noOfArcs = ptPtMap.m_noOfArcs.clone();
+		m_rowStarts = ptPtMap.m_rowStarts.clone();
+		m_bases = ptPtMap.m_bases.clone();
+		m_vals = ptPtMap.m_vals.clone();
+	}
+	
+	/**
+	 * Returns the start index in the value vector of all values from points
+	 * of a certain time to points of a certain time.
+	 * @param i epoch index of lower time 1.
+	 * @param s time index in epoch of time 1.
+	 * @param j epoch index of upper time 2.
+	 * @param t time index in epoch of time 2.
+	 * @return the index.
+	 */
+	private int getIndex(int i, int s, int j, int t) {
+		return m_bases[m_rowStarts[m_offsets[i] + s] + m_offsets[j] + t];
+	}
+	
+	/**
+	 * Returns the value vector of the map, in which all values from a point to
+	 * all arcs of an upper time are stored contiguously starting at the index
+	 * returned by <code>getRowIndex(...)</code>.
+	 * @return the values.
+	 */
+	public double[] getValues() {
+		return m_vals;
+	}
+	
+	/**
+	 * Returns the start index in the value vector of the row of values from a point
+	 * to the points of all arcs of an upper time. The value for arc b of the upper time
+	 * is found at the returned index + b.
+	 * @param i epoch index of lower time 1.
+	 * @param s time index in epoch of time 1.
+	 * @param a edge index in epoch of time 1.
+	 * @param j epoch index of upper time 2.
+	 * @param t time index in epoch of time 2.
+	 * @return the index.
+	 */
+	public int getRowIndex(int i, int s, int a, int j, int t) {
+		return getIndex(i, s, j, t) + a * m_noOfArcs[j];
+	}
+	
+	/**
+	 * Returns the no. of arcs of an epoch, i.e., the row length for upper times in that epoch.
+	 * @param j the epoch index.
+	 * @return the no. of arcs.
+	 */
+	public int getNoOfArcs(int j) {
+		return m_noOfArcs[j];
+	}
+	
+	/**
+	 * Adds the product of a vector and the values from points of a certain time
+	 * to points of a certain time, i.e., for each arc b of time 2,
+	 * out[b] += sum_a value(a,b) * scale * vec[a] over arcs a of time 1.
+	 * Rows of values are traversed contiguously, allowing the compiler to vectorise
+	 * the inner loop. Zero elements of vec are skipped.
+	 * @param i epoch index of lower time 1.
+	 * @param s time index in epoch of time 1.
+	 * @param j epoch index of upper time 2.
+	 * @param t time index in epoch of time 2.
+	 * @param vec the vector, one element per arc of time 1.
+	 * @param scale factor applied to all products.
+	 * @param out the vector to add to, one element per arc of time 2.
+	 */
+	public void addProduct(int i, int s, int j, int t, double[] vec, double scale, double[] out) {
+		double[] v = m_vals;
+		int noOfArcs = m_noOfArcs[j];
+		int row = getIndex(i, s, j, t);
+		for (int a = 0; a < m_noOfArcs[i]; ++a, row += noOfArcs) {
+			double w = vec[a];
+			if (w == 0.0) {
+				continue;
+			}
+			for (int b = 0; b < noOfArcs; ++b) {
+				out[b] += v[row + b] * scale * w;
+			}
 		}
 	}
 	
@@ -101,10 +199,7 @@ class EpochPtPtMap {
 	 * @param start the start index in vec.
 	 */
 	public void set(int i, int s, int j, int t, double[] vec, int start) {
-		int it = m_offsets[i] + s;
-		int jt = m_offsets[j] + t;
-		double[] v = m_vals[it * (2 * noOfTimes - it - 1) / 2 + jt];
-		System.arraycopy(vec, start, v, 0, v.length);
+		System.arraycopy(vec, start, m_vals, getIndex(i, s, j, t), m_noOfArcs[i] * m_noOfArcs[j]);
 	}
 	
 	/**
@@ -123,10 +218,10 @@ class EpochPtPtMap {
 	 */
 	public void setWithMin(int i, int s, int j, int t, double[] vec, int start, double lowerBound)
 	{
-		int it = m_offsets[i] + s;
-		int jt = m_offsets[j] + t;
-		double[] v = m_vals[it * (2 * noOfTimes - it - 1) / 2 + jt];
-		for (int k = 0; k < v.length; ++k, ++start) {
+		double[] v = m_vals;
+		int k = getIndex(i, s, j, t);
+		int end = k + m_noOfArcs[i] * m_noOfArcs[j];
+		for (; k < end; ++k, ++start) {
 			v[k] = Math.max(vec[start], lowerBound);
 		}
 	}
@@ -146,10 +241,10 @@ class EpochPtPtMap {
 	 * @param upperBound the upper bound.
 	 */
 	public void setWithMax(int i, int s, int j, int t, double[] vec, int start, double upperBound) {
-		int it = m_offsets[i] + s;
-		int jt = m_offsets[j] + t;
-		double[] v = m_vals[it * (2 * noOfTimes - it - 1) / 2 + jt];
-		for (int k = 0; k < v.length; ++k, ++start) {
+		double[] v = m_vals;
+		int k = getIndex(i, s, j, t);
+		int end = k + m_noOfArcs[i] * m_noOfArcs[j];
+		for (; k < end; ++k, ++start) {
 			v[k] = Math.min(vec[start], upperBound);
 		}
 	}
@@ -159,11 +254,7 @@ class EpochPtPtMap {
 	 * @param defaultVal the value to be set.
 	 */
 	public void reset(double defaultVal) {
-		for (int i = 0; i < m_vals.length; ++i) {
-			for (int j = 0; j < m_vals[i].length; ++j) {
-				m_vals[i][j] = defaultVal;
-			}
-		}
+		Arrays.fill(m_vals, defaultVal);
 	}
 	
 	/**
@@ -177,12 +268,8 @@ class EpochPtPtMap {
 	 * @return the value.
 	 */
 	public double get(int i, int s, int a, int j, int t, int b) {
-		int it = m_offsets[i] + s;
-		int jt = m_offsets[j] + t;
-		double[] v = m_vals[it * (2 * noOfTimes - it - 1) / 2 + jt];
-		int noOfArcs = m_offsets.length - 1 - j;
-    	return v[a * noOfArcs + b];
-    }
+		return m_vals[getIndex(i, s, j, t) + a * m_noOfArcs[j] + b];
+	}
 	
 	/**
 	 * Sets a certain point-to-point value.
@@ -195,38 +282,7 @@ class EpochPtPtMap {
 	 * @param val the value.
 	 */
 	public void set(int i, int s, int a, int j, int t, int b, double val) {
-		int it = m_offsets[i] + s;
-		int jt = m_offsets[j] + t;
-		double[] v = m_vals[it * (2 * noOfTimes - it - 1) / 2 + jt];
-		int noOfArcs = m_offsets.length - 1 - j;
-    	v[a * noOfArcs + b] = val;
-    }
-	
-	/**
-	 * Saves current values in a cache. Cached values can be
-	 * restored with a call to restoreCache().
-	 */
-	public void cache() {
-		m_valsCache = new double[m_vals.length][];
-		for (int i = 0; i < m_vals.length; ++i) {
-			m_valsCache[i] = new double[m_vals[i].length];
-			System.arraycopy(m_vals[i], 0, m_valsCache[i], 0, m_vals[i].length);
-		}
-	}
-	
-	/**
-	 * Restores cached values.
-	 */
-	public void restoreCache() {
-		m_vals = m_valsCache;
-		m_valsCache = null;
-	}
-	
-	/**
-	 * Disables last made cache.
-	 */
-	public void clearCache() {
-		m_valsCache = null;
+		m_vals[getIndex(i, s, j, t) + a * m_noOfArcs[j] + b] = val;
 	}
 	
 	/**
@@ -253,13 +309,13 @@ class EpochPtPtMap {
 						oss.append("# (").append(e).append(',').append(it-m_offsets[e]).append(") to ");
 						oss.append('(').append(f).append(',').append(jt-m_offsets[f]).append("):");
 						oss.append('\n');
-						double[] v = m_vals[it * (2 * noOfTimes - it - 1) / 2 + jt];
-						int eArcs = m_offsets.length - 1 - e;
+						int base = m_bases[m_rowStarts[it] + jt];
+						int eArcs = m_noOfArcs[e];
 						for (int k = 0; k < eArcs; ++k) {
 							oss.append("# ");
-							int fArcs = m_offsets.length - 1 - f;
+							int fArcs = m_noOfArcs[f];
 							for (int l = 0; l < fArcs; ++l){
-								oss.append(v[k * fArcs + l]).append(' ');
+								oss.append(m_vals[base + k * fArcs + l]).append(' ');
 							}
 							oss.append('\n');
 						}
@@ -270,4 +326,4 @@ class EpochPtPtMap {
 		return oss.toString();
 	}
     
-}
+}
\ No newline at end of file
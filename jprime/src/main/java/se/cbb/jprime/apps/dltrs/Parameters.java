@@ -42,6 +42,15 @@ public class Parameters {
 	@Parameter(names = {"-o", "--outfile"}, description = "Output file. Default: stdout.")
 	public String outfile = null;
 	
+	/** Output format. */
+	@Parameter(names = {"-outfmt", "--outputformat"}, description = "Sample output format: 'text', 'gzip' or 'binary'. Gzip and binary output " +
+			"require -o, and are formatted and written on a separate thread. Binary files can be converted with BinarySampleReader.")
+	public String outputFormat = "text";
+	
+	/** Asynchronous output. */
+	@Parameter(names = {"-async", "--asyncoutput"}, description = "Format and write text samples on a separate thread.")
+	public Boolean asyncOutput = false;
+	
 	/** Info output location. */
 	@Parameter(names = {"-info", "--infofile"}, description = "Info output file. Default: <outfile>.info when -o has been specified, " +
 			"stdout when -o has not been specified, suppressed if -info NONE is specified.")
@@ -63,6 +72,20 @@ public class Parameters {
 	@Parameter(names = {"-t", "--thinning"}, description = "Thinning factor, i.e., sample output every n-th iteration.")
 	public Integer thinning = 100;
 	
+	/** Checkpoint file. */
+	@Parameter(names = {"-cp", "--checkpoint"}, description = "Binary checkpoint file, regularly overwritten with the state of the chain so that the run " +
+			"can be resumed with -resume. Default: No checkpointing.")
+	public String checkpoint = null;
+	
+	/** Checkpoint interval. */
+	@Parameter(names = {"-cpi", "--checkpointinterval"}, description = "Number of iterations between checkpoints.")
+	public Integer checkpointInterval = 100000;
+	
+	/** Resume flag. */
+	@Parameter(names = {"-resume", "--resume"}, description = "Resume a run from the checkpoint file specified with -cp. All other options and " +
+			"arguments must be identical to those of the original run. Samples and info are appended to the original output files.")
+	public Boolean resume = false;
+	
 	/** Substitution model. */
 	@Parameter(names = {"-sm", "--substitutionmodel"}, description = SubstitutionMatrixHandlerFactory.USER_MESSAGE)
 	public String substitutionModel = "JC69";
@@ -210,6 +233,10 @@ public class Parameters {
 	@Parameter(names = {"-tngl", "--tuninglengths"}, description = "Tuning parameter: Governs branch lengths proposal distribution's CV.")
 	public String tuningLengths = "[0.6,0.6]";
 	
+	/** Tuning parameter: adaptive proposer initial proposal distribution. */
+	@Parameter(names = {"-tngadapt", "--tuningadaptive"}, description = "Tuning parameter: Governs the adaptive proposer's log-space standard deviation before a covariance has been learnt.")
+	public Double tuningAdaptive = 0.1;
+	
 	/** Tuning parameter: guest tree move weights. */
 	@Parameter(names = {"-tnggw", "--tuningguesttreeweights"}, description = "Tuning parameter: Governs how often a particular " +
 			"branch swap operation is carried out as [NNI,SPR,Rerooting].")
@@ -258,6 +285,77 @@ public class Parameters {
 	@Parameter(names = {"-tngwl", "--tuningweightlengths"}, description = "Tuning parameter: Relative activation weight for branch lengths proposer.")
 	public String tuningWeightLengths = "[10.0,10.0]";
 	
+	/** Tuning parameter: adaptive proposer weight. */
+	@Parameter(names = {"-tngwadapt", "--tuningweightadaptive"}, description = "Tuning parameter: Relative activation weight for the adaptive proposer.")
+	public String tuningWeightAdaptive = "[1.0,1.0]";
+	
+	/** Adaptive proposer. */
+	@Parameter(names = {"-adapt", "--adaptiveproposer"}, description = "Number of initial iterations during which an additional proposer learns the joint covariance of the non-fixed duplication rate, loss rate, transfer rate, edge rate mean, edge rate CV and site rate shape, after which its proposal distribution is frozen. Samples drawn before that should be discarded as burn-in. Default: 0, i.e., no adaptive proposer.")
+	public Integer adaptiveIterations = 0;
+	
+	/** Early stopping on convergence. */
+	@Parameter(names = {"-stop", "--stopwhenconverged"}, description = "Stop the run early once online convergence diagnostics of the sampled posterior density, duplication rate, loss rate, transfer rate, edge rate mean, edge rate CV, site rate shape and guest tree (non-fixed ones only) " +
+			"meet the targets of -stopess, -stoprhat, -stopasdsf and -stopmin. Split-R-hat and the average standard deviation of split (clade) frequencies compare the -runs independent chains, or else the two halves of the sampled trace. " +
+			"Samples drawn during the burn-in of -stopburnin and during the -adapt iterations are ignored. The diagnostics are reported in the info output. Cannot be combined with checkpointing.")
+	public Boolean stopWhenConverged = false;
+	
+	/** Early stopping: burn-in. */
+	@Parameter(names = {"-stopburnin", "--stopburninprop"}, description = "Proportion of the -i iterations whose samples are not monitored for -stop, e.g. 0.25 for 25%.")
+	public Double stopBurninProp = 0.25;
+	
+	/** Early stopping: minimum ESS. */
+	@Parameter(names = {"-stopess", "--stopminess"}, description = "Minimum effective sample size of each monitored parameter for -stop.")
+	public Double stopMinESS = 200.0;
+	
+	/** Early stopping: maximum split-R-hat. */
+	@Parameter(names = {"-stoprhat", "--stopmaxrhat"}, description = "Maximum split-R-hat of each monitored parameter for -stop.")
+	public Double stopMaxRHat = 1.01;
+	
+	/** Early stopping: maximum ASDSF. */
+	@Parameter(names = {"-stopasdsf", "--stopmaxasdsf"}, description = "Maximum average standard deviation of guest tree split (clade) frequencies for -stop.")
+	public Double stopMaxASDSF = 0.01;
+	
+	/** Early stopping: minimum number of samples. */
+	@Parameter(names = {"-stopmin", "--stopminsamples"}, description = "Minimum number of monitored samples for -stop.")
+	public Integer stopMinSamples = 1000;
+	
+	/** Number of threads. */
+	@Parameter(names = {"-threads", "--threads"}, description = "Number of worker threads for substitution model likelihood computations (sequence patterns are split between threads) " +
+			"and for computing duplication-loss-transfer probabilities (ODE solves within epochs and assembly between epochs are split between threads).")
+	public Integer threads = 1;
+	
+	/** Solver of duplication-loss-transfer probabilities. */
+	@Parameter(names = {"-dltsolver", "--dltsolver"}, description = "Solver of duplication-loss-transfer probabilities within epochs: 'generic' integrates the full ODE system " +
+			"at once, 'structured' exploits that the system is linear given the extinction probabilities and composes one-timestep propagators. The latter is slower " +
+			"(measured 1.3-2x within epochs) and is only intended for validation. Default: generic.")
+	public String dltSolver = "generic";
+	
+	/** Memoised duplication-loss-transfer probabilities. */
+	@Parameter(names = {"-dltmemo", "--dltmemo"}, description = "Number of sets of duplication-loss-transfer probabilities memoised for recently visited rates " +
+			"(besides those of the current and the cached state), so that returning to exactly the same rates requires no recomputation. " +
+			"Each set requires memory quadratic in the number of discretisation points. The hit rate is reported in the info output. Default: 0, i.e., no memoisation.")
+	public Integer dltMemo = EpochDLTProbs.DEFAULT_MEMO_SIZE;
+	
+	/** Number of MC3 chains. */
+	@Parameter(names = {"-chains", "--chains"}, description = "Number of Metropolis-coupled MCMC (MC3) chains, run in parallel with one thread per chain. Only the cold chain is sampled. Default: 1, i.e., ordinary MCMC.")
+	public Integer chains = 1;
+	
+	/** Number of independent runs. */
+	@Parameter(names = {"-runs", "--runs"}, description = "Number of independent chains, run in parallel with one thread per chain in the same process. Input data, host tree discretisation " +
+			"and substitution model eigensystem are shared between chains, but each has its own PRNG stream derived from the seed, and its samples are written to <outfile>.run<k>, k=1,2,... " +
+			"Requires -o, and cannot be combined with -chains or checkpointing. Default: 1.")
+	public Integer runs = 1;
+	
+	/** MC3 heating. */
+	@Parameter(names = {"-heat", "--heat"}, description = "MC3 heating parameter h, so that chain k=0,1,... has inverse temperature 1/(1+k*h).")
+	public Double heat = 0.1;
+	
+	/** MC3 swap interval. */
+	@Parameter(names = {"-swapint", "--swapinterval"}, description = "Number of MC3 iterations between proposed swaps of states of adjacent chains. " +
+			"All chains wait for the slowest one at every swap attempt, so a small interval mixes faster between temperatures " +
+			"but leaves threads idle more often.")
+	public Integer swapInterval = 100;
+	
 	/** Debug flag. */
 	@Parameter(names = {"-dbg", "--debug"}, description = "Output debugging info.")
 	public Boolean debug = false;
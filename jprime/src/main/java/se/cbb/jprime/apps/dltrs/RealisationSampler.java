@@ -13,8 +13,8 @@ import se.cbb.jprime.math.PRNG;
 import se.cbb.jprime.mcmc.Iteration;
 import se.cbb.jprime.topology.BooleanMap;
 import se.cbb.jprime.topology.DoubleArrayMap;
+import se.cbb.jprime.topology.DoubleBufferedMap;
 import se.cbb.jprime.topology.DoubleMap;
-import se.cbb.jprime.topology.GenericMap;
 import se.cbb.jprime.topology.IntMap;
 import se.cbb.jprime.topology.MPRMap;
 import se.cbb.jprime.topology.NamesMap;
@@ -72,10 +72,10 @@ public class RealisationSampler implements Sampleable {
 
 	///** At-probabilities for vertices v of G. */
 	/** Probability of rooted subtree G_u for each valid placement of u in S'. */
-	protected GenericMap<EpochPtMap> ats;
+	protected DoubleBufferedMap<EpochPtMap> ats;
 
 	/** Probability of planted subtree G^u for each valid placement of tip of u's parent arc in S'. */
-	protected GenericMap<EpochPtMap> belows;
+	protected DoubleBufferedMap<EpochPtMap> belows;
 
 	/** P11, etc. */
 	private EpochDLTProbs msDltProbs;  
@@ -88,10 +88,10 @@ public class RealisationSampler implements Sampleable {
 
 	///** At-probabilities for vertices v of G. */
 	/** Probability of rooted subtree G_u for each valid placement of u in S'. */
-	protected GenericMap<EpochPtMap> msAts;
+	protected DoubleBufferedMap<EpochPtMap> msAts;
 
 	/** Probability of planted subtree G^u for each valid placement of tip of u's parent arc in S'. */
-	protected GenericMap<EpochPtMap> msBelows;
+	protected DoubleBufferedMap<EpochPtMap> msBelows;
 
 	/** No. of realisations per sampling round. */
 	private int noOfRealisations;
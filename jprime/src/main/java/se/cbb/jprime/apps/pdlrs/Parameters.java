@@ -248,6 +248,10 @@ public class Parameters {
 	@Parameter(names = {"-tngwl", "--tuningweightlengths"}, description = "Tuning parameter: Relative activation weight for branch lengths proposer.")
 	public String tuningWeightLengths = "[10.0,10.0]";
 	
+	/** Number of threads. */
+	@Parameter(names = {"-threads", "--threads"}, description = "Number of worker threads for substitution model likelihood computations (sequence patterns are split between threads).")
+	public Integer threads = 1;
+	
 	/** Debug flag. */
 	@Parameter(names = {"-dbg", "--debug"}, description = "Output debugging info.")
 	public Boolean debug = false;
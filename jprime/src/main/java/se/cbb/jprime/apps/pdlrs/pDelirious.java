@@ -69,6 +69,7 @@ public class pDelirious implements JPrIMEApp {
 	@Override
 	public void main(String[] args) {
 		BufferedWriter info = null;
+		MCMCManager manager = null;
 		try {
 			
 			// ================ PARSE USER OPTIONS AND ARGUMENTS ================
@@ -185,7 +186,7 @@ public class pDelirious implements JPrIMEApp {
 			RealParameterUniformPrior lengthsPrior = new RealParameterUniformPrior(gNamesLengths.third, priorRange);
 			
 			// Substitution model. NOTE: Root arc is turned on!!!!
-			SubstitutionModel sm = new SubstitutionModel("SubstitutionModel", D, siteRates.second, Q, gNamesLengths.first, gNamesLengths.second, gNamesLengths.third, true);
+			SubstitutionModel sm = new SubstitutionModel("SubstitutionModel", D, siteRates.second, Q, gNamesLengths.first, gNamesLengths.second, gNamesLengths.third, true, params.threads);
 			
 			// DLR model.
 			DLRModel dlr = new DLRModel(gNamesLengths.first, sNamesTimes.first, rHelper, gNamesLengths.third, dupLoss.third, edgeRatePD.third);
@@ -231,7 +232,7 @@ public class pDelirious implements JPrIMEApp {
 			
 			// ================ SETUP MCMC HIERARCHY ================
 			
-			MCMCManager manager = new MCMCManager(iter, thinner, selector, acceptor, sampler, prng, stats);
+			manager = new MCMCManager(iter, thinner, selector, acceptor, sampler, prng, stats);
 			manager.setDebugMode(params.debug);
 			
 			manager.addModel(edgeRateMeanPrior);
@@ -299,6 +300,11 @@ public class pDelirious implements JPrIMEApp {
 				} catch (IOException f) {
 				}
 			}
+		} finally {
+			// Release worker threads of the chain.
+			if (manager != null) {
+				try { manager.close(); } catch (IOException ex) {}
+			}
 		}
 	}
 	
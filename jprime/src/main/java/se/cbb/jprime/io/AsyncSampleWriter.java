@@ -0,0 +1,602 @@
+package se.cbb.jprime.io;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import se.cbb.jprime.mcmc.Checkpointable;
+
+/**
+ * MCMC sampler which moves formatting and output of samples off the sampling thread.
+ * When a sample is drawn, the values of all sampleables implementing <code>SnapshotSampleable</code>
+ * are copied into preallocated snapshots in a ring buffer; for other sampleables, the ordinary
+ * string value is stored. A background thread then formats and writes the samples in one of the
+ * following formats:
+ * <ul>
+ * <li>TEXT: identical to <code>SampleWriter</code> (without concise output).</li>
+ * <li>GZIP: as TEXT, but gzip-compressed. A new gzip member is started at each checkpoint, which
+ *     standard tools handle transparently.</li>
+ * <li>BINARY: a compact column format which can be read with <code>BinarySampleReader</code>.
+ *     It consists of the identifier and version, followed by records tagged 'H' (column headers,
+ *     binary types and type-specific meta-data), 'S' (a sample, see <code>SampleSnapshots</code>)
+ *     and 'T' (a string output with <code>writeString(...)</code>).</li>
+ * </ul>
+ * If the ring buffer is full, the sampling thread blocks until a slot is available. Errors of the
+ * background thread are reported on the next invocation. <code>close()</code> must be invoked when done,
+ * since the background thread is a daemon.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class AsyncSampleWriter implements Sampler, Checkpointable {
+
+	/** Output formats. */
+	public enum Format {
+		/** Plain text. */
+		TEXT,
+		/** Gzipped text. */
+		GZIP,
+		/** Binary columns. */
+		BINARY
+	}
+
+	/** Identifier of the binary format. */
+	public static final String BINARY_ID = "JPrIME binary samples";
+
+	/** Version of the binary format. */
+	public static final int BINARY_VERSION = 1;
+
+	/** Default number of slots of the ring buffer. */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/** Slot kinds. */
+	private static final int SAMPLE = 0, STRING = 1, HEADER = 2, SYNC = 3, SYNC_MEMBER = 4;
+
+	/** Format. */
+	private final Format format;
+
+	/** Output file. Null if sampling to stdout. */
+	private final File file;
+
+	/** Governs how often the output is flushed. */
+	private final int flushFactor;
+
+	/** Delimiter of text formats. */
+	private String delim = SampleWriter.DEFAULT_DELIM;
+
+	/** Underlying buffered stream. */
+	private OutputStream raw;
+
+	/** Gzip layer. Null if not used. */
+	private GZIPOutputStream gzip = null;
+
+	/** Text output. Null if not used. */
+	private BufferedWriter textOut = null;
+
+	/** Binary output. Null if not used. */
+	private DataOutputStream binOut = null;
+
+	/** Ring buffer. */
+	private final Slot[] ring;
+
+	/** Number of slots published by the sampling thread. */
+	private long head = 0;
+
+	/** Number of slots processed by the background thread. */
+	private long tail = 0;
+
+	/** Lock guarding head, tail, error and closed. */
+	private final Object lock = new Object();
+
+	/** First error of the background thread. */
+	private IOException error = null;
+
+	/** True when closed. */
+	private boolean closed = false;
+
+	/** Background thread. */
+	private final Thread worker;
+
+	/** Binary format: headers waiting for the first sample. Accessed by the background thread only. */
+	private String[] pendingHeaders = null;
+
+	/** Binary format: column types. Accessed by the background thread only. */
+	private byte[] columnTypes = null;
+
+	/** Samples since last flush. Accessed by the background thread only. */
+	private int noOfUnflushedSamples = 0;
+
+	/**
+	 * Constructor. Samples text to standard out, flushing after each line.
+	 */
+	public AsyncSampleWriter() {
+		this.format = Format.TEXT;
+		this.file = null;
+		this.flushFactor = 1;
+		this.raw = new BufferedOutputStream(System.out, SampleWriter.DEFAULT_BUFFER_SIZE);
+		this.ring = createRing(DEFAULT_CAPACITY);
+		this.openLayers();
+		this.worker = this.startWorker();
+	}
+
+	/**
+	 * Constructor.
+	 * @param f the file to write to.
+	 * @param format the output format.
+	 * @param flushFactor governs how often the output is flushed (in number of samples).
+	 * @param append true to append to an existing file, e.g. when resuming a run; false to overwrite.
+	 * @throws IOException if output stream cannot be connected to f.
+	 */
+	public AsyncSampleWriter(File f, Format format, int flushFactor, boolean append) throws IOException {
+		this.format = format;
+		this.file = f;
+		this.flushFactor = flushFactor;
+		this.raw = new BufferedOutputStream(new FileOutputStream(f, append), SampleWriter.DEFAULT_BUFFER_SIZE);
+		this.ring = createRing(DEFAULT_CAPACITY);
+		this.openLayers();
+		if (format == Format.BINARY && !append) {
+			this.binOut.writeUTF(BINARY_ID);
+			this.binOut.writeInt(BINARY_VERSION);
+		}
+		this.worker = this.startWorker();
+	}
+
+	/**
+	 * Creates the ring buffer.
+	 * @param capacity number of slots.
+	 * @return the ring buffer.
+	 */
+	private static Slot[] createRing(int capacity) {
+		Slot[] ring = new Slot[capacity];
+		for (int i = 0; i < capacity; ++i) {
+			ring[i] = new Slot();
+		}
+		return ring;
+	}
+
+	/**
+	 * Opens the format specific streams on top of the underlying stream.
+	 */
+	private void openLayers() {
+		try {
+			switch (this.format) {
+			case TEXT:
+				this.textOut = new BufferedWriter(new OutputStreamWriter(this.raw));
+				break;
+			case GZIP:
+				this.gzip = new GZIPOutputStream(this.raw, 65536);
+				this.textOut = new BufferedWriter(new OutputStreamWriter(this.gzip));
+				break;
+			case BINARY:
+				this.binOut = new DataOutputStream(this.raw);
+				break;
+			}
+		} catch (IOException ex) {
+			// Only the gzip header is written to the buffered stream.
+			throw new RuntimeException("Could not open gzip stream.", ex);
+		}
+	}
+
+	/**
+	 * Starts the background thread.
+	 * @return the thread.
+	 */
+	private Thread startWorker() {
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				consume();
+			}
+		}, "AsyncSampleWriter");
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	/**
+	 * Sets the delimiter between parameters of the text formats.
+	 * @param delim the delimiter.
+	 */
+	public void setDelim(String delim) {
+		if (delim == null) {
+			throw new IllegalArgumentException("Cannot sample with null as delimiter.");
+		}
+		this.delim = delim;
+	}
+
+	/**
+	 * Returns the delimiter output between parameters of the text formats.
+	 * @return the delimiter.
+	 */
+	public String getDelim() {
+		return this.delim;
+	}
+
+	/**
+	 * Returns the output format.
+	 * @return the format.
+	 */
+	public Format getFormat() {
+		return this.format;
+	}
+
+	@Override
+	public void writeSampleHeader(List<Sampleable> sampleables) throws IOException {
+		if (sampleables.isEmpty()) { return; }
+		String[] headers = new String[sampleables.size()];
+		for (int i = 0; i < headers.length; ++i) {
+			headers[i] = sampleables.get(i).getSampleHeader();
+		}
+		Slot s = this.acquire();
+		s.kind = HEADER;
+		s.headers = headers;
+		this.publish();
+	}
+
+	@Override
+	public void writeSample(List<Sampleable> sampleables, Sampleable.SamplingMode mode) throws IOException {
+		Slot s = this.acquire();
+		s.kind = SAMPLE;
+		s.values = SampleSnapshots.capture(sampleables, s.values, mode);
+		this.publish();
+	}
+
+	@Override
+	public void writeString(String str) throws IOException {
+		Slot s = this.acquire();
+		s.kind = STRING;
+		s.str = str;
+		this.publish();
+	}
+
+	@Override
+	public String getSampleHeader(List<Sampleable> sampleables) {
+		int sz = sampleables.size();
+		if (sz == 0) { return ""; }
+		StringBuilder sb = new StringBuilder(sz * 32);
+		for (int i = 0; i < sz - 1; ++i) {
+			sb.append(sampleables.get(i).getSampleHeader());
+			sb.append(this.delim);
+		}
+		sb.append(sampleables.get(sz - 1).getSampleHeader());
+		return sb.toString();
+	}
+
+	@Override
+	public String getSample(List<Sampleable> sampleables, Sampleable.SamplingMode mode) {
+		int sz = sampleables.size();
+		if (sz == 0) { return ""; }
+		StringBuilder sb = new StringBuilder(sz * 32);
+		for (int i = 0; i < sz - 1; ++i) {
+			sb.append(sampleables.get(i).getSampleValue(mode));
+			sb.append(this.delim);
+		}
+		sb.append(sampleables.get(sz - 1).getSampleValue(mode));
+		return sb.toString();
+	}
+
+	@Override
+	public String getSample(SampleSnapshot[] sample) {
+		return SampleSnapshots.toString(sample, this.delim);
+	}
+
+	/**
+	 * Waits until all pending output has been written, and flushes the output stream.
+	 * @throws IOException if the output failed.
+	 */
+	@Override
+	public void flush() throws IOException {
+		this.sync(SYNC);
+	}
+
+	/**
+	 * Writes all pending output, stops the background thread and closes the output stream.
+	 * @throws IOException if the output failed.
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this.lock) {
+			if (this.closed) { return; }
+			this.closed = true;
+			this.lock.notifyAll();
+		}
+		try {
+			this.worker.join();
+		} catch (InterruptedException ex) {
+			throw new InterruptedIOException("Interrupted while closing sample output.");
+		}
+		if (this.textOut != null) {
+			this.textOut.close();
+		} else {
+			this.binOut.close();
+		}
+		this.checkError();
+	}
+
+	/**
+	 * Writes all pending output and the current length of the output file, or -1 if not sampling to a file.
+	 * For the GZIP format, the current gzip member is finished, so that the file is valid
+	 * if truncated to this length.
+	 * @param out the checkpoint stream.
+	 * @throws IOException if unable to write.
+	 */
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		this.sync(SYNC_MEMBER);
+		out.writeLong(this.file == null ? -1 : this.file.length());
+	}
+
+	/**
+	 * Truncates the output file to the length it had when the checkpoint was written,
+	 * thus discarding samples output after the checkpoint. The file must have been opened for appending.
+	 * @param in the checkpoint stream.
+	 * @throws IOException if unable to read or truncate.
+	 */
+	@Override
+	public void readState(DataInput in) throws IOException {
+		long len = in.readLong();
+		if (this.file != null && len >= 0) {
+			this.sync(SYNC_MEMBER);
+			if (this.file.length() < len) {
+				throw new IOException("Sample file " + this.file + " is shorter than at the time of the checkpoint.");
+			}
+			RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+			try {
+				raf.setLength(len);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Enqueues a synchronisation slot and waits until it has been processed.
+	 * @param kind SYNC or SYNC_MEMBER.
+	 * @throws IOException if the output failed.
+	 */
+	private void sync(int kind) throws IOException {
+		Slot s = this.acquire();
+		s.kind = kind;
+		this.publish();
+		synchronized (this.lock) {
+			while (this.tail != this.head && this.error == null) {
+				try {
+					this.lock.wait();
+				} catch (InterruptedException ex) {
+					throw new InterruptedIOException("Interrupted while waiting for sample output.");
+				}
+			}
+			this.checkError();
+		}
+	}
+
+	/**
+	 * Waits for a free slot of the ring buffer. The slot is not published until <code>publish()</code> is invoked.
+	 * @return the slot.
+	 * @throws IOException if the output failed or the writer is closed.
+	 */
+	private Slot acquire() throws IOException {
+		synchronized (this.lock) {
+			if (this.closed) {
+				throw new IOException("Cannot sample to closed sample writer.");
+			}
+			while (this.head - this.tail == this.ring.length && this.error == null) {
+				try {
+					this.lock.wait();
+				} catch (InterruptedException ex) {
+					throw new InterruptedIOException("Interrupted while waiting for sample output.");
+				}
+			}
+			this.checkError();
+			return this.ring[(int) (this.head % this.ring.length)];
+		}
+	}
+
+	/**
+	 * Hands over the acquired slot to the background thread.
+	 */
+	private void publish() {
+		synchronized (this.lock) {
+			this.head++;
+			this.lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Throws the error of the background thread, if any.
+	 * @throws IOException the error.
+	 */
+	private void checkError() throws IOException {
+		synchronized (this.lock) {
+			if (this.error != null) {
+				throw new IOException("Sample output failed: " + this.error.getMessage(), this.error);
+			}
+		}
+	}
+
+	/**
+	 * Main loop of the background thread. After an error, remaining slots are discarded.
+	 */
+	private void consume() {
+		while (true) {
+			Slot s;
+			boolean failed;
+			synchronized (this.lock) {
+				while (this.tail == this.head && !this.closed) {
+					try {
+						this.lock.wait();
+					} catch (InterruptedException ex) {
+						this.error = new InterruptedIOException("Sample output thread was interrupted.");
+						this.lock.notifyAll();
+						return;
+					}
+				}
+				if (this.tail == this.head) {
+					break;
+				}
+				s = this.ring[(int) (this.tail % this.ring.length)];
+				failed = (this.error != null);
+			}
+			if (!failed) {
+				try {
+					this.process(s);
+				} catch (IOException ex) {
+					synchronized (this.lock) {
+						this.error = ex;
+					}
+				} catch (RuntimeException ex) {
+					synchronized (this.lock) {
+						this.error = new IOException(ex.getMessage(), ex);
+					}
+				}
+			}
+			synchronized (this.lock) {
+				this.tail++;
+				this.lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Formats and writes a slot. Invoked by the background thread.
+	 * @param s the slot.
+	 * @throws IOException if unable to write.
+	 */
+	private void process(Slot s) throws IOException {
+		switch (s.kind) {
+		case HEADER:
+			if (this.binOut != null) {
+				this.pendingHeaders = s.headers;
+			} else {
+				this.writeTextLine(s.headers);
+			}
+			break;
+		case SAMPLE:
+			if (this.binOut != null) {
+				this.writeBinarySample(s.values);
+			} else {
+				for (int i = 0; i < s.values.length; ++i) {
+					if (i > 0) {
+						this.textOut.write(this.delim);
+					}
+					this.textOut.write(s.values[i].getSampleValue());
+				}
+				this.textOut.newLine();
+			}
+			this.noOfUnflushedSamples++;
+			if (this.noOfUnflushedSamples % this.flushFactor == 0) {
+				this.flushLayers();
+			}
+			break;
+		case STRING:
+			if (this.binOut != null) {
+				this.binOut.writeByte('T');
+				SampleSnapshots.writeString(this.binOut, s.str);
+			} else {
+				this.textOut.write(s.str);
+			}
+			s.str = null;
+			break;
+		case SYNC:
+			this.flushLayers();
+			break;
+		case SYNC_MEMBER:
+			if (this.gzip != null) {
+				this.textOut.flush();
+				this.gzip.finish();
+				this.raw.flush();
+				this.openLayers();
+			} else {
+				this.flushLayers();
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Writes a line of the text formats.
+	 * @param values the values.
+	 * @throws IOException if unable to write.
+	 */
+	private void writeTextLine(String[] values) throws IOException {
+		for (int i = 0; i < values.length; ++i) {
+			if (i > 0) {
+				this.textOut.write(this.delim);
+			}
+			this.textOut.write(values[i]);
+		}
+		this.textOut.newLine();
+	}
+
+	/**
+	 * Writes a sample of the binary format, preceded by the column headers if they have not been written yet.
+	 * @param values the sample.
+	 * @throws IOException if unable to write.
+	 */
+	private void writeBinarySample(SampleSnapshot[] values) throws IOException {
+		if (this.pendingHeaders != null) {
+			if (this.pendingHeaders.length != values.length) {
+				throw new IOException("Number of sample columns does not match header.");
+			}
+			this.binOut.writeByte('H');
+			this.binOut.writeInt(values.length);
+			this.columnTypes = new byte[values.length];
+			for (int i = 0; i < values.length; ++i) {
+				this.columnTypes[i] = values[i].getBinaryType();
+				SampleSnapshots.writeString(this.binOut, this.pendingHeaders[i]);
+				this.binOut.writeByte(this.columnTypes[i]);
+				values[i].writeBinaryHeader(this.binOut);
+			}
+			this.pendingHeaders = null;
+		}
+		this.binOut.writeByte('S');
+		for (int i = 0; i < values.length; ++i) {
+			if (this.columnTypes != null && this.columnTypes[i] != values[i].getBinaryType()) {
+				throw new IOException("Type of sample column " + i + " has changed.");
+			}
+			values[i].writeBinary(this.binOut);
+		}
+	}
+
+	/**
+	 * Flushes all layers down to the underlying stream.
+	 * @throws IOException if unable to flush.
+	 */
+	private void flushLayers() throws IOException {
+		if (this.textOut != null) {
+			this.textOut.flush();
+		} else {
+			this.binOut.flush();
+		}
+		this.raw.flush();
+		this.noOfUnflushedSamples = 0;
+	}
+
+	/**
+	 * Ring buffer slot. Reused, including its snapshots.
+	 */
+	private static final class Slot {
+
+		/** Kind of slot. */
+		int kind;
+
+		/** Snapshots of a sample. */
+		SampleSnapshot[] values;
+
+		/** String to output. */
+		String str;
+
+		/** Column headers. */
+		String[] headers;
+	}
+}
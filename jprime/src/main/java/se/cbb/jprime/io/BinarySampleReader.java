@@ -0,0 +1,164 @@
+package se.cbb.jprime.io;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Reader of samples written by <code>AsyncSampleWriter</code> in the binary format.
+ * Samples are returned formatted exactly as in the text format.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class BinarySampleReader {
+
+	/** Input stream. */
+	private DataInputStream in;
+
+	/** Column headers. Null until read. */
+	private String[] headers = null;
+
+	/** Column snapshots, reused between samples. Null until read. */
+	private SampleSnapshot[] columns = null;
+
+	/** Last string record, if any. */
+	private String lastString = null;
+
+	/**
+	 * Constructor.
+	 * @param f the binary sample file.
+	 * @throws IOException if unable to read f or if f is not a binary sample file.
+	 */
+	public BinarySampleReader(File f) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), SampleWriter.DEFAULT_BUFFER_SIZE));
+		if (!AsyncSampleWriter.BINARY_ID.equals(this.in.readUTF())) {
+			this.in.close();
+			throw new IOException("File " + f + " is not a binary sample file.");
+		}
+		int version = this.in.readInt();
+		if (version != AsyncSampleWriter.BINARY_VERSION) {
+			this.in.close();
+			throw new IOException("Unsupported binary sample file version: " + version + '.');
+		}
+	}
+
+	/**
+	 * Returns the column headers.
+	 * @return the headers; null if not encountered yet.
+	 */
+	public String[] getHeaders() {
+		return this.headers;
+	}
+
+	/**
+	 * Returns the string most recently output with <code>writeString(...)</code> prior to the last sample.
+	 * @return the string; null if none.
+	 */
+	public String getLastString() {
+		return this.lastString;
+	}
+
+	/**
+	 * Reads the next sample, skipping string records.
+	 * @return the sample values; null at end of file.
+	 * @throws IOException if unable to read.
+	 */
+	public String[] readSample() throws IOException {
+		while (true) {
+			int tag = this.readTag();
+			if (tag == -1) {
+				return null;
+			}
+			if (tag == 'S') {
+				String[] sample = new String[this.columns.length];
+				for (int i = 0; i < sample.length; ++i) {
+					sample[i] = this.columns[i].getSampleValue();
+				}
+				return sample;
+			}
+		}
+	}
+
+	/**
+	 * Converts the remainder of the file to the text format of <code>SampleWriter</code>,
+	 * including header and strings.
+	 * @param out the output.
+	 * @param delim the column delimiter.
+	 * @throws IOException if unable to read or write.
+	 */
+	public void writeText(Writer out, String delim) throws IOException {
+		int tag;
+		while ((tag = this.readTag()) != -1) {
+			String[] line;
+			if (tag == 'T') {
+				out.write(this.lastString);
+				continue;
+			} else if (tag == 'H') {
+				line = this.headers;
+			} else {
+				line = new String[this.columns.length];
+				for (int i = 0; i < line.length; ++i) {
+					line[i] = this.columns[i].getSampleValue();
+				}
+			}
+			for (int i = 0; i < line.length; ++i) {
+				if (i > 0) {
+					out.write(delim);
+				}
+				out.write(line[i]);
+			}
+			out.write('\n');
+		}
+	}
+
+	/**
+	 * Closes the input.
+	 * @throws IOException if unable to close.
+	 */
+	public void close() throws IOException {
+		this.in.close();
+	}
+
+	/**
+	 * Reads the next record.
+	 * @return the tag ('H', 'S' or 'T'); -1 at end of file.
+	 * @throws IOException if unable to read.
+	 */
+	private int readTag() throws IOException {
+		int tag;
+		try {
+			tag = this.in.readUnsignedByte();
+		} catch (EOFException ex) {
+			return -1;
+		}
+		switch (tag) {
+		case 'H':
+			int n = this.in.readInt();
+			this.headers = new String[n];
+			this.columns = new SampleSnapshot[n];
+			for (int i = 0; i < n; ++i) {
+				this.headers[i] = SampleSnapshots.readString(this.in);
+				this.columns[i] = SampleSnapshots.readBinaryHeader(this.in.readByte(), this.in);
+			}
+			break;
+		case 'S':
+			if (this.columns == null) {
+				throw new IOException("Binary sample file lacks header.");
+			}
+			for (SampleSnapshot col : this.columns) {
+				col.readBinary(this.in);
+			}
+			break;
+		case 'T':
+			this.lastString = SampleSnapshots.readString(this.in);
+			break;
+		default:
+			throw new IOException("Corrupt binary sample file: unknown record tag " + tag + '.');
+		}
+		return tag;
+	}
+}
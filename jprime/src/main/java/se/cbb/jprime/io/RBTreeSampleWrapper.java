@@ -1,15 +1,21 @@
 package se.cbb.jprime.io;
 
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import se.cbb.jprime.mcmc.CladeSource;
 import se.cbb.jprime.topology.DoubleMap;
 import se.cbb.jprime.topology.NamesMap;
 import se.cbb.jprime.topology.RBTree;
 
 /**
  * Wrapper for combining a RBTree with names and possibly lengths into Newick output.
+ * Also lists the clades of the tree by leaf names, e.g. for convergence diagnostics.
  * 
  * @author Joel Sjöstrand.
  */
-public class RBTreeSampleWrapper implements Sampleable {
+public class RBTreeSampleWrapper implements SnapshotSampleable, CladeSource {
 
 	/** Tree. */
 	private RBTree tree;
@@ -20,6 +26,9 @@ public class RBTreeSampleWrapper implements Sampleable {
 	/** Tree's branch lengths. */
 	private DoubleMap lengths;
 	
+	/** Leaf sets of the vertices, reused when listing clades. */
+	private BitSet[] leafSets = null;
+	
 	/**
 	 * Constructor.
 	 * @param tree the tree.
@@ -63,4 +72,49 @@ public class RBTreeSampleWrapper implements Sampleable {
 		}
 	}
 
+	@Override
+	public SampleSnapshot getSampleSnapshot(SampleSnapshot reuse, SamplingMode mode) {
+		return SampleSnapshots.ofTree(reuse, this.tree, this.names, this.lengths);
+	}
+
+	@Override
+	public void getClades(Map<String, Integer> leafIndices, List<BitSet> clades) {
+		int n = this.tree.getNoOfVertices();
+		if (this.leafSets == null || this.leafSets.length != n) {
+			this.leafSets = new BitSet[n];
+			for (int x = 0; x < n; ++x) {
+				this.leafSets[x] = new BitSet();
+			}
+		}
+		this.addClades(this.tree.getRoot(), leafIndices, clades);
+	}
+	
+	/**
+	 * Recursively computes the leaf set of a vertex and adds the clades of its subtree.
+	 * @param x the vertex.
+	 * @param leafIndices index of each leaf name. Unseen names are added.
+	 * @param clades list to which clades are added.
+	 * @return the leaf set of the vertex.
+	 */
+	private BitSet addClades(int x, Map<String, Integer> leafIndices, List<BitSet> clades) {
+		BitSet s = this.leafSets[x];
+		s.clear();
+		if (this.tree.isLeaf(x)) {
+			String name = this.names.get(x);
+			Integer idx = leafIndices.get(name);
+			if (idx == null) {
+				idx = leafIndices.size();
+				leafIndices.put(name, idx);
+			}
+			s.set(idx);
+		} else {
+			s.or(this.addClades(this.tree.getLeftChild(x), leafIndices, clades));
+			s.or(this.addClades(this.tree.getRightChild(x), leafIndices, clades));
+			if (!this.tree.isRoot(x)) {
+				clades.add(s);
+			}
+		}
+		return s;
+	}
+
 }
@@ -2,7 +2,7 @@ package se.cbb.jprime.io;
 
 import java.util.Arrays;
 
-import se.cbb.jprime.math.LogDouble;
+import se.cbb.jprime.math.LogDoubleArray;
 
 /**
  * Sample type for arrays of double arrays.
@@ -43,16 +43,17 @@ public class SampleDoubleArrayArray implements SampleType {
 	}
 	
 	/**
-	 * Converts an array of LogDouble arrays to a string thus "[[4.4, 5.5, 1.0E-13], [-2.0E-34, 7.99E23, -5.0E56]]".
-	 * @param daa the LogDouble array array.
+	 * Converts an array of log-space arrays to a string thus "[[4.4, 5.5, 1.0E-13], [-2.0E-34, 7.99E23, -5.0E56]]",
+	 * where each element is printed as its log-value.
+	 * @param daa the log-space array array.
 	 * @return the string.
 	 */
-	public static String toString(LogDouble[][] daa) {
+	public static String toString(LogDoubleArray[] daa) {
 		if (daa == null) { return "null"; }
-		StringBuilder sb = new StringBuilder(daa.length * (daa[0] == null ? 32 : daa[0].length * 10));
+		StringBuilder sb = new StringBuilder(daa.length * (daa[0] == null ? 32 : daa[0].length() * 10));
 		sb.append("[");
-		for (LogDouble[] da : daa) {
-			sb.append(Arrays.toString(da)).append(", ");
+		for (LogDoubleArray da : daa) {
+			sb.append(da).append(", ");
 		}
 		sb.setCharAt(sb.length() - 2, ']');         // Replace last comma.
 		return sb.substring(0, sb.length() - 1);    // Get rid of last space.
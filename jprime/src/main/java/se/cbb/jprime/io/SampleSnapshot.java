@@ -0,0 +1,53 @@
+package se.cbb.jprime.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Copy of the current value of a <code>SnapshotSampleable</code>, taken when a sample is drawn,
+ * which is formatted or serialised at a later stage, typically by the background thread of an
+ * <code>AsyncSampleWriter</code>. A snapshot may therefore not refer to any mutable state of
+ * the originating object. Snapshots are reused between samples to avoid allocation.
+ * <p/>
+ * Implementations for the common sample types are found in <code>SampleSnapshots</code>.
+ * 
+ * @author Joel Sjöstrand.
+ */
+public interface SampleSnapshot {
+
+	/**
+	 * Returns the column type identifier of the binary sample format, see <code>SampleSnapshots</code>.
+	 * @return the type identifier.
+	 */
+	public byte getBinaryType();
+	
+	/**
+	 * Returns the snapshot value formatted exactly as <code>Sampleable.getSampleValue(...)</code>
+	 * of the originating object would have done at the time of the snapshot.
+	 * @return the value.
+	 */
+	public String getSampleValue();
+	
+	/**
+	 * Writes column meta-data which is invariant over all samples (e.g. leaf names of a tree)
+	 * to the header of a binary sample file.
+	 * @param out the output stream.
+	 * @throws IOException if unable to write.
+	 */
+	public void writeBinaryHeader(DataOutput out) throws IOException;
+	
+	/**
+	 * Writes the snapshot value in binary form.
+	 * @param out the output stream.
+	 * @throws IOException if unable to write.
+	 */
+	public void writeBinary(DataOutput out) throws IOException;
+	
+	/**
+	 * Overwrites the snapshot value with one previously written by <code>writeBinary(...)</code>.
+	 * @param in the input stream.
+	 * @throws IOException if unable to read.
+	 */
+	public void readBinary(DataInput in) throws IOException;
+}
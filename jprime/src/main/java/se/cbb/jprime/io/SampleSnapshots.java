@@ -0,0 +1,497 @@
+package se.cbb.jprime.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import se.cbb.jprime.math.LogDouble;
+import se.cbb.jprime.topology.DoubleMap;
+import se.cbb.jprime.topology.NamesMap;
+import se.cbb.jprime.topology.RBTree;
+
+/**
+ * Snapshot implementations for the common sample types, along with factory methods
+ * which reuse a previous snapshot whenever possible. The binary representation of each type is:
+ * <ul>
+ * <li>DOUBLE: the value as a double.</li>
+ * <li>INT: the value as an int.</li>
+ * <li>LOG_DOUBLE: the sign as a byte, followed by the log-value as a double.</li>
+ * <li>STRING: the length in bytes as an int, followed by the UTF-8 bytes.</li>
+ * <li>NEWICK_TREE: the topology as written by <code>RBTree.writeState(...)</code>, followed by
+ *     the branch lengths as written by <code>DoubleMap.writeState(...)</code> if applicable.
+ *     The number of vertices, presence of lengths and vertex names are written to the header.</li>
+ * <li>DOUBLE_ARRAY: the values as doubles. The length is written to the header.</li>
+ * </ul>
+ *
+ * @author Joel Sjöstrand.
+ */
+public final class SampleSnapshots {
+
+	/** Binary type of double values. */
+	public static final byte DOUBLE = 1;
+
+	/** Binary type of integer values. */
+	public static final byte INT = 2;
+
+	/** Binary type of log-doubles. */
+	public static final byte LOG_DOUBLE = 3;
+
+	/** Binary type of preformatted strings. */
+	public static final byte STRING = 4;
+
+	/** Binary type of trees, possibly with branch lengths. */
+	public static final byte NEWICK_TREE = 5;
+
+	/** Binary type of fixed-length double arrays. */
+	public static final byte DOUBLE_ARRAY = 6;
+
+	/** Charset of binary strings. */
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Prevents instantiation.
+	 */
+	private SampleSnapshots() {
+	}
+
+	/**
+	 * Returns a snapshot of a double value.
+	 * @param reuse previous snapshot; may be null.
+	 * @param value the value.
+	 * @return the snapshot.
+	 */
+	public static SampleSnapshot ofDouble(SampleSnapshot reuse, double value) {
+		DoubleSnapshot s = (reuse instanceof DoubleSnapshot ? (DoubleSnapshot) reuse : new DoubleSnapshot());
+		s.value = value;
+		return s;
+	}
+
+	/**
+	 * Returns a snapshot of an integer value.
+	 * @param reuse previous snapshot; may be null.
+	 * @param value the value.
+	 * @return the snapshot.
+	 */
+	public static SampleSnapshot ofInt(SampleSnapshot reuse, int value) {
+		IntSnapshot s = (reuse instanceof IntSnapshot ? (IntSnapshot) reuse : new IntSnapshot());
+		s.value = value;
+		return s;
+	}
+
+	/**
+	 * Returns a snapshot of a log-double.
+	 * @param reuse previous snapshot; may be null.
+	 * @param value the value.
+	 * @return the snapshot.
+	 */
+	public static SampleSnapshot ofLogDouble(SampleSnapshot reuse, LogDouble value) {
+		LogDoubleSnapshot s = (reuse instanceof LogDoubleSnapshot ? (LogDoubleSnapshot) reuse : new LogDoubleSnapshot());
+		s.logValue = value.getLogValue();
+		s.sign = value.getSign();
+		return s;
+	}
+
+	/**
+	 * Returns a snapshot of an already formatted value.
+	 * @param reuse previous snapshot; may be null.
+	 * @param value the value.
+	 * @return the snapshot.
+	 */
+	public static SampleSnapshot ofString(SampleSnapshot reuse, String value) {
+		StringSnapshot s = (reuse instanceof StringSnapshot ? (StringSnapshot) reuse : new StringSnapshot());
+		s.value = value;
+		return s;
+	}
+
+	/**
+	 * Returns a snapshot of a double array, formatted as by <code>SampleDoubleArray.toString(...)</code>.
+	 * @param reuse previous snapshot; may be null.
+	 * @param values the values, which are copied.
+	 * @return the snapshot.
+	 */
+	public static SampleSnapshot ofDoubleArray(SampleSnapshot reuse, double[] values) {
+		DoubleArraySnapshot s = (reuse instanceof DoubleArraySnapshot && ((DoubleArraySnapshot) reuse).values.length == values.length ?
+				(DoubleArraySnapshot) reuse : new DoubleArraySnapshot(new double[values.length]));
+		System.arraycopy(values, 0, s.values, 0, values.length);
+		return s;
+	}
+
+	/**
+	 * Returns a snapshot of a tree, formatted as by <code>SampleNewickTree.toString(...)</code>.
+	 * The names map is assumed to be constant and is not copied.
+	 * @param reuse previous snapshot; may be null.
+	 * @param tree the tree.
+	 * @param names the vertex names.
+	 * @param lengths the branch lengths; null if not included.
+	 * @return the snapshot.
+	 */
+	public static SampleSnapshot ofTree(SampleSnapshot reuse, RBTree tree, NamesMap names, DoubleMap lengths) {
+		if (reuse instanceof TreeSnapshot) {
+			TreeSnapshot s = (TreeSnapshot) reuse;
+			if (s.names == names && s.tree.getNoOfVertices() == tree.getNoOfVertices() && (s.lengths == null) == (lengths == null)) {
+				s.tree.copyTopology(tree);
+				if (lengths != null) {
+					for (int x = 0; x < lengths.getSize(); ++x) {
+						s.lengths.set(x, lengths.get(x));
+					}
+				}
+				return s;
+			}
+		}
+		return new TreeSnapshot(new RBTree(tree), names, lengths == null ? null : new DoubleMap(lengths));
+	}
+
+	/**
+	 * Captures snapshots of the current values of sampleables. For sampleables which do not implement
+	 * <code>SnapshotSampleable</code>, the ordinary string value is stored.
+	 * @param sampleables the objects to sample from.
+	 * @param reuse previous snapshots of the same sampleables; may be null.
+	 * @param mode sampling mode.
+	 * @return the snapshots, <code>reuse</code> if possible.
+	 */
+	public static SampleSnapshot[] capture(List<Sampleable> sampleables, SampleSnapshot[] reuse, Sampleable.SamplingMode mode) {
+		int n = sampleables.size();
+		SampleSnapshot[] sample = (reuse != null && reuse.length == n ? reuse : new SampleSnapshot[n]);
+		for (int i = 0; i < n; ++i) {
+			Sampleable o = sampleables.get(i);
+			if (o instanceof SnapshotSampleable) {
+				sample[i] = ((SnapshotSampleable) o).getSampleSnapshot(sample[i], mode);
+			} else {
+				sample[i] = ofString(sample[i], o.getSampleValue(mode));
+			}
+		}
+		return sample;
+	}
+
+	/**
+	 * Formats snapshots as a sample string.
+	 * @param sample the snapshots.
+	 * @param delim the delimiter.
+	 * @return the sample.
+	 */
+	public static String toString(SampleSnapshot[] sample, String delim) {
+		StringBuilder sb = new StringBuilder(sample.length * 32);
+		for (int i = 0; i < sample.length; ++i) {
+			if (i > 0) {
+				sb.append(delim);
+			}
+			sb.append(sample[i].getSampleValue());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Creates an empty snapshot from the column meta-data of a binary sample file.
+	 * @param type the binary type.
+	 * @param in the input stream, positioned after the type.
+	 * @return the snapshot.
+	 * @throws IOException if unable to read or if the type is unknown.
+	 */
+	public static SampleSnapshot readBinaryHeader(byte type, DataInput in) throws IOException {
+		switch (type) {
+		case DOUBLE:
+			return new DoubleSnapshot();
+		case INT:
+			return new IntSnapshot();
+		case LOG_DOUBLE:
+			return new LogDoubleSnapshot();
+		case STRING:
+			return new StringSnapshot();
+		case NEWICK_TREE:
+			int n = in.readInt();
+			boolean hasLengths = in.readBoolean();
+			String[] names = new String[n];
+			for (int x = 0; x < n; ++x) {
+				String name = readString(in);
+				names[x] = (name.length() == 0 ? null : name);
+			}
+			return new TreeSnapshot(new RBTree("Tree", (n + 1) / 2), new NamesMap("Names", names),
+					hasLengths ? new DoubleMap("Lengths", n) : null);
+		case DOUBLE_ARRAY:
+			return new DoubleArraySnapshot(new double[in.readInt()]);
+		default:
+			throw new IOException("Unknown binary sample type: " + type + '.');
+		}
+	}
+
+	/**
+	 * Writes a string as its length in bytes followed by the UTF-8 bytes.
+	 * Unlike <code>DataOutput.writeUTF(...)</code>, there is no 64 kB limit.
+	 * @param out the output stream.
+	 * @param s the string.
+	 * @throws IOException if unable to write.
+	 */
+	public static void writeString(DataOutput out, String s) throws IOException {
+		byte[] bytes = s.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by <code>writeString(...)</code>.
+	 * @param in the input stream.
+	 * @return the string.
+	 * @throws IOException if unable to read.
+	 */
+	public static String readString(DataInput in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Double snapshot.
+	 */
+	private static final class DoubleSnapshot implements SampleSnapshot {
+
+		/** Value. */
+		private double value;
+
+		@Override
+		public byte getBinaryType() {
+			return DOUBLE;
+		}
+
+		@Override
+		public String getSampleValue() {
+			return SampleDouble.toString(this.value);
+		}
+
+		@Override
+		public void writeBinaryHeader(DataOutput out) {
+		}
+
+		@Override
+		public void writeBinary(DataOutput out) throws IOException {
+			out.writeDouble(this.value);
+		}
+
+		@Override
+		public void readBinary(DataInput in) throws IOException {
+			this.value = in.readDouble();
+		}
+	}
+
+	/**
+	 * Integer snapshot.
+	 */
+	private static final class IntSnapshot implements SampleSnapshot {
+
+		/** Value. */
+		private int value;
+
+		@Override
+		public byte getBinaryType() {
+			return INT;
+		}
+
+		@Override
+		public String getSampleValue() {
+			return SampleInt.toString(this.value);
+		}
+
+		@Override
+		public void writeBinaryHeader(DataOutput out) {
+		}
+
+		@Override
+		public void writeBinary(DataOutput out) throws IOException {
+			out.writeInt(this.value);
+		}
+
+		@Override
+		public void readBinary(DataInput in) throws IOException {
+			this.value = in.readInt();
+		}
+	}
+
+	/**
+	 * Log-double snapshot.
+	 */
+	private static final class LogDoubleSnapshot implements SampleSnapshot {
+
+		/** Log-value. */
+		private double logValue;
+
+		/** Sign. */
+		private int sign;
+
+		@Override
+		public byte getBinaryType() {
+			return LOG_DOUBLE;
+		}
+
+		@Override
+		public String getSampleValue() {
+			return SampleLogDouble.toString(new LogDouble(this.logValue, this.sign));
+		}
+
+		@Override
+		public void writeBinaryHeader(DataOutput out) {
+		}
+
+		@Override
+		public void writeBinary(DataOutput out) throws IOException {
+			out.writeByte(this.sign);
+			out.writeDouble(this.logValue);
+		}
+
+		@Override
+		public void readBinary(DataInput in) throws IOException {
+			this.sign = in.readByte();
+			this.logValue = in.readDouble();
+		}
+	}
+
+	/**
+	 * Preformatted string snapshot.
+	 */
+	private static final class StringSnapshot implements SampleSnapshot {
+
+		/** Value. */
+		private String value;
+
+		@Override
+		public byte getBinaryType() {
+			return STRING;
+		}
+
+		@Override
+		public String getSampleValue() {
+			return this.value;
+		}
+
+		@Override
+		public void writeBinaryHeader(DataOutput out) {
+		}
+
+		@Override
+		public void writeBinary(DataOutput out) throws IOException {
+			writeString(out, this.value);
+		}
+
+		@Override
+		public void readBinary(DataInput in) throws IOException {
+			this.value = readString(in);
+		}
+	}
+
+	/**
+	 * Double array snapshot.
+	 */
+	private static final class DoubleArraySnapshot implements SampleSnapshot {
+
+		/** Values. */
+		private final double[] values;
+
+		/**
+		 * Constructor.
+		 * @param values array, owned by the snapshot.
+		 */
+		DoubleArraySnapshot(double[] values) {
+			this.values = values;
+		}
+
+		@Override
+		public byte getBinaryType() {
+			return DOUBLE_ARRAY;
+		}
+
+		@Override
+		public String getSampleValue() {
+			return SampleDoubleArray.toString(this.values);
+		}
+
+		@Override
+		public void writeBinaryHeader(DataOutput out) throws IOException {
+			out.writeInt(this.values.length);
+		}
+
+		@Override
+		public void writeBinary(DataOutput out) throws IOException {
+			for (double v : this.values) {
+				out.writeDouble(v);
+			}
+		}
+
+		@Override
+		public void readBinary(DataInput in) throws IOException {
+			for (int i = 0; i < this.values.length; ++i) {
+				this.values[i] = in.readDouble();
+			}
+		}
+	}
+
+	/**
+	 * Tree snapshot.
+	 */
+	private static final class TreeSnapshot implements SampleSnapshot {
+
+		/** Copy of topology. */
+		private final RBTree tree;
+
+		/** Vertex names. Not copied. */
+		private final NamesMap names;
+
+		/** Copy of branch lengths. Null if not included. */
+		private final DoubleMap lengths;
+
+		/**
+		 * Constructor.
+		 * @param tree tree, owned by the snapshot.
+		 * @param names vertex names.
+		 * @param lengths branch lengths, owned by the snapshot; may be null.
+		 */
+		TreeSnapshot(RBTree tree, NamesMap names, DoubleMap lengths) {
+			this.tree = tree;
+			this.names = names;
+			this.lengths = lengths;
+		}
+
+		@Override
+		public byte getBinaryType() {
+			return NEWICK_TREE;
+		}
+
+		@Override
+		public String getSampleValue() {
+			try {
+				if (this.lengths == null) {
+					return SampleNewickTree.toString(this.tree, this.names);
+				}
+				return SampleNewickTree.toString(this.tree, this.names, this.lengths);
+			} catch (NewickIOException ex) {
+				throw new RuntimeException("Could not assemble Newick tree from RBTree.");
+			}
+		}
+
+		@Override
+		public void writeBinaryHeader(DataOutput out) throws IOException {
+			int n = this.tree.getNoOfVertices();
+			out.writeInt(n);
+			out.writeBoolean(this.lengths != null);
+			for (int x = 0; x < n; ++x) {
+				String name = this.names.get(x);
+				writeString(out, name == null ? "" : name);
+			}
+		}
+
+		@Override
+		public void writeBinary(DataOutput out) throws IOException {
+			this.tree.writeState(out);
+			if (this.lengths != null) {
+				this.lengths.writeState(out);
+			}
+		}
+
+		@Override
+		public void readBinary(DataInput in) throws IOException {
+			this.tree.readState(in);
+			if (this.lengths != null) {
+				this.lengths.readState(in);
+			}
+		}
+	}
+}
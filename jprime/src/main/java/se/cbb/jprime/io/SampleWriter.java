@@ -1,12 +1,16 @@
 package se.cbb.jprime.io;
 
 import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.util.List;
 
+import se.cbb.jprime.mcmc.Checkpointable;
 
 /**
  * Ordinary MCMC sampler for sampling to a character output stream.
@@ -25,10 +29,13 @@ import java.util.List;
  * </pre>
  * This may reduce file size when there are discrete parameters concentrated on
  * a small number of values (e.g. trees).
+ * <p/>
+ * When sampling to a file, the file length is included in MCMC checkpoints, so that samples
+ * output after the last checkpoint can be discarded when a run is resumed.
  * 
  * @author Joel Sjöstrand.
  */
-public class SampleWriter implements Sampler {
+public class SampleWriter implements Sampler, Checkpointable {
 
 	/** Default delimiter. */
 	public static final String DEFAULT_DELIM = "\t";
@@ -39,6 +46,9 @@ public class SampleWriter implements Sampler {
 	/** Output stream. */
 	private BufferedWriter out;
 	
+	/** Output file. Null if not sampling to a file. */
+	private File file = null;
+	
 	/** Governs how often automatic sampling is performed. */
 	private int flushFactor;
 	
@@ -81,7 +91,19 @@ public class SampleWriter implements Sampler {
 	 * @throws IOException if output stream cannot be connected to f.
 	 */
 	public SampleWriter(File f, int flushFactor) throws IOException {
-		this(new BufferedWriter(new FileWriter(f), DEFAULT_BUFFER_SIZE), flushFactor);
+		this(f, flushFactor, false);
+	}
+	
+	/**
+	 * Constructor. Uses the default encoding and a fairly high default buffer size.
+	 * @param f the file to write to.
+	 * @param flushFactor governs how often automatic sampling is performed.
+	 * @param append true to append to an existing file, e.g. when resuming a run; false to overwrite.
+	 * @throws IOException if output stream cannot be connected to f.
+	 */
+	public SampleWriter(File f, int flushFactor, boolean append) throws IOException {
+		this(new BufferedWriter(new FileWriter(f, append), DEFAULT_BUFFER_SIZE), flushFactor);
+		this.file = f;
 	}
 	
 	/**
@@ -93,6 +115,7 @@ public class SampleWriter implements Sampler {
 	 */
 	public SampleWriter(File f, int bufferSz, int flushFactor) throws IOException {
 		this(new BufferedWriter(new FileWriter(f), bufferSz), flushFactor);
+		this.file = f;
 	}
 
 	/**
@@ -168,6 +191,7 @@ public class SampleWriter implements Sampler {
 	 * Flushes the underlying output stream.
 	 * @throws IOException.
 	 */
+	@Override
 	public void flush() throws IOException {
 		this.out.flush();
 	}
@@ -176,6 +200,7 @@ public class SampleWriter implements Sampler {
 	 * Closes the underlying output stream, flushing it first.
 	 * @throws IOException.
 	 */
+	@Override
 	public void close() throws IOException {
 		this.out.close();
 	}
@@ -241,6 +266,11 @@ public class SampleWriter implements Sampler {
 		return sb.toString();
 	}
 
+	@Override
+	public String getSample(SampleSnapshot[] sample) {
+		return SampleSnapshots.toString(sample, this.delim);
+	}
+
 	@Override
 	public void writeString(String str) throws IOException {
 		this.out.write(str);
@@ -248,5 +278,41 @@ public class SampleWriter implements Sampler {
 		// We flush immediately.
 		this.out.flush();
 	}
+	
+	/**
+	 * Flushes the output and writes the current length of the output file, or -1 if not sampling to a file.
+	 * @param out the checkpoint stream.
+	 * @throws IOException if unable to write.
+	 */
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		this.out.flush();
+		this.noOfUnflushedSamples = 0;
+		out.writeLong(this.file == null ? -1 : this.file.length());
+	}
+	
+	/**
+	 * Truncates the output file to the length it had when the checkpoint was written,
+	 * thus discarding samples output after the checkpoint. The file must have been opened for appending.
+	 * @param in the checkpoint stream.
+	 * @throws IOException if unable to read or truncate.
+	 */
+	@Override
+	public void readState(DataInput in) throws IOException {
+		long len = in.readLong();
+		if (this.file != null && len >= 0) {
+			this.out.flush();
+			if (this.file.length() < len) {
+				throw new IOException("Sample file " + this.file + " is shorter than at the time of the checkpoint.");
+			}
+			RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+			try {
+				raf.setLength(len);
+			} finally {
+				raf.close();
+			}
+		}
+		this.lastSample = null;
+	}
 
 }
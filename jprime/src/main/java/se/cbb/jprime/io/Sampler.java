@@ -48,4 +48,23 @@ public interface Sampler {
 	 * @return the sample.
 	 */
 	public String getSample(List<Sampleable> sampleables, Sampleable.SamplingMode mode);
+	
+	/**
+	 * Returns a sample of a previously captured state, see <code>SampleSnapshots.capture(...)</code>.
+	 * @param sample the snapshots of the sampleables.
+	 * @return the sample.
+	 */
+	public String getSample(SampleSnapshot[] sample);
+	
+	/**
+	 * Flushes any buffered output.
+	 * @throws IOException.
+	 */
+	public void flush() throws IOException;
+	
+	/**
+	 * Closes the output, flushing it first.
+	 * @throws IOException.
+	 */
+	public void close() throws IOException;
 }
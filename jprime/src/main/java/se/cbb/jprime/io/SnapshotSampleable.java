@@ -0,0 +1,22 @@
+package se.cbb.jprime.io;
+
+/**
+ * Interface for sampleable objects which can copy their current value into a
+ * <code>SampleSnapshot</code>, rather than formatting it as a string immediately.
+ * This allows an <code>AsyncSampleWriter</code> to perform the, at times costly, formatting
+ * of e.g. trees on a separate thread.
+ * 
+ * @author Joel Sjöstrand.
+ */
+public interface SnapshotSampleable extends Sampleable {
+
+	/**
+	 * Copies the current value into a snapshot. Should be cheap and not format any strings.
+	 * @param reuse a snapshot previously returned by this method, which may be overwritten
+	 *        and returned; or null.
+	 * @param mode the sampling mode.
+	 * @return the snapshot.
+	 */
+	public SampleSnapshot getSampleSnapshot(SampleSnapshot reuse, SamplingMode mode);
+	
+}
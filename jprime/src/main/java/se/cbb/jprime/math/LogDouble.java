@@ -37,21 +37,7 @@ public final class LogDouble implements Comparable<LogDouble> {
 	 * @param d the actual value, i.e. non-logged.
 	 */
 	public LogDouble(double d) {
-		assert !Double.isNaN(d);
-		//assert !Double.isInfinite(d);
-
-		if (d > 0.0) {
-			this.p = Math.log(d);
-			this.sign = 1;
-		}
-		else if (d == 0.0) {
-			this.p = Double.NEGATIVE_INFINITY;      // Dummy.
-			this.sign = 0;
-		}
-		else {
-			this.p = Math.log(-d);
-			this.sign = -1;
-		}
+		this.set(d);
 	}
 	
 	/**
@@ -94,6 +80,42 @@ public final class LogDouble implements Comparable<LogDouble> {
 		}
 	}
 	
+	/**
+	 * Sets the value of this LogDouble, thus enabling reuse of instances.
+	 * @param d the actual value, i.e. non-logged.
+	 * @return this LogDouble, not a new instance.
+	 */
+	public LogDouble set(double d) {
+		assert !Double.isNaN(d);
+		//assert !Double.isInfinite(d);
+
+		if (d > 0.0) {
+			this.p = Math.log(d);
+			this.sign = 1;
+		}
+		else if (d == 0.0) {
+			this.p = Double.NEGATIVE_INFINITY;      // Dummy.
+			this.sign = 0;
+		}
+		else {
+			this.p = Math.log(-d);
+			this.sign = -1;
+		}
+		return this;
+	}
+	
+	/**
+	 * Sets the value of this LogDouble to that of another LogDouble, thus enabling reuse of instances.
+	 * @param prob the LogDouble object to copy.
+	 * @return this LogDouble, not a new instance.
+	 */
+	public LogDouble set(LogDouble prob) {
+		assert !Double.isNaN(prob.p);
+		this.p = prob.p;
+		this.sign = prob.sign;
+		return this;
+	}
+	
 	/**
 	 * Returns log(|v|) for the actual value v. If v==sign==0, the returned
 	 * value may be anything (although commonly Double.NEGATIVE_INFINITY).
@@ -275,7 +297,18 @@ public final class LogDouble implements Comparable<LogDouble> {
 	 * @return this LogDouble, not a new instance.
 	 */
 	public LogDouble mult(double q) {
-		return this.mult(new LogDouble(q));
+		assert !Double.isNaN(q);
+		if (q > 0.0) {
+			this.p = (this.sign == 0 ? 0.0 : this.p + Math.log(q));
+		} else if (q == 0.0) {
+			this.sign = 0;
+			this.p = 0.0;
+		} else {
+			this.sign = -this.sign;
+			this.p = (this.sign == 0 ? 0.0 : this.p + Math.log(-q));
+		}
+		assert !Double.isNaN(this.p);
+		return this;
 	}
 	
 	/**
@@ -322,7 +355,17 @@ public final class LogDouble implements Comparable<LogDouble> {
 	 * @return this LogDouble, not a new instance.
 	 */
 	public LogDouble div(double q) {
-		return this.div(new LogDouble(q));
+		assert !Double.isNaN(q);
+		if (q > 0.0) {
+			this.p = (this.sign == 0 ? 0.0 : this.p - Math.log(q));
+		} else if (q == 0.0) {
+			throw new ArithmeticException("Division by zero attempted in LogDouble.");
+		} else {
+			this.sign = -this.sign;
+			this.p = (this.sign == 0 ? 0.0 : this.p - Math.log(-q));
+		}
+		assert !Double.isNaN(this.p);
+		return this;
 	}
 	
 	/**
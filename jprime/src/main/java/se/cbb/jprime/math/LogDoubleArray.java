@@ -0,0 +1,195 @@
+package se.cbb.jprime.math;
+
+import java.util.Arrays;
+
+/**
+ * Array of non-negative floating point numbers where the values are kept in log-form
+ * internally, i.e., a primitive counterpart of <code>LogDouble[]</code>. It is intended
+ * for dynamic programming tables of probabilities, where creating a <code>LogDouble</code>
+ * object per cell and iteration is a considerable source of garbage. An actual value of 0
+ * is stored as Double.NEGATIVE_INFINITY. Negative values are not supported.
+ * <p/>
+ * Sums are accumulated in-place using log-sum-exp, and products amount to adding
+ * log-values. Both work correctly with values of 0.
+ *
+ * @author Joel Sjöstrand.
+ */
+public final class LogDoubleArray {
+
+	/** Log-values. */
+	private final double[] logs;
+
+	/**
+	 * Constructor. Sets all values to 0.
+	 * @param length the length of the array.
+	 */
+	public LogDoubleArray(int length) {
+		this.logs = new double[length];
+		Arrays.fill(this.logs, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * Copy constructor.
+	 * @param arr the array to copy.
+	 */
+	public LogDoubleArray(LogDoubleArray arr) {
+		this.logs = new double[arr.logs.length];
+		System.arraycopy(arr.logs, 0, this.logs, 0, arr.logs.length);
+	}
+
+	/**
+	 * Returns the length of the array.
+	 * @return the length.
+	 */
+	public int length() {
+		return this.logs.length;
+	}
+
+	/**
+	 * Returns log(v) for an element v. If v==0, Double.NEGATIVE_INFINITY is returned.
+	 * @param i the index.
+	 * @return the log-value.
+	 */
+	public double getLog(int i) {
+		return this.logs[i];
+	}
+
+	/**
+	 * Returns the actual value (non-logged) of an element. Small values may be rounded to 0.
+	 * @param i the index.
+	 * @return the actual value.
+	 */
+	public double getValue(int i) {
+		return Math.exp(this.logs[i]);
+	}
+
+	/**
+	 * Returns an element as a new <code>LogDouble</code>.
+	 * @param i the index.
+	 * @return the value.
+	 */
+	public LogDouble get(int i) {
+		double l = this.logs[i];
+		return (l == Double.NEGATIVE_INFINITY ? new LogDouble() : new LogDouble(l, 1));
+	}
+
+	/**
+	 * Sets an element from a log-value. Double.NEGATIVE_INFINITY corresponds to 0.
+	 * @param i the index.
+	 * @param logValue the log-value.
+	 */
+	public void setLog(int i, double logValue) {
+		this.logs[i] = logValue;
+	}
+
+	/**
+	 * Sets an element from an actual (non-logged) value.
+	 * @param i the index.
+	 * @param value the value, non-negative.
+	 */
+	public void set(int i, double value) {
+		assert value >= 0.0;
+		this.logs[i] = Math.log(value);
+	}
+
+	/**
+	 * Sets an element from a <code>LogDouble</code>.
+	 * @param i the index.
+	 * @param value the value, non-negative.
+	 */
+	public void set(int i, LogDouble value) {
+		assert value.getSign() >= 0;
+		this.logs[i] = (value.isZero() ? Double.NEGATIVE_INFINITY : value.getLogValue());
+	}
+
+	/**
+	 * Sets an element to 0.
+	 * @param i the index.
+	 */
+	public void setZero(int i) {
+		this.logs[i] = Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Sets all elements to 0.
+	 */
+	public void setZero() {
+		Arrays.fill(this.logs, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * Adds a value in log-form to an element in-place, i.e., v_i := v_i + exp(logValue).
+	 * @param i the index.
+	 * @param logValue the log-value of the term.
+	 */
+	public void addLog(int i, double logValue) {
+		this.logs[i] = logSumExp(this.logs[i], logValue);
+	}
+
+	/**
+	 * Multiplies an element by a value in log-form in-place, i.e., v_i := v_i * exp(logFactor).
+	 * @param i the index.
+	 * @param logFactor the log-value of the factor.
+	 */
+	public void multLog(int i, double logFactor) {
+		this.logs[i] += logFactor;
+	}
+
+	/**
+	 * Returns log(exp(a)+exp(b)) without leaving log-space. Either argument may be
+	 * Double.NEGATIVE_INFINITY, corresponding to a term of 0.
+	 * @param a the first log-value.
+	 * @param b the second log-value.
+	 * @return the log of the sum.
+	 */
+	public static double logSumExp(double a, double b) {
+		if (a == Double.NEGATIVE_INFINITY) {
+			return b;
+		}
+		if (b == Double.NEGATIVE_INFINITY) {
+			return a;
+		}
+		return (a >= b ? a + Math.log1p(Math.exp(b - a)) : b + Math.log1p(Math.exp(a - b)));
+	}
+
+	/**
+	 * Returns the log-values backing this array. Changes to the returned array
+	 * affect this array.
+	 * @return the log-values.
+	 */
+	public double[] getLogs() {
+		return this.logs;
+	}
+
+	/**
+	 * Returns the actual (non-logged) values as a new array. Small values may be rounded to 0.
+	 * @return the values.
+	 */
+	public double[] getValues() {
+		double[] vals = new double[this.logs.length];
+		for (int i = 0; i < vals.length; ++i) {
+			vals[i] = Math.exp(this.logs[i]);
+		}
+		return vals;
+	}
+
+	/**
+	 * Returns a string representation of the array, mirroring the
+	 * representation of <code>LogDouble</code> for each element.
+	 * @return the array as a string.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(this.logs.length * 24 + 2);
+		sb.append('[');
+		for (int i = 0; i < this.logs.length; ++i) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			double l = this.logs[i];
+			sb.append(l == Double.NEGATIVE_INFINITY ? '-' + Double.toString(Double.MAX_VALUE) : Double.toString(l));
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+}
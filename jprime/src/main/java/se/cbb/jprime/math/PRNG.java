@@ -1,5 +1,9 @@
 package se.cbb.jprime.math;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.reflect.Field;
 import java.math.BigInteger;
 import java.util.Arrays;
 
@@ -7,20 +11,30 @@ import org.uncommons.maths.random.MersenneTwisterRNG;
 import org.uncommons.maths.random.SeedException;
 import org.uncommons.maths.random.SeedGenerator;
 
+import se.cbb.jprime.mcmc.Checkpointable;
 import se.cbb.jprime.mcmc.InfoProvider;
 
 /**
  * Extension of a Mersenne twister pseudo-random number generator.
- * In the future, may be used for adding functionality like specialised serialisation, 
- * statistics, etc.
+ * In the future, may be used for adding functionality like statistics, etc.
+ * <p/>
+ * The generator state can be written to and restored from an MCMC checkpoint. To this end,
+ * the Gaussian draws are produced here rather than in <code>java.util.Random</code> (using the
+ * very same algorithm), so that the spare Gaussian value is accessible.
  * 
  * @author Joel Sjöstrand.
  */
-public class PRNG extends MersenneTwisterRNG implements InfoProvider {
+public class PRNG extends MersenneTwisterRNG implements InfoProvider, Checkpointable {
 
 	/** Eclipse-generated serial version UID. */
 	private static final long serialVersionUID = 310669248550266600L;
 	
+	/** Spare value of the latest pair of Gaussian draws. */
+	private double nextNextGaussian;
+	
+	/** True if there is a spare Gaussian value. */
+	private boolean haveNextNextGaussian = false;
+	
 	/**
 	 * Makes sure the byte array seed is 16-bytes.
 	 * @param seed the seed.
@@ -129,8 +143,24 @@ public class PRNG extends MersenneTwisterRNG implements InfoProvider {
 	}
 	
 	@Override
-	public double nextGaussian() {
-		double b = super.nextGaussian();
+	public synchronized double nextGaussian() {
+		// Polar method, identical to that of java.util.Random.
+		double b;
+		if (this.haveNextNextGaussian) {
+			this.haveNextNextGaussian = false;
+			b = this.nextNextGaussian;
+		} else {
+			double v1, v2, s;
+			do {
+				v1 = 2 * this.nextDouble() - 1;
+				v2 = 2 * this.nextDouble() - 1;
+				s = v1 * v1 + v2 * v2;
+			} while (s >= 1 || s == 0);
+			double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+			this.nextNextGaussian = v2 * multiplier;
+			this.haveNextNextGaussian = true;
+			b = v1 * multiplier;
+		}
 		//System.out.println("nextGaussian(): " + b);
 		return b;
 	}
@@ -154,4 +184,54 @@ public class PRNG extends MersenneTwisterRNG implements InfoProvider {
 		super.nextBytes(bytes);
 		//System.out.println("nextBytes(bytes): ");
 	}
+	
+	@Override
+	public synchronized void writeState(DataOutput out) throws IOException {
+		try {
+			int[] mt = (int[]) getTwisterField("mt").get(this);
+			out.writeInt(mt.length);
+			for (int i = 0; i < mt.length; ++i) {
+				out.writeInt(mt[i]);
+			}
+			out.writeInt(getTwisterField("mtIndex").getInt(this));
+		} catch (IllegalAccessException e) {
+			throw new IOException("Cannot access state of Mersenne twister.", e);
+		}
+		out.writeBoolean(this.haveNextNextGaussian);
+		out.writeDouble(this.nextNextGaussian);
+	}
+	
+	@Override
+	public synchronized void readState(DataInput in) throws IOException {
+		try {
+			int[] mt = (int[]) getTwisterField("mt").get(this);
+			if (in.readInt() != mt.length) {
+				throw new IOException("Checkpoint does not match state size of Mersenne twister.");
+			}
+			for (int i = 0; i < mt.length; ++i) {
+				mt[i] = in.readInt();
+			}
+			getTwisterField("mtIndex").setInt(this, in.readInt());
+		} catch (IllegalAccessException e) {
+			throw new IOException("Cannot access state of Mersenne twister.", e);
+		}
+		this.haveNextNextGaussian = in.readBoolean();
+		this.nextNextGaussian = in.readDouble();
+	}
+	
+	/**
+	 * Returns a private state field of the underlying Mersenne twister, made accessible.
+	 * @param name the field name.
+	 * @return the field.
+	 * @throws IOException if the field does not exist.
+	 */
+	private static Field getTwisterField(String name) throws IOException {
+		try {
+			Field f = MersenneTwisterRNG.class.getDeclaredField(name);
+			f.setAccessible(true);
+			return f;
+		} catch (NoSuchFieldException e) {
+			throw new IOException("Cannot access state of Mersenne twister.", e);
+		}
+	}
 }
@@ -0,0 +1,475 @@
+package se.cbb.jprime.mcmc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import se.cbb.jprime.math.LogDouble;
+import se.cbb.jprime.math.PRNG;
+
+/**
+ * Adaptive Metropolis proposer (Haario et al., 2001) which jointly perturbs a set of possibly
+ * correlated scalar parameters. Given the current values y (log-transformed for positive parameters),
+ * new values are drawn as y' ~ N(y, s*C + s*eps*I), where C is the empirical covariance of y over
+ * the iterations seen so far, s = 2.38^2/d for d parameters, and eps a small regularisation.
+ * <p/>
+ * The covariance is learnt online by listening to the iteration object, and is frozen once a
+ * user-specified iteration has been reached. Until enough iterations have been seen, a diagonal proposal
+ * distribution governed by a tuning parameter is used instead: in log-space, the tuning parameter
+ * is the standard deviation (approximately the CV), otherwise it is the CV relative to the initial values.
+ * As the chain is only Markovian once the proposal distribution has been frozen, samples drawn prior
+ * to that should be discarded as burn-in.
+ * <p/>
+ * The proposer is checkpointable, so that a resumed run retains what has been learnt.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class AdaptiveMetropolisProposer implements Proposer, IterationListener, Checkpointable {
+
+	/** Optimal scaling 2.38^2 for Gaussian targets (Gelman et al., 1996), divided by the dimension upon use. */
+	public static final double SCALE = 2.38 * 2.38;
+
+	/** Regularisation of the learnt covariance. */
+	public static final double EPSILON = 1e-6;
+
+	/** Number of learnt iterations between refactorisations of the covariance. */
+	public static final int FACTORISATION_INTERVAL = 100;
+
+	/** Perturbed parameters. */
+	private RealParameter[] params;
+
+	/** Perturbed parameters, as a list. */
+	private ArrayList<StateParameter> paramList;
+
+	/** True if proposing in log-space, i.e., for positive parameters. */
+	private boolean logScale;
+
+	/** Tuning parameter governing the diagonal proposal distribution used prior to adaptation. */
+	private TuningParameter initialTuning;
+
+	/** Initial values, used for scaling the diagonal proposal distribution when not in log-space. */
+	private double[] initialValues;
+
+	/** Number of learnt iterations before the learnt covariance is used. */
+	private int minIterations;
+
+	/** Iteration at which the proposal distribution is frozen. */
+	private int stopIteration;
+
+	/** Pseudo-random number generator. */
+	private PRNG prng;
+
+	/** Number of learnt iterations. */
+	private int n;
+
+	/** Running mean of learnt iterations. */
+	private double[] mean;
+
+	/** Running sums of squared deviations (co-moments) of learnt iterations. */
+	private double[][] comoments;
+
+	/** Lower Cholesky factor of the current learnt proposal covariance. Null if not yet computed. */
+	private double[][] chol;
+
+	/** Values prior to perturbation. */
+	private double[] y;
+
+	/** Standard normal draws. */
+	private double[] z;
+
+	/** Deviations from the running mean prior to its update. */
+	private double[] delta;
+
+	/** Change info of each parameter, reused between perturbations. */
+	private ChangeInfo[] changeInfos;
+
+	/** "Forward" density, reused between perturbations. */
+	private LogDouble forward;
+
+	/** "Backward" density, reused between perturbations. */
+	private LogDouble backward;
+
+	/** Proposal, reused between perturbations. */
+	private MetropolisHastingsProposal proposal;
+
+	/** Statistics. */
+	private ProposerStatistics stats = null;
+
+	/** On/off switch. */
+	private boolean isEnabled;
+
+	/**
+	 * Constructor.
+	 * @param params the scalar parameters to perturb jointly.
+	 * @param logScale true to propose in log-space, requiring positive parameters; false to propose
+	 *        over (-inf,+inf).
+	 * @param initialTuning governs the diagonal proposal distribution used prior to adaptation.
+	 * @param iter the iteration object, to which the proposer subscribes for learning.
+	 * @param minIterations the number of learnt iterations before the learnt covariance is used.
+	 * @param stopIteration the iteration at which the proposal distribution is frozen.
+	 * @param prng pseudo-random number generator.
+	 */
+	public AdaptiveMetropolisProposer(List<? extends RealParameter> params, boolean logScale, TuningParameter initialTuning,
+			Iteration iter, int minIterations, int stopIteration, PRNG prng) {
+		if (params.isEmpty()) {
+			throw new IllegalArgumentException("Cannot create adaptive proposer without parameters.");
+		}
+		if (initialTuning.getMinValue() <= 0) {
+			throw new IllegalArgumentException("Illegal tuning parameter for adaptive proposer. Value must be in (0,inf).");
+		}
+		if (minIterations < 2 || stopIteration < 0) {
+			throw new IllegalArgumentException("Invalid adaptation iterations for adaptive proposer.");
+		}
+		int d = params.size();
+		this.params = new RealParameter[d];
+		this.paramList = new ArrayList<StateParameter>(d);
+		this.initialValues = new double[d];
+		this.changeInfos = new ChangeInfo[d];
+		for (int i = 0; i < d; ++i) {
+			RealParameter p = params.get(i);
+			if (p.getNoOfSubParameters() != 1) {
+				throw new IllegalArgumentException("Adaptive proposer only supports scalar parameters: " + p.getName() + '.');
+			}
+			if (logScale && p.getValue(0) <= 0.0) {
+				throw new IllegalArgumentException("Adaptive proposer in log-space requires positive parameter values: " + p.getName() + '.');
+			}
+			this.params[i] = p;
+			this.paramList.add(p);
+			this.initialValues[i] = p.getValue(0);
+			this.changeInfos[i] = new ChangeInfo(p, "Perturbed by AdaptiveMetropolisProposer");
+		}
+		this.logScale = logScale;
+		this.initialTuning = initialTuning;
+		this.minIterations = minIterations;
+		this.stopIteration = stopIteration;
+		this.prng = prng;
+		this.n = 0;
+		this.mean = new double[d];
+		this.comoments = new double[d][d];
+		this.chol = null;
+		this.y = new double[d];
+		this.z = new double[d];
+		this.delta = new double[d];
+		this.forward = new LogDouble(1.0);
+		this.backward = new LogDouble(1.0);
+		this.proposal = new MetropolisHastingsProposal(this, this.forward, this.backward, this.paramList, d);
+		this.isEnabled = true;
+		iter.addIterationListener(this);
+	}
+
+	/**
+	 * Returns whether the proposal distribution has been frozen.
+	 * @param iteration the current iteration.
+	 * @return true if frozen.
+	 */
+	public boolean isFrozen(int iteration) {
+		return (iteration > this.stopIteration);
+	}
+
+	/**
+	 * Returns the number of iterations learnt from so far.
+	 * @return the number of iterations.
+	 */
+	public int getNoOfLearntIterations() {
+		return this.n;
+	}
+
+	/**
+	 * Returns the current learnt covariance (of log-values when in log-space).
+	 * @return the covariance; null if fewer than two iterations have been learnt.
+	 */
+	public double[][] getCovariance() {
+		if (this.n < 2) {
+			return null;
+		}
+		int d = this.params.length;
+		double[][] cov = new double[d][d];
+		for (int i = 0; i < d; ++i) {
+			for (int j = 0; j < d; ++j) {
+				cov[i][j] = this.comoments[i][j] / (this.n - 1);
+			}
+		}
+		return cov;
+	}
+
+	@Override
+	public void incrementPerformed(int iterCurr, int iterTotal) {
+		if (!this.isEnabled || iterCurr > this.stopIteration) {
+			return;
+		}
+
+		// Welford's online update of mean and co-moments with the current state.
+		int d = this.params.length;
+		double[] v = this.y;
+		double[] delta = this.delta;
+		++this.n;
+		for (int i = 0; i < d; ++i) {
+			v[i] = this.getTransformedValue(i);
+			delta[i] = v[i] - this.mean[i];
+			this.mean[i] += delta[i] / this.n;
+		}
+		for (int i = 0; i < d; ++i) {
+			double dev = v[i] - this.mean[i];
+			for (int j = 0; j <= i; ++j) {
+				this.comoments[i][j] += delta[j] * dev;
+				this.comoments[j][i] = this.comoments[i][j];
+			}
+		}
+
+		if (this.n >= this.minIterations && (this.n % FACTORISATION_INTERVAL == 0 || iterCurr == this.stopIteration || this.chol == null)) {
+			this.factorise();
+		}
+	}
+
+	/**
+	 * Computes the Cholesky factor of the scaled learnt covariance. If the covariance is not
+	 * positive definite, the previous factor is retained.
+	 */
+	private void factorise() {
+		int d = this.params.length;
+		double s = SCALE / d;
+		double[][] l = new double[d][d];
+		for (int i = 0; i < d; ++i) {
+			for (int j = 0; j <= i; ++j) {
+				double sum = s * (this.comoments[i][j] / (this.n - 1) + (i == j ? EPSILON : 0.0));
+				for (int k = 0; k < j; ++k) {
+					sum -= l[i][k] * l[j][k];
+				}
+				if (i == j) {
+					if (!(sum > 0.0)) {
+						return;
+					}
+					l[i][i] = Math.sqrt(sum);
+				} else {
+					l[i][j] = sum / l[j][j];
+				}
+			}
+		}
+		this.chol = l;
+	}
+
+	/**
+	 * Returns the possibly log-transformed current value of a parameter.
+	 * @param i the parameter index.
+	 * @return the value.
+	 */
+	private double getTransformedValue(int i) {
+		double v = this.params[i].getValue(0);
+		return (this.logScale ? Math.log(v) : v);
+	}
+
+	@Override
+	public ArrayList<StateParameter> getParameters() {
+		return this.paramList;
+	}
+
+	@Override
+	public int getNoOfParameters() {
+		return this.params.length;
+	}
+
+	@Override
+	public int getNoOfSubParameters() {
+		return this.params.length;
+	}
+
+	@Override
+	public void setStatistics(ProposerStatistics stats) {
+		this.stats = stats;
+	}
+
+	@Override
+	public ProposerStatistics getStatistics() {
+		return this.stats;
+	}
+
+	@Override
+	public List<TuningParameter> getTuningParameters() {
+		ArrayList<TuningParameter> l = new ArrayList<TuningParameter>(1);
+		l.add(this.initialTuning);
+		return l;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return this.isEnabled;
+	}
+
+	@Override
+	public void setEnabled(boolean isActive) {
+		this.isEnabled = isActive;
+	}
+
+	@Override
+	public Proposal cacheAndPerturb(Map<Dependent, ChangeInfo> changeInfos) {
+		int d = this.params.length;
+		for (int i = 0; i < d; ++i) {
+			this.params[i].cache(null);
+			this.y[i] = this.getTransformedValue(i);
+			this.z[i] = this.prng.nextGaussian();
+		}
+
+		// Draw y' = y + Lz, with a diagonal L prior to adaptation.
+		double[][] l = this.chol;
+		double tng = this.initialTuning.getValue();
+		this.forward.set(1.0);
+		this.backward.set(1.0);
+		for (int i = 0; i < d; ++i) {
+			double step;
+			if (l == null) {
+				step = (this.logScale ? tng : tng * Math.max(Math.abs(this.initialValues[i]), 1e-16)) * this.z[i];
+			} else {
+				step = 0.0;
+				for (int k = 0; k <= i; ++k) {
+					step += l[i][k] * this.z[k];
+				}
+			}
+			double yNew = this.y[i] + step;
+			if (this.logScale) {
+				// Symmetric in log-space, so only the Jacobian of the transform remains.
+				double xNew = Math.exp(yNew);
+				double xOld = Math.exp(this.y[i]);
+				if (xNew == 0.0 || Double.isInfinite(xNew)) {
+					// Abort with invalid proposal.
+					for (int j = 0; j <= i; ++j) {
+						changeInfos.put(this.params[j], this.changeInfos[j]);
+					}
+					return new MetropolisHastingsProposal(this, this.paramList);
+				}
+				this.params[i].setValue(0, xNew);
+				this.forward.div(xNew);
+				this.backward.div(xOld);
+			} else {
+				this.params[i].setValue(0, yNew);
+			}
+			changeInfos.put(this.params[i], this.changeInfos[i]);
+		}
+		return this.proposal;
+	}
+
+	@Override
+	public void clearCache() {
+		if (this.stats != null) {
+			this.stats.increment(true);
+		}
+		for (RealParameter p : this.params) {
+			p.clearCache();
+		}
+	}
+
+	@Override
+	public void restoreCache() {
+		if (this.stats != null) {
+			this.stats.increment(false);
+		}
+		for (RealParameter p : this.params) {
+			p.restoreCache();
+		}
+	}
+
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		int d = this.params.length;
+		out.writeInt(d);
+		out.writeInt(this.n);
+		for (int i = 0; i < d; ++i) {
+			out.writeDouble(this.mean[i]);
+			for (int j = 0; j < d; ++j) {
+				out.writeDouble(this.comoments[i][j]);
+			}
+		}
+		out.writeBoolean(this.chol != null);
+		if (this.chol != null) {
+			for (int i = 0; i < d; ++i) {
+				for (int j = 0; j < d; ++j) {
+					out.writeDouble(this.chol[i][j]);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		int d = this.params.length;
+		if (in.readInt() != d) {
+			throw new IOException("Checkpoint does not match the number of parameters of adaptive proposer.");
+		}
+		this.n = in.readInt();
+		for (int i = 0; i < d; ++i) {
+			this.mean[i] = in.readDouble();
+			for (int j = 0; j < d; ++j) {
+				this.comoments[i][j] = in.readDouble();
+			}
+		}
+		if (in.readBoolean()) {
+			this.chol = new double[d][d];
+			for (int i = 0; i < d; ++i) {
+				for (int j = 0; j < d; ++j) {
+					this.chol[i][j] = in.readDouble();
+				}
+			}
+		} else {
+			this.chol = null;
+		}
+	}
+
+	@Override
+	public String getPreInfo(String prefix) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(prefix).append("ADAPTIVE METROPOLIS PROPOSER\n");
+		sb.append(prefix).append("Perturbed parameters:");
+		for (RealParameter p : this.params) {
+			sb.append(' ').append(p.getName());
+		}
+		sb.append('\n');
+		sb.append(prefix).append("Is active: ").append(this.isEnabled).append('\n');
+		sb.append(prefix).append("Log-space: ").append(this.logScale).append('\n');
+		sb.append(prefix).append("Learnt iterations before use of covariance: ").append(this.minIterations).append('\n');
+		sb.append(prefix).append("Frozen after iteration: ").append(this.stopIteration).append('\n');
+		sb.append(prefix).append("Tuning parameter governing initial proposal distribution:\n").append(this.initialTuning.getPreInfo(prefix + '\t'));
+		if (this.stats != null) {
+			sb.append(prefix).append("Statistics:\n").append(this.stats.getPreInfo(prefix + '\t'));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String getPostInfo(String prefix) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(prefix).append("ADAPTIVE METROPOLIS PROPOSER\n");
+		sb.append(prefix).append("Perturbed parameters:");
+		for (RealParameter p : this.params) {
+			sb.append(' ').append(p.getName());
+		}
+		sb.append('\n');
+		sb.append(prefix).append("Learnt iterations: ").append(this.n).append('\n');
+		double[][] cov = this.getCovariance();
+		if (cov != null) {
+			sb.append(prefix).append("Learnt covariance").append(this.logScale ? " (log-space)" : "").append(":\n");
+			for (double[] row : cov) {
+				sb.append(prefix).append('\t');
+				for (int j = 0; j < row.length; ++j) {
+					sb.append(j == 0 ? "" : "\t").append(row[j]);
+				}
+				sb.append('\n');
+			}
+		}
+		if (this.stats != null) {
+			sb.append(prefix).append("Statistics:\n").append(this.stats.getPostInfo(prefix + '\t'));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("AdaptiveMetropolisProposer perturbing");
+		for (RealParameter p : this.params) {
+			sb.append(' ').append(p.getName());
+		}
+		return sb.toString();
+	}
+
+}
@@ -1,5 +1,9 @@
 package se.cbb.jprime.mcmc;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import se.cbb.jprime.io.SampleBoolean;
 
 /**
@@ -7,7 +11,7 @@ import se.cbb.jprime.io.SampleBoolean;
  * 
  * @author Joel Sjöstrand.
  */
-public class BooleanParameter implements StateParameter {
+public class BooleanParameter implements StateParameter, Checkpointable {
 
 	/** Name. */
 	protected String name;
@@ -77,4 +81,14 @@ public class BooleanParameter implements StateParameter {
 		return SampleBoolean.class;
 	}
 
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeBoolean(this.value);
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		this.value = in.readBoolean();
+	}
+
 }
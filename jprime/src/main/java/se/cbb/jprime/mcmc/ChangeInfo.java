@@ -115,4 +115,12 @@ public class ChangeInfo {
 	public int[] getAffectedElements() {
 		return this.affectedElements;
 	}
+	
+	/**
+	 * Sets the affected elements, e.g. when reusing the same object between perturbations.
+	 * @param affectedElements the indices of affected elements. May be null.
+	 */
+	public void setAffectedElements(int[] affectedElements) {
+		this.affectedElements = affectedElements;
+	}
 }
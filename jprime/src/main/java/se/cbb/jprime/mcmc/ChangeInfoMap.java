@@ -0,0 +1,226 @@
+package se.cbb.jprime.mcmc;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Map of change info keyed on dependents, intended to be reused between MCMC iterations.
+ * The dependents of the chain are registered once upon creation and given fixed indices,
+ * so that change info is held in an array and whether a dependent has changed can be
+ * looked up by index. Clearing only visits the entries actually set, and neither lookups
+ * nor insertions of registered dependents allocate memory. Unregistered dependents are
+ * accepted too, but are kept in an ordinary hash map.
+ * <p/>
+ * Null values are treated as absent entries.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class ChangeInfoMap extends AbstractMap<Dependent, ChangeInfo> {
+
+	/** Index of each registered dependent. */
+	private HashMap<Dependent, Integer> indices;
+
+	/** Registered dependents, indexed. */
+	private Dependent[] dependents;
+
+	/** Change info of registered dependents, indexed. Null if unchanged. */
+	private ChangeInfo[] infos;
+
+	/** Indices of registered dependents with change info, in order of insertion. */
+	private int[] changed;
+
+	/** Number of registered dependents with change info. */
+	private int noOfChanged;
+
+	/** Change info of unregistered dependents. Null until needed. */
+	private HashMap<Dependent, ChangeInfo> others;
+
+	/**
+	 * Constructor.
+	 * @param dependents the dependents to register. Duplicates are ignored.
+	 */
+	public ChangeInfoMap(List<? extends Dependent> dependents) {
+		this.indices = new HashMap<Dependent, Integer>(dependents.size() * 2);
+		for (Dependent dep : dependents) {
+			if (!this.indices.containsKey(dep)) {
+				this.indices.put(dep, this.indices.size());
+			}
+		}
+		int n = this.indices.size();
+		this.dependents = new Dependent[n];
+		for (Map.Entry<Dependent, Integer> kv : this.indices.entrySet()) {
+			this.dependents[kv.getValue()] = kv.getKey();
+		}
+		this.infos = new ChangeInfo[n];
+		this.changed = new int[n];
+		this.noOfChanged = 0;
+		this.others = null;
+	}
+
+	/**
+	 * Returns the index of a registered dependent.
+	 * @param dependent the dependent.
+	 * @return the index; -1 if not registered.
+	 */
+	public int getIndex(Dependent dependent) {
+		Integer idx = this.indices.get(dependent);
+		return (idx == null ? -1 : idx.intValue());
+	}
+
+	/**
+	 * Returns the change info of a registered dependent.
+	 * @param index the index of the dependent.
+	 * @return the change info; null if unchanged.
+	 */
+	public ChangeInfo get(int index) {
+		return this.infos[index];
+	}
+
+	/**
+	 * Returns whether a registered dependent has change info.
+	 * @param index the index of the dependent.
+	 * @return true if changed; false if unchanged.
+	 */
+	public boolean isChanged(int index) {
+		return (this.infos[index] != null);
+	}
+
+	@Override
+	public ChangeInfo get(Object key) {
+		Integer idx = this.indices.get(key);
+		if (idx != null) {
+			return this.infos[idx.intValue()];
+		}
+		return (this.others == null ? null : this.others.get(key));
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return (this.get(key) != null);
+	}
+
+	@Override
+	public ChangeInfo put(Dependent key, ChangeInfo value) {
+		Integer idx = this.indices.get(key);
+		if (idx == null) {
+			if (this.others == null) {
+				this.others = new HashMap<Dependent, ChangeInfo>(8);
+			}
+			return (value == null ? this.others.remove(key) : this.others.put(key, value));
+		}
+		int i = idx.intValue();
+		ChangeInfo old = this.infos[i];
+		if (value == null) {
+			if (old != null) {
+				this.unmark(i);
+			}
+		} else if (old == null) {
+			this.changed[this.noOfChanged++] = i;
+		}
+		this.infos[i] = value;
+		return old;
+	}
+
+	@Override
+	public ChangeInfo remove(Object key) {
+		Integer idx = this.indices.get(key);
+		if (idx == null) {
+			return (this.others == null ? null : this.others.remove(key));
+		}
+		int i = idx.intValue();
+		ChangeInfo old = this.infos[i];
+		if (old != null) {
+			this.unmark(i);
+			this.infos[i] = null;
+		}
+		return old;
+	}
+
+	/**
+	 * Removes an index from the list of changed dependents.
+	 * @param index the index.
+	 */
+	private void unmark(int index) {
+		for (int j = 0; j < this.noOfChanged; ++j) {
+			if (this.changed[j] == index) {
+				System.arraycopy(this.changed, j + 1, this.changed, j, this.noOfChanged - j - 1);
+				--this.noOfChanged;
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (int j = 0; j < this.noOfChanged; ++j) {
+			this.infos[this.changed[j]] = null;
+		}
+		this.noOfChanged = 0;
+		if (this.others != null) {
+			this.others.clear();
+		}
+	}
+
+	@Override
+	public int size() {
+		return (this.noOfChanged + (this.others == null ? 0 : this.others.size()));
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return (this.size() == 0);
+	}
+
+	@Override
+	public Set<Map.Entry<Dependent, ChangeInfo>> entrySet() {
+		return new AbstractSet<Map.Entry<Dependent, ChangeInfo>>() {
+
+			@Override
+			public Iterator<Map.Entry<Dependent, ChangeInfo>> iterator() {
+				return new Iterator<Map.Entry<Dependent, ChangeInfo>>() {
+
+					/** Position among registered dependents. */
+					private int j = 0;
+
+					/** Iterator over unregistered dependents. */
+					private Iterator<Map.Entry<Dependent, ChangeInfo>> it =
+						(others == null ? null : others.entrySet().iterator());
+
+					@Override
+					public boolean hasNext() {
+						return (this.j < noOfChanged || (this.it != null && this.it.hasNext()));
+					}
+
+					@Override
+					public Map.Entry<Dependent, ChangeInfo> next() {
+						if (this.j < noOfChanged) {
+							int i = changed[this.j++];
+							return new AbstractMap.SimpleImmutableEntry<Dependent, ChangeInfo>(dependents[i], infos[i]);
+						}
+						if (this.it == null) {
+							throw new NoSuchElementException();
+						}
+						return this.it.next();
+					}
+
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException("Cannot remove change info via iterator.");
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return ChangeInfoMap.this.size();
+			}
+		};
+	}
+
+}
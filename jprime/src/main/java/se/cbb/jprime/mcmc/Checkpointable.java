@@ -0,0 +1,35 @@
+package se.cbb.jprime.mcmc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Interface for objects whose current state can be written to and read from a binary
+ * checkpoint of an MCMC chain, see <code>MCMCManager.writeCheckpoint(...)</code>.
+ * Only the actual state should be written, not settings which are recreated when the
+ * application is restarted with the same arguments. Moreover, caches should not be included,
+ * since checkpoints are only written between iterations.
+ * <p/>
+ * Reading must restore the object exactly, so that a resumed chain is bit-identical to the
+ * original one.
+ *
+ * @author Joel Sjöstrand.
+ */
+public interface Checkpointable {
+
+	/**
+	 * Writes the current state.
+	 * @param out the checkpoint stream.
+	 * @throws IOException if unable to write.
+	 */
+	public void writeState(DataOutput out) throws IOException;
+
+	/**
+	 * Restores the state as previously written by <code>writeState(...)</code>.
+	 * @param in the checkpoint stream.
+	 * @throws IOException if unable to read, or if the state is incompatible with this object.
+	 */
+	public void readState(DataInput in) throws IOException;
+
+}
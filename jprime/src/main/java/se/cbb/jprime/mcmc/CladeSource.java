@@ -0,0 +1,25 @@
+package se.cbb.jprime.mcmc;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interface for objects which can list the clades of a tree-valued state parameter,
+ * e.g. for monitoring topology split frequencies during a run.
+ *
+ * @author Joel Sjöstrand.
+ */
+public interface CladeSource {
+
+	/**
+	 * Adds the non-trivial clades of the current tree to a list, i.e., the leaf sets of all
+	 * proper, non-leaf descendants of the root. Each clade is a bit set over leaf indices.
+	 * @param leafIndices index of each leaf name, shared by all sources being compared.
+	 *        Unseen leaf names are added with the next free index.
+	 * @param clades list to which the clades are added. The bit sets may be reused by the
+	 *        source between calls, and must be copied if retained.
+	 */
+	public void getClades(Map<String, Integer> leafIndices, List<BitSet> clades);
+
+}
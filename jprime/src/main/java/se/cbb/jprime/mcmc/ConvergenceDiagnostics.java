@@ -0,0 +1,530 @@
+package se.cbb.jprime.mcmc;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Streaming convergence diagnostics for one or more traces of samples, e.g. the cold chain of
+ * a single run, or several independent chains. Each sample comprises a fixed number of scalars
+ * (such as the log posterior density and real-valued parameters) and optionally the clades of a tree.
+ * The following are maintained:
+ * <ul>
+ * <li>the effective sample size (ESS) of each scalar, summed over traces, using batch means.</li>
+ * <li>the split-R-hat of each scalar (Gelman et al., 2013), where each trace is split in two halves.</li>
+ * <li>the average standard deviation of clade frequencies (ASDSF) across traces, or across the two
+ *     halves of a single trace. Only clades with a frequency of at least <code>MIN_CLADE_FREQUENCY</code>
+ *     in some trace are included.</li>
+ * </ul>
+ * Memory usage does not grow with the number of samples: each trace is summarised by at most
+ * <code>MAX_BATCHES</code> batches holding the mean and sum of squared deviations of each scalar, and
+ * the clade counts. When all batches are full, adjacent pairs are merged, doubling the batch size.
+ * Samples of the current, non-full batch are not included in the diagnostics.
+ * <p/>
+ * The targets are checked every <code>CHECK_INTERVAL</code> samples, and are deemed met when all traces
+ * have a minimum number of samples, all scalars have reached the minimum ESS and are below the maximum
+ * split-R-hat, and, if clades are monitored, the ASDSF is below its maximum. Traces may be fed from
+ * different threads.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class ConvergenceDiagnostics implements InfoProvider {
+
+	/** Maximum number of batches per trace. Must be even. */
+	public static final int MAX_BATCHES = 64;
+
+	/** Minimum number of full batches per trace for the diagnostics to be computed. */
+	public static final int MIN_BATCHES = 8;
+
+	/** Number of samples between checks of the targets. */
+	public static final int CHECK_INTERVAL = 50;
+
+	/** Clades below this frequency in all traces (or halves) are excluded from the ASDSF. */
+	public static final double MIN_CLADE_FREQUENCY = 0.1;
+
+	/**
+	 * Summary of a single trace.
+	 */
+	private static class Trace {
+
+		/** Number of samples per full batch. */
+		int batchSize = 1;
+
+		/** Number of full batches. The current batch succeeds these. */
+		int noOfFull = 0;
+
+		/** Number of samples of the current batch. */
+		int noInCurrent = 0;
+
+		/** Total number of samples added. */
+		long noOfSamples = 0;
+
+		/** Mean of each scalar, indexed by batch and scalar. */
+		double[][] means;
+
+		/** Sum of squared deviations from the mean of each scalar, indexed by batch and scalar. */
+		double[][] m2s;
+
+		/** Count of each clade, indexed by batch. */
+		HashMap<BitSet, int[]> clades = new HashMap<BitSet, int[]>();
+
+		/**
+		 * Constructor.
+		 * @param noOfScalars number of scalars per sample.
+		 */
+		Trace(int noOfScalars) {
+			this.means = new double[MAX_BATCHES][noOfScalars];
+			this.m2s = new double[MAX_BATCHES][noOfScalars];
+		}
+	}
+
+	/** Names of the scalars. */
+	private String[] names = null;
+
+	/** Traces. Created when first fed. */
+	private Trace[] traces;
+
+	/** Index of each leaf name of the monitored trees. */
+	private HashMap<String, Integer> leafIndices = new HashMap<String, Integer>();
+
+	/** True if clades are monitored. */
+	private boolean hasClades = false;
+
+	/** Clades of the current sample. */
+	private ArrayList<BitSet> sampleClades = new ArrayList<BitSet>();
+
+	/** Minimum ESS of each scalar. */
+	private double minESS;
+
+	/** Maximum split-R-hat of each scalar. */
+	private double maxRHat;
+
+	/** Maximum ASDSF. */
+	private double maxASDSF;
+
+	/** Minimum number of samples of each trace. */
+	private int minSamples;
+
+	/** Total number of samples added. */
+	private long noOfSamples = 0;
+
+	/** Latest ESS of each scalar. Null if not computed. */
+	private double[] ess = null;
+
+	/** Latest split-R-hat of each scalar. Null if not computed. */
+	private double[] rHat = null;
+
+	/** Latest ASDSF. NaN if not computed. */
+	private double asdsf = Double.NaN;
+
+	/** Number of clades included in the latest ASDSF. */
+	private int noOfASDSFClades = 0;
+
+	/** True once the targets have been met. */
+	private boolean isConverged = false;
+
+	/**
+	 * Constructor.
+	 * @param noOfTraces number of traces.
+	 * @param minESS minimum ESS of each scalar, summed over traces.
+	 * @param maxRHat maximum split-R-hat of each scalar.
+	 * @param maxASDSF maximum ASDSF. Ignored if no clades are monitored.
+	 * @param minSamples minimum number of samples of each trace.
+	 */
+	public ConvergenceDiagnostics(int noOfTraces, double minESS, double maxRHat, double maxASDSF, int minSamples) {
+		if (noOfTraces < 1) {
+			throw new IllegalArgumentException("Convergence diagnostics requires at least one trace.");
+		}
+		if (maxRHat < 1.0) {
+			throw new IllegalArgumentException("Maximum split-R-hat must be at least 1.");
+		}
+		this.traces = new Trace[noOfTraces];
+		this.minESS = minESS;
+		this.maxRHat = maxRHat;
+		this.maxASDSF = maxASDSF;
+		this.minSamples = minSamples;
+	}
+
+	/**
+	 * Sets the names of the scalars of each sample. May be invoked by each fed chain,
+	 * in which case the number of names must agree.
+	 * @param names the names.
+	 */
+	public synchronized void setScalarNames(String[] names) {
+		if (this.names != null && this.names.length != names.length) {
+			throw new IllegalArgumentException("Traces of convergence diagnostics differ in number of scalars.");
+		}
+		this.names = names;
+	}
+
+	/**
+	 * Returns the number of traces.
+	 * @return the number of traces.
+	 */
+	public int getNoOfTraces() {
+		return this.traces.length;
+	}
+
+	/**
+	 * Adds a sample to a trace, and checks the targets at regular intervals.
+	 * @param trace the index of the trace.
+	 * @param values the scalars of the sample. Not retained.
+	 * @param clades the source of the sample's clades; null if clades are not monitored.
+	 * @return true if the targets have been met; false if not.
+	 */
+	public synchronized boolean addSample(int trace, double[] values, CladeSource clades) {
+		if (this.names == null) {
+			throw new IllegalStateException("Names of scalars of convergence diagnostics have not been set.");
+		}
+		if (values.length != this.names.length) {
+			throw new IllegalArgumentException("Invalid number of scalars in sample for convergence diagnostics.");
+		}
+		Trace t = this.traces[trace];
+		if (t == null) {
+			t = new Trace(values.length);
+			this.traces[trace] = t;
+		}
+
+		// Update the current batch.
+		int b = t.noOfFull;
+		double[] means = t.means[b];
+		double[] m2s = t.m2s[b];
+		int n = ++t.noInCurrent;
+		for (int k = 0; k < values.length; ++k) {
+			if (n == 1) {
+				means[k] = values[k];
+				m2s[k] = 0.0;
+			} else {
+				double delta = values[k] - means[k];
+				means[k] += delta / n;
+				m2s[k] += delta * (values[k] - means[k]);
+			}
+		}
+		if (clades != null) {
+			this.hasClades = true;
+			this.sampleClades.clear();
+			clades.getClades(this.leafIndices, this.sampleClades);
+			for (int i = 0; i < this.sampleClades.size(); ++i) {
+				BitSet c = this.sampleClades.get(i);
+				int[] counts = t.clades.get(c);
+				if (counts == null) {
+					counts = new int[MAX_BATCHES];
+					t.clades.put((BitSet) c.clone(), counts);
+				}
+				counts[b]++;
+			}
+		}
+		t.noOfSamples++;
+
+		// Close the batch, merging pairs of batches if all are full.
+		if (n == t.batchSize) {
+			t.noInCurrent = 0;
+			if (++t.noOfFull == MAX_BATCHES) {
+				mergeBatches(t);
+			}
+		}
+
+		if (++this.noOfSamples % CHECK_INTERVAL == 0 && !this.isConverged) {
+			this.update();
+			this.isConverged = this.targetsMet();
+		}
+		return this.isConverged;
+	}
+
+	/**
+	 * Merges adjacent pairs of full batches of a trace.
+	 * @param t the trace.
+	 */
+	private static void mergeBatches(Trace t) {
+		int half = MAX_BATCHES / 2;
+		int n = t.batchSize;
+		for (int b = 0; b < half; ++b) {
+			double[] ma = t.means[2 * b];
+			double[] mb = t.means[2 * b + 1];
+			double[] m2a = t.m2s[2 * b];
+			double[] m2b = t.m2s[2 * b + 1];
+			double[] m = t.means[b];
+			double[] m2 = t.m2s[b];
+			for (int k = 0; k < m.length; ++k) {
+				double delta = mb[k] - ma[k];
+				m2[k] = m2a[k] + m2b[k] + delta * delta * n / 2.0;
+				m[k] = (ma[k] + mb[k]) / 2.0;
+			}
+		}
+		for (int[] counts : t.clades.values()) {
+			for (int b = 0; b < half; ++b) {
+				counts[b] = counts[2 * b] + counts[2 * b + 1];
+			}
+			for (int b = half; b < MAX_BATCHES; ++b) {
+				counts[b] = 0;
+			}
+		}
+		t.batchSize *= 2;
+		t.noOfFull = half;
+	}
+
+	/**
+	 * Recomputes the diagnostics from the full batches of the traces. Does nothing if some trace
+	 * has too few full batches.
+	 */
+	public synchronized void update() {
+		for (Trace t : this.traces) {
+			if (t == null || t.noOfFull < MIN_BATCHES) {
+				return;
+			}
+		}
+		int k = this.names.length;
+		if (this.ess == null) {
+			this.ess = new double[k];
+			this.rHat = new double[k];
+		}
+		int noOfHalves = 2 * this.traces.length;
+		double[] halfMeans = new double[noOfHalves];
+		double[] halfVars = new double[noOfHalves];
+		for (int j = 0; j < k; ++j) {
+			// ESS by batch means, summed over traces.
+			double sum = 0.0;
+			for (Trace t : this.traces) {
+				sum += getESS(t, j);
+			}
+			this.ess[j] = sum;
+
+			// Split-R-hat over trace halves, using the shortest half.
+			long len = Long.MAX_VALUE;
+			for (int i = 0; i < this.traces.length; ++i) {
+				Trace t = this.traces[i];
+				int h = t.noOfFull / 2;
+				double[] mv = getMeanAndVariance(t, j, 0, h);
+				halfMeans[2 * i] = mv[0];
+				halfVars[2 * i] = mv[1];
+				mv = getMeanAndVariance(t, j, h, 2 * h);
+				halfMeans[2 * i + 1] = mv[0];
+				halfVars[2 * i + 1] = mv[1];
+				len = Math.min(len, (long) h * t.batchSize);
+			}
+			double w = mean(halfVars);
+			double b = variance(halfMeans);
+			if (w <= 0.0) {
+				this.rHat[j] = (b <= 0.0 ? 1.0 : Double.POSITIVE_INFINITY);
+			} else {
+				this.rHat[j] = Math.sqrt(((len - 1.0) / len * w + b) / w);
+			}
+		}
+		if (this.hasClades) {
+			this.updateASDSF();
+		}
+	}
+
+	/**
+	 * Recomputes the ASDSF across traces, or across the halves of a single trace.
+	 */
+	private void updateASDSF() {
+		boolean useHalves = (this.traces.length == 1);
+		int noOfGroups = (useHalves ? 2 : this.traces.length);
+		HashSet<BitSet> all = new HashSet<BitSet>();
+		for (Trace t : this.traces) {
+			all.addAll(t.clades.keySet());
+		}
+		double[] freqs = new double[noOfGroups];
+		double sum = 0.0;
+		int cnt = 0;
+		for (BitSet c : all) {
+			double max = 0.0;
+			for (int g = 0; g < noOfGroups; ++g) {
+				Trace t = this.traces[useHalves ? 0 : g];
+				int from = 0;
+				int to = t.noOfFull;
+				if (useHalves) {
+					int h = t.noOfFull / 2;
+					from = (g == 0 ? 0 : h);
+					to = (g == 0 ? h : 2 * h);
+				}
+				int[] counts = t.clades.get(c);
+				long n = 0;
+				if (counts != null) {
+					for (int b = from; b < to; ++b) {
+						n += counts[b];
+					}
+				}
+				freqs[g] = n / ((double) (to - from) * t.batchSize);
+				max = Math.max(max, freqs[g]);
+			}
+			if (max >= MIN_CLADE_FREQUENCY) {
+				sum += Math.sqrt(variance(freqs));
+				++cnt;
+			}
+		}
+		this.asdsf = (cnt == 0 ? 0.0 : sum / cnt);
+		this.noOfASDSFClades = cnt;
+	}
+
+	/**
+	 * Returns the ESS of a scalar of a trace by batch means, capped at the number of samples.
+	 * @param t the trace.
+	 * @param j the scalar.
+	 * @return the ESS.
+	 */
+	private static double getESS(Trace t, int j) {
+		int nb = t.noOfFull;
+		double n = (double) nb * t.batchSize;
+		double[] mv = getMeanAndVariance(t, j, 0, nb);
+		double v = 0.0;
+		for (int b = 0; b < nb; ++b) {
+			double d = t.means[b][j] - mv[0];
+			v += d * d;
+		}
+		v /= (nb - 1);
+		if (v <= 0.0) {
+			return n;
+		}
+		return Math.min(n, n * mv[1] / (t.batchSize * v));
+	}
+
+	/**
+	 * Returns the mean and sample variance of a scalar over a range of full batches of a trace.
+	 * @param t the trace.
+	 * @param j the scalar.
+	 * @param from the first batch, inclusive.
+	 * @param to the last batch, exclusive.
+	 * @return the mean and variance.
+	 */
+	private static double[] getMeanAndVariance(Trace t, int j, int from, int to) {
+		double mean = 0.0;
+		for (int b = from; b < to; ++b) {
+			mean += t.means[b][j];
+		}
+		mean /= (to - from);
+		double m2 = 0.0;
+		for (int b = from; b < to; ++b) {
+			double d = t.means[b][j] - mean;
+			m2 += t.m2s[b][j] + t.batchSize * d * d;
+		}
+		double n = (double) (to - from) * t.batchSize;
+		return new double[] { mean, (n > 1 ? m2 / (n - 1) : 0.0) };
+	}
+
+	/**
+	 * Returns the mean of values.
+	 * @param vals the values.
+	 * @return the mean.
+	 */
+	private static double mean(double[] vals) {
+		double sum = 0.0;
+		for (double v : vals) {
+			sum += v;
+		}
+		return sum / vals.length;
+	}
+
+	/**
+	 * Returns the sample variance of values.
+	 * @param vals the values.
+	 * @return the variance.
+	 */
+	private static double variance(double[] vals) {
+		double mean = mean(vals);
+		double sum = 0.0;
+		for (double v : vals) {
+			sum += (v - mean) * (v - mean);
+		}
+		return sum / (vals.length - 1);
+	}
+
+	/**
+	 * Returns whether the latest diagnostics meet the targets.
+	 * @return true if met; false if not.
+	 */
+	private boolean targetsMet() {
+		if (this.ess == null) {
+			return false;
+		}
+		for (Trace t : this.traces) {
+			if (t.noOfSamples < this.minSamples) {
+				return false;
+			}
+		}
+		for (int j = 0; j < this.ess.length; ++j) {
+			if (this.ess[j] < this.minESS || !(this.rHat[j] <= this.maxRHat)) {
+				return false;
+			}
+		}
+		return (!this.hasClades || this.asdsf <= this.maxASDSF);
+	}
+
+	/**
+	 * Returns whether the targets have been met.
+	 * @return true if met; false if not.
+	 */
+	public synchronized boolean isConverged() {
+		return this.isConverged;
+	}
+
+	/**
+	 * Returns the latest ESS of a scalar, summed over traces.
+	 * @param j the index of the scalar.
+	 * @return the ESS; NaN if not yet computed.
+	 */
+	public synchronized double getESS(int j) {
+		return (this.ess == null ? Double.NaN : this.ess[j]);
+	}
+
+	/**
+	 * Returns the latest split-R-hat of a scalar.
+	 * @param j the index of the scalar.
+	 * @return the split-R-hat; NaN if not yet computed.
+	 */
+	public synchronized double getRHat(int j) {
+		return (this.rHat == null ? Double.NaN : this.rHat[j]);
+	}
+
+	/**
+	 * Returns the latest average standard deviation of clade frequencies.
+	 * @return the ASDSF; NaN if not yet computed or if no clades are monitored.
+	 */
+	public synchronized double getASDSF() {
+		return this.asdsf;
+	}
+
+	/**
+	 * Returns the total number of samples added over all traces.
+	 * @return the number of samples.
+	 */
+	public synchronized long getNoOfSamples() {
+		return this.noOfSamples;
+	}
+
+	@Override
+	public String getPreInfo(String prefix) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(prefix).append("CONVERGENCE DIAGNOSTICS\n");
+		sb.append(prefix).append("Number of traces: ").append(this.traces.length).append('\n');
+		sb.append(prefix).append("Minimum ESS: ").append(this.minESS).append('\n');
+		sb.append(prefix).append("Maximum split-R-hat: ").append(this.maxRHat).append('\n');
+		sb.append(prefix).append("Maximum ASDSF: ").append(this.maxASDSF).append('\n');
+		sb.append(prefix).append("Minimum number of samples per trace: ").append(this.minSamples).append('\n');
+		return sb.toString();
+	}
+
+	@Override
+	public synchronized String getPostInfo(String prefix) {
+		this.update();
+		StringBuilder sb = new StringBuilder();
+		sb.append(prefix).append("CONVERGENCE DIAGNOSTICS\n");
+		sb.append(prefix).append("Targets met: ").append(this.isConverged).append('\n');
+		sb.append(prefix).append("Number of samples: ").append(this.noOfSamples).append('\n');
+		if (this.ess == null) {
+			sb.append(prefix).append("Too few samples for diagnostics.\n");
+			return sb.toString();
+		}
+		sb.append(prefix).append("Scalar\tESS\tSplit-R-hat\n");
+		for (int j = 0; j < this.names.length; ++j) {
+			sb.append(prefix).append(this.names[j]).append('\t').append(this.ess[j]).append('\t').append(this.rHat[j]).append('\n');
+		}
+		if (this.hasClades) {
+			sb.append(prefix).append("ASDSF: ").append(this.asdsf).append(" (over ").append(this.noOfASDSFClades).append(" clades)\n");
+		}
+		return sb.toString();
+	}
+
+}
@@ -1,6 +1,13 @@
 package se.cbb.jprime.mcmc;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import se.cbb.jprime.io.SampleDouble;
+import se.cbb.jprime.io.SampleSnapshot;
+import se.cbb.jprime.io.SampleSnapshots;
+import se.cbb.jprime.io.SnapshotSampleable;
 import se.cbb.jprime.math.ScaleTransformation;
 
 /**
@@ -8,7 +15,7 @@ import se.cbb.jprime.math.ScaleTransformation;
  * 
  * @author Joel Sjöstrand.
  */
-public class DoubleParameter implements RealParameter {
+public class DoubleParameter implements RealParameter, SnapshotSampleable, Checkpointable {
 
 	/** Name. */
 	protected String name;
@@ -86,6 +93,11 @@ public class DoubleParameter implements RealParameter {
 			SampleDouble.toString(this.scale.getUnscaled(this.value)));
 	}
 
+	@Override
+	public SampleSnapshot getSampleSnapshot(SampleSnapshot reuse, SamplingMode mode) {
+		return SampleSnapshots.ofDouble(reuse, this.scale == null ? this.value : this.scale.getUnscaled(this.value));
+	}
+
 	@Override
 	public Class<?> getSampleType() {
 		return SampleDouble.class;
@@ -119,4 +131,14 @@ public class DoubleParameter implements RealParameter {
 		this.value = value;
 	}
 
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeDouble(this.value);
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		this.value = in.readDouble();
+	}
+
 }
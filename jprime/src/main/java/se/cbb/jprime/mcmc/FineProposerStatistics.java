@@ -1,5 +1,8 @@
 package se.cbb.jprime.mcmc;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Map.Entry;
 
 /**
@@ -134,4 +137,28 @@ public class FineProposerStatistics extends ProposerStatistics implements Iterat
 		}
 		return sb.toString();
 	}
+	
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		super.writeState(out);
+		out.writeInt(this.noOfAcceptedPerWindow.length);
+		for (int i = 0; i < this.noOfAcceptedPerWindow.length; ++i) {
+			out.writeInt(this.noOfAcceptedPerWindow[i]);
+			out.writeInt(this.noOfRejectedPerWindow[i]);
+		}
+		out.writeInt(this.currentWindow);
+	}
+	
+	@Override
+	public void readState(DataInput in) throws IOException {
+		super.readState(in);
+		if (in.readInt() != this.noOfAcceptedPerWindow.length) {
+			throw new IOException("Checkpoint does not match the number of statistics windows.");
+		}
+		for (int i = 0; i < this.noOfAcceptedPerWindow.length; ++i) {
+			this.noOfAcceptedPerWindow[i] = in.readInt();
+			this.noOfRejectedPerWindow[i] = in.readInt();
+		}
+		this.currentWindow = in.readInt();
+	}
 }
@@ -0,0 +1,107 @@
+package se.cbb.jprime.mcmc;
+
+import java.util.List;
+
+import se.cbb.jprime.math.LogDouble;
+import se.cbb.jprime.math.PRNG;
+
+/**
+ * Heated Metropolis-Hastings proposal acceptor, as used for the chains of Metropolis-coupled MCMC
+ * (see <code>MC3Manager</code>). The posterior density ratio of a proposed state x' and an old state x
+ * is raised to the power of an inverse temperature beta in (0,1], i.e., the chain samples from
+ * P(x)^beta. Proposal density ratios are not heated. With beta=1, the acceptor is identical to
+ * <code>MetropolisHastingsAcceptor</code>.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class HeatedAcceptor implements ProposalAcceptor {
+
+	/** Pseudo-random number generator. */
+	private PRNG prng;
+
+	/** Inverse temperature. */
+	private double beta;
+	
+	/** Acceptance ratio, reused between invocations. */
+	private LogDouble a = new LogDouble();
+	
+	/** Proposal density ratio, reused between invocations. */
+	private LogDouble ratio = new LogDouble();
+	
+	/** Uniform random number, reused between invocations. */
+	private LogDouble u = new LogDouble();
+
+	/**
+	 * Constructor.
+	 * @param prng pseudo-random number generator.
+	 * @param beta inverse temperature in (0,1], where 1 corresponds to the cold chain.
+	 */
+	public HeatedAcceptor(PRNG prng, double beta) {
+		this.prng = prng;
+		this.setBeta(beta);
+	}
+
+	/**
+	 * Returns the inverse temperature.
+	 * @return the inverse temperature.
+	 */
+	public double getBeta() {
+		return this.beta;
+	}
+
+	/**
+	 * Sets the inverse temperature.
+	 * @param beta the inverse temperature in (0,1].
+	 */
+	public void setBeta(double beta) {
+		if (beta <= 0.0 || beta > 1.0) {
+			throw new IllegalArgumentException("Inverse temperature must be in (0,1].");
+		}
+		this.beta = beta;
+	}
+
+	/**
+	 * Returns true if the chain is currently cold, i.e., has inverse temperature 1.
+	 * @return true if cold; false if heated.
+	 */
+	public boolean isCold() {
+		return (this.beta == 1.0);
+	}
+
+	/**
+	 * Returns true if a proposed state x' should be accepted according to the heated Metropolis-Hastings sampling scheme.
+	 * @param proposedStateLikelihood the likelihood P(x') of the proposed state x'.
+	 * @param oldStateLikelihood the likelihood P(x) of the old state x.
+	 * @param proposals details the proposals made for going from x to x'. Elements must be of type <code>MetropolisHastingsProposal</code>.
+	 * @return true if suggested state accepted; false if rejected.
+	 */
+	@Override
+	public boolean acceptProposedState(LogDouble proposedStateLikelihood,
+			LogDouble oldStateLikelihood, List<Proposal> proposals) throws RunAbortedException {
+		LogDouble a = this.a.set(proposedStateLikelihood).div(oldStateLikelihood);
+		if (this.beta != 1.0) {
+			a.pow(this.beta);
+		}
+		if (proposals != null) {
+			for (int i = 0; i < proposals.size(); ++i) {
+				Proposal prop = proposals.get(i);
+				if (!prop.isValid()) {
+					return false;
+				}
+				a.mult(((MetropolisHastingsProposal) prop).getDensityRatio(this.ratio));
+			}
+		}
+		return a.greaterThanOrEquals(this.u.set(this.prng.nextDouble()));   // Accounts also for case a >= 1.0.
+	}
+
+	@Override
+	public String getPreInfo(String prefix) {
+		return (prefix + "HEATED METROPOLIS-HASTINGS ACCEPTOR\n" + prefix + "Initial inverse temperature: " + this.beta + "\n");
+	}
+
+	@Override
+	public String getPostInfo(String prefix) {
+		return (prefix + "HEATED METROPOLIS-HASTINGS ACCEPTOR\n" + prefix + "Final inverse temperature: " + this.beta + "\n");
+	}
+
+}
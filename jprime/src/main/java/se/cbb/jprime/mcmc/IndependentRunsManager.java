@@ -0,0 +1,128 @@
+package se.cbb.jprime.mcmc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Framework class for running a number of independent MCMC chains concurrently in the same process,
+ * one thread per chain, e.g. for assessing convergence. Contrary to <code>MC3Manager</code>, the chains
+ * do not interact, and each writes its samples through its own sampler.
+ * <p/>
+ * Each chain must be a fully independent <code>MCMCManager</code> with its own state parameters,
+ * models, iteration, thinner, PRNG, sampler, etc. Read-only data, e.g. the sequence alignment,
+ * the host tree discretisation and the substitution model eigensystem, may be shared, which saves
+ * memory and start-up time compared to running the chains in separate processes. Chains may also
+ * share convergence diagnostics, with one trace per chain, so that all stop once their targets are met.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class IndependentRunsManager implements InfoProvider {
+
+	/** Chains. */
+	private ArrayList<MCMCManager> chains;
+
+	/** Time at iteration start in ns. */
+	private long startTime;
+
+	/** Time at iteration end in ns. */
+	private long endTime;
+
+	/**
+	 * Constructor.
+	 * @param chains the chains.
+	 */
+	public IndependentRunsManager(List<MCMCManager> chains) {
+		if (chains.isEmpty()) {
+			throw new IllegalArgumentException("Cannot create independent runs manager without chains.");
+		}
+		this.chains = new ArrayList<MCMCManager>(chains);
+	}
+
+	/**
+	 * Returns the number of chains.
+	 * @return the number of chains.
+	 */
+	public int getNoOfChains() {
+		return this.chains.size();
+	}
+
+	/**
+	 * Starts and executes all chains, and waits until all have finished.
+	 * @throws IOException if unable to produce sampling output.
+	 */
+	public void run() throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(this.chains.size(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "IndependentChain");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>(this.chains.size());
+		for (final MCMCManager chain : this.chains) {
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					chain.run();
+					return null;
+				}
+			});
+		}
+
+		this.startTime = System.nanoTime();
+		try {
+			for (Future<Void> f : pool.invokeAll(tasks)) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Independent chains were interrupted.", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else {
+				throw new RuntimeException("Error in independent chain.", cause);
+			}
+		} finally {
+			pool.shutdown();
+		}
+		this.endTime = System.nanoTime();
+	}
+
+	@Override
+	public String getPreInfo(String prefix) {
+		StringBuilder sb = new StringBuilder(65536);
+		sb.append(prefix).append("INDEPENDENT RUNS MANAGER\n");
+		sb.append(prefix).append("Number of chains: ").append(this.chains.size()).append('\n');
+		for (int i = 0; i < this.chains.size(); ++i) {
+			sb.append(prefix).append("Chain ").append(i).append(":\n");
+			sb.append(this.chains.get(i).getPreInfo(prefix + '\t'));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String getPostInfo(String prefix) {
+		StringBuilder sb = new StringBuilder(65536);
+		sb.append(prefix).append("INDEPENDENT RUNS MANAGER\n");
+		sb.append(MCMCManager.getWallTimeInfo(prefix, this.endTime - this.startTime));
+		sb.append(MCMCManager.getBestStateInfo(prefix, this.chains));
+		for (int i = 0; i < this.chains.size(); ++i) {
+			sb.append(prefix).append("Chain ").append(i).append(":\n");
+			sb.append(this.chains.get(i).getPostInfo(prefix + '\t'));
+		}
+		return sb.toString();
+	}
+
+}
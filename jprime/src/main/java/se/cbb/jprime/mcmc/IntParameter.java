@@ -1,13 +1,20 @@
 package se.cbb.jprime.mcmc;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import se.cbb.jprime.io.SampleInt;
+import se.cbb.jprime.io.SampleSnapshot;
+import se.cbb.jprime.io.SampleSnapshots;
+import se.cbb.jprime.io.SnapshotSampleable;
 
 /**
  * Holds an integer state parameter.
  * 
  * @author Joel Sjöstrand.
  */
-public class IntParameter implements StateParameter {
+public class IntParameter implements StateParameter, SnapshotSampleable, Checkpointable {
 
 	/** Name. */
 	protected String name;
@@ -72,9 +79,24 @@ public class IntParameter implements StateParameter {
 		return SampleInt.toString(this.value);
 	}
 
+	@Override
+	public SampleSnapshot getSampleSnapshot(SampleSnapshot reuse, SamplingMode mode) {
+		return SampleSnapshots.ofInt(reuse, this.value);
+	}
+
 	@Override
 	public Class<?> getSampleType() {
 		return SampleInt.class;
 	}
 
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(this.value);
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		this.value = in.readInt();
+	}
+
 }
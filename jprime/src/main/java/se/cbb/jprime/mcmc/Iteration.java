@@ -1,9 +1,14 @@
 package se.cbb.jprime.mcmc;
 
-import java.util.LinkedList;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
 
 import se.cbb.jprime.io.SampleInt;
-import se.cbb.jprime.io.Sampleable;
+import se.cbb.jprime.io.SampleSnapshot;
+import se.cbb.jprime.io.SampleSnapshots;
+import se.cbb.jprime.io.SnapshotSampleable;
 
 /**
  * Holds the current and total number of iterations k for e.g. an MCMC chain.
@@ -13,7 +18,7 @@ import se.cbb.jprime.io.Sampleable;
  * 
  * @author Joel Sjöstrand.
  */
-public class Iteration implements Sampleable, InfoProvider {
+public class Iteration implements SnapshotSampleable, InfoProvider, Checkpointable {
 
 	/** The total number of iterations, start iteration 0 excluded. */
 	private int totalNoOfIterations;
@@ -22,7 +27,7 @@ public class Iteration implements Sampleable, InfoProvider {
 	private int currentIteration;
 	
 	/** Subscribers to changes to this object. */
-	private LinkedList<IterationListener> listeners;
+	private ArrayList<IterationListener> listeners;
 	
 	/** Flag determining whether listeners should be notified or not. */
 	private boolean notifyListeners;
@@ -46,7 +51,7 @@ public class Iteration implements Sampleable, InfoProvider {
 		}
 		this.totalNoOfIterations = totalNoOfIterations;
 		this.currentIteration = initialIteration;
-		this.listeners = new LinkedList<IterationListener>();
+		this.listeners = new ArrayList<IterationListener>(4);
 		this.notifyListeners = true;
 	}
 	
@@ -106,8 +111,8 @@ public class Iteration implements Sampleable, InfoProvider {
 		}
 		this.currentIteration++;
 		if (this.notifyListeners) {
-			for (IterationListener i : this.listeners) {
-				i.incrementPerformed(this.currentIteration, this.totalNoOfIterations);
+			for (int i = 0; i < this.listeners.size(); ++i) {
+				this.listeners.get(i).incrementPerformed(this.currentIteration, this.totalNoOfIterations);
 			}
 		}
 		return true;
@@ -136,6 +141,11 @@ public class Iteration implements Sampleable, InfoProvider {
 		return SampleInt.toString(this.currentIteration);
 	}
 
+	@Override
+	public SampleSnapshot getSampleSnapshot(SampleSnapshot reuse, SamplingMode mode) {
+		return SampleSnapshots.ofInt(reuse, this.currentIteration);
+	}
+
 	@Override
 	public String getPreInfo(String prefix) {
 		StringBuilder sb = new StringBuilder();
@@ -148,6 +158,30 @@ public class Iteration implements Sampleable, InfoProvider {
 	public String getPostInfo(String prefix) {
 		return (prefix  + "ITERATION\n");
 	}
+
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(this.totalNoOfIterations);
+		out.writeInt(this.currentIteration);
+	}
+
+	/**
+	 * Restores the current iteration. Listeners are notified as if the
+	 * iteration had just been incremented to the restored value.
+	 * @param in the checkpoint stream.
+	 * @throws IOException if unable to read, or if the total number of iterations differs.
+	 */
+	@Override
+	public void readState(DataInput in) throws IOException {
+		if (in.readInt() != this.totalNoOfIterations) {
+			throw new IOException("Checkpoint does not match the total number of iterations.");
+		}
+		this.currentIteration = in.readInt();
+		if (this.notifyListeners) {
+			for (int i = 0; i < this.listeners.size(); ++i) {
+				this.listeners.get(i).incrementPerformed(this.currentIteration, this.totalNoOfIterations);
+			}
+		}
+	}
 	
 }
-
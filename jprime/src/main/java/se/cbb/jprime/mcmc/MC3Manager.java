@@ -0,0 +1,302 @@
+package se.cbb.jprime.mcmc;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import se.cbb.jprime.math.PRNG;
+
+/**
+ * Metropolis-coupled MCMC (MC^3, parallel tempering) framework class. Runs a number of
+ * independent MCMC chains concurrently, one thread per chain, where chain k of the temperature
+ * ladder samples from the heated posterior P(x)^beta_k, with incremental heating
+ * beta_k = 1 / (1 + k * heat). Only the cold chain (beta=1) samples from the actual posterior.
+ * <p/>
+ * Every <code>swapInterval</code> iterations, an exchange of states between a randomly selected pair
+ * of adjacent chains j and k is proposed, and accepted with probability
+ * min(1, (P(x_k) / P(x_j))^(beta_j - beta_k)).
+ * Rather than copying the states, the chains exchange temperatures, which is equivalent.
+ * Chains run concurrently between swap attempts, but every attempt is a barrier where all chains wait
+ * for the slowest one, so a short interval trades thread utilisation for more frequent swaps.
+ * Consequently, the chain currently holding inverse temperature 1 is the one writing samples
+ * through the (shared) sampler; all other chains are muted.
+ * <p/>
+ * Each chain must be a fully independent <code>MCMCManager</code> with its own state parameters,
+ * models, iteration, thinner, PRNG, etc. They must have identical numbers of iterations and thinning,
+ * and use a <code>HeatedAcceptor</code>. Read-only data, e.g. the sequence alignment, may be shared.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class MC3Manager implements InfoProvider {
+
+	/** Chains. */
+	private ArrayList<MCMCManager> chains;
+
+	/** Acceptors of the chains, in the same order. */
+	private ArrayList<HeatedAcceptor> acceptors;
+
+	/** Inverse temperature ladder, beta[0]=1 is cold. */
+	private double[] betas;
+
+	/** Chain index currently holding the k-th inverse temperature of the ladder. */
+	private int[] ladder;
+
+	/** Heating parameter. */
+	private double heat;
+
+	/** Number of iterations between swap attempts. */
+	private int swapInterval;
+
+	/** PRNG for swaps. */
+	private PRNG prng;
+
+	/** Proposed swaps per adjacent ladder pair (k,k+1). */
+	private int[] swapsProposed;
+
+	/** Accepted swaps per adjacent ladder pair (k,k+1). */
+	private int[] swapsAccepted;
+
+	/** Time at iteration start in ns. */
+	private long startTime;
+
+	/** Time at iteration end in ns. */
+	private long endTime;
+
+	/** If run was aborted. */
+	private String runAbortedMessage = null;
+
+	/**
+	 * Constructor.
+	 * @param chains the chains. The first chain is initially cold.
+	 * @param heat heating parameter (&gt;0) of the incremental heating scheme.
+	 * @param swapInterval number of iterations between swap attempts.
+	 * @param prng PRNG for swaps. Should not be used by any of the chains.
+	 */
+	public MC3Manager(List<MCMCManager> chains, double heat, int swapInterval, PRNG prng) {
+		if (chains.isEmpty()) {
+			throw new IllegalArgumentException("Cannot create MC3 manager without chains.");
+		}
+		if (heat <= 0.0) {
+			throw new IllegalArgumentException("MC3 heating parameter must be positive.");
+		}
+		if (swapInterval < 1) {
+			throw new IllegalArgumentException("MC3 swap interval must be at least 1.");
+		}
+		int n = chains.size();
+		this.chains = new ArrayList<MCMCManager>(chains);
+		this.acceptors = new ArrayList<HeatedAcceptor>(n);
+		this.betas = new double[n];
+		this.ladder = new int[n];
+		this.heat = heat;
+		this.swapInterval = swapInterval;
+		this.prng = prng;
+		this.swapsProposed = new int[Math.max(n - 1, 0)];
+		this.swapsAccepted = new int[Math.max(n - 1, 0)];
+		for (int k = 0; k < n; ++k) {
+			MCMCManager chain = this.chains.get(k);
+			if (!(chain.getProposalAcceptor() instanceof HeatedAcceptor)) {
+				throw new IllegalArgumentException("MC3 chains must use heated acceptors.");
+			}
+			HeatedAcceptor acc = (HeatedAcceptor) chain.getProposalAcceptor();
+			this.betas[k] = 1.0 / (1.0 + k * heat);
+			this.ladder[k] = k;
+			acc.setBeta(this.betas[k]);
+			this.acceptors.add(acc);
+			chain.setOutput(k == 0);
+		}
+	}
+
+	/**
+	 * Returns the number of chains.
+	 * @return the number of chains.
+	 */
+	public int getNoOfChains() {
+		return this.chains.size();
+	}
+
+	/**
+	 * Returns the chain which is currently cold.
+	 * @return the cold chain.
+	 */
+	public MCMCManager getColdChain() {
+		return this.chains.get(this.ladder[0]);
+	}
+
+	/**
+	 * Starts and executes all chains.
+	 * @throws IOException if unable to produce sampling output.
+	 */
+	public void run() throws IOException {
+		// Init in order, so that the cold chain writes the header first.
+		for (MCMCManager chain : this.chains) {
+			chain.initRun();
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(this.chains.size(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MC3Chain");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		ArrayList<Segment> segments = new ArrayList<Segment>(this.chains.size());
+		for (MCMCManager chain : this.chains) {
+			segments.add(new Segment(chain));
+		}
+
+		this.startTime = System.nanoTime();
+		try {
+			boolean doContinue = true;
+			while (doContinue) {
+				for (Future<Boolean> f : pool.invokeAll(segments)) {
+					doContinue &= f.get();
+				}
+				if (doContinue) {
+					this.trySwap();
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("MC3 chains were interrupted.", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RunAbortedException) {
+				this.runAbortedMessage = cause.getMessage();
+				for (MCMCManager chain : this.chains) {
+					chain.setRunAbortedMessage(this.runAbortedMessage);
+				}
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else {
+				throw new RuntimeException("Error in MC3 chain.", cause);
+			}
+		} finally {
+			pool.shutdown();
+		}
+		this.endTime = System.nanoTime();
+		for (MCMCManager chain : this.chains) {
+			chain.finishRun();
+		}
+	}
+
+	/**
+	 * Proposes an exchange of temperatures between a random pair of chains adjacent in the ladder.
+	 * Package-private for testing.
+	 * @return true if the exchange was accepted; false if rejected.
+	 */
+	boolean trySwap() {
+		int n = this.chains.size();
+		if (n < 2) {
+			return false;
+		}
+		int k = this.prng.nextInt(n - 1);
+		int i = this.ladder[k];
+		int j = this.ladder[k + 1];
+		double logPi = this.chains.get(i).getPosteriorDensity().getLogValue();
+		double logPj = this.chains.get(j).getPosteriorDensity().getLogValue();
+		double logA = (this.betas[k] - this.betas[k + 1]) * (logPj - logPi);
+		this.swapsProposed[k]++;
+		if (logA >= 0.0 || Math.log(this.prng.nextDouble()) < logA) {
+			this.swapsAccepted[k]++;
+			this.ladder[k] = j;
+			this.ladder[k + 1] = i;
+			this.acceptors.get(j).setBeta(this.betas[k]);
+			this.acceptors.get(i).setBeta(this.betas[k + 1]);
+			if (k == 0) {
+				this.chains.get(i).setOutput(false);
+				this.chains.get(j).setOutput(true);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String getPreInfo(String prefix) {
+		StringBuilder sb = new StringBuilder(65536);
+		sb.append(prefix).append("MC3 MANAGER\n");
+		sb.append(prefix).append("Number of chains: ").append(this.chains.size()).append('\n');
+		sb.append(prefix).append("Heating parameter: ").append(this.heat).append('\n');
+		sb.append(prefix).append("Inverse temperatures: ");
+		for (double b : this.betas) {
+			sb.append(b).append(' ');
+		}
+		sb.append('\n');
+		sb.append(prefix).append("Swap interval: ").append(this.swapInterval).append(" (all chains synchronise at each swap attempt)\n");
+		sb.append(prefix).append("Pseudo-random number generator:\n");
+		sb.append(this.prng.getPreInfo(prefix + '\t'));
+		for (int i = 0; i < this.chains.size(); ++i) {
+			sb.append(prefix).append("Chain ").append(i).append(":\n");
+			sb.append(this.chains.get(i).getPreInfo(prefix + '\t'));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String getPostInfo(String prefix) {
+		StringBuilder sb = new StringBuilder(65536);
+		sb.append(prefix).append("MC3 MANAGER\n");
+		if (this.runAbortedMessage != null) {
+			sb.append(prefix).append("Run abortion reason: ").append(this.runAbortedMessage).append('\n');
+		}
+		sb.append(MCMCManager.getWallTimeInfo(prefix, this.endTime - this.startTime));
+		DecimalFormat df = new DecimalFormat("#.##");
+		sb.append(prefix).append("Swap acceptance ratios of adjacent inverse temperatures:\n");
+		for (int k = 0; k < this.swapsProposed.length; ++k) {
+			double ratio = this.swapsProposed[k] == 0 ? 0.0 : (double) this.swapsAccepted[k] / this.swapsProposed[k];
+			sb.append(prefix).append('\t').append(this.betas[k]).append(" <-> ").append(this.betas[k + 1]).append(": ")
+			.append(this.swapsAccepted[k]).append(" / ").append(this.swapsProposed[k]).append(" = ").append(df.format(ratio)).append('\n');
+		}
+		sb.append(prefix).append("Final cold chain: ").append(this.ladder[0]).append('\n');
+		sb.append(MCMCManager.getBestStateInfo(prefix, this.chains));
+		sb.append(prefix).append("Pseudo-random number generator:\n");
+		sb.append(this.prng.getPostInfo(prefix + '\t'));
+		for (int i = 0; i < this.chains.size(); ++i) {
+			sb.append(prefix).append("Chain ").append(i).append(":\n");
+			sb.append(this.chains.get(i).getPostInfo(prefix + '\t'));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Runs a segment of at most <code>swapInterval</code> iterations of a single chain.
+	 */
+	private class Segment implements Callable<Boolean> {
+
+		/** Chain. */
+		private final MCMCManager chain;
+
+		/**
+		 * Constructor.
+		 * @param chain the chain.
+		 */
+		Segment(MCMCManager chain) {
+			this.chain = chain;
+		}
+
+		/**
+		 * Iterates the chain.
+		 * @return true if the chain has more iterations left; false if finished.
+		 */
+		@Override
+		public Boolean call() throws IOException {
+			Iteration iter = this.chain.getIteration();
+			for (int i = 0; i < swapInterval; ++i) {
+				if (!iter.increment()) {
+					return false;
+				}
+				this.chain.doIteration();
+			}
+			return true;
+		}
+	}
+}
@@ -1,14 +1,28 @@
 package se.cbb.jprime.mcmc;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import se.cbb.jprime.io.SampleLogDouble;
 import se.cbb.jprime.io.Sampleable;
 import se.cbb.jprime.io.Sampler;
+import se.cbb.jprime.io.SampleSnapshot;
+import se.cbb.jprime.io.SampleSnapshots;
+import se.cbb.jprime.io.SnapshotSampleable;
 import se.cbb.jprime.math.LogDouble;
 import se.cbb.jprime.math.PRNG;
 
@@ -56,10 +70,19 @@ import se.cbb.jprime.math.PRNG;
  * </li>
  * <li>Go to 1 or finish.</li>
  * </ol>
+ * Optionally, a binary checkpoint of the chain is written regularly, from which a run may later be resumed,
+ * see <code>setCheckpointing(...)</code>. Also, the samples may be fed to convergence diagnostics, upon which the
+ * run is aborted once its targets are met, see <code>setConvergenceDiagnostics(...)</code>.
  * 
  * @author Joel Sjöstrand.
  */
-public class MCMCManager implements Sampleable, InfoProvider {
+public class MCMCManager implements SnapshotSampleable, InfoProvider {
+
+	/** Checkpoint file identifier. */
+	public static final String CHECKPOINT_ID = "JPrIME MCMC checkpoint";
+
+	/** Checkpoint format version. */
+	public static final int CHECKPOINT_VERSION = 2;
 
 	/** Iteration of MCMC chain. */
 	protected Iteration iteration;
@@ -97,8 +120,11 @@ public class MCMCManager implements Sampleable, InfoProvider {
 	/** Best seen overall (unnormalised) posterior density so far. */
 	protected LogDouble bestPosteriorDensity;
 
-	/** Best seen state so far. */
-	protected String bestState;
+	/** Snapshots of the best seen state so far. Null if only available as a string. */
+	protected SampleSnapshot[] bestState;
+
+	/** Best seen state so far as a sample string, rendered on demand. */
+	protected String bestStateString;
 
 	/** Time at iteration start in ns. */
 	protected long startTime;
@@ -115,6 +141,54 @@ public class MCMCManager implements Sampleable, InfoProvider {
 	/** Debug flag. */
 	protected boolean doDebug = false;
 
+	/** If samples and debug info are written through the sampler. */
+	protected boolean doOutput = true;
+
+	/** Change info of the current iteration. */
+	protected ChangeInfoMap changeInfos = null;
+	
+	/** Index in the change info map of each proper dependent, in topological order. */
+	private int[] dependentIndices = null;
+	
+	/** Indices in the change info map of the parents of each proper dependent, in topological order. */
+	private int[][] parentIndices = null;
+	
+	/** Posterior density of the proposed state, swapped with the current density upon acceptance. */
+	protected LogDouble proposedPosteriorDensity = null;
+	
+	/** Statistics categories, indexed by number of used proposers. */
+	private String[] usedProposersCategories = new String[8];
+
+	/** Proposals of the current iteration. */
+	protected ArrayList<Proposal> proposals = null;
+
+	/** Checkpoint file. Null if not checkpointing. */
+	protected File checkpointFile = null;
+
+	/** Number of iterations between checkpoints. */
+	protected int checkpointInterval = 0;
+
+	/** If the run should be resumed from the checkpoint file. */
+	protected boolean doResume = false;
+
+	/** Convergence diagnostics fed with the samples of the chain. Null if not used. */
+	protected ConvergenceDiagnostics diagnostics = null;
+
+	/** Index of the chain's trace in the convergence diagnostics. */
+	protected int diagnosticsTrace = 0;
+
+	/** Real-valued parameters fed to the convergence diagnostics. */
+	protected RealParameter[] diagnosticsParams = null;
+
+	/** Source of clades fed to the convergence diagnostics. Null if not used. */
+	protected CladeSource diagnosticsClades = null;
+
+	/** Number of initial iterations not fed to the convergence diagnostics. */
+	protected int diagnosticsBurnIn = 0;
+
+	/** Scalars of the current sample fed to the convergence diagnostics. */
+	private double[] diagnosticsValues = null;
+
 	/**
 	 * Constructor.
 	 * @param iteration iteration object of the chain.
@@ -140,6 +214,7 @@ public class MCMCManager implements Sampleable, InfoProvider {
 		this.posteriorDensity = null;
 		this.bestPosteriorDensity = null;
 		this.bestState = null;
+		this.bestStateString = null;
 		this.startTime = -1;
 		this.endTime = -1;
 		this.stats = stats;
@@ -178,6 +253,19 @@ public class MCMCManager implements Sampleable, InfoProvider {
 		}
 	}
 
+	/**
+	 * Releases the resources held by the models and other dependents of the chain, e.g. worker threads,
+	 * by closing those that are <code>Closeable</code>. Should be invoked once the chain is no longer used.
+	 * @throws IOException if a dependent could not be closed.
+	 */
+	public void close() throws IOException {
+		for (ProperDependent pd : this.properDependents) {
+			if (pd instanceof Closeable) {
+				((Closeable) pd).close();
+			}
+		}
+	}
+
 	/**
 	 * Adds a "sampleable", i.e. a field which will be included when
 	 * outputting MCMC samples. Typically, these consist of state parameters and models.
@@ -208,6 +296,76 @@ public class MCMCManager implements Sampleable, InfoProvider {
 				this.properDependents.add((ProperDependent) dep);
 			}
 		}
+
+		// Resolve the DAG into indices, so that iterations need not look up dependents.
+		ArrayList<Dependent> all = new ArrayList<Dependent>(this.parameters.size() + sorted.size());
+		all.addAll(this.parameters);
+		all.addAll(sorted);
+		this.changeInfos = new ChangeInfoMap(all);
+		int n = this.properDependents.size();
+		this.dependentIndices = new int[n];
+		this.parentIndices = new int[n][];
+		for (int i = 0; i < n; ++i) {
+			ProperDependent dep = this.properDependents.get(i);
+			this.dependentIndices[i] = this.changeInfos.getIndex(dep);
+			Dependent[] parents = dep.getParentDependents();
+			this.parentIndices[i] = new int[parents.length];
+			for (int j = 0; j < parents.length; ++j) {
+				this.parentIndices[i][j] = this.changeInfos.getIndex(parents[j]);
+			}
+		}
+	}
+
+	/**
+	 * Asks the proper dependents relying on changed dependents to cache and update, in topological order.
+	 * @param willSample true if the current state will be sampled.
+	 */
+	private void cacheAndUpdateDependents(boolean willSample) {
+		ChangeInfoMap changeInfos = this.changeInfos;
+		for (int i = 0; i < this.parentIndices.length; ++i) {
+			int[] parents = this.parentIndices[i];
+			for (int j = 0; j < parents.length; ++j) {
+				if (changeInfos.isChanged(parents[j])) {
+					this.properDependents.get(i).cacheAndUpdate(changeInfos, willSample);
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Asks the changed proper dependents to clear or restore their caches.
+	 * @param doClear true to clear caches; false to restore caches.
+	 * @param willSample true if the current state will be sampled.
+	 */
+	private void clearOrRestoreDependents(boolean doClear, boolean willSample) {
+		ChangeInfoMap changeInfos = this.changeInfos;
+		for (int i = 0; i < this.dependentIndices.length; ++i) {
+			if (changeInfos.isChanged(this.dependentIndices[i])) {
+				if (doClear) {
+					this.properDependents.get(i).clearCache(willSample);
+				} else {
+					this.properDependents.get(i).restoreCache(willSample);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the statistics category for a number of used proposers.
+	 * @param no the number of used proposers.
+	 * @return the category.
+	 */
+	private String getUsedProposersCategory(int no) {
+		if (no >= this.usedProposersCategories.length) {
+			this.usedProposersCategories = Arrays.copyOf(this.usedProposersCategories, no + 1);
+		}
+		String cat = this.usedProposersCategories[no];
+		if (cat == null) {
+			cat = "" + no + " used proposers";
+			this.usedProposersCategories[no] = cat;
+		}
+		return cat;
 	}
 
 	/**
@@ -237,151 +395,496 @@ public class MCMCManager implements Sampleable, InfoProvider {
 		this.doDebug = isOn;
 	}
 
+	/**
+	 * Turns on/off output of samples and debugging info through the sampler. Output is on by default.
+	 * May e.g. be used for chains of an <code>MC3Manager</code>, where only the cold chain is sampled.
+	 * @param isOn true to enable output; false to disable.
+	 */
+	public void setOutput(boolean isOn) {
+		this.doOutput = isOn;
+	}
+
+	/**
+	 * Returns whether samples and debugging info are written through the sampler.
+	 * @return true if output is enabled; false if disabled.
+	 */
+	public boolean getOutput() {
+		return this.doOutput;
+	}
+
+	/**
+	 * Enables regular checkpointing of the chain. All state parameters must be <code>Checkpointable</code>.
+	 * The checkpoint comprises the state parameters, the PRNG, the iteration (and thus everything driven by it,
+	 * such as tuning parameters, proposer weights and thinning), proposer statistics, and the sampler
+	 * position if supported. When resuming, the chain must have been set up identically to the original run
+	 * (apart from the PRNG seed), and only the dependents of restored state parameters which differ from the
+	 * initial state are recomputed. The resumed chain is then bit-identical to the original one.
+	 * @param f the checkpoint file. Overwritten at each checkpoint.
+	 * @param interval number of iterations between checkpoints.
+	 * @param doResume true to resume the run from the checkpoint file; false to start from scratch.
+	 */
+	public void setCheckpointing(File f, int interval, boolean doResume) {
+		if (interval < 1) {
+			throw new IllegalArgumentException("Checkpoint interval must be at least 1.");
+		}
+		this.checkpointFile = f;
+		this.checkpointInterval = interval;
+		this.doResume = doResume;
+	}
+
+	/**
+	 * Enables feeding of samples to convergence diagnostics, and aborts the run once its targets are met.
+	 * Each sample comprises the logarithm of the unnormalised posterior density, the values of the specified
+	 * parameters, and optionally the clades of a tree. Only samples output by the chain are fed, so the chains of
+	 * an <code>MC3Manager</code> may all share the same trace, which will then follow the cold chain.
+	 * The diagnostics are not checkpointed, so a resumed run starts afresh.
+	 * @param diagnostics the diagnostics, possibly shared by several chains.
+	 * @param trace the index of the chain's trace in the diagnostics.
+	 * @param params the real-valued parameters to monitor.
+	 * @param clades the source of clades to monitor; null to not monitor clades.
+	 * @param burnIn number of initial iterations not fed to the diagnostics.
+	 */
+	public void setConvergenceDiagnostics(ConvergenceDiagnostics diagnostics, int trace, List<? extends RealParameter> params,
+			CladeSource clades, int burnIn) {
+		ArrayList<String> names = new ArrayList<String>();
+		names.add("LogUnnormalizedPosteriorDensity");
+		for (RealParameter p : params) {
+			int n = p.getNoOfSubParameters();
+			for (int i = 0; i < n; ++i) {
+				names.add(n == 1 ? p.getName() : p.getName() + '[' + i + ']');
+			}
+		}
+		diagnostics.setScalarNames(names.toArray(new String[names.size()]));
+		this.diagnostics = diagnostics;
+		this.diagnosticsTrace = trace;
+		this.diagnosticsParams = params.toArray(new RealParameter[params.size()]);
+		this.diagnosticsClades = clades;
+		this.diagnosticsBurnIn = burnIn;
+		this.diagnosticsValues = new double[names.size()];
+	}
+
+	/**
+	 * Returns the convergence diagnostics fed by the chain.
+	 * @return the diagnostics; null if not used.
+	 */
+	public ConvergenceDiagnostics getConvergenceDiagnostics() {
+		return this.diagnostics;
+	}
+
+	/**
+	 * Returns the proposal acceptor.
+	 * @return the acceptor.
+	 */
+	public ProposalAcceptor getProposalAcceptor() {
+		return this.proposalAcceptor;
+	}
+
+	/**
+	 * Returns the iteration object of the chain.
+	 * @return the iteration.
+	 */
+	public Iteration getIteration() {
+		return this.iteration;
+	}
+
+	/**
+	 * Returns the current overall (unnormalised) posterior density.
+	 * The returned object is reused by the chain and changes as it iterates.
+	 * @return the density; null if the chain has not been started.
+	 */
+	public LogDouble getPosteriorDensity() {
+		return this.posteriorDensity;
+	}
+
+	/**
+	 * Returns the best seen overall (unnormalised) posterior density so far.
+	 * The returned object is reused by the chain and changes as it iterates.
+	 * @return the density; null if the chain has not been started.
+	 */
+	public LogDouble getBestPosteriorDensity() {
+		return this.bestPosteriorDensity;
+	}
+
+	/**
+	 * Returns the best seen state so far. The state is captured as snapshots when encountered,
+	 * and only formatted when requested.
+	 * @return the state, as a sample string.
+	 */
+	public String getBestState() {
+		if (this.bestStateString == null && this.bestState != null) {
+			this.bestStateString = this.sampler.getSample(this.bestState);
+		}
+		return this.bestStateString;
+	}
+
+	/**
+	 * Captures the current state as the best seen state, without formatting it.
+	 */
+	private void captureBestState() {
+		this.bestState = SampleSnapshots.capture(this.sampleables, this.bestState, SamplingMode.MAX_RECORD);
+		this.bestStateString = null;
+	}
+
+	/**
+	 * Returns the sampler.
+	 * @return the sampler.
+	 */
+	public Sampler getSampler() {
+		return this.sampler;
+	}
+
+	/**
+	 * Returns the sampleables.
+	 * @return the fields included in each sample.
+	 */
+	public ArrayList<Sampleable> getSampleables() {
+		return this.sampleables;
+	}
+
 	/**
 	 * Starts and executes the MCMC chain.
 	 * @throws IOException if unable to produce sampling output.
 	 */
 	public void run() throws IOException,  ArithmeticException{
+		this.initRun();
+		try {
+			while (this.iteration.increment()) {
+				this.doIteration();
+			}
+		} catch (RunAbortedException rae) {
+			this.runAbortedMessage = rae.getMessage();
+		}
+		this.finishRun();
+	}
+
+	/**
+	 * Prepares the chain for iterating: sorts the dependency DAG, writes the sample header
+	 * and computes the initial posterior density.
+	 * @throws IOException if unable to produce sampling output.
+	 */
+	protected void initRun() throws IOException {
 		// Update the topological ordering of the dependency DAG.
 		this.updateDependencyStructure();
+		if (this.checkpointFile != null) {
+			for (StateParameter p : this.parameters) {
+				if (!(p instanceof Checkpointable)) {
+					throw new IllegalArgumentException("State parameter " + p.getName() + " does not support checkpointing.");
+				}
+			}
+		}
 
-		// Write sample header.
-		this.sampler.writeSampleHeader(this.sampleables);
+		if (this.doResume) {
+			// Pick up where the checkpointed run ended. Header and samples have already been written.
+			this.readCheckpoint(this.checkpointFile);
+		} else {
+			// Write sample header.
+			if (this.doOutput) {
+				this.sampler.writeSampleHeader(this.sampleables);
+			}
 
-		// First time, assume all objects are up-to-date and compute initial posterior density.
-		this.posteriorDensity = new LogDouble(1.0);
+			// First time, assume all objects are up-to-date and compute initial posterior density.
+			this.posteriorDensity = new LogDouble(1.0);
+			boolean willSample = this.thinner.doSample();
+			for (InferenceModel m : this.models) {
+				this.posteriorDensity.mult(m.getDataProbability());
+			}
+			if (willSample && this.doOutput) {
+				this.sampler.writeSample(this.sampleables, SamplingMode.ORDINARY);
+			}
+			this.bestPosteriorDensity = new LogDouble(this.posteriorDensity);
+			this.captureBestState();
+		}
+
+		this.startTime = System.nanoTime();
+		this.proposedPosteriorDensity = new LogDouble(1.0);
+		this.proposals = new ArrayList<Proposal>(16);
+	}
+
+	/**
+	 * Performs a single iteration, assuming that the iteration object has already been incremented.
+	 * @throws IOException if unable to produce sampling output.
+	 * @throws RunAbortedException if the proposal acceptor deems the run finished.
+	 */
+	protected void doIteration() throws IOException, RunAbortedException {
+		ChangeInfoMap changeInfos = this.changeInfos;
+		ArrayList<Proposal> proposals = this.proposals;
+
+		// Clear lists.
+		changeInfos.clear();
+		proposals.clear();
+
+		// Query whether this is a sample iteration or not.
 		boolean willSample = this.thinner.doSample();
-		for (InferenceModel m : this.models) {
 
+		// Get proposer(s) to use.
+		ArrayList<Proposer> shakeItBaby = this.proposerSelector.getDisjointProposers();
+		int noOfProposers = shakeItBaby.size();
+		
+		// Debug info.
+		boolean doDebug = this.doDebug && this.doOutput;
+		if (doDebug) {
+			StringBuilder dbg = new StringBuilder(512);
+			dbg.append("# Iteration: ").append(this.iteration.getIteration()).append(", unnormalised posterior density: ").append(this.posteriorDensity.toString())
+			.append(", about to use: ");
+			for (Proposer p : shakeItBaby) {
+				dbg.append(p.toString()).append(", ");
+			}
+			this.sampler.writeString(dbg.toString());
+		}
 
-			this.posteriorDensity.mult(m.getDataProbability());
-			//System.out.println( m.toString() + "\t prob:" + m.getDataProbability(this.prng) + "\t density: " + this.posteriorDensity.getValue());
+		// Perturb state parameters.
+		for (int i = 0; i < noOfProposers; ++i) {
+			Proposal proposal = shakeItBaby.get(i).cacheAndPerturb(changeInfos);
+			proposals.add(proposal);
 		}
-		if (willSample) {
-			this.sampler.writeSample(this.sampleables, SamplingMode.ORDINARY);
+
+		// Update in topological order, but only if deemed necessary.
+		this.cacheAndUpdateDependents(willSample);
+
+		// Get posterior density of proposed state.
+		LogDouble newPosteriorDensity = this.proposedPosteriorDensity.set(1.0);
+		for (int i = 0; i < this.models.size(); ++i) {
+			newPosteriorDensity.mult(this.models.get(i).getDataProbability());
 		}
-		this.bestPosteriorDensity = this.posteriorDensity;
-		this.bestState = this.sampler.getSample(this.sampleables, SamplingMode.MAX_RECORD);
 
-		// Iterate.
-		this.startTime = System.nanoTime();
-		HashMap<Dependent, ChangeInfo> changeInfos = new HashMap<Dependent, ChangeInfo>(16);
-		ArrayList<Proposal> proposals = new ArrayList<Proposal>(16);
+		// Finally, decide whether to accept or reject.
+		boolean doAccept = false;
 		try {
-			while (this.iteration.increment()) {
+			if(newPosteriorDensity.greaterThan(0.0)){
+				doAccept = this.proposalAcceptor.acceptProposedState(newPosteriorDensity, this.posteriorDensity, proposals);
+			}
+		}
+		catch (ArithmeticException e) {
+			throw new ArithmeticException("The current state has zero probability and that is undefined behaviour in MCMC algorithms. You need better start parameters.");
+		}
 
-				// Clear lists.
-				changeInfos.clear();
-				proposals.clear();
-
-				// Query whether this is a sample iteration or not.
-				willSample = this.thinner.doSample();
-
-				// Get proposer(s) to use.
-				;
-				ArrayList<Proposer> shakeItBaby = this.proposerSelector.getDisjointProposers();
-				
-				// Debug info.
-				if (this.doDebug) {
-					StringBuilder dbg = new StringBuilder(512);
-					dbg.append("# Iteration: ").append(this.iteration.getIteration()).append(", unnormalised posterior density: ").append(this.posteriorDensity.toString())
-					.append(", about to use: ");
-					for (Proposer p : shakeItBaby) {
-						dbg.append(p.toString()).append(", ");
-					}
-					this.sampler.writeString(dbg.toString());
-				}
+		// Debug info.
+		if (doDebug) {
+			this.sampler.writeString(doAccept ? " ...state accepted," : " ...state rejected,");
+		}
 
-				// Perturb state parameters.
-				for (Proposer proposer : shakeItBaby) {
-					Proposal proposal = proposer.cacheAndPerturb(changeInfos);
-					proposals.add(proposal);
-				}
+		// Update accordingly.
+		if (doAccept) {
+			stats.increment(true, this.getUsedProposersCategory(noOfProposers));
+			for (int i = 0; i < noOfProposers; ++i) {
+				shakeItBaby.get(i).clearCache();
+			}
+			this.clearOrRestoreDependents(true, willSample);
+			this.proposedPosteriorDensity = this.posteriorDensity;
+			this.posteriorDensity = newPosteriorDensity;
+			if (this.bestPosteriorDensity.lessThan(newPosteriorDensity)) {
+				this.bestPosteriorDensity.set(newPosteriorDensity);
+				this.captureBestState();
+			}
+		} else {
+			stats.increment(false, this.getUsedProposersCategory(noOfProposers));
+			for (int i = 0; i < noOfProposers; ++i) {
+				shakeItBaby.get(i).restoreCache();
+			}
+			this.clearOrRestoreDependents(false, willSample);
+		}
 
-				// Update in topological order, but only if deemed necessary.
-				for (ProperDependent dep : this.properDependents) {
-					for (Dependent parent : dep.getParentDependents()) {
-						if (changeInfos.get(parent) != null) {
-							dep.cacheAndUpdate(changeInfos, willSample);
-							break;
-						}
-					}
-				}
+		// Debug info.
+		if (doDebug) {
+			this.sampler.writeString(doAccept ? " ...cached state deleted.\n" : " ...cached state reinstated.\n");
+		}
+
+		// Sample, if desired.
+		if (willSample && this.doOutput) {
+			this.sampler.writeSample(this.sampleables, SamplingMode.ORDINARY);
+			if (this.diagnostics != null && this.iteration.getIteration() > this.diagnosticsBurnIn) {
+				this.feedDiagnostics();
+			}
+		}
+
+		// Checkpoint, if desired.
+		if (this.checkpointFile != null && this.iteration.getIteration() % this.checkpointInterval == 0) {
+			this.writeCheckpoint(this.checkpointFile);
+		}
+	}
+
+	/**
+	 * Feeds the current state to the convergence diagnostics.
+	 * @throws RunAbortedException if the targets of the diagnostics have been met.
+	 */
+	private void feedDiagnostics() throws RunAbortedException {
+		double[] vals = this.diagnosticsValues;
+		vals[0] = this.posteriorDensity.getLogValue();
+		int k = 1;
+		for (RealParameter p : this.diagnosticsParams) {
+			int n = p.getNoOfSubParameters();
+			for (int i = 0; i < n; ++i) {
+				vals[k++] = p.getValue(i);
+			}
+		}
+		if (this.diagnostics.addSample(this.diagnosticsTrace, vals, this.diagnosticsClades)) {
+			throw new RunAbortedException("Convergence diagnostics targets met at iteration " + this.iteration.getIteration() + '.');
+		}
+	}
 
-				// Get posterior density of proposed state.
-				LogDouble newPosteriorDensity = new LogDouble(1.0);
-				for (InferenceModel m : this.models) {
-					newPosteriorDensity.mult(m.getDataProbability());
+	/**
+	 * Writes a binary checkpoint of the chain. The file is first written under a temporary name,
+	 * so that a crash while writing does not destroy the previous checkpoint.
+	 * @param f the checkpoint file.
+	 * @throws IOException if unable to write the checkpoint.
+	 */
+	public void writeCheckpoint(File f) throws IOException {
+		File tmp = new File(f.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			out.writeUTF(CHECKPOINT_ID);
+			out.writeInt(CHECKPOINT_VERSION);
+			this.iteration.writeState(out);
+			this.prng.writeState(out);
+			out.writeInt(this.parameters.size());
+			for (StateParameter p : this.parameters) {
+				out.writeUTF(p.getName());
+				byte[] state = getState(p);
+				out.writeInt(state.length);
+				out.write(state);
+			}
+			this.stats.writeState(out);
+			ArrayList<Proposer> proposers = this.proposerSelector.getProposers();
+			out.writeInt(proposers.size());
+			for (Proposer p : proposers) {
+				ProposerStatistics ps = p.getStatistics();
+				out.writeBoolean(ps != null);
+				if (ps != null) {
+					ps.writeState(out);
 				}
+				out.writeBoolean(p instanceof Checkpointable);
+				if (p instanceof Checkpointable) {
+					((Checkpointable) p).writeState(out);
+				}
+			}
+			out.writeDouble(this.posteriorDensity.getLogValue());
+			out.writeInt(this.posteriorDensity.getSign());
+			out.writeDouble(this.bestPosteriorDensity.getLogValue());
+			out.writeInt(this.bestPosteriorDensity.getSign());
+			byte[] best = this.getBestState().getBytes("UTF-8");
+			out.writeInt(best.length);
+			out.write(best);
+			out.writeBoolean(this.sampler instanceof Checkpointable);
+			if (this.sampler instanceof Checkpointable) {
+				((Checkpointable) this.sampler).writeState(out);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(f)) {
+			// Some platforms cannot rename onto an existing file.
+			if (!f.delete() || !tmp.renameTo(f)) {
+				throw new IOException("Could not write checkpoint file " + f + '.');
+			}
+		}
+	}
 
-				// Finally, decide whether to accept or reject.
-				boolean doAccept = false;
-				try {
-					if(newPosteriorDensity.greaterThan(0.0)){
-						doAccept = this.proposalAcceptor.acceptProposedState(newPosteriorDensity, this.posteriorDensity, proposals);
-						//System.out.println();
-//						for (InferenceModel m : this.models) {	
-//							System.out.println( m.toString() + "\t prob:" + m.getDataProbability(this.prng) );
-//						}
-						//System.out.println();
-					}
+	/**
+	 * Restores the chain from a binary checkpoint. State parameters which differ from the current state
+	 * are restored, after which their dependents are updated in topological order.
+	 * @param f the checkpoint file.
+	 * @throws IOException if unable to read the checkpoint, or if it does not match the chain.
+	 */
+	protected void readCheckpoint(File f) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			if (!CHECKPOINT_ID.equals(in.readUTF()) || in.readInt() != CHECKPOINT_VERSION) {
+				throw new IOException("Invalid checkpoint file " + f + '.');
+			}
+			this.iteration.readState(in);
+			this.prng.readState(in);
+			if (in.readInt() != this.parameters.size()) {
+				throw new IOException("Checkpoint does not match the number of state parameters.");
+			}
+			ChangeInfoMap changeInfos = this.changeInfos;
+			changeInfos.clear();
+			for (StateParameter p : this.parameters) {
+				String name = in.readUTF();
+				if (!name.equals(p.getName())) {
+					throw new IOException("Checkpoint does not match state parameter " + p.getName() + "; found " + name + '.');
 				}
-				catch (ArithmeticException e) {
-					throw new ArithmeticException("The current state has zero probability and that is undefined behaviour in MCMC algorithms. You need better start parameters.");
+				byte[] state = new byte[in.readInt()];
+				in.readFully(state);
+				if (!Arrays.equals(state, getState(p))) {
+					((Checkpointable) p).readState(new DataInputStream(new ByteArrayInputStream(state)));
+					changeInfos.put(p, new ChangeInfo(p, "Restored from checkpoint"));
 				}
+			}
 
+			// Update only what relies on restored parameters.
+			this.cacheAndUpdateDependents(false);
+			this.clearOrRestoreDependents(true, false);
+			changeInfos.clear();
 
-				// Debug info.
-				if (this.doDebug) {
-					this.sampler.writeString(doAccept ? " ...state accepted," : " ...state rejected,");
+			this.stats.readState(in);
+			ArrayList<Proposer> proposers = this.proposerSelector.getProposers();
+			if (in.readInt() != proposers.size()) {
+				throw new IOException("Checkpoint does not match the number of proposers.");
+			}
+			for (Proposer p : proposers) {
+				ProposerStatistics ps = p.getStatistics();
+				if (in.readBoolean() != (ps != null)) {
+					throw new IOException("Checkpoint does not match proposer " + p.toString() + '.');
 				}
-
-				// Update accordingly.
-				if (doAccept) {
-					stats.increment(true, "" + shakeItBaby.size() + " used proposers");
-					for (Proposer proposer : shakeItBaby) {
-						proposer.clearCache();
-					}
-					for (ProperDependent dep : this.properDependents) {
-						if (changeInfos.get(dep) != null) {
-							dep.clearCache(willSample);
-						}
-					}
-					this.posteriorDensity = newPosteriorDensity;
-					if (this.bestPosteriorDensity.lessThan(newPosteriorDensity)) {
-						this.bestPosteriorDensity = newPosteriorDensity;
-						this.bestState = this.sampler.getSample(this.sampleables, SamplingMode.MAX_RECORD);
-					}
-				} else {
-					stats.increment(false, "" + shakeItBaby.size() + " used proposers");
-					for (Proposer proposer : shakeItBaby) {
-						proposer.restoreCache();
-					}
-					for (ProperDependent dep: this.properDependents) {
-						if (changeInfos.get(dep) != null) {
-							dep.restoreCache(willSample);
-						}
-					}
+				if (ps != null) {
+					ps.readState(in);
 				}
-
-				// Debug info.
-				if (this.doDebug) {
-					this.sampler.writeString(doAccept ? " ...cached state deleted.\n" : " ...cached state reinstated.\n");
+				if (in.readBoolean() != (p instanceof Checkpointable)) {
+					throw new IOException("Checkpoint does not match proposer " + p.toString() + '.');
 				}
-
-				// Sample, if desired.
-				if (willSample) {
-					this.sampler.writeSample(this.sampleables, SamplingMode.ORDINARY);
+				if (p instanceof Checkpointable) {
+					((Checkpointable) p).readState(in);
 				}
 			}
-		} catch (RunAbortedException rae) {
-			this.runAbortedMessage = rae.getMessage();
+			double logP = in.readDouble();
+			this.posteriorDensity = new LogDouble(logP, in.readInt());
+			double bestLogP = in.readDouble();
+			this.bestPosteriorDensity = new LogDouble(bestLogP, in.readInt());
+			byte[] best = new byte[in.readInt()];
+			in.readFully(best);
+			this.bestState = null;
+			this.bestStateString = new String(best, "UTF-8");
+			if (in.readBoolean() != (this.sampler instanceof Checkpointable)) {
+				throw new IOException("Checkpoint does not match the sampler: sample output position " +
+						(this.sampler instanceof Checkpointable ? "missing." : "not supported."));
+			}
+			if (this.sampler instanceof Checkpointable) {
+				((Checkpointable) this.sampler).readState(in);
+			}
+		} finally {
+			in.close();
 		}
+	}
 
-		// Post-run stuff.
+	/**
+	 * Returns the serialised state of a state parameter.
+	 * @param p the parameter.
+	 * @return the state.
+	 * @throws IOException if unable to serialise.
+	 */
+	private static byte[] getState(StateParameter p) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		((Checkpointable) p).writeState(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Performs post-run bookkeeping.
+	 */
+	protected void finishRun() {
 		this.endTime = System.nanoTime();
 	}
 
+	/**
+	 * Sets a run abortion message, e.g. when the chain is aborted by an enclosing manager.
+	 * @param msg the message.
+	 */
+	protected void setRunAbortedMessage(String msg) {
+		this.runAbortedMessage = msg;
+	}
+
 	@Override
 	public Class<?> getSampleType() {
 		return SampleLogDouble.class;
@@ -397,6 +900,11 @@ public class MCMCManager implements Sampleable, InfoProvider {
 		return this.posteriorDensity.toString();
 	}
 
+	@Override
+	public SampleSnapshot getSampleSnapshot(SampleSnapshot reuse, SamplingMode mode) {
+		return SampleSnapshots.ofLogDouble(reuse, this.posteriorDensity);
+	}
+
 	@Override
 	public String getPreInfo(String prefix) {
 		StringBuilder sb = new StringBuilder(65536);
@@ -418,29 +926,74 @@ public class MCMCManager implements Sampleable, InfoProvider {
 		}
 		sb.append(prefix).append("Overall statistics:\n");
 		sb.append(this.stats.getPreInfo(prefix + '\t'));
+		if (this.diagnostics != null) {
+			sb.append(prefix).append("Convergence diagnostics:\n");
+			sb.append(this.diagnostics.getPreInfo(prefix + '\t'));
+		}
 		return sb.toString();
 	}
 
-	@Override
-	public String getPostInfo(String prefix) {
-		StringBuilder sb = new StringBuilder(65536);
-		sb.append(prefix).append("MCMC MANAGER\n");
-		if (this.runAbortedMessage != null) {
-			sb.append(prefix).append("Run abortion reason: ").append(this.runAbortedMessage).append('\n');
-		}
-		long ns = this.endTime - this.startTime;
+	/**
+	 * Returns a formatted wall time info line.
+	 * @param prefix prefix of the line.
+	 * @param ns the wall time in ns.
+	 * @return the line.
+	 */
+	static String getWallTimeInfo(String prefix, long ns) {
 		double s = (double) ns / 1000000000.0;
 		double m = s / 60.0;
 		double h = m / 60.0;
 		DecimalFormat df = new DecimalFormat("#.##");
+		StringBuilder sb = new StringBuilder(256);
 		sb.append(prefix).append("Wall time: ")
 		.append(ns).append(" ns = ")
 		.append(df.format(s)).append(" s = ")
 		.append(df.format(m)).append(" min = ")
 		.append(df.format(h)).append(" h\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the chain with the best seen posterior density among a number of chains.
+	 * @param chains the chains.
+	 * @return the chain.
+	 */
+	static MCMCManager getBestChain(List<MCMCManager> chains) {
+		MCMCManager best = chains.get(0);
+		for (MCMCManager chain : chains) {
+			if (best.getBestPosteriorDensity().lessThan(chain.getBestPosteriorDensity())) {
+				best = chain;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns formatted info on the best seen state among a number of chains.
+	 * @param prefix prefix of the lines.
+	 * @param chains the chains.
+	 * @return the info.
+	 */
+	static String getBestStateInfo(String prefix, List<MCMCManager> chains) {
+		MCMCManager best = getBestChain(chains);
+		StringBuilder sb = new StringBuilder(1024);
+		sb.append(prefix).append("Best encountered state over all chains (density ").append(best.getBestPosteriorDensity().toString()).append("):\n")
+		.append(prefix + "\t").append(best.getSampler().getSampleHeader(best.getSampleables())).append('\n')
+		.append(prefix + "\t").append(best.getBestState()).append("\n");
+		return sb.toString();
+	}
+
+	@Override
+	public String getPostInfo(String prefix) {
+		StringBuilder sb = new StringBuilder(65536);
+		sb.append(prefix).append("MCMC MANAGER\n");
+		if (this.runAbortedMessage != null) {
+			sb.append(prefix).append("Run abortion reason: ").append(this.runAbortedMessage).append('\n');
+		}
+		sb.append(getWallTimeInfo(prefix, this.endTime - this.startTime));
 		sb.append(prefix).append("Best encountered state:\n")
 		.append(prefix + "\t").append(this.sampler.getSampleHeader(this.sampleables)).append('\n')
-		.append(prefix + "\t").append(this.bestState).append("\n");
+		.append(prefix + "\t").append(this.getBestState()).append("\n");
 		sb.append(prefix).append("Pseudo-random number generator:\n");
 		sb.append(this.prng.getPostInfo(prefix + '\t'));
 		sb.append(prefix).append("Iteration:\n");
@@ -458,6 +1011,10 @@ public class MCMCManager implements Sampleable, InfoProvider {
 		}
 		sb.append(prefix).append("Statistics:\n");
 		sb.append(this.stats.getPostInfo(prefix + '\t'));
+		if (this.diagnostics != null) {
+			sb.append(prefix).append("Convergence diagnostics:\n");
+			sb.append(this.diagnostics.getPostInfo(prefix + '\t'));
+		}
 		return sb.toString();
 	}
 }
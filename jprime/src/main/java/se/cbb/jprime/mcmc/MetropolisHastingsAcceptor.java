@@ -16,6 +16,15 @@ public class MetropolisHastingsAcceptor implements ProposalAcceptor {
 
 	/** Pseudo-random number generator. */
 	private PRNG prng;
+	
+	/** Acceptance ratio, reused between invocations. */
+	private LogDouble a = new LogDouble();
+	
+	/** Proposal density ratio, reused between invocations. */
+	private LogDouble ratio = new LogDouble();
+	
+	/** Uniform random number, reused between invocations. */
+	private LogDouble u = new LogDouble();
 
 	/**
 	 * Constructor.
@@ -35,18 +44,17 @@ public class MetropolisHastingsAcceptor implements ProposalAcceptor {
 	@Override
 	public boolean acceptProposedState(LogDouble proposedStateLikelihood,
 			LogDouble oldStateLikelihood, List<Proposal> proposals) throws RunAbortedException {
-		this.prng= prng;
-		
-		LogDouble a = proposedStateLikelihood.divToNew(oldStateLikelihood);
+		LogDouble a = this.a.set(proposedStateLikelihood).div(oldStateLikelihood);
 		if (proposals != null) {
-			for (Proposal prop : proposals) {
+			for (int i = 0; i < proposals.size(); ++i) {
+				Proposal prop = proposals.get(i);
 				if (!prop.isValid()) {
 					return false;
 				}
-				a.mult(((MetropolisHastingsProposal) prop).getDensityRatio());
+				a.mult(((MetropolisHastingsProposal) prop).getDensityRatio(this.ratio));
 			}
 		}
-		return a.greaterThanOrEquals(new LogDouble(prng.nextDouble()));   // Accounts also for case a >= 1.0.
+		return a.greaterThanOrEquals(this.u.set(this.prng.nextDouble()));   // Accounts also for case a >= 1.0.
 	}
 	
 	@Override
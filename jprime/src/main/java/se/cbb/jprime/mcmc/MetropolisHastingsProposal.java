@@ -110,6 +110,24 @@ public class MetropolisHastingsProposal implements Proposal {
 	public LogDouble getDensityRatio() {
 		return this.backwardDensity.divToNew(this.forwardDensity);
 	}
+	
+	/**
+	 * Same as <code>getDensityRatio()</code>, but stores the ratio in an existing object.
+	 * @param ratio the object to store the ratio in.
+	 * @return ratio.
+	 */
+	public LogDouble getDensityRatio(LogDouble ratio) {
+		return ratio.set(this.backwardDensity).div(this.forwardDensity);
+	}
+	
+	/**
+	 * Sets the number of perturbed sub-parameters. Enables a proposer to reuse
+	 * the same object between perturbations, updating its densities in place.
+	 * @param noOfPerturbedSubParams the total number of actually changed sub-parameters.
+	 */
+	public void setNoOfPerturbedSubParameters(int noOfPerturbedSubParams) {
+		this.noOfSubParams = noOfPerturbedSubParams;
+	}
 
 	@Override
 	public Proposer getProposer() {
@@ -37,6 +37,15 @@ public class MultiProposerSelector implements ProposerSelector {
 	/** Cumulative number-of-proposers weights, normalised as [0,...,1]. Null if not used. */
 	private double[] cumNoWeights;
 	
+	/** Accumulated normalised proposer weights, reused between selections. */
+	private double[] accWeights = new double[0];
+	
+	/** Selected proposers, reused between selections. */
+	private ArrayList<Proposer> selProps = new ArrayList<Proposer>(16);
+	
+	/** State parameters of selected proposers, reused between selections. */
+	private ArrayList<StateParameter> selParams = new ArrayList<StateParameter>(16);
+	
 	/**
 	 * Creates an instance where only one proposer at a time is invoked.
 	 * @param prng the PRNG used for random selection.
@@ -87,6 +96,11 @@ public class MultiProposerSelector implements ProposerSelector {
 		this.weights.add(weight);
 	}
 	
+	@Override
+	public ArrayList<Proposer> getProposers() {
+		return this.proposers;
+	}
+	
 	@Override
 	public ArrayList<Proposer> getDisjointProposers() {
 		
@@ -108,14 +122,16 @@ public class MultiProposerSelector implements ProposerSelector {
 //			return ts;
 //		}
 		// Special cases for speed.
+		ArrayList<Proposer> selProps = this.selProps;
+		selProps.clear();
 		if (this.proposers.size() == 1) {
-			return new ArrayList<Proposer>(this.proposers);
+			selProps.add(this.proposers.get(0));
+			return selProps;
 		}
 		
 		if (this.cumNoWeights.length == 1) {
-			ArrayList<Proposer> ts = new ArrayList<Proposer>(1);
-			ts.add(this.proposers.get(prng.nextInt(this.proposers.size())));
-			return ts;
+			selProps.add(this.proposers.get(prng.nextInt(this.proposers.size())));
+			return selProps;
 		}
 		
 		
@@ -130,7 +146,10 @@ public class MultiProposerSelector implements ProposerSelector {
 		while (d > this.cumNoWeights[noOfProps-1]) { ++noOfProps; }
 		//System.out.println("noOfProps: "+ noOfProps);
 		// Compute an accumulated weight array for the current proposer weights.
-		double[] accWeights = new double[this.proposers.size()];
+		if (this.accWeights.length != this.proposers.size()) {
+			this.accWeights = new double[this.proposers.size()];
+		}
+		double[] accWeights = this.accWeights;
 		double tot = 0.0;
 		for (int i = 0; i < accWeights.length; ++i) {
 			tot += this.weights.get(i).getValue();
@@ -144,8 +163,8 @@ public class MultiProposerSelector implements ProposerSelector {
 		// Try to add proposers.
 //		HashSet<Proposer> selProps = new HashSet<Proposer>(noOfProps);
 //		HashSet<StateParameter> selParams = new HashSet<StateParameter>(noOfProps * 2);
-		ArrayList<Proposer> selProps = new ArrayList<Proposer>(noOfProps);
-		ArrayList<StateParameter> selParams = new ArrayList<StateParameter>(noOfProps * 2);
+		ArrayList<StateParameter> selParams = this.selParams;
+		selParams.clear();
 		int attempts = 0;
 
 		while (attempts < MAX_NO_OF_ATTEMPTS && selProps.size() < noOfProps) {
@@ -194,15 +213,14 @@ public class MultiProposerSelector implements ProposerSelector {
 		//System.out.println("p.getParameters"+ p.getParameters().toString());
 		
 		// If corresponding state parameters not already selected, add the proposer.
-		for (StateParameter sp : p.getParameters()) {
-			if (selParams.contains(sp)) {
+		ArrayList<StateParameter> params = p.getParameters();
+		for (int j = 0; j < params.size(); ++j) {
+			if (selParams.contains(params.get(j))) {
 				return false;
 			}
 		}
 		selProps.add(p);
-		for (StateParameter sp : p.getParameters()) {
-			selParams.add(sp);
-		}
+		selParams.addAll(params);
 		return true;
 	}
 
@@ -59,6 +59,33 @@ public class NormalProposer implements Proposer {
 	/** On/off switch. */
 	private boolean isEnabled;
 	
+	/** Perturbed parameters, created on first request. */
+	private ArrayList<StateParameter> parameters = null;
+	
+	/** Sub-parameter index arrays, reused between perturbations and indexed by number of perturbed sub-parameters. */
+	private int[][] indices = null;
+	
+	/** Sub-parameters not yet chosen during a perturbation. */
+	private int[] remaining = null;
+	
+	/** Proposal distribution, reused between perturbations. */
+	private NormalDistribution pd = null;
+	
+	/** "Forward" density, reused between perturbations. */
+	private LogDouble forward = new LogDouble(1.0);
+	
+	/** "Backward" density, reused between perturbations. */
+	private LogDouble backward = new LogDouble(1.0);
+	
+	/** Proposal, reused between perturbations. */
+	private MetropolisHastingsProposal proposal = null;
+	
+	/** Change info, reused between perturbations. */
+	private ChangeInfo changeInfo = null;
+	
+	/** Statistics categories, indexed by number of perturbed sub-parameters. */
+	private String[] statsCategories = null;
+	
 	/**
 	 * Constructor. Creates a normal proposal distribution.
 	 * @param param state parameter perturbed by this proposer.
@@ -102,8 +129,12 @@ public class NormalProposer implements Proposer {
 //	}
 //	
 	public ArrayList<StateParameter> getParameters() {
+		if (this.parameters != null) {
+			return this.parameters;
+		}
 		ArrayList<StateParameter> ps = new ArrayList<StateParameter>(1);
 		ps.add(this.param);
+		this.parameters = ps;
 		return ps;
 	}
 
@@ -164,14 +195,15 @@ public class NormalProposer implements Proposer {
 		int[] indices;
 		if (k == 1) {
 			// Only one to choose from.
-			indices = new int[] { 0 };
+			indices = this.getIndices(1);
+			indices[0] = 0;
 		} else if (m == 1) {
 			// Only one to choose.
-			indices = new int[1];
+			indices = this.getIndices(1);
 			indices[0] = this.prng.nextInt(k);
 		} else if (m == k && this.cumSubParamWeights[m-2] == 0.0) {
 			// All should be chosen.
-			indices = new int[k];
+			indices = this.getIndices(k);
 			for (int i = 0; i < k; ++i) { indices[i] = i; }
 		} else {
 			// Remaining cases.
@@ -179,11 +211,19 @@ public class NormalProposer implements Proposer {
 			double d = this.prng.nextDouble();
 
 			while (d > this.cumSubParamWeights[no-1]) { ++no; }
-			indices = new int[no];
-			ArrayList<Integer> l = new ArrayList<Integer>(k);
-			for (int i = 0; i < k; ++i) { l.add(i); }
+			indices = this.getIndices(no);
+			if (this.remaining == null || this.remaining.length != k) {
+				this.remaining = new int[k];
+			}
+			int[] l = this.remaining;
+			for (int i = 0; i < k; ++i) { l[i] = i; }
+			int sz = k;
 			for (int i = 0; i < no; ++i) {
-				indices[i] = l.remove(this.prng.nextInt(l.size()));			
+				// Ordered removal, equivalent to removing from a list.
+				int j = this.prng.nextInt(sz);
+				indices[i] = l[j];
+				System.arraycopy(l, j + 1, l, j, sz - j - 1);
+				--sz;
 			}
 		}
 		
@@ -191,8 +231,8 @@ public class NormalProposer implements Proposer {
 		this.param.cache(indices);
 		
 		// Perturb all chosen sub-parameters.
-		LogDouble forward = new LogDouble(1.0);
-		LogDouble backward = new LogDouble(1.0);
+		LogDouble forward = this.forward.set(1.0);
+		LogDouble backward = this.backward.set(1.0);
 		for (int i = 0; i < indices.length; ++i) {
 			
 			// Compute variance for current proposal distribution.
@@ -200,7 +240,14 @@ public class NormalProposer implements Proposer {
 			double stdev = Math.max(Math.abs(xOld * this.proposalCV.getValue()), 1e-16);
 			
 			// Sample a new value.
-			NormalDistribution pd = new NormalDistribution(xOld, Math.pow(stdev, 2));
+			NormalDistribution pd = this.pd;
+			if (pd == null) {
+				pd = new NormalDistribution(xOld, Math.pow(stdev, 2));
+				this.pd = pd;
+			} else {
+				pd.setMean(xOld);
+				pd.setVariance(Math.pow(stdev, 2));
+			}
 			double x = Double.NaN;
 			int tries = 0;
 			do {
@@ -223,7 +270,7 @@ public class NormalProposer implements Proposer {
 			if (!Double.isInfinite(b)) {
 				nonTails -= (1.0 - pd.getCDF(b));
 			}
-			forward.mult(new LogDouble(Math.max(pd.getPDF(x) / nonTails, 0.0)));
+			forward.mult(Math.max(pd.getPDF(x) / nonTails, 0.0));
 			
 			// Obtain "backward" density.
 			stdev = Math.max(Math.abs(x * this.proposalCV.getValue()), 1e-16);
@@ -236,22 +283,66 @@ public class NormalProposer implements Proposer {
 			if (!Double.isInfinite(b)) {
 				nonTails -= (1.0 - pd.getCDF(b));
 			}
-			backward.mult(new LogDouble(Math.max(pd.getPDF(xOld) / nonTails, 0.0)));
+			backward.mult(Math.max(pd.getPDF(xOld) / nonTails, 0.0));
 		}
 		this.noPerturbed = indices.length;
 		
 		// Set change info.
-		changeInfos.put(this.param, new ChangeInfo(this.param, "Perturbed by NormalProposer", indices));
+		if (this.changeInfo == null) {
+			this.changeInfo = new ChangeInfo(this.param, "Perturbed by NormalProposer", indices);
+		} else {
+			this.changeInfo.setAffectedElements(indices);
+		}
+		changeInfos.put(this.param, this.changeInfo);
 		
 		// Generate proposal object.
-		return new MetropolisHastingsProposal(this, forward, backward, this.param, indices.length);
+		if (this.proposal == null) {
+			this.proposal = new MetropolisHastingsProposal(this, forward, backward, this.getParameters(), indices.length);
+		} else {
+			this.proposal.setNoOfPerturbedSubParameters(indices.length);
+		}
+		return this.proposal;
+	}
+	
+	/**
+	 * Returns a reusable index array of a certain length.
+	 * @param no the number of indices.
+	 * @return the array.
+	 */
+	private int[] getIndices(int no) {
+		if (this.indices == null) {
+			this.indices = new int[this.param.getNoOfSubParameters() + 1][];
+		}
+		int[] idx = this.indices[no];
+		if (idx == null) {
+			idx = new int[no];
+			this.indices[no] = idx;
+		}
+		return idx;
+	}
+	
+	/**
+	 * Returns the statistics category for a number of perturbed sub-parameters.
+	 * @param no the number of perturbed sub-parameters.
+	 * @return the category.
+	 */
+	private String getStatsCategory(int no) {
+		if (this.statsCategories == null) {
+			this.statsCategories = new String[this.param.getNoOfSubParameters() + 1];
+		}
+		String cat = this.statsCategories[no];
+		if (cat == null) {
+			cat = "" + no + " perturbed sub-parameters";
+			this.statsCategories[no] = cat;
+		}
+		return cat;
 	}
 
 	@Override
 	public void clearCache() {
 		if (this.stats != null) {
 			if (this.param.getNoOfSubParameters() > 1) {
-				this.stats.increment(true, "" + this.noPerturbed + " perturbed sub-parameters");
+				this.stats.increment(true, this.getStatsCategory(this.noPerturbed));
 			} else {
 				this.stats.increment(true);
 			}
@@ -263,7 +354,7 @@ public class NormalProposer implements Proposer {
 	public void restoreCache() {
 		if (this.stats != null) {
 			if (this.param.getNoOfSubParameters() > 1) {
-				this.stats.increment(false, "" + this.noPerturbed + " perturbed sub-parameters");
+				this.stats.increment(false, this.getStatsCategory(this.noPerturbed));
 			} else {
 				this.stats.increment(false);
 			}
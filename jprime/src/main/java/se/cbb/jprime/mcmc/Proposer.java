@@ -31,7 +31,8 @@ public interface Proposer extends InfoProvider {
 	/**
 	 * Returns all parameters which can be perturbed by this object.
 	 * It is not required that all these are always perturbed
-	 * simultaneously, nor is it prohibited.
+	 * simultaneously, nor is it prohibited. The returned list may be shared
+	 * between invocations and should not be modified.
 	 * @return the parameters.
 	 */
 	//public Set<StateParameter> getParameters();
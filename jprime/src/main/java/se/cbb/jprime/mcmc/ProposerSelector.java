@@ -27,7 +27,16 @@ public interface ProposerSelector extends InfoProvider {
 	 * decide whether they e.g. return only a single object or multiple
 	 * objects. Furthermore, <b>the returned proposers must be guaranteed to
 	 * be acting on disjoint sets of state parameters</b>.
+	 * The returned list may be reused by the selector on subsequent invocations,
+	 * and should thus neither be modified nor retained by the caller.
 	 * @return a subset of proposers, no pairs acting on the same state parameter.
 	 */
 	public ArrayList<Proposer> getDisjointProposers();
+	
+	/**
+	 * Returns all proposers from which selections are made, e.g. for
+	 * checkpointing their statistics.
+	 * @return the proposers.
+	 */
+	public ArrayList<Proposer> getProposers();
 }
@@ -1,5 +1,8 @@
 package se.cbb.jprime.mcmc;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Map.Entry;
 import java.util.TreeMap;
 
@@ -12,7 +15,7 @@ import java.util.TreeMap;
  * 
  * @author Joel Sjöstrand.
  */
-public class ProposerStatistics implements InfoProvider {
+public class ProposerStatistics implements InfoProvider, Checkpointable {
 
 	/** Overall number of accepted proposals. */
 	protected int noOfAccepted;
@@ -126,4 +129,31 @@ public class ProposerStatistics implements InfoProvider {
 		}
 		return sb.toString();
 	}
+
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(this.noOfAccepted);
+		out.writeInt(this.noOfRejected);
+		out.writeInt(this.accRejByKey.size());
+		for (Entry<String, int[]> kv : this.accRejByKey.entrySet()) {
+			out.writeUTF(kv.getKey());
+			out.writeInt(kv.getValue()[0]);
+			out.writeInt(kv.getValue()[1]);
+		}
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		this.noOfAccepted = in.readInt();
+		this.noOfRejected = in.readInt();
+		this.accRejByKey.clear();
+		int n = in.readInt();
+		for (int i = 0; i < n; ++i) {
+			String key = in.readUTF();
+			int[] cat = new int[2];
+			cat[0] = in.readInt();
+			cat[1] = in.readInt();
+			this.accRejByKey.put(key, cat);
+		}
+	}
 }
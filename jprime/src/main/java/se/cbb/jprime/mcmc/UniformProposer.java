@@ -62,6 +62,9 @@ public class UniformProposer implements Proposer {
 	/** On/off switch. */
 	private boolean isEnabled;
 	
+	/** Perturbed parameters, created on first request. */
+	private ArrayList<StateParameter> parameters = null;
+	
 	/**
 	 * Constructor. Creates a normal proposal distribution.
 	 * @param param state parameter perturbed by this proposer.
@@ -102,8 +105,12 @@ public class UniformProposer implements Proposer {
 //		HashSet<StateParameter> ps = new HashSet<StateParameter>(1);
 //		ps.add(this.param);
 //		return ps;
+		if (this.parameters != null) {
+			return this.parameters;
+		}
 		ArrayList<StateParameter> ps = new ArrayList<StateParameter>(1);
 		ps.add(this.param);
+		this.parameters = ps;
 		return ps;
 	}
 
@@ -0,0 +1,246 @@
+package se.cbb.jprime.misc;
+
+import java.util.Arrays;
+
+/**
+ * Primitive cache which maps double keys to slot indices 0,...,noOfSlots-1 of a
+ * user-maintained, preallocated pool of values. This avoids the boxing and the
+ * allocations of e.g. <code>DoubleKeyMap</code>, and is intended for hot paths.
+ * <p/>
+ * As for <code>DoubleKeyMap</code>, a double key k is converted to the long key
+ * k'=round(k*PRECISION), meaning that keys closer than approximately 5e-8 are considered equal.
+ * Long keys are stored in an open-addressing hash table with linear probing.
+ * When all slots are occupied, a slot is evicted using the clock (second chance) algorithm,
+ * an approximation of least-recently-used eviction.
+ * <p/>
+ * Typical use: call <code>get(key)</code>, and if it returns <code>NULL</code>, call
+ * <code>put(key)</code> and fill in the returned slot of the pool.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class DoubleKeySlotCache {
+
+	/** Precision for key value k in that actually used key k'=(long)(k*PRECISION). */
+	public static final int PRECISION = DoubleKeyMap.PRECISION;
+
+	/** Shorthand integer which denotes a missing slot. */
+	public static final int NULL = -1;
+
+	/** Hash table keys. */
+	private long[] tableKeys;
+
+	/** Hash table slots, NULL for empty entries. */
+	private int[] tableSlots;
+
+	/** Hash table size minus 1. Table size is a power of 2. */
+	private int mask;
+
+	/** For each slot, its long key. */
+	private long[] slotKeys;
+
+	/** For each slot, its clock reference bit. */
+	private boolean[] referenced;
+
+	/** Clock hand. */
+	private int hand;
+
+	/** No. of occupied slots. */
+	private int size;
+
+	/** If to disallow very small keys. */
+	private boolean disallowEpsKeys;
+
+	/**
+	 * Constructor.
+	 * @param noOfSlots the number of slots of the pool.
+	 * @param disallowEpsKeys if true, will refuse to insert a key on <code>put(key)</code> if abs(key) is very small.
+	 * No exception will be thrown, however.
+	 */
+	public DoubleKeySlotCache(int noOfSlots, boolean disallowEpsKeys) {
+		if (noOfSlots < 1) {
+			throw new IllegalArgumentException("Cannot create cache with fewer than 1 slot.");
+		}
+		int tableSize = Integer.highestOneBit(noOfSlots) << 2;
+		this.tableKeys = new long[tableSize];
+		this.tableSlots = new int[tableSize];
+		this.mask = tableSize - 1;
+		this.slotKeys = new long[noOfSlots];
+		this.referenced = new boolean[noOfSlots];
+		this.disallowEpsKeys = disallowEpsKeys;
+		this.clear();
+	}
+
+	/**
+	 * Converts a double key to the long key actually used.
+	 * @param key the key.
+	 * @return the long key.
+	 */
+	public static long toLongKey(double key) {
+		return Math.round(key * PRECISION);
+	}
+
+	/**
+	 * Returns the home index of a long key in the hash table.
+	 * @param longKey the key.
+	 * @return the index.
+	 */
+	private int home(long longKey) {
+		long h = longKey * 0x9E3779B97F4A7C15L;
+		return ((int) (h ^ (h >>> 32))) & this.mask;
+	}
+
+	/**
+	 * Returns the hash table index of a long key.
+	 * @param longKey the key.
+	 * @return the index; -1 if not found.
+	 */
+	private int indexOf(long longKey) {
+		int i = this.home(longKey);
+		while (this.tableSlots[i] != NULL) {
+			if (this.tableKeys[i] == longKey) {
+				return i;
+			}
+			i = (i + 1) & this.mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the slot of a key and, if it exists, marks it as recently used.
+	 * @param key the key.
+	 * @return the slot; NULL if no such key exists.
+	 */
+	public int get(double key) {
+		int i = this.indexOf(toLongKey(key));
+		if (i == -1) {
+			return NULL;
+		}
+		int slot = this.tableSlots[i];
+		this.referenced[slot] = true;
+		return slot;
+	}
+
+	/**
+	 * Returns true if the key is contained.
+	 * @param key the key.
+	 * @return true if contained; false if not contained.
+	 */
+	public boolean containsKey(double key) {
+		return (this.indexOf(toLongKey(key)) != -1);
+	}
+
+	/**
+	 * Returns true if a slot currently holds a key. Does not mark the slot as recently used.
+	 * @param slot the slot.
+	 * @param key the key.
+	 * @return true if the slot is occupied by the key; false otherwise.
+	 */
+	public boolean isSlotOf(int slot, double key) {
+		return (slot >= 0 && slot < this.size && this.slotKeys[slot] == toLongKey(key));
+	}
+
+	/**
+	 * Assigns a slot to a key, evicting the key of another slot if all slots are occupied.
+	 * The caller is responsible for (re)filling the returned slot of the pool.
+	 * If the key already exists, its current slot is returned.
+	 * @param key the key.
+	 * @return the slot; NULL if the key was refused due to being too small.
+	 */
+	public int put(double key) {
+		long longKey = toLongKey(key);
+		if (longKey == 0 && this.disallowEpsKeys) {
+			// We simply don't insert it.
+			return NULL;
+		}
+		int i = this.indexOf(longKey);
+		if (i != -1) {
+			int slot = this.tableSlots[i];
+			this.referenced[slot] = true;
+			return slot;
+		}
+
+		// Find slot.
+		int slot;
+		if (this.size < this.slotKeys.length) {
+			slot = this.size++;
+		} else {
+			while (this.referenced[this.hand]) {
+				this.referenced[this.hand] = false;
+				this.hand = (this.hand + 1) % this.slotKeys.length;
+			}
+			slot = this.hand;
+			this.hand = (this.hand + 1) % this.slotKeys.length;
+			this.removeFromTable(this.slotKeys[slot]);
+		}
+
+		// Insert.
+		i = this.home(longKey);
+		while (this.tableSlots[i] != NULL) {
+			i = (i + 1) & this.mask;
+		}
+		this.tableKeys[i] = longKey;
+		this.tableSlots[i] = slot;
+		this.slotKeys[slot] = longKey;
+		this.referenced[slot] = true;
+		return slot;
+	}
+
+	/**
+	 * Removes an existing long key from the hash table, shifting subsequent
+	 * entries of the probe sequence backwards so that no tombstones are needed.
+	 * @param longKey the key.
+	 */
+	private void removeFromTable(long longKey) {
+		int i = this.indexOf(longKey);
+		int j = i;
+		while (true) {
+			j = (j + 1) & this.mask;
+			if (this.tableSlots[j] == NULL) {
+				break;
+			}
+			int k = this.home(this.tableKeys[j]);
+			// Leave entry j if its home lies cyclically in (i,j].
+			if (i <= j ? (i < k && k <= j) : (i < k || k <= j)) {
+				continue;
+			}
+			this.tableKeys[i] = this.tableKeys[j];
+			this.tableSlots[i] = this.tableSlots[j];
+			i = j;
+		}
+		this.tableSlots[i] = NULL;
+	}
+
+	/**
+	 * Removes all keys. The slots of the pool may then be overwritten.
+	 */
+	public void clear() {
+		Arrays.fill(this.tableSlots, NULL);
+		Arrays.fill(this.referenced, false);
+		this.hand = 0;
+		this.size = 0;
+	}
+
+	/**
+	 * Returns the number of occupied slots.
+	 * @return the number of keys.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the number of slots, i.e., the maximum number of simultaneously stored keys.
+	 * @return the number of slots.
+	 */
+	public int getNoOfSlots() {
+		return this.slotKeys.length;
+	}
+
+	/**
+	 * Returns if small keys abs(k)&lt;eps are disallowed in the cache.
+	 * @return true if small keys disallowed; false if allowed.
+	 */
+	public boolean epsKeysAreDisallowed() {
+		return this.disallowEpsKeys;
+	}
+}
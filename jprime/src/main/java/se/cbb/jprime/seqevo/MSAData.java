@@ -1,5 +1,6 @@
 package se.cbb.jprime.seqevo;
 
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -17,9 +18,11 @@ import se.cbb.jprime.mcmc.InfoProvider;
  * columns corresponding to aligned positions of these genes. 
  * <p/>
  * The class provides methods for accessing the data and 
- * associated attributes, and also for accessing a hash
- * where a column pattern is the key and the number of occurrences of this
- * pattern is the value.
+ * associated attributes, and also for accessing a compact index of the unique
+ * column patterns: for each pattern (in order of first occurrence), its first position,
+ * its weight (number of occurrences) and its states are stored in flat arrays.
+ * The states of pattern p are kept column-major as bytes, i.e., the state of sequence i
+ * is found at index <code>p * noOfSequences + i</code>.
  * <p/>
  * User defined partitions of data (e.g. independent loci) are currently
  * not supported, see below.
@@ -51,11 +54,26 @@ public class MSAData implements InfoProvider {
 	/** Length of sequences. */
 	private int noOfPositions = -1;
 	
+	/** Number of unique column patterns. */
+	private int noOfPatterns;
+	
+	/** For each unique pattern, the position of its first occurrence. */
+	private int[] patternFirstPos;
+	
+	/** For each unique pattern, its number of occurrences. */
+	private int[] patternWeights;
+	
+	/** States of the unique patterns, column-major: [pattern][sequence]. All sequence types fit in a byte. */
+	private byte[] patternStates;
+	
+	/** For each position, the index of its pattern. */
+	private int[] positionPatterns;
+	
 	/**
 	 * Map where patterns (unique columns) are keys and
-	 * [first position, count] of the patterns are values.
+	 * [first position, count] of the patterns are values. Created on demand.
 	 */
-	private LinkedHashMap<String, int[]> patterns;
+	private LinkedHashMap<String, int[]> patterns = null;
 	
 	/**
 	 * Private constructor.
@@ -140,27 +158,67 @@ public class MSAData implements InfoProvider {
 	}
 	
 	/**
-	 * Updates the pattern hash.
+	 * Updates the pattern index. Patterns are hashed on their states, using
+	 * open addressing with linear probing.
 	 */
-	private void updatePatterns() {    
-		this.patterns = new LinkedHashMap<String, int[]>(this.noOfPositions);
+	private void updatePatterns() {
 		int height = this.data.length;
+		int tableSize = Integer.highestOneBit(Math.max(this.noOfPositions, 1)) << 2;
+		int mask = tableSize - 1;
+		int[] table = new int[tableSize];
+		Arrays.fill(table, -1);
+		this.patternFirstPos = new int[this.noOfPositions];
+		this.patternWeights = new int[this.noOfPositions];
+		this.patternStates = new byte[this.noOfPositions * height];
+		this.positionPatterns = new int[this.noOfPositions];
+		this.noOfPatterns = 0;
+		this.patterns = null;
+		byte[] col = new byte[height];
 		for (int j = 0; j < this.noOfPositions; j++) {
 			// Read the current column's pattern.
-			char[] col = new char[height];
+			int hash = 1;
 			for (int i = 0; i < height; ++i) {
-				col[i] = this.dataAsStrings[i].charAt(j);
+				col[i] = (byte) this.data[i][j];
+				hash = 31 * hash + col[i];
 			}
-			String pattern = new String(col);
+			hash ^= (hash >>> 16);
 			
-			// Retrieve the position and count of the pattern.
-			int[] idxCount = this.patterns.get(pattern);
-			if (idxCount == null) {
-				this.patterns.put(pattern, new int[] {j, 1});
-			} else {
-				idxCount[1] += 1;
+			// Retrieve the pattern, or create it.
+			int k = hash & mask;
+			while (true) {
+				int p = table[k];
+				if (p == -1) {
+					p = this.noOfPatterns++;
+					System.arraycopy(col, 0, this.patternStates, p * height, height);
+					this.patternFirstPos[p] = j;
+					table[k] = p;
+				}
+				if (this.patternEquals(p, col)) {
+					this.patternWeights[p] += 1;
+					this.positionPatterns[j] = p;
+					break;
+				}
+				k = (k + 1) & mask;
 			}
 		}
+		this.patternFirstPos = Arrays.copyOf(this.patternFirstPos, this.noOfPatterns);
+		this.patternWeights = Arrays.copyOf(this.patternWeights, this.noOfPatterns);
+		this.patternStates = Arrays.copyOf(this.patternStates, this.noOfPatterns * height);
+	}
+	
+	/**
+	 * Returns true if a stored pattern has the specified states.
+	 * @param p the pattern index.
+	 * @param col the states.
+	 * @return true if equal.
+	 */
+	private boolean patternEquals(int p, byte[] col) {
+		for (int i = 0, k = p * col.length; i < col.length; ++i, ++k) {
+			if (this.patternStates[k] != col[i]) {
+				return false;
+			}
+		}
+		return true;
 	}
 	
 	/**
@@ -289,13 +347,79 @@ public class MSAData implements InfoProvider {
 	}
 
 	/**
-	 * Returns a compact representation of the unique column patterns of the data.
+	 * Returns a map of the unique column patterns of the data, in order of first occurrence.
 	 * The pattern is the key, and [first position, count] are the values.
+	 * The map is created on first request; for fast access, use the pattern index methods
+	 * such as <code>getPatternFirstPositions()</code> and <code>getPatternWeights()</code> instead.
 	 * @return patterns as keys, first position and count as values.
 	 */
 	public LinkedHashMap<String, int[]> getPatterns() {
+		if (this.patterns == null) {
+			this.patterns = new LinkedHashMap<String, int[]>(this.noOfPatterns);
+			int height = this.data.length;
+			char[] col = new char[height];
+			for (int p = 0; p < this.noOfPatterns; ++p) {
+				for (int i = 0; i < height; ++i) {
+					col[i] = this.dataAsStrings[i].charAt(this.patternFirstPos[p]);
+				}
+				this.patterns.put(new String(col), new int[] {this.patternFirstPos[p], this.patternWeights[p]});
+			}
+		}
 		return this.patterns;
 	}
+	
+	/**
+	 * Returns the number of unique column patterns.
+	 * @return the number of patterns.
+	 */
+	public int getNoOfPatterns() {
+		return this.noOfPatterns;
+	}
+	
+	/**
+	 * Returns, for each unique pattern, the position of its first occurrence. Should not be altered.
+	 * @return the first positions, indexed by pattern.
+	 */
+	public int[] getPatternFirstPositions() {
+		return this.patternFirstPos;
+	}
+	
+	/**
+	 * Returns, for each unique pattern, its number of occurrences. Should not be altered.
+	 * @return the weights, indexed by pattern.
+	 */
+	public int[] getPatternWeights() {
+		return this.patternWeights;
+	}
+	
+	/**
+	 * Returns the states of all unique patterns, column-major, i.e., the state of
+	 * sequence i for pattern p is at index <code>p * getNoOfSequences() + i</code>. Should not be altered.
+	 * @return the states.
+	 */
+	public byte[] getPatternStates() {
+		return this.patternStates;
+	}
+	
+	/**
+	 * Returns the integer state of a specific sequence for a unique pattern.
+	 * @param seqIdx the sequence index. This is NOT necessarily
+	 * the same as the vertex number of a tree leaf corresponding to the sequence.
+	 * @param p the pattern index.
+	 * @return the integer index of that character.
+	 */
+	public int getPatternState(int seqIdx, int p) {
+		return this.patternStates[p * this.data.length + seqIdx];
+	}
+	
+	/**
+	 * Returns the index of the unique pattern of a position.
+	 * @param pos the position.
+	 * @return the pattern index.
+	 */
+	public int getPatternIndex(int pos) {
+		return this.positionPatterns[pos];
+	}
 
 	/**
 	 * Changes the sequence type.
@@ -384,7 +508,7 @@ public class MSAData implements InfoProvider {
 		sb.append(prefix).append("Sequence type: ").append(this.seqType.getType()).append('\n');
 		sb.append(prefix).append("Number of sequences: ").append(this.data.length).append('\n');
 		sb.append(prefix).append("Number of positions: ").append(this.noOfPositions).append('\n');
-		sb.append(prefix).append("Number of unique column patterns: ").append(this.patterns.size()).append('\n');
+		sb.append(prefix).append("Number of unique column patterns: ").append(this.noOfPatterns).append('\n');
 		return sb.toString();
 	}
 
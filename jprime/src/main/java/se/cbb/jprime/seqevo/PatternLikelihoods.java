@@ -1,6 +1,5 @@
 package se.cbb.jprime.seqevo;
 
-import org.ejml.data.DenseMatrix64F;
 import org.jfree.util.PublicCloneable;
 
 /**
@@ -9,22 +8,40 @@ import org.jfree.util.PublicCloneable;
  * Used e.g. by <code>SubstitutionModel</code>.
  * <p/>
  * For each unique pattern i and site rate category j, there is a vector r.
- * Each element in r corresponds to a state s in the 
+ * Each element in r corresponds to a state s in the
  * Markov substitution model, representing the probability of the Markov process starting
  * with s at the root of the subtree of interest, and yielding the state pattern
  * corresponding to position i at the leaves of the subtree (under the site rate of category j).
- * 
+ * <p/>
+ * For the sake of speed, all vectors are stored in a single contiguous array with
+ * pattern as outermost index, site rate category next, and state innermost, i.e.,
+ * element (i,j,s) is found at index <code>(i * noOfSiteRates + j) * alphabetSize + s</code>.
+ * Use <code>getOffset(i,j)</code> to obtain the start index of a vector r.
+ * <p/>
+ * To avoid numerical underflow for large trees, the vectors of a pattern may be scaled.
+ * The accumulated log-scale factor of each pattern is kept alongside, so that the
+ * actual likelihood of element (i,j,s) equals <code>get(i,j,s) * exp(getLogScale(i))</code>.
+ *
  * @author Joel Sjöstrand.
  * @author Bengt Sennblad.
  */
 public class PatternLikelihoods  implements PublicCloneable {
-	
-	/** Likelihoods, [i][j] for pattern i and site rate category j. */
-	private DenseMatrix64F[][] likelihoods;
-	
+
+	/** Likelihoods, flattened as [pattern][site rate category][state]. */
+	private double[] likelihoods;
+
+	/** For each pattern, the accumulated log-scale factor of its likelihoods. */
+	private double[] logScales;
+
+	/** No. of unique patterns. */
+	private int noOfPatterns;
+
+	/** No. of site rate categories. */
+	private int noOfSiteRates;
+
 	/** Alphabet size. */
 	private int alphabetSize;
-	
+
 	/**
 	 * Constructor.
 	 * @param noOfPatterns no. of unique patterns.
@@ -32,41 +49,74 @@ public class PatternLikelihoods  implements PublicCloneable {
 	 * @param alphabetSize alphabet size.
 	 */
 	public PatternLikelihoods(int noOfPatterns, int noOfSiteRates, int alphabetSize) {
-		this.likelihoods = new DenseMatrix64F[noOfPatterns][noOfSiteRates];
+		this.noOfPatterns = noOfPatterns;
+		this.noOfSiteRates = noOfSiteRates;
 		this.alphabetSize = alphabetSize;
-		for (int i = 0; i < noOfPatterns; ++i) {
-			for (int j = 0; j < noOfSiteRates; ++j) {
-				this.likelihoods[i][j] = new DenseMatrix64F(alphabetSize, 1);
-			}
-		}
+		this.likelihoods = new double[noOfPatterns * noOfSiteRates * alphabetSize];
+		this.logScales = new double[noOfPatterns];
 	}
-	
+
 	/**
 	 * Copy constructor. Deep-copies the likelihoods.
 	 * @param pl the object to copy.
 	 */
 	public PatternLikelihoods(PatternLikelihoods pl) {
+		this.noOfPatterns = pl.noOfPatterns;
+		this.noOfSiteRates = pl.noOfSiteRates;
 		this.alphabetSize = pl.alphabetSize;
-		int m = pl.likelihoods.length;
-		int n = pl.likelihoods[0].length;
-		this.likelihoods = new DenseMatrix64F[m][n];
-		for (int i = 0; i < m; ++i) {
-			for (int j = 0; j < n; ++j) {
-				this.likelihoods[i][j] = new DenseMatrix64F(pl.likelihoods[i][j]);
-			}
-		}
+		this.likelihoods = new double[pl.likelihoods.length];
+		System.arraycopy(pl.likelihoods, 0, this.likelihoods, 0, pl.likelihoods.length);
+		this.logScales = new double[pl.logScales.length];
+		System.arraycopy(pl.logScales, 0, this.logScales, 0, pl.logScales.length);
 	}
-	
+
 	/**
-	 * Returns the likelihoods of pattern i and site rate category j.
+	 * Returns the underlying likelihood array. See class description for its layout.
+	 * @return the likelihoods.
+	 */
+	public double[] getLikelihoods() {
+		return this.likelihoods;
+	}
+
+	/**
+	 * Returns the underlying array of log-scale factors, indexed by pattern.
+	 * @return the log-scale factors.
+	 */
+	public double[] getLogScales() {
+		return this.logScales;
+	}
+
+	/**
+	 * Returns the accumulated log-scale factor of pattern i.
+	 * @param i pattern index.
+	 * @return the log-scale factor.
+	 */
+	public double getLogScale(int i) {
+		return this.logScales[i];
+	}
+
+	/**
+	 * Returns the start index in the underlying array of the likelihood vector
+	 * of pattern i and site rate category j.
+	 * @param i pattern index.
+	 * @param j site rate index.
+	 * @return the start index of the vector.
+	 */
+	public int getOffset(int i, int j) {
+		return ((i * this.noOfSiteRates + j) * this.alphabetSize);
+	}
+
+	/**
+	 * Returns the (possibly scaled) likelihood of state s for pattern i and site rate category j.
 	 * @param i pattern index.
 	 * @param j site rate index.
-	 * @return the likelihoods of pattern i for site rate j.
+	 * @param s state index.
+	 * @return the likelihood.
 	 */
-	public DenseMatrix64F get(int i, int j) {
-		return this.likelihoods[i][j];
+	public double get(int i, int j, int s) {
+		return this.likelihoods[(i * this.noOfSiteRates + j) * this.alphabetSize + s];
 	}
-	
+
 	/**
 	 * Public clone method. Returns a copy of this object with deep-cloned likelihoods.
 	 * @return this object.
@@ -74,21 +124,29 @@ public class PatternLikelihoods  implements PublicCloneable {
 	public Object clone() {
 		return new PatternLikelihoods(this);
 	}
-	
+
 	/**
 	 * Returns the number of patterns.
 	 * @return the number of patterns.
 	 */
 	public int getNoOfPatterns() {
-		return this.likelihoods.length;
+		return this.noOfPatterns;
 	}
-	
+
 	/**
 	 * Returns the number of site rates.
 	 * @return the number of site rates.
 	 */
 	public int getNoOfSiteRateCategories() {
-		return this.likelihoods[0].length;
+		return this.noOfSiteRates;
 	}
-	
+
+	/**
+	 * Returns the alphabet size.
+	 * @return the alphabet size.
+	 */
+	public int getAlphabetSize() {
+		return this.alphabetSize;
+	}
+
 }
@@ -126,6 +126,14 @@ public enum SequenceType {
 		return this.alphabet.length();
 	}
 	
+	/** 
+	 * The number of states in the alternative (ambiguity) alphabet. E.g., for DNA this is 14.
+	 * @return the length.
+	 */
+	public int getAmbiguityAlphabetSize() {
+		return this.ambiguityAlphabet.length();
+	}
+	
 	/**
 	 * Returns the integer value for a specific state in the sequence 
 	 * alphabet.
@@ -1,7 +1,6 @@
 package se.cbb.jprime.seqevo;
 
 import java.util.Arrays;
-import java.util.HashMap;
 
 import org.ejml.alg.dense.decomposition.DecompositionFactory;
 import org.ejml.alg.dense.decomposition.EigenDecomposition;
@@ -10,7 +9,7 @@ import org.ejml.ops.CommonOps;
 
 import se.cbb.jprime.math.AdditionalEJMLOps;
 import se.cbb.jprime.mcmc.InfoProvider;
-import se.cbb.jprime.misc.DoubleKeyMap;
+import se.cbb.jprime.misc.DoubleKeySlotCache;
 
 /**
  * Handles transition probabilities of a Markov process for molecular sequence evolution.
@@ -67,20 +66,41 @@ public class SubstitutionMatrixHandler implements InfoProvider {
 	/** Inverse of V. Size (dim,dim). */
 	private DenseMatrix64F iV;
 
-	/** Transition probability matrix (updated frequently for different user times w). Size (dim,dim). */
-	private DenseMatrix64F P;
-
-	/** Temporary storage matrix. Size (dim,dim). */
-	private DenseMatrix64F tmp_matrix;
-
-	/** Temporary storage vector. Size (dim,1). */
-	private DenseMatrix64F tmp_diagonal;
+	/** Temporary storage of exponentiated eigenvalues for batched computations. Grown on demand. */
+	private double[] tmp_exps = new double[0];
+	
+	/** Temporary storage of times w not found in the cache. Grown on demand. */
+	private double[] tmp_ws = new double[0];
+	
+	/** Temporary storage of indices of times w not found in the cache. Grown on demand. */
+	private int[] tmp_indices = new int[0];
+	
+	/** Temporary storage of P matrices for times w not found in the cache. Grown on demand. */
+	private double[] tmp_Ps = new double[0];
 
-	/** A cache for saving instances of P for varying times w to avoid recalculations. */
-	private DoubleKeyMap<DenseMatrix64F> PCache;
+	/** A cache mapping times w to slots of the pool of P matrices to avoid recalculations. */
+	private DoubleKeySlotCache PCache;
+	
+	/** Preallocated pool of P matrices in row-major format, flattened as [slot][state][state]. */
+	private double[] PPool;
+	
+	/** Number of ambiguity states of the sequence type. */
+	private int noOfAmbigStates;
+	
+	/**
+	 * Ambiguity leaf likelihoods for each P of the pool, flattened as [slot][ambiguity state][state].
+	 * Only valid where flagged in ambigComputed.
+	 */
+	private double[] ambigPool;
+	
+	/** Flags for computed ambiguity leaf likelihoods, flattened as [slot][ambiguity state]. */
+	private boolean[] ambigComputed;
+	
+	/** No. of looked up P matrices. */
+	private long noOfLookups = 0;
 	
-	/** Small cache for ambiguity leaf likelihoods. Cleared every time P i updated. */
-	private HashMap<Integer, DenseMatrix64F> ambigCache;
+	/** No. of looked up P matrices found in the cache. */
+	private long noOfHits = 0;
 
 	/**
 	 * Constructor.
@@ -89,7 +109,7 @@ public class SubstitutionMatrixHandler implements InfoProvider {
 	 * @param R_vec 'intrinsic' rate matrix, in row-major format. Time reversibility is assumed, therefore, its length should
 	 * be dim*(dim-1)/2, where dim is the alphabet length.
 	 * @param Pi_vec stationary frequencies. Should have length dim, where dim is the alphabet length.
-	 * @param cacheSize number of P matrices to store in cache, e.g., 1000.
+	 * @param cacheSize number of P matrices to store in cache, e.g., 1000. These are preallocated.
 	 */
 	public SubstitutionMatrixHandler(String modelName, SequenceType sequenceType, double[] R_vec, double[] Pi_vec, int cacheSize) {
 		this.modelName = modelName;
@@ -101,14 +121,49 @@ public class SubstitutionMatrixHandler implements InfoProvider {
 		this.E = new DenseMatrix64F(alphabetSize, 1);
 		this.V = new DenseMatrix64F(alphabetSize, alphabetSize);
 		this.iV = new DenseMatrix64F(alphabetSize, alphabetSize);
-		this.P = new DenseMatrix64F(alphabetSize, alphabetSize);
-		this.tmp_matrix = new DenseMatrix64F(alphabetSize, alphabetSize);
-		this.tmp_diagonal = new DenseMatrix64F(alphabetSize, 1);
-		this.PCache = new DoubleKeyMap<DenseMatrix64F>(cacheSize, cacheSize, true);
-		this.ambigCache = new HashMap<Integer, DenseMatrix64F>(14);  // Not more than at most ~14 different ambiguity characters.
+		cacheSize = Math.max(cacheSize, 1);
+		this.PCache = new DoubleKeySlotCache(cacheSize, true);
+		this.PPool = new double[cacheSize * alphabetSize * alphabetSize];
+		this.noOfAmbigStates = sequenceType.getAmbiguityAlphabetSize();
+		this.ambigPool = new double[cacheSize * this.noOfAmbigStates * alphabetSize];
+		this.ambigComputed = new boolean[cacheSize * this.noOfAmbigStates];
 		this.update();
 	}
 
+	/**
+	 * Constructor which shares the model and eigensystem of another handler, but has its own pool of
+	 * P matrices and temporary storage. The shared parts are never altered after creation, so the handlers
+	 * may be used concurrently, e.g. by independent chains on different threads.
+	 * @param handler the handler to share the model and eigensystem of.
+	 */
+	public SubstitutionMatrixHandler(SubstitutionMatrixHandler handler) {
+		this(handler, handler.PCache.getNoOfSlots());
+	}
+	
+	/**
+	 * Constructor which shares the model and eigensystem of another handler, but has its own pool of
+	 * P matrices of a specified size and temporary storage.
+	 * @param handler the handler to share the model and eigensystem of.
+	 * @param cacheSize number of P matrices to cache.
+	 */
+	public SubstitutionMatrixHandler(SubstitutionMatrixHandler handler, int cacheSize) {
+		this.modelName = handler.modelName;
+		this.sequenceType = handler.sequenceType;
+		this.alphabetSize = handler.alphabetSize;
+		this.R = handler.R;
+		this.Pi = handler.Pi;
+		this.Q = handler.Q;
+		this.E = handler.E;
+		this.V = handler.V;
+		this.iV = handler.iV;
+		cacheSize = Math.max(cacheSize, 1);
+		this.PCache = new DoubleKeySlotCache(cacheSize, true);
+		this.PPool = new double[cacheSize * alphabetSize * alphabetSize];
+		this.noOfAmbigStates = handler.noOfAmbigStates;
+		this.ambigPool = new double[cacheSize * this.noOfAmbigStates * alphabetSize];
+		this.ambigComputed = new boolean[cacheSize * this.noOfAmbigStates];
+	}
+
 
 	/**
 	 * Tests if model and the submitted data are compatible.
@@ -152,7 +207,7 @@ public class SubstitutionMatrixHandler implements InfoProvider {
 		// The diagonal values of Q = -the sum of other values of row, by definition.
 		// R in this implementation holds upper triangle of symmetric matrix, excluding diagonal.
 		this.PCache.clear();
-		this.ambigCache.clear();
+		Arrays.fill(this.ambigComputed, false);
 		this.Q.zero();
 		int R_i = 0;
 		double val;
@@ -192,69 +247,198 @@ public class SubstitutionMatrixHandler implements InfoProvider {
 
 
 	/**
-	 * Sets up P=exp(Qw), the transition probability matrix for the Markov
-	 * process over 'time' w (where 'time' is not necessarily temporal).
-	 * Precondition: w <= 1000.
-	 * @param w the "time" (or branch length) over which Q acts.
+	 * Sets up P=exp(Qw), the transition probability matrix for the Markov process over 'time' w
+	 * (where 'time' is not necessarily temporal), for a subset of a batch of times w. Matrices are
+	 * first looked up in the cache, whereupon the remaining ones are computed in a single batch
+	 * and added to the cache.
+	 * Precondition: all w <= 1000.
+	 * @param ws the "times" (or branch lengths) over which Q acts.
+	 * @param indices the indices in ws of the times to consider.
+	 * @param noOfIndices the number of indices to consider.
+	 * @param result the array where to store the matrices, each of size dim*dim in row-major format.
+	 *        The matrix of time ws[i] is stored at index i*dim*dim.
+	 * @param slots the array where to store the cache slot of each matrix, NULL if not cached.
+	 *        The slot of time ws[i] is stored at index i.
 	 */
-	public void updateTransitionMatrix(double w) {
-		// C++ comment which may still apply...  /joelgs
-		// If w is too big, the precision of LAPACK seem to get warped!
-		// The choice of max value of 1000 is arbitrary and well below the 
-		// actual max value. /bens
-		// TODO: Could we precondition on a reasonable MarkovTime?
-		if (w > MAX_MARKOV_TIME) {
-			throw new IllegalArgumentException("In substitution model, cannot compute transition probability matrix P for too large Markov time w=" + w + ".");
+	public void getTransitionMatrices(double[] ws, int[] indices, int noOfIndices, double[] result, int[] slots) {
+		int dim2 = this.alphabetSize * this.alphabetSize;
+		if (this.tmp_ws.length < noOfIndices) {
+			this.tmp_ws = new double[noOfIndices];
+			this.tmp_indices = new int[noOfIndices];
+			this.tmp_Ps = new double[noOfIndices * dim2];
 		}
 		
-		// Clear ambiguity cache.
-		this.ambigCache.clear();
-
-		// Check in cache if result already exists.
-		this.P = this.PCache.get(w);
-		if (this.P == null) {
-			// Nope, we have to create it.
-			AdditionalEJMLOps.elementExp(this.alphabetSize, this.E, w, this.tmp_diagonal);
-			AdditionalEJMLOps.multDiagA(this.alphabetSize, this.tmp_diagonal, this.iV, this.tmp_matrix);
-			this.P = new DenseMatrix64F(this.alphabetSize, this.alphabetSize);
-			CommonOps.mult(this.V, this.tmp_matrix, this.P);
-			this.PCache.put(w, this.P);
+		// Copy cached matrices. Misses are collected and computed below.
+		int noOfMisses = 0;
+		for (int k = 0; k < noOfIndices; ++k) {
+			int i = indices[k];
+			int slot = this.PCache.get(ws[i]);
+			slots[i] = slot;
+			if (slot == DoubleKeySlotCache.NULL) {
+				this.tmp_ws[noOfMisses] = ws[i];
+				this.tmp_indices[noOfMisses++] = i;
+			} else {
+				System.arraycopy(this.PPool, slot * dim2, result, i * dim2, dim2);
+			}
+		}
+		this.noOfLookups += noOfIndices;
+		this.noOfHits += noOfIndices - noOfMisses;
+		if (noOfMisses == 0) {
+			return;
+		}
+		
+		// Compute misses, and cache them unless the time is too small to be a key.
+		this.computeTransitionMatrices(this.tmp_ws, 0, noOfMisses, this.tmp_Ps, 0);
+		for (int k = 0; k < noOfMisses; ++k) {
+			System.arraycopy(this.tmp_Ps, k * dim2, result, this.tmp_indices[k] * dim2, dim2);
+			int slot = this.PCache.put(this.tmp_ws[k]);
+			slots[this.tmp_indices[k]] = slot;
+			if (slot != DoubleKeySlotCache.NULL) {
+				// Slot may have been evicted, so its ambiguity leaf likelihoods are invalid.
+				System.arraycopy(this.tmp_Ps, k * dim2, this.PPool, slot * dim2, dim2);
+				Arrays.fill(this.ambigComputed, slot * this.noOfAmbigStates, (slot + 1) * this.noOfAmbigStates, false);
+			}
 		}
 	}
 
 	/**
-	 * Performs matrix multiplication Y=P*X for the current P.
-	 * @param X operand matrix (typically vector) of size (dim,ncol).
-	 * @param Y resulting matrix Y=P*X. Should have size (dim,ncol).
+	 * Computes P=exp(Qw) for a batch of times w in one pass, bypassing the cache.
+	 * The eigenvalues are first exponentiated for all times,
+	 * whereupon each P=V*diag(exp(Ew))*iV is assembled with the eigenvectors kept in place.
+	 * Precondition: all w <= 1000.
+	 * @param ws the "times" (or branch lengths) over which Q acts.
+	 * @param wsOffset start index of the times in ws.
+	 * @param noOfWs the number of times.
+	 * @param result the array where to store the matrices, each of size dim*dim in row-major format,
+	 *        in the order of the times.
+	 * @param offset start index in result.
+	 */
+	public void computeTransitionMatrices(double[] ws, int wsOffset, int noOfWs, double[] result, int offset) {
+		int dim = this.alphabetSize;
+		int dim2 = dim * dim;
+		double[] e = this.E.data;
+		double[] v = this.V.data;
+		double[] iv = this.iV.data;
+		
+		// Exponentiate eigenvalues for all times.
+		if (this.tmp_exps.length < noOfWs * dim) {
+			this.tmp_exps = new double[noOfWs * dim];
+		}
+		double[] x = this.tmp_exps;
+		for (int k = 0, xi = 0; k < noOfWs; ++k) {
+			double w = ws[wsOffset + k];
+			if (w > MAX_MARKOV_TIME) {
+				throw new IllegalArgumentException("In substitution model, cannot compute transition probability matrix P for too large Markov time w=" + w + ".");
+			}
+			for (int s = 0; s < dim; ++s, ++xi) {
+				x[xi] = Math.exp(e[s] * w);
+			}
+		}
+		
+		// Assemble P=V*diag(x)*iV, row by row.
+		for (int k = 0; k < noOfWs; ++k) {
+			int xk = k * dim;
+			int pk = offset + k * dim2;
+			Arrays.fill(result, pk, pk + dim2, 0.0);
+			for (int i = 0; i < dim; ++i) {
+				int pi = pk + i * dim;
+				for (int s = 0; s < dim; ++s) {
+					double a = v[i * dim + s] * x[xk + s];
+					for (int j = 0, q = s * dim; j < dim; ++j, ++q) {
+						result[pi + j] += a * iv[q];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Performs matrix-vector multiplication y=P*x for an explicitly provided P in row-major format.
+	 * Does not alter the state of this object, and may thus be invoked concurrently.
+	 * @param P the transition probability matrix array.
+	 * @param pOffset start index of matrix in P.
+	 * @param x operand array.
+	 * @param xOffset start index of vector in x.
+	 * @param y result array. May not overlap x.
+	 * @param yOffset start index of vector in y.
 	 */
-	public void multiplyWithP(DenseMatrix64F X, DenseMatrix64F Y) {
-		CommonOps.mult(this.P, X, Y);
+	public void multiplyWithP(double[] P, int pOffset, double[] x, int xOffset, double[] y, int yOffset) {
+		int dim = this.alphabetSize;
+		for (int i = 0, pi = pOffset; i < dim; ++i) {
+			double sum = 0.0;
+			for (int k = 0; k < dim; ++k, ++pi) {
+				sum += P[pi] * x[xOffset + k];
+			}
+			y[yOffset + i] = sum;
+		}
 	}
 
 	/**
-	 * Returns the likelihood for a certain leaf state for the current P.
-	 * This corresponds to the state's column in P (and analogously for
-	 * ambiguity characters.
+	 * Returns the likelihood for a certain leaf state for an explicitly provided P in row-major format.
+	 * Does not alter the state of this object, and may thus be
+	 * invoked concurrently.
+	 * @param P the transition probability matrix array.
+	 * @param pOffset start index of matrix in P.
 	 * @param state the state's integer index.
-	 * @param result the column values. Should have size (dim,1).
+	 * @param result the array where to store the column values.
+	 * @param offset start index in result.
 	 */
-	public void getLeafLikelihood(int state, DenseMatrix64F result) {
-		if (state < this.alphabetSize) {
-			for (int i = 0; i < this.alphabetSize; ++i) {
-				result.set(i, this.P.get(i, state));
+	public void getLeafLikelihood(double[] P, int pOffset, int state, double[] result, int offset) {
+		int dim = this.alphabetSize;
+		if (state < dim) {
+			for (int i = 0, pi = pOffset + state; i < dim; ++i, pi += dim) {
+				result[offset + i] = P[pi];
 			}
 		} else {
 			// Ambiguity state.
-			DenseMatrix64F res = this.ambigCache.get(state);
-			if (res == null) {
-				// Not computed before.
-				this.multiplyWithP(this.sequenceType.getLeafLikelihood(state), result);
-				this.ambigCache.put(state, new DenseMatrix64F(result));
-			} else {
-				// Computed before.
-				result.set(res);
+			this.multiplyWithP(P, pOffset, this.sequenceType.getLeafLikelihood(state).data, 0, result, offset);
+		}
+	}
+
+	/**
+	 * Ensures that the leaf likelihoods of some ambiguity states are computed for a cached P matrix,
+	 * so that they may be retrieved by <code>getLeafLikelihood(double[], int, int, int, double[], int)</code>.
+	 * Alters the state of this object, and may thus not be invoked concurrently.
+	 * @param w the "time" of the P matrix.
+	 * @param slot the cache slot of the P matrix when it was retrieved, see <code>getTransitionMatrices(...)</code>.
+	 * @param states the ambiguity states.
+	 * @return the slot if it still holds the P matrix of w; NULL otherwise.
+	 */
+	public int prepareAmbiguityLikelihoods(double w, int slot, int[] states) {
+		if (!this.PCache.isSlotOf(slot, w)) {
+			return DoubleKeySlotCache.NULL;
+		}
+		int dim = this.alphabetSize;
+		for (int state : states) {
+			int idx = slot * this.noOfAmbigStates + state - dim;
+			if (!this.ambigComputed[idx]) {
+				this.multiplyWithP(this.PPool, slot * dim * dim, this.sequenceType.getLeafLikelihood(state).data, 0, this.ambigPool, idx * dim);
+				this.ambigComputed[idx] = true;
 			}
 		}
+		return slot;
+	}
+	
+	/**
+	 * Returns the likelihood for a certain leaf state for an explicitly provided P in row-major format,
+	 * see <code>getLeafLikelihood(double[], int, int, double[], int)</code>. Ambiguity states are
+	 * retrieved from the cache slot of P, which must have been prepared with
+	 * <code>prepareAmbiguityLikelihoods(...)</code> for the state.
+	 * Does not alter the state of this object, and may thus be invoked concurrently.
+	 * @param P the transition probability matrix array.
+	 * @param pOffset start index of matrix in P.
+	 * @param slot the prepared cache slot of P, or NULL if P is not cached.
+	 * @param state the state's integer index.
+	 * @param result the array where to store the column values.
+	 * @param offset start index in result.
+	 */
+	public void getLeafLikelihood(double[] P, int pOffset, int slot, int state, double[] result, int offset) {
+		if (state < this.alphabetSize || slot == DoubleKeySlotCache.NULL) {
+			this.getLeafLikelihood(P, pOffset, state, result, offset);
+		} else {
+			int idx = slot * this.noOfAmbigStates + state - this.alphabetSize;
+			System.arraycopy(this.ambigPool, idx * this.alphabetSize, result, offset, this.alphabetSize);
+		}
 	}
 
 	/**
@@ -266,6 +450,22 @@ public class SubstitutionMatrixHandler implements InfoProvider {
 		AdditionalEJMLOps.multDiagA(this.alphabetSize, this.Pi, X, Y);
 	}
 
+	/**
+	 * Computes the sum of the elements of Pi*x, i.e., the stationary-frequency-weighted
+	 * sum of a vector x of size dim stored at an offset of a flat array.
+	 * @param x operand array.
+	 * @param xOffset start index of vector in x.
+	 * @return the weighted sum.
+	 */
+	public double sumWithPi(double[] x, int xOffset) {
+		double[] pi = this.Pi.data;
+		double sum = 0.0;
+		for (int i = 0; i < this.alphabetSize; ++i) {
+			sum += pi[i] * x[xOffset + i];
+		}
+		return sum;
+	}
+
 
 	@Override
 	public String toString() {
@@ -318,15 +518,17 @@ public class SubstitutionMatrixHandler implements InfoProvider {
 		sb.append(prefix).append("Alphabet size: ").append(this.alphabetSize).append('\n');
 		sb.append(prefix).append("Stationary frequencies Pi: ").append(Arrays.toString(this.Pi.getData())).append('\n');
 		sb.append(prefix).append("Exchangeability matrix R (time reversible, symmetric, only part above diagonal in row-major format): ").append(Arrays.toString(this.R.getData())).append('\n');
-		sb.append(prefix).append("Transition matrix P cache size: ").append(this.PCache.getMaxNoOfElements()).append('\n');
+		sb.append(prefix).append("Transition matrix P cache size: ").append(this.PCache.getNoOfSlots()).append('\n');
 		return sb.toString();
 	}
 
 
 	@Override
 	public String getPostInfo(String prefix) {
-		StringBuilder sb = new StringBuilder(128);
+		StringBuilder sb = new StringBuilder(256);
 		sb.append(prefix).append("SUBSTITUTION MATRIX HANDLER\n");
+		sb.append(prefix).append("Transition matrix P cache lookups: ").append(this.noOfLookups).append('\n');
+		sb.append(prefix).append("Transition matrix P cache hits: ").append(this.noOfHits).append('\n');
 		return sb.toString();
 	}
 }
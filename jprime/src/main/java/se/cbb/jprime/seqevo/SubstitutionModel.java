@@ -1,23 +1,31 @@
 package se.cbb.jprime.seqevo;
 
-import java.util.LinkedHashMap;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-
-import org.ejml.data.DenseMatrix64F;
-import org.ejml.ops.CommonOps;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import se.cbb.jprime.io.SampleLogDouble;
+import se.cbb.jprime.io.SampleSnapshot;
+import se.cbb.jprime.io.SampleSnapshots;
+import se.cbb.jprime.io.SnapshotSampleable;
 import se.cbb.jprime.math.LogDouble;
 import se.cbb.jprime.mcmc.ChangeInfo;
 import se.cbb.jprime.mcmc.Dependent;
 import se.cbb.jprime.mcmc.InferenceModel;
+import se.cbb.jprime.misc.DoubleKeySlotCache;
 import se.cbb.jprime.topology.DoubleMap;
-import se.cbb.jprime.topology.GenericMap;
+import se.cbb.jprime.topology.DoubleBufferedMap;
 import se.cbb.jprime.topology.NamesMap;
 import se.cbb.jprime.topology.RBTree;
 import se.cbb.jprime.topology.TreeAlgorithms;
-import se.cbb.jprime.math.PRNG;
 /**
  * Implements the standard (probabilistic) Markov model for
  * the substitution process of sequence evolution for any type 
@@ -27,6 +35,10 @@ import se.cbb.jprime.math.PRNG;
  * Rate variation across sites over discrete classes, e.g., Yang 1993,
  * can be modelled.
  * <p/>
+ * Likelihoods are kept as plain doubles internally. In order to avoid underflow for large trees,
+ * the likelihoods of a pattern at a vertex are rescaled whenever they all drop below
+ * <code>SCALING_THRESHOLD</code>, with the scale factors accumulated in log space towards the root.
+ * <p/>
  * This model does not yet support partitions of data into user-defined "independent" loci
  * (domains, codon positions, etc.). NOTE: This class is derived from the C++ class
  * <code>CacheSubstitutionModel</code> and not <code>FastCacheSubstitutionModel</code>
@@ -37,7 +49,13 @@ import se.cbb.jprime.math.PRNG;
  * @author Lars Arvestad.
  * @author Joel Sjöstrand.
  */
-public class SubstitutionModel implements InferenceModel {
+public class SubstitutionModel implements InferenceModel, SnapshotSampleable, Closeable {
+
+	/**
+	 * Lower bound for the greatest likelihood of a pattern at a vertex below which
+	 * the likelihoods of the pattern are rescaled to avoid underflow.
+	 */
+	public static final double SCALING_THRESHOLD = 1e-100;
 
 	/** Model name. */
 	private String name;
@@ -65,10 +83,10 @@ public class SubstitutionModel implements InferenceModel {
     
     /**
      * For each vertex n of V(T), holds the likelihoods for the planted subtree
-     * T^n. Each such element is an array with rows corresponding to unique patterns and
-     * columns corresponding to site rate categories. Each element in such an array holds a
-     * vector with likelihoods corresponding to the states of the sequence type alphabet. */
-    private GenericMap<PatternLikelihoods> likelihoods;
+     * T^n. Each such element is a flat array laid out as unique patterns times
+     * site rate categories times states of the sequence type alphabet, see
+     * <code>PatternLikelihoods</code>. Double-buffered so that caching only swaps buffers. */
+    private DoubleBufferedMap<PatternLikelihoods> likelihoods;
     
     /** Model likelihood. */
     private LogDouble modelLikelihood;
@@ -76,11 +94,66 @@ public class SubstitutionModel implements InferenceModel {
     /** Cached likelihood. */
     private LogDouble cacheModelLikelihood = null;
 
-    /** Temporary matrix used during computations. */
-    private DenseMatrix64F tmp;
+    /** No. of worker threads used for the pattern-parallel computations. */
+    private int noOfThreads;
+    
+    /** Worker threads. Null if computations are carried out serially. */
+    private ExecutorService pool;
+    
+    /** Disjoint ranges of unique patterns, one per thread. */
+    private List<PatternRange> ranges;
+    
+    /**
+     * For each vertex, the P matrices of its arc, one per site rate category, in row-major
+     * format, i.e., flattened as [vertex][site rate category][state][state].
+     * Shared read-only by the workers.
+     */
+    private double[] transitionMatrices;
+    
+    /** Cached P matrices. Holds the entire array after a full update; only the changed vertices otherwise. */
+    private double[] transitionMatricesCache;
+    
+    /** Cached Markov times, laid out as the P matrices cache. */
+    private double[] markovTimesCache;
+    
+    /** Vertices of the cached P matrices, null if all are cached. */
+    private int[] transitionMatricesCacheVertices;
+    
+    /** True if there are cached P matrices. */
+    private boolean transitionMatricesAreCached = false;
+    
+    /** Size of the P matrices of a vertex in the array of P matrices. */
+    private int matricesStride;
+    
+    /**
+     * Markov times, i.e., branch length times site rate, flattened as [vertex][site rate category].
+     * Element i corresponds to the P matrix at index i*dim*dim of the array of P matrices.
+     */
+    private double[] markovTimes;
+    
+    /** Indices of the Markov times which have changed since the P matrices were last updated. */
+    private int[] changedMarkovTimes;
+    
+    /**
+     * Slots of the P matrices in the cache of the substitution matrix handler when retrieved,
+     * laid out as the Markov times. Used to look up cached ambiguity leaf likelihoods.
+     */
+    private int[] transitionMatrixSlots;
+    
+    /** Cached slots of the P matrices, laid out as the P matrices cache. */
+    private int[] transitionMatrixSlotsCache;
+    
+    /** For each sequence, the ambiguity states occurring in its patterns. */
+    private int[][] ambiguityStates;
+    
+    /**
+     * For each site rate category, the prepared slot of the P matrix of the leaf currently
+     * being updated, or NULL if its ambiguity leaf likelihoods are not cached.
+     */
+    private int[] leafSlots;
     
     /**
-     * Constructor.
+     * Constructor. Carries out all computations in the calling thread.
      * @param name model name.
      * @param D sequence data (MSA).
      * @param siteRates site rate categories.
@@ -93,6 +166,28 @@ public class SubstitutionModel implements InferenceModel {
      */
     public SubstitutionModel(String name, MSAData D, GammaSiteRateHandler siteRates, SubstitutionMatrixHandler Q,
     		RBTree T, NamesMap names, DoubleMap branchLengths, boolean useRootArc) {
+    	this(name, D, siteRates, Q, T, names, branchLengths, useRootArc, 1);
+    }
+    
+    /**
+     * Constructor. The unique patterns are split into disjoint ranges which are processed
+     * by separate worker threads.
+     * @param name model name.
+     * @param D sequence data (MSA).
+     * @param siteRates site rate categories.
+     * @param Q data transition matrix Q (and P).
+     * @param T tree.
+     * @param names leaf names of T.
+     * @param branchLengths branch lengths of T.
+     * @param useRootArc if true, utilises the root arc ("stem") branch length when computing model
+     *        likelihood; if false, discards the root arc.
+     * @param noOfThreads no. of worker threads. 1 means computations are carried out in the calling thread.
+     */
+    public SubstitutionModel(String name, MSAData D, GammaSiteRateHandler siteRates, SubstitutionMatrixHandler Q,
+    		RBTree T, NamesMap names, DoubleMap branchLengths, boolean useRootArc, int noOfThreads) {
+    	if (noOfThreads < 1) {
+    		throw new IllegalArgumentException("Invalid no. of threads for substitution model: " + noOfThreads + ".");
+    	}
     	this.name = name;
     	this.D = D;
     	this.siteRates = siteRates;
@@ -102,15 +197,53 @@ public class SubstitutionModel implements InferenceModel {
     	this.branchLengths = branchLengths;
     	this.useRootArc = useRootArc;
     	int noOfVertices = T.getNoOfVertices();
-    	int noOfPatterns = D.getPatterns().size();
+    	int noOfPatterns = D.getNoOfPatterns();
     	int noOfSiteRates = siteRates.getNoOfCategories();
     	int alphabetSize = Q.getAlphabetSize();
-    	this.likelihoods = new GenericMap<PatternLikelihoods>(names + "Likelihoods", noOfVertices);
+    	this.likelihoods = new DoubleBufferedMap<PatternLikelihoods>(names + "Likelihoods", noOfVertices);
     	this.modelLikelihood = new LogDouble(0.0);
-    	this.tmp = new DenseMatrix64F(alphabetSize, 1);
     	for (int n = 0; n < noOfVertices; ++n) {
-    		this.likelihoods.set(n, new PatternLikelihoods(noOfPatterns, noOfSiteRates, alphabetSize));
+    		this.likelihoods.set(n, new PatternLikelihoods(noOfPatterns, noOfSiteRates, alphabetSize),
+    				new PatternLikelihoods(noOfPatterns, noOfSiteRates, alphabetSize));
+    	}
+    	
+    	this.matricesStride = noOfSiteRates * alphabetSize * alphabetSize;
+    	this.transitionMatrices = new double[noOfVertices * this.matricesStride];
+    	this.transitionMatricesCache = new double[noOfVertices * this.matricesStride];
+    	this.markovTimes = new double[noOfVertices * noOfSiteRates];
+    	this.markovTimesCache = new double[noOfVertices * noOfSiteRates];
+    	this.changedMarkovTimes = new int[noOfVertices * noOfSiteRates];
+    	this.transitionMatrixSlots = new int[noOfVertices * noOfSiteRates];
+    	this.transitionMatrixSlotsCache = new int[noOfVertices * noOfSiteRates];
+    	this.leafSlots = new int[noOfSiteRates];
+    	this.ambiguityStates = new int[D.getNoOfSequences()][];
+    	for (int s = 0; s < this.ambiguityStates.length; ++s) {
+    		this.ambiguityStates[s] = getAmbiguityStates(D, s, alphabetSize);
+    	}
+    	// No time equals NaN, so that all P matrices are computed initially.
+    	Arrays.fill(this.markovTimes, Double.NaN);
+    	
+    	// Split patterns into ranges. No point in having empty ranges.
+    	this.noOfThreads = Math.max(Math.min(noOfThreads, noOfPatterns), 1);
+    	this.ranges = new ArrayList<PatternRange>(this.noOfThreads);
+    	for (int t = 0; t < this.noOfThreads; ++t) {
+    		this.ranges.add(new PatternRange(t * noOfPatterns / this.noOfThreads,
+    				(t + 1) * noOfPatterns / this.noOfThreads, alphabetSize));
+    	}
+    	if (this.noOfThreads > 1) {
+    		this.pool = Executors.newFixedThreadPool(this.noOfThreads, new ThreadFactory() {
+    			@Override
+    			public Thread newThread(Runnable r) {
+    				Thread t = new Thread(r, "SubstitutionModelWorker");
+    				t.setDaemon(true);
+    				return t;
+    			}
+    		});
+    	} else {
+    		this.pool = null;
     	}
+    	
+    	this.updateTransitionMatrices(null);
     	this.updateLikelihood(this.T.getRoot(), true);
 		this.computeModelLikelihood();
     }
@@ -130,7 +263,7 @@ public class SubstitutionModel implements InferenceModel {
 			// Partial update if disclosed branch length changes.
 			// Get reverse-topological-ordered affected vertices.
 			int[] allAffected = TreeAlgorithms.getSpanningRootSubtree(this.T, blInfo.getAffectedElements());
-			this.partialUpdate(allAffected);
+			this.partialUpdate(blInfo.getAffectedElements(), allAffected);
 			changeInfos.put(this, new ChangeInfo(this, "SubstitutionModel - partial update", allAffected));
 		}
 	}
@@ -140,26 +273,23 @@ public class SubstitutionModel implements InferenceModel {
      */
     private void fullUpdate() {
 		this.cacheModelLikelihood = new LogDouble(this.modelLikelihood);
-		try {
-			this.likelihoods.cache(null);
-		} catch (CloneNotSupportedException e) {
-			throw new RuntimeException(e);
-		}
+		this.likelihoods.cache(null);
+		this.cacheTransitionMatrices(null);
+		this.updateTransitionMatrices(null);
 		this.updateLikelihood(this.T.getRoot(), true);
 		this.computeModelLikelihood();
     }
     
     /**
      * Performs a partial update.
+     * @param changedVertices vertices with changed branch lengths.
      * @param affectedVertices vertices to update, in reverse topological order (leaves to root).
      */
-    private void partialUpdate(int[] affectedVertices) {
+    private void partialUpdate(int[] changedVertices, int[] affectedVertices) {
     	this.cacheModelLikelihood = new LogDouble(this.modelLikelihood);
-		try {
-			this.likelihoods.cache(affectedVertices);
-		} catch (CloneNotSupportedException e) {
-			throw new RuntimeException(e);
-		}
+		this.likelihoods.cache(affectedVertices);
+		this.cacheTransitionMatrices(changedVertices);
+		this.updateTransitionMatrices(changedVertices);
 		for (int n : affectedVertices) {
 			this.updateLikelihood(n, false);
 		}
@@ -172,39 +302,52 @@ public class SubstitutionModel implements InferenceModel {
 	 * and the stationary state frequencies. The likelihood data structures must be up-to-date.
 	 */
 	private void computeModelLikelihood() {
+		for (PatternRange r : this.ranges) {
+			r.vertex = -1;
+		}
+		this.runRanges();
+		double logL = 0.0;
+		for (PatternRange r : this.ranges) {
+			logL += r.logL;
+		}
+		this.modelLikelihood = (logL == Double.NEGATIVE_INFINITY ? new LogDouble(0.0) : new LogDouble(logL, 1));
+	}
+	
+	/**
+	 * Computes the log-likelihood of a range of unique patterns by consulting the root likelihood
+	 * and the stationary state frequencies.
+	 * @param lo first pattern of range.
+	 * @param hi last pattern of range, exclusive.
+	 * @return the log-likelihood of the patterns, weighted by their no. of occurrences.
+	 */
+	private double computeLogLikelihood(int lo, int hi) {
+		PatternLikelihoods pl = this.likelihoods.get(this.T.getRoot());
+		double[] curr = pl.getLikelihoods();
+		int noOfSiteRates = pl.getNoOfSiteRateCategories();
+		int alphabetSize = pl.getAlphabetSize();
 		
-		// Get root likelihood and patterns.
-		LinkedHashMap<String, int[]> patterns = this.D.getPatterns();
-		int n = this.T.getRoot();
-		PatternLikelihoods pl = this.likelihoods.get(n);
-		
-		// Reset model likelihood.
-		this.modelLikelihood = new LogDouble(1.0);
+		double[] logScales = pl.getLogScales();
+		int[] weights = this.D.getPatternWeights();
 		
 		// For each unique pattern i.
-		int i = 0;
-		for (Entry<String, int[]> pattern : patterns.entrySet()) {
+		double logL = 0.0;
+		for (int i = lo, k = pl.getOffset(lo, 0); i < hi; ++i) {
 			
 			// For each site rate category j.
-			LogDouble patternL = new LogDouble(0.0);
-			for (int j = 0; j < pl.getNoOfSiteRateCategories(); ++j) {
-				DenseMatrix64F curr = pl.get(i, j);
-				
+			double patternL = 0.0;
+			for (int j = 0; j < noOfSiteRates; ++j, k += alphabetSize) {
 				// Multiply with stationary frequencies (that's our assumption for evolution start).
-				this.Q.multiplyWithPi(curr, this.tmp);
-				patternL.add(CommonOps.elementSum(this.tmp));
+				patternL += this.Q.sumWithPi(curr, k);
 			}
 			
 			// Pr[site rate category] = 1 / # of categories.
-			patternL.div((double) this.siteRates.getNoOfCategories());
-			
-			// # of actual columns of pattern.
-			int noOfOccs = pattern.getValue()[1];
+			patternL /= noOfSiteRates;
 			
-			// Multiply with overall likelihood.
-			this.modelLikelihood.mult(patternL.pow(noOfOccs));
-			i++;
+			// Multiply with overall likelihood, once for each actual column of pattern,
+			// undoing the scaling of the pattern.
+			logL += weights[i] * (Math.log(patternL) + logScales[i]);
 		}
+		return logL;
 	}
 
 	/**
@@ -213,87 +356,327 @@ public class SubstitutionModel implements InferenceModel {
 	 * @param doRecurse true to process entire subtree rooted at n; false to only do n.
 	 */
 	private void updateLikelihood(int n, boolean doRecurse) {
+		
+		// Process kids first.
+		if (doRecurse && !this.T.isLeaf(n)) {
+			this.updateLikelihood(this.T.getLeftChild(n), true);
+			this.updateLikelihood(this.T.getRightChild(n), true);
+		}
+		
+		// Ambiguity leaf likelihoods must be prepared before the workers read them.
 		if (this.T.isLeaf(n)) {
-			this.updateLeafLikelihood(n);
+			this.prepareAmbiguityLikelihoods(n);
+		}
+		
+		// Just a special case: we discard evolution over the stem arc if desired (when doUseP = false).
+		boolean doUseP = (this.T.isLeaf(n) || this.useRootArc || !this.T.isRoot(n));
+		for (PatternRange r : this.ranges) {
+			r.vertex = n;
+			r.doUseP = doUseP;
+		}
+		this.runRanges();
+	}
+	
+	/**
+	 * Computes the site rate-specific P matrices of the arcs of a set of vertices. Only matrices
+	 * whose Markov times have changed are set up, and these are requested in a single batch,
+	 * see <code>SubstitutionMatrixHandler.getTransitionMatrices(...)</code>.
+	 * @param vertices the vertices. Null will update all vertices.
+	 */
+	private void updateTransitionMatrices(int[] vertices) {
+		int noOfChanged = 0;
+		if (vertices == null) {
+			int noOfVertices = this.T.getNoOfVertices();
+			for (int n = 0; n < noOfVertices; ++n) {
+				noOfChanged = this.updateMarkovTimes(n, noOfChanged);
+			}
 		} else {
-			
-			// Process kids first.
-			if (doRecurse) {
-				this.updateLikelihood(this.T.getLeftChild(n), true);
-				this.updateLikelihood(this.T.getRightChild(n), true);
+			for (int n : vertices) {
+				noOfChanged = this.updateMarkovTimes(n, noOfChanged);
 			}
-			
-			// Get data and likelihood storage.
-			LinkedHashMap<String, int[]> patterns = this.D.getPatterns();
-			PatternLikelihoods pl = this.likelihoods.get(n);
-			
-			// Get child likelihoods.
-			PatternLikelihoods pl_l = this.likelihoods.get(this.T.getLeftChild(n));
-			PatternLikelihoods pl_r = this.likelihoods.get(this.T.getRightChild(n));
-			
-			// Just a special case: we discard evolution over the stem arc if desired (when doUseP = false).
-			boolean doUseP = (this.useRootArc || !this.T.isRoot(n));
-			
-			// Compute Pr[Dk | T, l, r(j)] for each site rate category j.
-			for (int j = 0; j < this.siteRates.getNoOfCategories(); j++) {
-				
+		}
+		if (noOfChanged > 0) {
+			this.Q.getTransitionMatrices(this.markovTimes, this.changedMarkovTimes, noOfChanged, this.transitionMatrices,
+					this.transitionMatrixSlots);
+		}
+	}
+	
+	/**
+	 * Prepares the cached ambiguity leaf likelihoods of the P matrices of a leaf, and stores
+	 * the slots of those matrices which are still cached.
+	 * @param n the leaf.
+	 */
+	private void prepareAmbiguityLikelihoods(int n) {
+		int[] states = this.ambiguityStates[this.D.getSequenceIndex(this.names.get(n))];
+		int noOfSiteRates = this.siteRates.getNoOfCategories();
+		for (int j = 0, i = n * noOfSiteRates; j < noOfSiteRates; ++j, ++i) {
+			this.leafSlots[j] = (states.length == 0 ? DoubleKeySlotCache.NULL :
+				this.Q.prepareAmbiguityLikelihoods(this.markovTimes[i], this.transitionMatrixSlots[i], states));
+		}
+	}
+	
+	/**
+	 * Returns the distinct ambiguity states occurring in the patterns of a sequence.
+	 * @param D the sequence data.
+	 * @param seqIdx the sequence index.
+	 * @param alphabetSize the alphabet size. Greater states are ambiguity states.
+	 * @return the states.
+	 */
+	private static int[] getAmbiguityStates(MSAData D, int seqIdx, int alphabetSize) {
+		int[] states = new int[D.getSequenceType().getAmbiguityAlphabetSize()];
+		boolean[] found = new boolean[states.length];
+		int k = 0;
+		for (int i = 0; i < D.getNoOfPatterns(); ++i) {
+			int state = D.getPatternState(seqIdx, i);
+			if (state >= alphabetSize && !found[state - alphabetSize]) {
+				found[state - alphabetSize] = true;
+				states[k++] = state;
+			}
+		}
+		return Arrays.copyOf(states, k);
+	}
+	
+	/**
+	 * Computes the site rate-specific Markov times of the arc of a vertex, and records
+	 * the indices of those that have changed.
+	 * @param n the vertex.
+	 * @param noOfChanged the no. of changed Markov times recorded so far.
+	 * @return the no. of changed Markov times recorded, including those of n.
+	 */
+	private int updateMarkovTimes(int n, int noOfChanged) {
+		int noOfSiteRates = this.siteRates.getNoOfCategories();
+		
+		// The stem arc is not used if discarded, so we skip its time to avoid spurious errors.
+		double bl = (this.useRootArc || !this.T.isRoot(n)) ? this.branchLengths.get(n) : 0.0;
+		for (int j = 0, i = n * noOfSiteRates; j < noOfSiteRates; ++j, ++i) {
+			double w = bl * this.siteRates.getRate(j);
+			if (w != this.markovTimes[i]) {
+				this.markovTimes[i] = w;
+				this.changedMarkovTimes[noOfChanged++] = i;
+			}
+		}
+		return noOfChanged;
+	}
+	
+	/**
+	 * Caches the P matrices and Markov times of a set of vertices.
+	 * @param vertices the vertices. Null will cache all vertices.
+	 */
+	private void cacheTransitionMatrices(int[] vertices) {
+		if (vertices == null) {
+			// Copied rather than swapped, since unchanged matrices are retained on update.
+			System.arraycopy(this.transitionMatrices, 0, this.transitionMatricesCache, 0, this.transitionMatrices.length);
+			System.arraycopy(this.markovTimes, 0, this.markovTimesCache, 0, this.markovTimes.length);
+			System.arraycopy(this.transitionMatrixSlots, 0, this.transitionMatrixSlotsCache, 0, this.transitionMatrixSlots.length);
+		} else {
+			int noOfSiteRates = this.siteRates.getNoOfCategories();
+			for (int n : vertices) {
+				System.arraycopy(this.transitionMatrices, n * this.matricesStride,
+						this.transitionMatricesCache, n * this.matricesStride, this.matricesStride);
+				System.arraycopy(this.markovTimes, n * noOfSiteRates, this.markovTimesCache, n * noOfSiteRates, noOfSiteRates);
+				System.arraycopy(this.transitionMatrixSlots, n * noOfSiteRates, this.transitionMatrixSlotsCache, n * noOfSiteRates, noOfSiteRates);
+			}
+		}
+		this.transitionMatricesCacheVertices = vertices;
+		this.transitionMatricesAreCached = true;
+	}
+	
+	/**
+	 * Restores cached P matrices and Markov times, if any.
+	 */
+	private void restoreTransitionMatrices() {
+		if (!this.transitionMatricesAreCached) {
+			return;
+		}
+		if (this.transitionMatricesCacheVertices == null) {
+			double[] tmp = this.transitionMatrices;
+			this.transitionMatrices = this.transitionMatricesCache;
+			this.transitionMatricesCache = tmp;
+			tmp = this.markovTimes;
+			this.markovTimes = this.markovTimesCache;
+			this.markovTimesCache = tmp;
+			int[] slots = this.transitionMatrixSlots;
+			this.transitionMatrixSlots = this.transitionMatrixSlotsCache;
+			this.transitionMatrixSlotsCache = slots;
+		} else {
+			int noOfSiteRates = this.siteRates.getNoOfCategories();
+			for (int n : this.transitionMatricesCacheVertices) {
+				System.arraycopy(this.transitionMatricesCache, n * this.matricesStride,
+						this.transitionMatrices, n * this.matricesStride, this.matricesStride);
+				System.arraycopy(this.markovTimesCache, n * noOfSiteRates, this.markovTimes, n * noOfSiteRates, noOfSiteRates);
+				System.arraycopy(this.transitionMatrixSlotsCache, n * noOfSiteRates, this.transitionMatrixSlots, n * noOfSiteRates, noOfSiteRates);
+			}
+		}
+		this.transitionMatricesCacheVertices = null;
+		this.transitionMatricesAreCached = false;
+	}
+	
+	/**
+	 * DP method which updates the likelihood column vectors of an interior vertex for a range of patterns.
+	 * The P matrices of the vertex must have been set up beforehand.
+	 * @param n vertex.
+	 * @param doUseP true to include evolution over the arc of n; false to discard it.
+	 * @param lo first pattern of range.
+	 * @param hi last pattern of range, exclusive.
+	 * @param tmp temporary vector of size alphabetSize.
+	 */
+	private void updateLikelihood(int n, boolean doUseP, int lo, int hi, double[] tmp) {
+		
+		// Get likelihood storage.
+		PatternLikelihoods pl = this.likelihoods.get(n);
+		double[] curr = pl.getLikelihoods();
+		int noOfSiteRates = pl.getNoOfSiteRateCategories();
+		int alphabetSize = pl.getAlphabetSize();
+		int matrixSize = alphabetSize * alphabetSize;
+		int pOffset = n * this.matricesStride;
+		
+		double[] logScales = pl.getLogScales();
+		
+		// Get child likelihoods.
+		PatternLikelihoods lpl = this.likelihoods.get(this.T.getLeftChild(n));
+		PatternLikelihoods rpl = this.likelihoods.get(this.T.getRightChild(n));
+		double[] left = lpl.getLikelihoods();
+		double[] right = rpl.getLikelihoods();
+		double[] leftLogScales = lpl.getLogScales();
+		double[] rightLogScales = rpl.getLogScales();
+		
+		// Compute Pr[Dk | T, l, r(j)] for each unique pattern i and site rate category j.
+		for (int i = lo, k = pl.getOffset(lo, 0); i < hi; ++i) {
+			int start = k;
+			for (int j = 0; j < noOfSiteRates; ++j, k += alphabetSize) {
 				if (doUseP) {
-					// Set up site rate-specific P matrix.
-					double w = this.branchLengths.get(n) * this.siteRates.getRate(j);
-					this.Q.updateTransitionMatrix(w);
-				}
-				
-				// Lastly, loop over each unique pattern in patterns.
-				for (int i = 0; i < patterns.size(); i++) {
-					DenseMatrix64F left = pl_l.get(i, j);
-					DenseMatrix64F right = pl_r.get(i, j);
-					
-					// Element-wise multiplication, tmp = left .* right.
-					CommonOps.elementMult(left, right, this.tmp);
-					DenseMatrix64F curr = pl.get(i, j);
-					if (doUseP) {
-						this.Q.multiplyWithP(this.tmp, curr);
-					} else {
-						curr.set(this.tmp);
+					// Element-wise multiplication, tmp = left .* right, followed by curr = P * tmp.
+					for (int s = 0; s < alphabetSize; ++s) {
+						tmp[s] = left[k + s] * right[k + s];
 					}
+					this.Q.multiplyWithP(this.transitionMatrices, pOffset + j * matrixSize, tmp, 0, curr, k);
+				} else {
+					for (int s = k; s < k + alphabetSize; ++s) {
+						curr[s] = left[s] * right[s];
+					}
+				}
+			}
+			
+			// Inherit the scaling of the kids, and rescale the pattern if at risk of underflow.
+			logScales[i] = leftLogScales[i] + rightLogScales[i];
+			double max = 0.0;
+			for (int s = start; s < k; ++s) {
+				if (curr[s] > max) {
+					max = curr[s];
+				}
+			}
+			if (max < SCALING_THRESHOLD && max > 0.0) {
+				double f = 1.0 / max;
+				for (int s = start; s < k; ++s) {
+					curr[s] *= f;
 				}
+				logScales[i] += Math.log(max);
 			}
 		}
 	}
 
 	/**
-	 * DP method which updates the likelihoods column vector for a leaf vertex.
+	 * DP method which updates the likelihoods column vector of a leaf vertex for a range of patterns.
+	 * The P matrices of the vertex must have been set up beforehand.
 	 * @param n leaf vertex.
+	 * @param lo first pattern of range.
+	 * @param hi last pattern of range, exclusive.
 	 */
-	private void updateLeafLikelihood(int n) {
+	private void updateLeafLikelihood(int n, int lo, int hi) {
 		
-		// Set up data and likelihood storage.
-		LinkedHashMap<String, int[]> patterns = this.D.getPatterns();
+		// Set up likelihood storage.
 		PatternLikelihoods pl = this.likelihoods.get(n);
+		double[] curr = pl.getLikelihoods();
+		int noOfSiteRates = pl.getNoOfSiteRateCategories();
+		int alphabetSize = pl.getAlphabetSize();
+		int matrixSize = alphabetSize * alphabetSize;
+		int pOffset = n * this.matricesStride;
+		
+		// Leaves are never scaled.
+		double[] logScales = pl.getLogScales();
+		for (int i = lo; i < hi; ++i) {
+			logScales[i] = 0.0;
+		}
 	
 		// Get sequence index for this vertex.
 		int seqIdx = this.D.getSequenceIndex(this.names.get(n));
 		
-		// Loop over rate categories.
-		for (int j = 0; j < this.siteRates.getNoOfCategories(); j++) {
+		// Loop over each unique pattern and rate category.
+		for (int i = lo, k = pl.getOffset(lo, 0); i < hi; ++i) {
 			
-			// Set up site rate-specific P matrix.
-			double w = this.branchLengths.get(n) * this.siteRates.getRate(j);
-			this.Q.updateTransitionMatrix(w);
+			// Get state of pattern.
+			int state = this.D.getPatternState(seqIdx, i);
+			for (int j = 0; j < noOfSiteRates; ++j, k += alphabetSize) {
+				this.Q.getLeafLikelihood(this.transitionMatrices, pOffset + j * matrixSize, this.leafSlots[j], state, curr, k);
+			}
+		}
+	}
 	
-			// Loop over each unique pattern in patterns.
-			int i = 0;
-			for (Entry<String, int[]> pattern : patterns.entrySet()) {
-				
-				// Get position of pattern's first occurrence in partition.
-				int pos = pattern.getValue()[0];
-				
-				// Compute likelihood.
-				DenseMatrix64F curr = pl.get(i, j);
-				int state = this.D.getIntState(seqIdx, pos);
-				this.Q.getLeafLikelihood(state, curr);
-				i++;
+	/**
+	 * Executes the tasks of all pattern ranges, in parallel if there is a pool of workers.
+	 */
+	private void runRanges() {
+		if (this.pool == null) {
+			this.ranges.get(0).call();
+			return;
+		}
+		try {
+			for (Future<Object> f : this.pool.invokeAll(this.ranges)) {
+				f.get();
 			}
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Substitution model computations were interrupted.", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Error in substitution model computations.", e.getCause());
+		}
+	}
+	
+	/**
+	 * Task for a disjoint range of unique patterns. Either updates the likelihoods
+	 * of a vertex or computes the log-likelihood at the root.
+	 */
+	private class PatternRange implements Callable<Object> {
+		
+		/** First pattern of range. */
+		final int lo;
+		
+		/** Last pattern of range, exclusive. */
+		final int hi;
+		
+		/** Temporary vector of size alphabetSize. */
+		final double[] tmp;
+		
+		/** Vertex to update, or -1 to compute the log-likelihood of the range. */
+		int vertex;
+		
+		/** Whether to include evolution over the arc of the vertex. */
+		boolean doUseP;
+		
+		/** Last computed log-likelihood of the range. */
+		double logL;
+		
+		/**
+		 * Constructor.
+		 * @param lo first pattern of range.
+		 * @param hi last pattern of range, exclusive.
+		 * @param alphabetSize alphabet size.
+		 */
+		PatternRange(int lo, int hi, int alphabetSize) {
+			this.lo = lo;
+			this.hi = hi;
+			this.tmp = new double[alphabetSize];
+		}
+
+		@Override
+		public Object call() {
+			if (this.vertex == -1) {
+				this.logL = computeLogLikelihood(this.lo, this.hi);
+			} else if (T.isLeaf(this.vertex)) {
+				updateLeafLikelihood(this.vertex, this.lo, this.hi);
+			} else {
+				updateLikelihood(this.vertex, this.doUseP, this.lo, this.hi, this.tmp);
+			}
+			return null;
 		}
 	}
 
@@ -308,6 +691,8 @@ public class SubstitutionModel implements InferenceModel {
 	@Override
 	public void clearCache(boolean willSample) {
 		this.likelihoods.clearCache();
+		this.transitionMatricesCacheVertices = null;
+		this.transitionMatricesAreCached = false;
 		this.cacheModelLikelihood = null;
 	}
 
@@ -315,6 +700,7 @@ public class SubstitutionModel implements InferenceModel {
 	@Override
 	public void restoreCache(boolean willSample) {
 		this.likelihoods.restoreCache();
+		this.restoreTransitionMatrices();
 		this.modelLikelihood = this.cacheModelLikelihood;
 		this.cacheModelLikelihood = null;
 	}
@@ -334,6 +720,11 @@ public class SubstitutionModel implements InferenceModel {
 		return SampleLogDouble.toString(this.modelLikelihood);
 	}
 
+	@Override
+	public SampleSnapshot getSampleSnapshot(SampleSnapshot reuse, SamplingMode mode) {
+		return SampleSnapshots.ofLogDouble(reuse, this.modelLikelihood);
+	}
+
 	@Override
 	public LogDouble getDataProbability() {
 		return this.modelLikelihood;
@@ -344,6 +735,7 @@ public class SubstitutionModel implements InferenceModel {
 		StringBuilder sb = new StringBuilder(4096);
 		sb.append(prefix).append("SUBSTITUTION MODEL\n");
 		sb.append(prefix).append("Including root arc in computations: ").append(this.useRootArc).append('\n');
+		sb.append(prefix).append("No. of worker threads: ").append(this.noOfThreads).append('\n');
 		sb.append(prefix).append("Multiple sequence alignment data:\n");
 		sb.append(this.D.getPreInfo(prefix + '\t'));
 		sb.append(prefix).append("Discrete site rates:\n");
@@ -370,5 +762,15 @@ public class SubstitutionModel implements InferenceModel {
 	public String getModelName() {
 		return this.name;
 	}
+	
+	/**
+	 * Shuts down the worker threads, if any. The model may not be updated afterwards.
+	 */
+	@Override
+	public void close() {
+		if (this.pool != null) {
+			this.pool.shutdown();
+		}
+	}
     
 }
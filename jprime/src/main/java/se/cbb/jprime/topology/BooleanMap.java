@@ -1,8 +1,12 @@
 package se.cbb.jprime.topology;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Arrays;
 
 import se.cbb.jprime.io.SampleBooleanArray;
+import se.cbb.jprime.mcmc.Checkpointable;
 import se.cbb.jprime.mcmc.StateParameter;
 
 /**
@@ -11,7 +15,7 @@ import se.cbb.jprime.mcmc.StateParameter;
  * 
  * @author Joel Sjöstrand.
  */
-public class BooleanMap implements VertexMap, StateParameter {
+public class BooleanMap implements VertexMap, StateParameter, Checkpointable {
 	
 	/** The name of this map, if any. */
 	protected String name;
@@ -173,5 +177,23 @@ public class BooleanMap implements VertexMap, StateParameter {
 	public String toString() {
 		return Arrays.toString(this.values);
 	}
-	
+
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(this.values.length);
+		for (int i = 0; i < this.values.length; ++i) {
+			out.writeBoolean(this.values[i]);
+		}
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		if (in.readInt() != this.values.length) {
+			throw new IOException("Checkpoint does not match size of map " + this.name + '.');
+		}
+		for (int i = 0; i < this.values.length; ++i) {
+			this.values[i] = in.readBoolean();
+		}
+	}
+
 }
@@ -2,10 +2,13 @@ package se.cbb.jprime.topology;
 
 import se.cbb.jprime.io.SampleDoubleArrayArray;
 import se.cbb.jprime.math.LogDouble;
+import se.cbb.jprime.math.LogDoubleArray;
 import se.cbb.jprime.mcmc.StateParameter;
 
 /**
- * Holds a double array for each vertex of a graph. No generics for the sake of speed.
+ * Holds an array of non-negative values in log-form for each vertex of a graph.
+ * The arrays are primitive <code>LogDoubleArray</code> instances rather than <code>LogDouble[]</code>,
+ * so that updating values does not create any objects. No generics for the sake of speed.
  * See also <code>GenericMap</code>.
  * 
  * @author Sayyed Auwn Muhammad, Raja Hashim Ali.
@@ -16,13 +19,13 @@ public class DoubleArrayLogMap implements VertexMap, StateParameter {
 	protected String name;
 	
 	/** The map values. */
-	protected LogDouble[][] values;
+	protected LogDoubleArray[] values;
 	
 	/** Cache vertices. */
 	protected int[] cacheVertices = null;
 	
 	/** Cache values for affected vertices. */
-	protected LogDouble[][] cacheValues = null;
+	protected LogDoubleArray[] cacheValues = null;
 	
 	/**
 	 * Constructor. Initialises all map values to a null array.
@@ -31,7 +34,7 @@ public class DoubleArrayLogMap implements VertexMap, StateParameter {
 	 */
 	public DoubleArrayLogMap(String name, int size) {
 		this.name = name;
-		this.values = new LogDouble[size][];
+		this.values = new LogDoubleArray[size];
 	}
 	
 	/**
@@ -39,7 +42,7 @@ public class DoubleArrayLogMap implements VertexMap, StateParameter {
 	 * @param name the map's name.
 	 * @param vals the initial values of this map, indexed by vertex number in the first dimension.
 	 */
-	public DoubleArrayLogMap(String name, LogDouble[][] vals) {
+	public DoubleArrayLogMap(String name, LogDoubleArray[] vals) {
 		this.name = name;
 		this.values = vals;
 	}
@@ -50,11 +53,13 @@ public class DoubleArrayLogMap implements VertexMap, StateParameter {
 	 */
 	public DoubleArrayLogMap(DoubleArrayMap map) {
 		this.name = map.name;
-		this.values = new LogDouble[map.values.length][];
+		this.values = new LogDoubleArray[map.values.length];
 		for (int i = 0; i < this.values.length; ++i) {
 			if (map.values[i] != null) {
-				this.values[i] = new LogDouble[map.values[i].length];
-				System.arraycopy(map.values[i], 0, this.values[i], 0, this.values[i].length);
+				this.values[i] = new LogDoubleArray(map.values[i].length);
+				for (int j = 0; j < map.values[i].length; ++j) {
+					this.values[i].set(j, map.values[i][j]);
+				}
 			}
 		}
 	}
@@ -76,7 +81,7 @@ public class DoubleArrayLogMap implements VertexMap, StateParameter {
 
 	@Override
 	public void setAsObject(int x, Object value) {
-		this.values[x] = (LogDouble[]) value;
+		this.values[x] = (LogDoubleArray) value;
 	}
 
 	/**
@@ -84,7 +89,7 @@ public class DoubleArrayLogMap implements VertexMap, StateParameter {
 	 * @param x the vertex.
 	 * @return the values.
 	 */
-	public LogDouble[] get(int x) {
+	public LogDoubleArray get(int x) {
 		return this.values[x];
 	}
 	
@@ -96,7 +101,18 @@ public class DoubleArrayLogMap implements VertexMap, StateParameter {
 	 * @return the value.
 	 */
 	public LogDouble get(int x, int i) {
-		return this.values[x][i];
+		return this.values[x].get(i);
+	}
+	
+	/**
+	 * Returns the log-value of an element of the array of a vertex.
+	 * No bounds checking.
+	 * @param x the vertex.
+	 * @param i the index in the array of the vertex.
+	 * @return the log-value; Double.NEGATIVE_INFINITY for 0.
+	 */
+	public double getLog(int x, int i) {
+		return this.values[x].getLog(i);
 	}
 	
 	/**
@@ -104,7 +120,7 @@ public class DoubleArrayLogMap implements VertexMap, StateParameter {
 	 * @param x the vertex.
 	 * @param vals the values.
 	 */
-	public void set(int x, LogDouble[] vals) {
+	public void set(int x, LogDoubleArray vals) {
 		this.values[x] = vals;
 	}
 	
@@ -116,14 +132,25 @@ public class DoubleArrayLogMap implements VertexMap, StateParameter {
 	 * @param val the value.
 	 */
 	public void set(int x, int i, LogDouble val) {
-		this.values[x][i] = val;
+		this.values[x].set(i, val);
+	}
+	
+	/**
+	 * Sets the log-value of an element of the array of a vertex.
+	 * No bounds checking.
+	 * @param x the vertex.
+	 * @param i the index in the array of the vertex.
+	 * @param logVal the log-value; Double.NEGATIVE_INFINITY for 0.
+	 */
+	public void setLog(int x, int i, double logVal) {
+		this.values[x].setLog(i, logVal);
 	}
 
 	@Override
 	public int getNoOfSubParameters() {
 		int cnt = 0;
-		for (LogDouble[] vec : this.values) {
-			cnt += (vec == null ? 0 : vec.length);
+		for (LogDoubleArray vec : this.values) {
+			cnt += (vec == null ? 0 : vec.length());
 		}
 		return cnt;
 	}
@@ -134,21 +161,19 @@ public class DoubleArrayLogMap implements VertexMap, StateParameter {
 	 */
 	public void cache(int[] vertices) {
 		if (vertices == null) {
-			this.cacheValues = new LogDouble[this.values.length][];
+			this.cacheValues = new LogDoubleArray[this.values.length];
 			for (int i = 0; i < this.values.length; ++i) {
 				if (this.values[i] != null) {
-					this.cacheValues[i] = new LogDouble[this.values[i].length];
-					System.arraycopy(this.values[i], 0, this.cacheValues[i], 0, this.values[i].length);
+					this.cacheValues[i] = new LogDoubleArray(this.values[i]);
 				}
 			}
 		} else {
 			this.cacheVertices = new int[vertices.length];
 			System.arraycopy(vertices, 0, this.cacheVertices, 0, vertices.length);
-			this.cacheValues = new LogDouble[vertices.length][];
+			this.cacheValues = new LogDoubleArray[vertices.length];
 			for (int i = 0; i < vertices.length; ++i) {
 				if (this.values[vertices[i]] != null) {
-					this.cacheValues[i] = new LogDouble[this.values[vertices[i]].length];
-					System.arraycopy(this.values[vertices[i]], 0, this.cacheValues[i], 0, this.cacheValues[i].length);
+					this.cacheValues[i] = new LogDoubleArray(this.values[vertices[i]]);
 				}
 			}
 		}
@@ -69,11 +69,7 @@ public class DoubleArrayMap implements VertexMap, StateParameter {
 		this.values = new double[map.values.length][];
 		for (int i = 0; i < this.values.length; ++i) {
 			if (map.values[i] != null) {
-				this.values[i] = new double[map.values[i].length];
-				double[] tempData = new double[map.values[i].length];
-				for(int j = 0; j < tempData.length; j++)
-					tempData[j] = map.values[i][j].getValue();
-				System.arraycopy(tempData, 0, this.values[i], 0, this.values[i].length);
+				this.values[i] = map.values[i].getValues();
 			}
 		}
 	}
@@ -125,6 +125,19 @@ public class DoubleArrayMatrixMap {
 		}
 	}
 
+	/**
+	 * Caches the whole current map by reference, i.e., without copying the arrays of the elements.
+	 * This is only valid if the caller replaces elements using <code>set(x,y,vals)</code>
+	 * rather than altering their arrays in place until the cache is cleared or restored.
+	 */
+	public void cacheShallow() {
+		this.cacheVertices = null;
+		this.cacheValues = new double[this.values.length][this.values.length][];
+		for (int i = 0; i < this.values.length; ++i) {
+			System.arraycopy(this.values[i], 0, this.cacheValues[i], 0, this.values.length);
+		}
+	}
+
 	/**
 	 * Clears the cached map. May e.g. be used by a <code>Proposer</code>.
 	 */
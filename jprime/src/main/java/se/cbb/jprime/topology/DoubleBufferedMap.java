@@ -0,0 +1,169 @@
+package se.cbb.jprime.topology;
+
+/**
+ * Holds two objects, a current and a spare, for each vertex of a graph.
+ * Intended for large per-vertex data structures of DP-based models (partial
+ * likelihoods and similar) where caching by cloning, as in <code>GenericMap</code>,
+ * is too expensive.
+ * <p/>
+ * Caching a set of vertices simply swaps their current and spare objects, so that the
+ * old values are left untouched in the spare slot while the caller overwrites the
+ * new current objects. Restoring the cache swaps back, clearing it retains the new
+ * values. No objects are allocated or copied in either case, meaning that
+ * <b>the caller is responsible for fully rewriting (or resetting) the current object
+ * of every cached vertex</b> before it is read. The spare objects of a vertex may be
+ * null until first swapped in; see <code>set(int,T,T)</code>.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class DoubleBufferedMap<T> implements VertexMap {
+
+	/** The name of this map, if any. */
+	protected String name;
+
+	/** The two slots of values, indexed by slot and vertex. */
+	protected Object[][] slots;
+
+	/** For each vertex, the index of its current slot, 0 or 1. */
+	protected byte[] current;
+
+	/** Swapped vertices since last cache. Preallocated to avoid garbage. */
+	protected int[] cacheVertices;
+
+	/** No. of swapped vertices since last cache, or -1 if there is no cache. */
+	protected int noOfCacheVertices = -1;
+
+	/**
+	 * Constructor. Initialises all map values to null.
+	 * @param name the map's name.
+	 * @param size the size of the map.
+	 */
+	public DoubleBufferedMap(String name, int size) {
+		this.name = name;
+		this.slots = new Object[2][size];
+		this.current = new byte[size];
+		this.cacheVertices = new int[size];
+	}
+
+	@Override
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	@Override
+	public Object getAsObject(int x) {
+		return this.slots[this.current[x]][x];
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public void setAsObject(int x, Object value) {
+		this.set(x, (T) value);
+	}
+
+	/**
+	 * Returns the current element of a vertex.
+	 * @param x the vertex.
+	 * @return the value.
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int x) {
+		return (T) this.slots[this.current[x]][x];
+	}
+
+	/**
+	 * Returns the spare element of a vertex. After caching, this is the
+	 * element that will be restored by <code>restoreCache()</code>.
+	 * @param x the vertex.
+	 * @return the spare value.
+	 */
+	@SuppressWarnings("unchecked")
+	public T getSpare(int x) {
+		return (T) this.slots[1 - this.current[x]][x];
+	}
+
+	/**
+	 * Sets the current element of a vertex. The spare element is left as is.
+	 * @param x the vertex.
+	 * @param val the value.
+	 */
+	public void set(int x, T val) {
+		this.slots[this.current[x]][x] = val;
+	}
+
+	/**
+	 * Sets both the current and the spare element of a vertex.
+	 * @param x the vertex.
+	 * @param val the current value.
+	 * @param spare the spare value. Should not be the same object as val.
+	 */
+	public void set(int x, T val, T spare) {
+		this.slots[this.current[x]][x] = val;
+		this.slots[1 - this.current[x]][x] = spare;
+	}
+
+	/**
+	 * Caches a part of or the whole current map by swapping in the spare elements of
+	 * the specified vertices as current. The vertices must be unique.
+	 * @param vertices the vertices. Null will cache all values.
+	 */
+	public void cache(int[] vertices) {
+		if (vertices == null) {
+			this.noOfCacheVertices = this.current.length;
+			for (int x = 0; x < this.current.length; ++x) {
+				this.cacheVertices[x] = x;
+				this.current[x] ^= 1;
+			}
+		} else {
+			this.noOfCacheVertices = vertices.length;
+			for (int i = 0; i < vertices.length; ++i) {
+				int x = vertices[i];
+				this.cacheVertices[i] = x;
+				this.current[x] ^= 1;
+			}
+		}
+	}
+
+	/**
+	 * Clears the cache, retaining the current values.
+	 */
+	public void clearCache() {
+		this.noOfCacheVertices = -1;
+	}
+
+	/**
+	 * Swaps back the elements of the cached vertices, and clears the cache.
+	 * If there is no cache, nothing will happen and the current values remain.
+	 */
+	public void restoreCache() {
+		for (int i = 0; i < this.noOfCacheVertices; ++i) {
+			this.current[this.cacheVertices[i]] ^= 1;
+		}
+		this.noOfCacheVertices = -1;
+	}
+
+	@Override
+	public int getSize() {
+		return this.current.length;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer(this.current.length * 16);
+		sb.append('[');
+		for (int i = 0; i < this.current.length - 1; ++i) {
+			sb.append(this.get(i));
+			sb.append(", ");
+		}
+		if (this.current.length > 0) {
+			sb.append(this.get(this.current.length - 1));
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+}
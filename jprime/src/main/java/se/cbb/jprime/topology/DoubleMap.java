@@ -1,8 +1,15 @@
 package se.cbb.jprime.topology;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Arrays;
 
 import se.cbb.jprime.io.SampleDoubleArray;
+import se.cbb.jprime.io.SampleSnapshot;
+import se.cbb.jprime.io.SampleSnapshots;
+import se.cbb.jprime.io.SnapshotSampleable;
+import se.cbb.jprime.mcmc.Checkpointable;
 import se.cbb.jprime.mcmc.RealParameter;
 
 /**
@@ -11,7 +18,7 @@ import se.cbb.jprime.mcmc.RealParameter;
  * 
  * @author Joel Sjöstrand.
  */
-public class DoubleMap implements VertexMap, RealParameter {
+public class DoubleMap implements VertexMap, RealParameter, SnapshotSampleable, Checkpointable {
 	
 	/** The name of this map, if any. */
 	protected String name;
@@ -19,12 +26,18 @@ public class DoubleMap implements VertexMap, RealParameter {
 	/** The map values. */
 	protected double[] values;
 	
-	/** Cache vertices. */
+	/** Cache vertices. Reused between cachings. */
 	protected int[] cacheVertices = null;
 	
-	/** Cache values for affected vertices. */
+	/** Cache values for affected vertices. Reused between cachings. */
 	protected double[] cacheValues = null;
 	
+	/** Number of cached vertices. -1 if there is no cache. */
+	protected int cacheSize = -1;
+	
+	/** True if all vertices are cached. */
+	protected boolean cacheAll = false;
+	
 	/**
 	 * Constructor. Initialises all map values to 0.0.
 	 * @param name the map's name.
@@ -113,40 +126,44 @@ public class DoubleMap implements VertexMap, RealParameter {
 
 	@Override
 	public void cache(int[] vertices) {
+		int n = (vertices == null ? this.values.length : vertices.length);
+		if (this.cacheValues == null || this.cacheValues.length < n) {
+			this.cacheValues = new double[Math.max(n, this.values.length)];
+		}
 		if (vertices == null) {
-			this.cacheValues = new double[this.values.length];
-			System.arraycopy(this.values, 0, this.cacheValues, 0, this.values.length);
+			System.arraycopy(this.values, 0, this.cacheValues, 0, n);
+			this.cacheAll = true;
 		} else {
-			this.cacheVertices = new int[vertices.length];
-			System.arraycopy(vertices, 0, this.cacheVertices, 0, vertices.length);
-			this.cacheValues = new double[vertices.length];
-			for (int i = 0; i < vertices.length; ++i) {
+			if (this.cacheVertices == null || this.cacheVertices.length < n) {
+				this.cacheVertices = new int[this.cacheValues.length];
+			}
+			System.arraycopy(vertices, 0, this.cacheVertices, 0, n);
+			for (int i = 0; i < n; ++i) {
 				this.cacheValues[i] = this.values[vertices[i]];
 			}
+			this.cacheAll = false;
 		}
+		this.cacheSize = n;
 	}
 
 	@Override
 	public void clearCache() {
-		this.cacheVertices = null;
-		this.cacheValues = null;
+		this.cacheSize = -1;
 	}
 
 	@Override
 	public void restoreCache() {
-		if (this.cacheValues == null) {
+		if (this.cacheSize == -1) {
 			return;
 		}
-		if (this.cacheVertices == null) {
-			this.values = this.cacheValues;
-			this.cacheValues = null;
+		if (this.cacheAll) {
+			System.arraycopy(this.cacheValues, 0, this.values, 0, this.cacheSize);
 		} else {
-			for (int i = 0; i < this.cacheVertices.length; ++i) {
+			for (int i = 0; i < this.cacheSize; ++i) {
 				this.values[this.cacheVertices[i]] = this.cacheValues[i];
 			}
-			this.cacheVertices = null;
-			this.cacheValues = null;
 		}
+		this.cacheSize = -1;
 	}
 
 	@Override
@@ -164,6 +181,11 @@ public class DoubleMap implements VertexMap, RealParameter {
 		return SampleDoubleArray.toString(this.values);
 	}
 
+	@Override
+	public SampleSnapshot getSampleSnapshot(SampleSnapshot reuse, SamplingMode mode) {
+		return SampleSnapshots.ofDoubleArray(reuse, this.values);
+	}
+
 	@Override
 	public double getValue(int idx) {
 		return this.values[idx];
@@ -183,6 +205,23 @@ public class DoubleMap implements VertexMap, RealParameter {
 	public String toString() {
 		return Arrays.toString(this.values);
 	}
-	
-	
+
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(this.values.length);
+		for (int i = 0; i < this.values.length; ++i) {
+			out.writeDouble(this.values[i]);
+		}
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		if (in.readInt() != this.values.length) {
+			throw new IOException("Checkpoint does not match size of map " + this.name + '.');
+		}
+		for (int i = 0; i < this.values.length; ++i) {
+			this.values[i] = in.readDouble();
+		}
+	}
+
 }
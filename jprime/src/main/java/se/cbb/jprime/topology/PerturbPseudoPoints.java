@@ -66,6 +66,9 @@ public class PerturbPseudoPoints implements Proposer {
 	protected String lastOperationType;
 	
 	
+	/** Perturbed parameters, created on first request. */
+	private ArrayList<StateParameter> parameters = null;
+	
 	/**
 	 * Constructor.
 	 * @param T tree topology to perturb.
@@ -365,10 +368,14 @@ public class PerturbPseudoPoints implements Proposer {
 //		return ps;
 //	}
 	public ArrayList<StateParameter> getParameters() {
+		if (this.parameters != null) {
+			return this.parameters;
+		}
 		ArrayList<StateParameter> ps = new ArrayList<StateParameter>(7);
-	ps.add(this.pgSwitches);
-	return ps;
-}
+		ps.add(this.pgSwitches);
+		this.parameters = ps;
+		return ps;
+	}
 
 	@Override
 	public int getNoOfParameters() {
@@ -1,5 +1,8 @@
 package se.cbb.jprime.topology;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -8,6 +11,7 @@ import java.util.Set;
 import se.cbb.jprime.io.NewickTree;
 import se.cbb.jprime.io.NewickVertex;
 import se.cbb.jprime.io.SampleNewickTree;
+import se.cbb.jprime.mcmc.Checkpointable;
 import se.cbb.jprime.misc.IntQueue;
 
 /**
@@ -20,7 +24,7 @@ import se.cbb.jprime.misc.IntQueue;
  * 
  * @author Joel Sjöstrand.
  */
-public class RBTree implements RootedTreeParameter, RootedBifurcatingTreeParameter {
+public class RBTree implements RootedTreeParameter, RootedBifurcatingTreeParameter, Checkpointable {
 	
 	/** Used to indicate null references. */
 	public static final int NULL = RootedBifurcatingTree.NULL;
@@ -449,6 +453,21 @@ public class RBTree implements RootedTreeParameter, RootedBifurcatingTreeParamet
 		this.cache = null;
 	}
 
+	/**
+	 * Overwrites the topology of this tree with that of another tree with the same
+	 * number of vertices, without reallocating. The name is retained.
+	 * @param tree the tree to copy.
+	 */
+	public void copyTopology(RBTree tree) {
+		if (tree.parents.length != this.parents.length) {
+			throw new IllegalArgumentException("Cannot copy topology of tree with different number of vertices.");
+		}
+		System.arraycopy(tree.parents, 0, this.parents, 0, this.parents.length);
+		System.arraycopy(tree.leftChildren, 0, this.leftChildren, 0, this.leftChildren.length);
+		System.arraycopy(tree.rightChildren, 0, this.rightChildren, 0, this.rightChildren.length);
+		this.root = tree.root;
+	}
+
 	@Override
 	public Class<?> getSampleType() {
 		return SampleNewickTree.class;
@@ -595,4 +614,29 @@ public class RBTree implements RootedTreeParameter, RootedBifurcatingTreeParamet
 		}
 		return l;
 	}
+
+	@Override
+	public void writeState(DataOutput out) throws IOException {
+		out.writeInt(this.parents.length);
+		out.writeInt(this.root);
+		for (int x = 0; x < this.parents.length; ++x) {
+			out.writeInt(this.parents[x]);
+			out.writeInt(this.leftChildren[x]);
+			out.writeInt(this.rightChildren[x]);
+		}
+	}
+
+	@Override
+	public void readState(DataInput in) throws IOException {
+		if (in.readInt() != this.parents.length) {
+			throw new IOException("Checkpoint does not match size of tree " + this.name + '.');
+		}
+		this.root = in.readInt();
+		for (int x = 0; x < this.parents.length; ++x) {
+			this.parents[x] = in.readInt();
+			this.leftChildren[x] = in.readInt();
+			this.rightChildren[x] = in.readInt();
+		}
+	}
+
 }
@@ -57,6 +57,9 @@ public class RBTreeBranchSwapper implements Proposer {
 	/** Last operation type. */
 	protected String lastOperationType;
 	
+	/** Perturbed parameters, created on first request. */
+	private ArrayList<StateParameter> parameters = null;
+	
 	/**
 	 * Constructor.
 	 * @param T tree topology to perturb.
@@ -117,10 +120,14 @@ public class RBTreeBranchSwapper implements Proposer {
 //	}
 	
 	public ArrayList<StateParameter> getParameters() {
+		if (this.parameters != null) {
+			return this.parameters;
+		}
 		ArrayList<StateParameter> ps = new ArrayList<StateParameter>(7);
 		ps.add(this.T);
 		if (this.lengths != null) { ps.add(this.lengths); }
 		if (this.times != null) { ps.add(this.times); }
+		this.parameters = ps;
 		return ps;
 	}
 
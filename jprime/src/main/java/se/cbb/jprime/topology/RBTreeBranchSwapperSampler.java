@@ -59,6 +59,9 @@ public class RBTreeBranchSwapperSampler implements Proposer {
 	/** Active flag. */
 	protected boolean isActive;
 	
+	/** Perturbed parameters, created on first request. */
+	private ArrayList<StateParameter> parameters = null;
+	
 	/**
 	 * Constructor.
 	 * @param T tree topology to perturb.
@@ -141,9 +144,13 @@ public class RBTreeBranchSwapperSampler implements Proposer {
 //		return ps;
 //	}
 	public ArrayList<StateParameter> getParameters() {
+		if (this.parameters != null) {
+			return this.parameters;
+		}
 		ArrayList<StateParameter> ps = new ArrayList<StateParameter>();
 		ps.add(this.T);
 		if (this.lengths != null) { ps.add(this.lengths); }
+		this.parameters = ps;
 		return ps;
 	}
 
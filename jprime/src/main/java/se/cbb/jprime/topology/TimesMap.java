@@ -13,7 +13,7 @@ public class TimesMap extends DoubleMap {
 	/** Arc times, as opposed to absolute vertex times. */
 	protected double[] arcTimes;
 	
-	/** Cache values for affected arc times. */
+	/** Cache values for affected arc times. Reused between cachings. */
 	protected double[] cacheArcTimes = null;
 	
 	/**
@@ -121,34 +121,29 @@ public class TimesMap extends DoubleMap {
 	@Override
 	public void cache(int[] vertices) {
 		super.cache(vertices);
-		if (vertices == null) {
-			this.cacheArcTimes = new double[this.arcTimes.length];
-			System.arraycopy(this.arcTimes, 0, this.cacheArcTimes, 0, this.arcTimes.length);
+		if (this.cacheArcTimes == null || this.cacheArcTimes.length < this.cacheValues.length) {
+			this.cacheArcTimes = new double[this.cacheValues.length];
+		}
+		if (this.cacheAll) {
+			System.arraycopy(this.arcTimes, 0, this.cacheArcTimes, 0, this.cacheSize);
 		} else {
-			this.cacheArcTimes = new double[vertices.length];
-			for (int i = 0; i < vertices.length; ++i) {
-				this.cacheArcTimes[i] = this.arcTimes[vertices[i]];
+			for (int i = 0; i < this.cacheSize; ++i) {
+				this.cacheArcTimes[i] = this.arcTimes[this.cacheVertices[i]];
 			}
 		}
 	}
 
-	@Override
-	public void clearCache() {
-		super.clearCache();
-		this.cacheArcTimes = null;
-	}
-
 	@Override
 	public void restoreCache() {
-		if (this.cacheArcTimes == null) {
-		} else if (this.cacheVertices == null) {
-			this.arcTimes = this.cacheArcTimes;
-			this.cacheArcTimes = null;
+		if (this.cacheSize == -1) {
+			return;
+		}
+		if (this.cacheAll) {
+			System.arraycopy(this.cacheArcTimes, 0, this.arcTimes, 0, this.cacheSize);
 		} else {
-			for (int i = 0; i < this.cacheVertices.length; ++i) {
+			for (int i = 0; i < this.cacheSize; ++i) {
 				this.arcTimes[this.cacheVertices[i]] = this.cacheArcTimes[i];
 			}
-			this.cacheArcTimes = null;
 		}
 		super.restoreCache();
 	}
@@ -19,10 +19,24 @@ public class TreeAlgorithms {
 	 * @return vertices sorted in reverse topological order.
 	 */
 	public static int[] getSpanningRootSubtree(RootedTree T, int[] inputVertices) {
+		return getSpanningRootSubtree(T, inputVertices, inputVertices.length);
+	}
+	
+	/**
+	 * Retrieves the set of vertices of the subtree of T spanned by the first input
+	 * vertices and the root of T. The output vertices are returned in reverse topological order
+	 * (leaves to root).
+	 * @param T tree.
+	 * @param inputVertices subset of vertices of T (may or may not include the root).
+	 * @param noOfInputVertices the number of leading elements of inputVertices to use.
+	 * @return vertices sorted in reverse topological order.
+	 */
+	public static int[] getSpanningRootSubtree(RootedTree T, int[] inputVertices, int noOfInputVertices) {
 		// First, find all affected vertices of T.
 		HashSet<Integer> allEffected = new HashSet<Integer>(64);
 		allEffected.add(T.getRoot());
-		for (int u : inputVertices) {
+		for (int i = 0; i < noOfInputVertices; ++i) {
+			int u = inputVertices[i];
 			while (u != RTree.NULL) {
 				if (!allEffected.add(u)) { break; }
 				u = T.getParent(u);
@@ -0,0 +1,48 @@
+package se.cbb.jprime.apps;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.reflections.Reflections;
+import org.reflections.scanners.SubTypesScanner;
+import org.reflections.util.ClasspathHelper;
+import org.reflections.util.ConfigurationBuilder;
+import org.reflections.util.FilterBuilder;
+
+/**
+ * Unit tests.
+ * 
+ * @author Joel Sjöstrand.
+ */
+public class TestJPrIMEStarter {
+
+	@Test
+	public void testRegistry() throws Exception {
+		Map<String, String> apps = JPrIMEStarter.getApps();
+		for (Map.Entry<String, String> e : apps.entrySet()) {
+			JPrIMEApp app = JPrIMEStarter.getApp(e.getKey());
+			assertEquals(e.getValue(), app.getClass().getName());
+			assertEquals(e.getKey(), app.getAppName());
+		}
+		assertNull(JPrIMEStarter.getApp("NoSuchApp"));
+	}
+	
+	@Test
+	public void testRegistryComplete() {
+		Reflections reflections = new Reflections(
+			    new ConfigurationBuilder()
+			        .filterInputsBy(new FilterBuilder().include(FilterBuilder.prefix("se.cbb.jprime.apps")))
+			        .setUrls(ClasspathHelper.forPackage("se.cbb.jprime.apps"))
+			        .setScanners(new SubTypesScanner())
+			);
+		Set<Class<? extends JPrIMEApp>> classes = reflections.getSubTypesOf(JPrIMEApp.class);
+		Map<String, String> apps = JPrIMEStarter.getApps();
+		for (Class<? extends JPrIMEApp> c : classes) {
+			assertTrue("App missing from registry: " + c.getName(), apps.containsValue(c.getName()));
+		}
+		assertEquals(classes.size(), apps.size());
+	}
+}
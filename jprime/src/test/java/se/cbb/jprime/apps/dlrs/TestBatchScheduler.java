@@ -0,0 +1,141 @@
+package se.cbb.jprime.apps.dlrs;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * Unit tests.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class TestBatchScheduler {
+
+	/**
+	 * Job which keeps track of the memory in use by all running jobs.
+	 */
+	private static class TestJob implements BatchScheduler.Job {
+
+		int memory;
+		boolean doFail;
+		AtomicInteger inUse;
+		AtomicInteger maxInUse;
+		AtomicInteger noOfRuns;
+
+		TestJob(int memory, boolean doFail, AtomicInteger inUse, AtomicInteger maxInUse, AtomicInteger noOfRuns) {
+			this.memory = memory;
+			this.doFail = doFail;
+			this.inUse = inUse;
+			this.maxInUse = maxInUse;
+			this.noOfRuns = noOfRuns;
+		}
+
+		@Override
+		public int getMemory() {
+			return this.memory;
+		}
+
+		@Override
+		public void run() throws Exception {
+			int mem = this.inUse.addAndGet(this.memory);
+			synchronized (this.maxInUse) {
+				this.maxInUse.set(Math.max(this.maxInUse.get(), mem));
+			}
+			Thread.sleep(20);
+			this.inUse.addAndGet(-this.memory);
+			this.noOfRuns.incrementAndGet();
+			if (this.doFail) {
+				throw new IllegalArgumentException("Failing job.");
+			}
+		}
+	}
+
+	@Test
+	public void testMemoryBudget() throws Exception {
+		AtomicInteger inUse = new AtomicInteger(0);
+		AtomicInteger maxInUse = new AtomicInteger(0);
+		AtomicInteger noOfRuns = new AtomicInteger(0);
+		ArrayList<TestJob> jobs = new ArrayList<TestJob>();
+		for (int i = 0; i < 12; ++i) {
+			jobs.add(new TestJob(4, false, inUse, maxInUse, noOfRuns));
+		}
+		// 8 threads, but only room for 2 jobs at a time.
+		Exception[] failures = new BatchScheduler(8, 10).run(jobs);
+		assertEquals(12, noOfRuns.get());
+		assertTrue(maxInUse.get() <= 10);
+		assertTrue(maxInUse.get() >= 4);
+		for (Exception e : failures) {
+			assertNull(e);
+		}
+	}
+
+	@Test
+	public void testOversizedJob() throws Exception {
+		AtomicInteger inUse = new AtomicInteger(0);
+		AtomicInteger maxInUse = new AtomicInteger(0);
+		AtomicInteger noOfRuns = new AtomicInteger(0);
+		ArrayList<TestJob> jobs = new ArrayList<TestJob>();
+		jobs.add(new TestJob(100, false, inUse, maxInUse, noOfRuns));
+		jobs.add(new TestJob(1, false, inUse, maxInUse, noOfRuns));
+		// The large job gets the entire budget rather than blocking forever.
+		new BatchScheduler(2, 10).run(jobs);
+		assertEquals(2, noOfRuns.get());
+		assertEquals(100, maxInUse.get());
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		AtomicInteger inUse = new AtomicInteger(0);
+		AtomicInteger maxInUse = new AtomicInteger(0);
+		AtomicInteger noOfRuns = new AtomicInteger(0);
+		ArrayList<TestJob> jobs = new ArrayList<TestJob>();
+		for (int i = 0; i < 5; ++i) {
+			jobs.add(new TestJob(1, i == 2, inUse, maxInUse, noOfRuns));
+		}
+		Exception[] failures = new BatchScheduler(2, 10).run(jobs);
+		// The other jobs are still run.
+		assertEquals(5, noOfRuns.get());
+		for (int i = 0; i < 5; ++i) {
+			if (i == 2) {
+				assertTrue(failures[i] instanceof IllegalArgumentException);
+			} else {
+				assertNull(failures[i]);
+			}
+		}
+	}
+
+	@Test
+	public void testOrder() throws Exception {
+		final List<Integer> started = Collections.synchronizedList(new ArrayList<Integer>());
+		final int[] mems = new int[] { 6, 6, 1, 1, 4 };
+		ArrayList<BatchScheduler.Job> jobs = new ArrayList<BatchScheduler.Job>();
+		for (int i = 0; i < mems.length; ++i) {
+			final int idx = i;
+			jobs.add(new BatchScheduler.Job() {
+				@Override
+				public int getMemory() {
+					return mems[idx];
+				}
+				@Override
+				public void run() throws Exception {
+					started.add(idx);
+					Thread.sleep(20);
+				}
+			});
+		}
+		// Small jobs do not overtake a job waiting for memory.
+		new BatchScheduler(3, 10).run(jobs);
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4), started);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidThreads() {
+		new BatchScheduler(0, 10);
+	}
+}
@@ -0,0 +1,36 @@
+package se.cbb.jprime.apps.dlrs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class TestDeliriousBatch {
+
+	@Test
+	public void testEstimateMemory() {
+		long small = DeliriousBatch.estimateMemory(10, 10 * 500, 4, 1, 200, 1);
+		long wide = DeliriousBatch.estimateMemory(10, 10 * 5000, 4, 1, 200, 1);
+		long big = DeliriousBatch.estimateMemory(100, 100 * 500, 4, 1, 200, 1);
+		long protein = DeliriousBatch.estimateMemory(10, 10 * 500, 20, 1, 200, 1);
+		long chains = DeliriousBatch.estimateMemory(10, 10 * 500, 4, 1, 200, 4);
+		assertTrue(small > DeliriousBatch.BASE_MEMORY);
+		assertTrue(wide > small);
+		assertTrue(big - DeliriousBatch.BASE_MEMORY > 5 * (small - DeliriousBatch.BASE_MEMORY));
+		assertTrue(protein > small);
+		assertTrue(chains > 3 * (small - DeliriousBatch.BASE_MEMORY));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidArguments() {
+		Parameters params = new Parameters();
+		params.batch = "manifest.txt";
+		params.files.add("host.tree");
+		params.files.add("family.fa");
+		new DeliriousBatch(new Delirious(), params, new String[0]);
+	}
+}
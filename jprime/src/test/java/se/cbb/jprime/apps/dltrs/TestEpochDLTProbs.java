@@ -3,12 +3,15 @@ package se.cbb.jprime.apps.dltrs;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.HashMap;
 
 import org.junit.Test;
 
 import se.cbb.jprime.io.NewickIOException;
 import se.cbb.jprime.io.PrIMENewickTree;
 import se.cbb.jprime.io.PrIMENewickTreeReader;
+import se.cbb.jprime.mcmc.ChangeInfo;
+import se.cbb.jprime.mcmc.Dependent;
 import se.cbb.jprime.mcmc.DoubleParameter;
 import se.cbb.jprime.topology.NamesMap;
 import se.cbb.jprime.topology.RBTreeEpochDiscretiser;
@@ -44,4 +47,160 @@ public class TestEpochDLTProbs {
 		assertTrue(probs.getOneToOneProbs().get(0, 1, 2, 2, 3, 0) > 0.0);
 	}
 	
+	@Test
+	public void testMultiThreaded() throws NewickIOException, IOException, TopologyException {
+		URL url = this.getClass().getResource("/phylogenetics/simple.05.nw");
+		PrIMENewickTree rawTree = PrIMENewickTreeReader.readTree(new File(url.getFile()), false, true);
+		RBTree tree = new RBTree(rawTree, "Tree");
+		NamesMap names = rawTree.getVertexNamesMap(true, "Names");
+		TimesMap times = rawTree.getTimesMap("Times");
+		RBTreeEpochDiscretiser disc = new RBTreeEpochDiscretiser(tree, names, times, 3, 10, 0.05, 5);
+		DoubleParameter dup = new DoubleParameter("Dup", 0.3);
+		DoubleParameter loss = new DoubleParameter("Loss", 0.2);
+		DoubleParameter trans = new DoubleParameter("Trans", 0.4);
+		EpochDLTProbs serial = new EpochDLTProbs(disc, dup, loss, trans, true);
+		EpochDLTProbs parallel = new EpochDLTProbs(disc, dup, loss, trans, true, 3);
+		try {
+			// Each solve is independent of the worker it runs on, so results must be identical.
+			assertEquals(serial.toString(), parallel.toString());
+		} finally {
+			parallel.close();
+		}
+	}
+	
+	@Test
+	public void testStructuredSolver() throws NewickIOException, IOException, TopologyException {
+		URL url = this.getClass().getResource("/phylogenetics/simple.05.nw");
+		PrIMENewickTree rawTree = PrIMENewickTreeReader.readTree(new File(url.getFile()), false, true);
+		RBTree tree = new RBTree(rawTree, "Tree");
+		NamesMap names = rawTree.getVertexNamesMap(true, "Names");
+		TimesMap times = rawTree.getTimesMap("Times");
+		RBTreeEpochDiscretiser disc = new RBTreeEpochDiscretiser(tree, names, times, 3, 10, 0.05, 5);
+		DoubleParameter dup = new DoubleParameter("Dup", 0.3);
+		DoubleParameter loss = new DoubleParameter("Loss", 0.2);
+		DoubleParameter trans = new DoubleParameter("Trans", 0.4);
+		EpochDLTProbs generic = new EpochDLTProbs(disc, dup, loss, trans, true, 1, false);
+		EpochDLTProbs structured = new EpochDLTProbs(disc, dup, loss, trans, true, 1, true);
+		EpochDLTProbs parallel = new EpochDLTProbs(disc, dup, loss, trans, true, 3, true);
+		try {
+			assertEquals(structured.toString(), parallel.toString());
+			for (int i = 0; i < disc.getNoOfEpochs(); ++i) {
+				for (int s = 0; s < disc.getEpoch(i).getNoOfTimes(); ++s) {
+					for (int a = 0; a < disc.getNoOfArcs(i); ++a) {
+						assertEquals(generic.getExtinctionProbs().get(i, s, a), structured.getExtinctionProbs().get(i, s, a), 1e-6);
+						for (int j = i; j < disc.getNoOfEpochs(); ++j) {
+							for (int t = (j == i ? s : 0); t < disc.getEpoch(j).getNoOfTimes(); ++t) {
+								for (int b = 0; b < disc.getNoOfArcs(j); ++b) {
+									assertEquals(generic.getOneToOneProbs().get(i, s, a, j, t, b),
+											structured.getOneToOneProbs().get(i, s, a, j, t, b), 1e-6);
+								}
+							}
+						}
+					}
+				}
+			}
+		} finally {
+			parallel.close();
+		}
+	}
+	
+	@Test
+	public void testCacheAndMemoisation() throws NewickIOException, IOException, TopologyException {
+		URL url = this.getClass().getResource("/phylogenetics/simple.05.nw");
+		PrIMENewickTree rawTree = PrIMENewickTreeReader.readTree(new File(url.getFile()), false, true);
+		RBTree tree = new RBTree(rawTree, "Tree");
+		NamesMap names = rawTree.getVertexNamesMap(true, "Names");
+		TimesMap times = rawTree.getTimesMap("Times");
+		RBTreeEpochDiscretiser disc = new RBTreeEpochDiscretiser(tree, names, times, 3, 10, 0.05, 5);
+		DoubleParameter dup = new DoubleParameter("Dup", 0.3);
+		DoubleParameter loss = new DoubleParameter("Loss", 0.2);
+		DoubleParameter trans = new DoubleParameter("Trans", 0.4);
+		EpochDLTProbs probs = new EpochDLTProbs(disc, dup, loss, trans, true);
+		probs.setMemoSize(2);
+		String orig = probs.toString();
+		String changed = new EpochDLTProbs(disc, dup, loss, new DoubleParameter("Trans", 0.5), true).toString();
+		
+		// Rejected proposal.
+		trans.setValue(0.5);
+		HashMap<Dependent, ChangeInfo> changeInfos = new HashMap<Dependent, ChangeInfo>();
+		changeInfos.put(trans, new ChangeInfo(trans));
+		probs.cacheAndUpdate(changeInfos, false);
+		assertEquals("EpochDLTProbs full update", changeInfos.get(probs).getInfo());
+		assertEquals(changed, probs.toString());
+		trans.setValue(0.4);
+		probs.restoreCache(false);
+		assertEquals(orig, probs.toString());
+		
+		// Same proposal again, now accepted.
+		trans.setValue(0.5);
+		changeInfos.clear();
+		changeInfos.put(trans, new ChangeInfo(trans));
+		probs.cacheAndUpdate(changeInfos, false);
+		assertEquals("EpochDLTProbs memoised update", changeInfos.get(probs).getInfo());
+		assertEquals(changed, probs.toString());
+		probs.clearCache(false);
+		
+		// Without memoisation.
+		probs.setMemoSize(0);
+		trans.setValue(0.4);
+		changeInfos.clear();
+		changeInfos.put(trans, new ChangeInfo(trans));
+		probs.cacheAndUpdate(changeInfos, false);
+		assertEquals("EpochDLTProbs full update", changeInfos.get(probs).getInfo());
+		assertEquals(orig, probs.toString());
+		trans.setValue(0.5);
+		probs.restoreCache(false);
+		assertEquals(changed, probs.toString());
+	}
+	
+	@Test
+	public void testRejectedTimesChange() throws NewickIOException, IOException, TopologyException {
+		URL url = this.getClass().getResource("/phylogenetics/simple.05.nw");
+		PrIMENewickTree rawTree = PrIMENewickTreeReader.readTree(new File(url.getFile()), false, true);
+		RBTree tree = new RBTree(rawTree, "Tree");
+		NamesMap names = rawTree.getVertexNamesMap(true, "Names");
+		TimesMap times = rawTree.getTimesMap("Times");
+		RBTreeEpochDiscretiser disc = new RBTreeEpochDiscretiser(tree, names, times, 3, 10, 0.05, 5);
+		DoubleParameter dup = new DoubleParameter("Dup", 0.3);
+		DoubleParameter loss = new DoubleParameter("Loss", 0.2);
+		DoubleParameter trans = new DoubleParameter("Trans", 0.4);
+		EpochDLTProbs probs = new EpochDLTProbs(disc, dup, loss, trans, true);
+		probs.setMemoSize(2);
+		String orig = probs.toString();
+		
+		// Rejected proposal moving vertex 5 upwards.
+		times.cache(null);
+		times.getVertexTimes()[5] = 0.5;
+		times.getArcTimes()[5] = 0.2;
+		times.getArcTimes()[3] = 0.5;
+		times.getArcTimes()[4] = 0.5;
+		HashMap<Dependent, ChangeInfo> changeInfos = new HashMap<Dependent, ChangeInfo>();
+		changeInfos.put(times, new ChangeInfo(times));
+		disc.cacheAndUpdate(changeInfos, false);
+		probs.cacheAndUpdate(changeInfos, false);
+		assertEquals("EpochDLTProbs full update", changeInfos.get(probs).getInfo());
+		assertFalse(orig.equals(probs.toString()));
+		times.restoreCache();
+		disc.restoreCache(false);
+		probs.restoreCache(false);
+		assertEquals(orig, probs.toString());
+		
+		// Accepted rate-only proposal.
+		trans.setValue(0.5);
+		changeInfos.clear();
+		changeInfos.put(trans, new ChangeInfo(trans));
+		probs.cacheAndUpdate(changeInfos, false);
+		assertEquals("EpochDLTProbs full update", changeInfos.get(probs).getInfo());
+		probs.clearCache(false);
+		
+		// Rate-only proposal back to the original rates must use the original discretisation.
+		trans.setValue(0.4);
+		changeInfos.clear();
+		changeInfos.put(trans, new ChangeInfo(trans));
+		probs.cacheAndUpdate(changeInfos, false);
+		assertEquals("EpochDLTProbs memoised update", changeInfos.get(probs).getInfo());
+		assertEquals(orig, probs.toString());
+		probs.clearCache(false);
+	}
+	
 }
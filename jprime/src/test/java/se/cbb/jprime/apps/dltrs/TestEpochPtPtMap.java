@@ -38,4 +38,88 @@ public class TestEpochPtPtMap {
 		//System.out.println(pts);
 	}
 	
+	@Test
+	public void testRows() throws NewickIOException, IOException, TopologyException {
+		URL url = this.getClass().getResource("/phylogenetics/simple.05.nw");
+		PrIMENewickTree rawTree = PrIMENewickTreeReader.readTree(new File(url.getFile()), false, true);
+		RBTree tree = new RBTree(rawTree, "Tree");
+		NamesMap names = rawTree.getVertexNamesMap(true, "Names");
+		TimesMap times = rawTree.getTimesMap("Times");
+		RBTreeEpochDiscretiser disc = new RBTreeEpochDiscretiser(tree, names, times, 2, 4, 0.05, 5);
+		EpochPtPtMap pts = new EpochPtPtMap(disc);
+		
+		// Give each pair of points a distinct value.
+		double val = 0.0;
+		for (int i = 0; i < disc.getNoOfEpochs(); ++i) {
+			for (int s = 0; s < disc.getEpoch(i).getNoOfTimes(); ++s) {
+				for (int a = 0; a < disc.getNoOfArcs(i); ++a) {
+					for (int j = i; j < disc.getNoOfEpochs(); ++j) {
+						for (int t = (j == i ? s : 0); t < disc.getEpoch(j).getNoOfTimes(); ++t) {
+							for (int b = 0; b < disc.getNoOfArcs(j); ++b) {
+								pts.set(i, s, a, j, t, b, ++val);
+							}
+						}
+					}
+				}
+			}
+		}
+		
+		// Read back by element, by row and from copy.
+		EpochPtPtMap copy = new EpochPtPtMap(pts);
+		double[] v = pts.getValues();
+		assertEquals((int) val, v.length);
+		val = 0.0;
+		for (int i = 0; i < disc.getNoOfEpochs(); ++i) {
+			for (int s = 0; s < disc.getEpoch(i).getNoOfTimes(); ++s) {
+				for (int a = 0; a < disc.getNoOfArcs(i); ++a) {
+					for (int j = i; j < disc.getNoOfEpochs(); ++j) {
+						assertEquals(disc.getNoOfArcs(j), pts.getNoOfArcs(j));
+						for (int t = (j == i ? s : 0); t < disc.getEpoch(j).getNoOfTimes(); ++t) {
+							int row = pts.getRowIndex(i, s, a, j, t);
+							for (int b = 0; b < disc.getNoOfArcs(j); ++b) {
+								++val;
+								assertEquals(val, pts.get(i, s, a, j, t, b), 0.0);
+								assertEquals(val, v[row + b], 0.0);
+								assertEquals(val, copy.get(i, s, a, j, t, b), 0.0);
+							}
+						}
+					}
+				}
+			}
+		}
+		assertEquals(pts.toString(), copy.toString());
+	}
+	
+	@Test
+	public void testAddProduct() throws NewickIOException, IOException, TopologyException {
+		URL url = this.getClass().getResource("/phylogenetics/simple.05.nw");
+		PrIMENewickTree rawTree = PrIMENewickTreeReader.readTree(new File(url.getFile()), false, true);
+		RBTree tree = new RBTree(rawTree, "Tree");
+		NamesMap names = rawTree.getVertexNamesMap(true, "Names");
+		TimesMap times = rawTree.getTimesMap("Times");
+		RBTreeEpochDiscretiser disc = new RBTreeEpochDiscretiser(tree, names, times, 2, 4, 0.05, 5);
+		EpochPtPtMap pts = new EpochPtPtMap(disc);
+		int na = disc.getNoOfArcs(0);
+		int nb = disc.getNoOfArcs(2);
+		for (int a = 0; a < na; ++a) {
+			for (int b = 0; b < nb; ++b) {
+				pts.set(0, 1, a, 2, 1, b, 0.1 * (a + 1) + 0.01 * b);
+			}
+		}
+		double[] vec = new double[na];
+		for (int a = 0; a < na; ++a) {
+			vec[a] = (a == 1 ? 0.0 : 1.0 + a);
+		}
+		double[] out = new double[nb];
+		out[0] = 1.0;
+		pts.addProduct(0, 1, 2, 1, vec, 0.5, out);
+		for (int b = 0; b < nb; ++b) {
+			double expected = (b == 0 ? 1.0 : 0.0);
+			for (int a = 0; a < na; ++a) {
+				expected += pts.get(0, 1, a, 2, 1, b) * 0.5 * vec[a];
+			}
+			assertEquals(expected, out[b], 1e-12);
+		}
+	}
+	
 }
@@ -0,0 +1,125 @@
+package se.cbb.jprime.io;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.*;
+
+import se.cbb.jprime.mcmc.DoubleParameter;
+import se.cbb.jprime.mcmc.IntParameter;
+import se.cbb.jprime.topology.DoubleMap;
+import se.cbb.jprime.topology.NamesMap;
+import se.cbb.jprime.topology.RBTree;
+
+/**
+ * JUnit test class.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class TestAsyncSampleWriter {
+
+	private DoubleParameter d;
+	private IntParameter i;
+	private RBTree tree;
+	private DoubleMap lengths;
+	private List<Sampleable> sampleables;
+
+	@Before
+	public void setUp() throws Exception {
+		NewickTree nt = NewickTreeReader.readTree("((A:0.1,B:0.2):0.3,(C:0.4,D:0.5):0.6);", false);
+		this.tree = new RBTree(nt, "G");
+		NamesMap names = nt.getVertexNamesMap(true, "Names");
+		this.lengths = nt.getBranchLengthsMap("Lengths");
+		this.d = new DoubleParameter("D", 0.5);
+		this.i = new IntParameter("I", 3);
+		this.sampleables = new ArrayList<Sampleable>();
+		this.sampleables.add(this.i);
+		this.sampleables.add(this.d);
+		this.sampleables.add(new RBTreeSampleWrapper(this.tree, names, this.lengths));
+		this.sampleables.add(new RBTreeSampleWrapper(this.tree, names));
+	}
+
+	/**
+	 * Writes a few samples, changing the state in between, and returns the expected text.
+	 */
+	private String writeSamples(Sampler sampler) throws IOException {
+		StringBuilder expected = new StringBuilder();
+		SampleWriter ref = new SampleWriter(new BufferedWriter(new StringWriter()), 1);
+		sampler.writeSampleHeader(this.sampleables);
+		expected.append(ref.getSampleHeader(this.sampleables)).append('\n');
+		for (int k = 0; k < 500; ++k) {
+			this.d.setValue(k / 7.0);
+			this.lengths.set(k % 6, k / 3.0);
+			if (k % 3 == 0) {
+				this.tree.swap(0, 3);
+			}
+			sampler.writeSample(this.sampleables, Sampleable.SamplingMode.ORDINARY);
+			expected.append(ref.getSample(this.sampleables, Sampleable.SamplingMode.ORDINARY)).append('\n');
+		}
+		sampler.close();
+		return expected.toString();
+	}
+
+	private static String readAll(BufferedReader rd) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		String line;
+		while ((line = rd.readLine()) != null) {
+			sb.append(line).append('\n');
+		}
+		rd.close();
+		return sb.toString();
+	}
+
+	@Test
+	public void testText() throws IOException {
+		File f = File.createTempFile("jprime", ".txt");
+		f.deleteOnExit();
+		String expected = this.writeSamples(new AsyncSampleWriter(f, AsyncSampleWriter.Format.TEXT, 10, false));
+		assertEquals(expected, readAll(new BufferedReader(new FileReader(f))));
+	}
+
+	@Test
+	public void testGzip() throws IOException {
+		File f = File.createTempFile("jprime", ".txt.gz");
+		f.deleteOnExit();
+		String expected = this.writeSamples(new AsyncSampleWriter(f, AsyncSampleWriter.Format.GZIP, 10, false));
+		assertEquals(expected, readAll(new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(f))))));
+	}
+
+	@Test
+	public void testBinary() throws IOException {
+		File f = File.createTempFile("jprime", ".bin");
+		f.deleteOnExit();
+		String expected = this.writeSamples(new AsyncSampleWriter(f, AsyncSampleWriter.Format.BINARY, 10, false));
+		BinarySampleReader rd = new BinarySampleReader(f);
+		StringWriter out = new StringWriter();
+		rd.writeText(out, SampleWriter.DEFAULT_DELIM);
+		rd.close();
+		assertEquals(expected, out.toString());
+	}
+
+	@Test
+	public void testCapture() {
+		SampleWriter ref = new SampleWriter(new BufferedWriter(new StringWriter()), 1);
+		this.sampleables.add(this.lengths);
+		String expected = ref.getSample(this.sampleables, Sampleable.SamplingMode.MAX_RECORD);
+		SampleSnapshot[] snapshot = SampleSnapshots.capture(this.sampleables, null, Sampleable.SamplingMode.MAX_RECORD);
+		this.d.setValue(17.0);
+		this.lengths.set(2, 9.0);
+		this.tree.swap(0, 3);
+		assertEquals(expected, ref.getSample(snapshot));
+		assertSame(snapshot, SampleSnapshots.capture(this.sampleables, snapshot, Sampleable.SamplingMode.MAX_RECORD));
+		assertEquals(ref.getSample(this.sampleables, Sampleable.SamplingMode.MAX_RECORD), ref.getSample(snapshot));
+	}
+}
@@ -0,0 +1,54 @@
+package se.cbb.jprime.math;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for LogDoubleArray.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class TestLogDoubleArray {
+
+	@Test
+	public void testZeros() {
+		LogDoubleArray a = new LogDoubleArray(3);
+		assertEquals(3, a.length());
+		assertTrue(a.get(1).isZero());
+		assertEquals(0.0, a.getValue(2), 0.0);
+		a.addLog(0, Math.log(0.25));
+		assertEquals(0.25, a.getValue(0), 1e-12);
+		a.addLog(0, Double.NEGATIVE_INFINITY);
+		assertEquals(0.25, a.getValue(0), 1e-12);
+		a.multLog(0, Double.NEGATIVE_INFINITY);
+		assertEquals(0.0, a.getValue(0), 0.0);
+	}
+
+	@Test
+	public void testAgainstLogDouble() {
+		LogDoubleArray a = new LogDoubleArray(1);
+		LogDouble p = new LogDouble(0.0);
+		double[] terms = new double[] { 1e-300, 3e-302, 0.0, 7e-299, 2e-310 };
+		for (double t : terms) {
+			LogDouble q = new LogDouble(t).mult(1e-200);
+			p.add(q);
+			a.addLog(0, q.isZero() ? Double.NEGATIVE_INFINITY : q.getLogValue());
+		}
+		assertEquals(p.getLogValue(), a.getLog(0), 1e-10);
+	}
+
+	@Test
+	public void testSetAndCopy() {
+		LogDoubleArray a = new LogDoubleArray(2);
+		a.set(0, 2.0);
+		a.set(1, new LogDouble(0.5));
+		LogDoubleArray b = new LogDoubleArray(a);
+		a.setZero();
+		assertEquals(2.0, b.getValue(0), 1e-12);
+		assertEquals(0.5, b.getValues()[1], 1e-12);
+		assertEquals(0.0, a.getValue(1), 0.0);
+		assertTrue(LogDouble.parseLogDouble(a.toString().substring(1, a.toString().indexOf(','))).isZero());
+	}
+
+}
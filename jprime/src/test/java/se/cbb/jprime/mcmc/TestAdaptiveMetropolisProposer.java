@@ -0,0 +1,100 @@
+package se.cbb.jprime.mcmc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.*;
+
+import se.cbb.jprime.math.LogDouble;
+import se.cbb.jprime.math.PRNG;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test class.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class TestAdaptiveMetropolisProposer {
+
+	/** Log-space target covariance. */
+	private static final double[][] SIGMA = new double[][] { { 0.25, 0.18 }, { 0.18, 0.16 } };
+
+	/**
+	 * Returns the target density of a bivariate log-normal distribution, excluding the Jacobian.
+	 */
+	private static LogDouble getDensity(DoubleParameter a, DoubleParameter b) {
+		double y1 = Math.log(a.getValue());
+		double y2 = Math.log(b.getValue()) - 1.0;
+		double det = SIGMA[0][0] * SIGMA[1][1] - SIGMA[0][1] * SIGMA[1][0];
+		double q = (SIGMA[1][1] * y1 * y1 - 2 * SIGMA[0][1] * y1 * y2 + SIGMA[0][0] * y2 * y2) / det;
+		return new LogDouble(-0.5 * q, 1);
+	}
+
+	@Test
+	public void testLearntCovariance() throws Exception {
+		PRNG prng = new PRNG(new BigInteger("49193538192926113129390326306797599946"));
+		DoubleParameter a = new DoubleParameter("A", 3.0);
+		DoubleParameter b = new DoubleParameter("B", 0.5);
+		ArrayList<DoubleParameter> params = new ArrayList<DoubleParameter>();
+		params.add(a);
+		params.add(b);
+		int n = 40000;
+		int stop = 20000;
+		Iteration iter = new Iteration(n);
+		AdaptiveMetropolisProposer prop = new AdaptiveMetropolisProposer(params, true, new ConstantTuningParameter(0.1), iter, 500, stop, prng);
+		prop.setStatistics(new ProposerStatistics());
+		MetropolisHastingsAcceptor acc = new MetropolisHastingsAcceptor(prng);
+		HashMap<Dependent, ChangeInfo> map = new HashMap<Dependent, ChangeInfo>();
+		ArrayList<Proposal> proposals = new ArrayList<Proposal>(1);
+		LogDouble old = getDensity(a, b);
+		int accepted = 0;
+		while (iter.increment()) {
+			map.clear();
+			proposals.clear();
+			proposals.add(prop.cacheAndPerturb(map));
+			assertEquals(2, map.size());
+			LogDouble dens = getDensity(a, b);
+			if (acc.acceptProposedState(dens, old, proposals)) {
+				prop.clearCache();
+				old = dens;
+				if (prop.isFrozen(iter.getIteration())) {
+					++accepted;
+				}
+			} else {
+				prop.restoreCache();
+			}
+		}
+
+		// Learning stops at the freezing iteration.
+		assertEquals(stop, prop.getNoOfLearntIterations());
+		double[][] cov = prop.getCovariance();
+		for (int i = 0; i < 2; ++i) {
+			for (int j = 0; j < 2; ++j) {
+				assertEquals(SIGMA[i][j], cov[i][j], 0.05);
+			}
+		}
+		double ratio = accepted / (double) (n - stop);
+		assertTrue(ratio > 0.2 && ratio < 0.6);
+
+		// Checkpoint round-trip.
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		prop.writeState(new DataOutputStream(bytes));
+		AdaptiveMetropolisProposer prop2 = new AdaptiveMetropolisProposer(params, true, new ConstantTuningParameter(0.1), new Iteration(n), 500, stop, prng);
+		prop2.readState(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals(prop.getNoOfLearntIterations(), prop2.getNoOfLearntIterations());
+		assertEquals(cov[0][1], prop2.getCovariance()[0][1], 0.0);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testNonPositive() {
+		ArrayList<DoubleParameter> params = new ArrayList<DoubleParameter>();
+		params.add(new DoubleParameter("A", -1.0));
+		new AdaptiveMetropolisProposer(params, true, new ConstantTuningParameter(0.1), new Iteration(10), 2, 5, new PRNG());
+	}
+}
@@ -0,0 +1,62 @@
+package se.cbb.jprime.mcmc;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test class.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class TestChangeInfoMap {
+
+	@Test
+	public void testPutGetClear() {
+		DoubleParameter a = new DoubleParameter("A", 1.0);
+		DoubleParameter b = new DoubleParameter("B", 2.0);
+		DoubleParameter c = new DoubleParameter("C", 3.0);
+		ArrayList<Dependent> deps = new ArrayList<Dependent>();
+		deps.add(a);
+		deps.add(b);
+		deps.add(a);
+		ChangeInfoMap map = new ChangeInfoMap(deps);
+		assertEquals(0, map.getIndex(a));
+		assertEquals(1, map.getIndex(b));
+		assertEquals(-1, map.getIndex(c));
+		assertTrue(map.isEmpty());
+
+		ChangeInfo ia = new ChangeInfo(a);
+		ChangeInfo ic = new ChangeInfo(c);
+		map.put(a, ia);
+		map.put(c, ic);
+		assertEquals(2, map.size());
+		assertSame(ia, map.get(a));
+		assertSame(ia, map.get(0));
+		assertTrue(map.isChanged(0));
+		assertFalse(map.isChanged(1));
+		assertNull(map.get(b));
+		assertSame(ic, map.get(c));
+		int cnt = 0;
+		for (Map.Entry<Dependent, ChangeInfo> kv : map.entrySet()) {
+			assertSame(kv.getKey(), kv.getValue().getChanged());
+			++cnt;
+		}
+		assertEquals(2, cnt);
+
+		map.clear();
+		assertTrue(map.isEmpty());
+		assertNull(map.get(a));
+		assertNull(map.get(c));
+		assertFalse(map.isChanged(0));
+
+		map.put(b, new ChangeInfo(b));
+		map.put(a, ia);
+		assertSame(ia, map.remove(a));
+		assertEquals(1, map.size());
+		assertTrue(map.isChanged(1));
+	}
+}
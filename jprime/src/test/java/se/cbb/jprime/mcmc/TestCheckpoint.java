@@ -0,0 +1,235 @@
+package se.cbb.jprime.mcmc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.*;
+
+import se.cbb.jprime.io.NewickTreeReader;
+import se.cbb.jprime.io.SampleSnapshot;
+import se.cbb.jprime.io.SampleWriter;
+import se.cbb.jprime.io.Sampleable;
+import se.cbb.jprime.io.Sampleable.SamplingMode;
+import se.cbb.jprime.io.Sampler;
+import se.cbb.jprime.math.PRNG;
+import se.cbb.jprime.topology.DoubleMap;
+import se.cbb.jprime.topology.RBTree;
+
+import static org.junit.Assert.*;
+
+public class TestCheckpoint {
+
+	private static byte[] write(Checkpointable c) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		c.writeState(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private static void read(Checkpointable c, byte[] state) throws IOException {
+		c.readState(new DataInputStream(new ByteArrayInputStream(state)));
+	}
+
+	@Test
+	public void testPRNG() throws IOException {
+		PRNG prng = new PRNG(4711);
+		for (int i = 0; i < 1001; ++i) {
+			prng.nextDouble();
+		}
+		prng.nextGaussian();   // Leaves a spare Gaussian.
+		byte[] state = write(prng);
+		double[] expected = new double[100];
+		for (int i = 0; i < expected.length; ++i) {
+			expected[i] = (i % 2 == 0 ? prng.nextGaussian() : prng.nextDouble());
+		}
+		PRNG resumed = new PRNG(1);
+		read(resumed, state);
+		for (int i = 0; i < expected.length; ++i) {
+			assertEquals(expected[i], (i % 2 == 0 ? resumed.nextGaussian() : resumed.nextDouble()), 0.0);
+		}
+	}
+
+	@Test
+	public void testParameters() throws Exception {
+		DoubleParameter d = new DoubleParameter("Rate", 0.123);
+		byte[] state = write(d);
+		d.setValue(4.0);
+		read(d, state);
+		assertEquals(0.123, d.getValue(), 0.0);
+
+		DoubleMap m = new DoubleMap("Lengths", 5, 1.5);
+		state = write(m);
+		m.set(3, 7.0);
+		read(m, state);
+		assertEquals(1.5, m.get(3), 0.0);
+
+		RBTree t = new RBTree(NewickTreeReader.readTree("((((A,B)C,D)E,F)G,H)I;", false), "Tree");
+		state = write(t);
+		RBTree orig = new RBTree(t);
+		t.swap(2, 5);
+		read(t, state);
+		for (int x = 0; x < t.getNoOfVertices(); ++x) {
+			assertEquals(orig.getParent(x), t.getParent(x));
+			assertEquals(orig.getLeftChild(x), t.getLeftChild(x));
+			assertEquals(orig.getRightChild(x), t.getRightChild(x));
+		}
+		assertEquals(orig.getRoot(), t.getRoot());
+	}
+
+	@Test(expected=IOException.class)
+	public void testMapSizeMismatch() throws IOException {
+		byte[] state = write(new DoubleMap("A", 4, 0.0));
+		read(new DoubleMap("B", 5, 0.0), state);
+	}
+
+	/**
+	 * Iteration listener simulating a crash.
+	 */
+	private static class Crash implements IterationListener {
+
+		private int iteration;
+
+		Crash(int iteration) {
+			this.iteration = iteration;
+		}
+
+		@Override
+		public void incrementPerformed(int iterCurr, int iterTotal) {
+			if (iterCurr == this.iteration) {
+				throw new IllegalStateException("Simulated crash.");
+			}
+		}
+	}
+
+	/**
+	 * Sampler which does not support checkpointing.
+	 */
+	private static class PlainSampler implements Sampler {
+
+		private Sampler sampler;
+
+		PlainSampler(Sampler sampler) {
+			this.sampler = sampler;
+		}
+
+		@Override
+		public void writeSampleHeader(List<Sampleable> sampleables) throws IOException {
+			this.sampler.writeSampleHeader(sampleables);
+		}
+
+		@Override
+		public void writeSample(List<Sampleable> sampleables, SamplingMode mode) throws IOException {
+			this.sampler.writeSample(sampleables, mode);
+		}
+
+		@Override
+		public void writeString(String str) throws IOException {
+			this.sampler.writeString(str);
+		}
+
+		@Override
+		public String getSampleHeader(List<Sampleable> sampleables) {
+			return this.sampler.getSampleHeader(sampleables);
+		}
+
+		@Override
+		public String getSample(List<Sampleable> sampleables, SamplingMode mode) {
+			return this.sampler.getSample(sampleables, mode);
+		}
+
+		@Override
+		public String getSample(SampleSnapshot[] sample) {
+			return this.sampler.getSample(sample);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			this.sampler.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.sampler.close();
+		}
+	}
+
+	private static String readFile(File f) throws IOException {
+		byte[] bytes = new byte[(int) f.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(f));
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Runs a chain which crashes after a checkpoint.
+	 * @return the checkpoint file.
+	 */
+	private static File runAndCrash(File samples, int iterations, int interval, int crashAt) throws IOException {
+		File cp = File.createTempFile("checkpoint", ".bin");
+		cp.deleteOnExit();
+		Sampler sampler = new SampleWriter(samples, 1);
+		MCMCManager chain = TestIndependentRunsManager.createChain(4711, iterations, sampler);
+		chain.setCheckpointing(cp, interval, false);
+		chain.getIteration().addIterationListener(new Crash(crashAt));
+		try {
+			chain.run();
+			fail("Chain did not crash.");
+		} catch (IllegalStateException e) {
+		}
+		sampler.close();
+		return cp;
+	}
+
+	@Test
+	public void testResume() throws IOException {
+		int n = 5000;
+		File expected = File.createTempFile("expected", ".txt");
+		expected.deleteOnExit();
+		Sampler sampler = new SampleWriter(expected, 1);
+		TestIndependentRunsManager.createChain(4711, n, sampler).run();
+		sampler.close();
+
+		// Run half-way, checkpointing every 1000 iterations, and crash 300 iterations after the last checkpoint.
+		File samples = File.createTempFile("samples", ".txt");
+		samples.deleteOnExit();
+		File cp = runAndCrash(samples, n, 1000, n / 2 + 300);
+		String crashed = readFile(samples);
+		assertTrue(crashed.length() < readFile(expected).length());
+		assertTrue(crashed.contains("\n" + (n / 2 + 200) + '\t'));
+
+		// Resume with another seed. Samples after the checkpoint are discarded, and the rest of the run is identical.
+		sampler = new SampleWriter(samples, 1, true);
+		MCMCManager chain = TestIndependentRunsManager.createChain(17, n, sampler);
+		chain.setCheckpointing(cp, 1000, true);
+		chain.run();
+		sampler.close();
+		assertEquals(n, chain.getIteration().getIteration());
+		assertEquals(readFile(expected), readFile(samples));
+	}
+
+	@Test(expected=IOException.class)
+	public void testSamplerMismatch() throws IOException {
+		File samples = File.createTempFile("samples", ".txt");
+		samples.deleteOnExit();
+		File cp = runAndCrash(samples, 5000, 1000, 1500);
+		Sampler sampler = new PlainSampler(new SampleWriter(samples, 1, true));
+		MCMCManager chain = TestIndependentRunsManager.createChain(4711, 5000, sampler);
+		chain.setCheckpointing(cp, 1000, true);
+		try {
+			chain.run();
+		} finally {
+			sampler.close();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package se.cbb.jprime.mcmc;
+
+import java.math.BigInteger;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.*;
+
+import se.cbb.jprime.math.PRNG;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test class.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class TestConvergenceDiagnostics {
+
+	/**
+	 * Clade source switching between the clades {A,B} and {B,C}.
+	 */
+	private static class Switcher implements CladeSource {
+
+		boolean first = true;
+
+		@Override
+		public void getClades(Map<String, Integer> leafIndices, List<BitSet> clades) {
+			for (String s : new String[] { "A", "B", "C" }) {
+				if (!leafIndices.containsKey(s)) {
+					leafIndices.put(s, leafIndices.size());
+				}
+			}
+			BitSet c = new BitSet();
+			c.set(leafIndices.get(this.first ? "A" : "C"));
+			c.set(leafIndices.get("B"));
+			clades.add(c);
+		}
+	}
+
+	@Test
+	public void testIndependentSamples() {
+		PRNG prng = new PRNG(new BigInteger("49193538192926113129390326306797599946"));
+		ConvergenceDiagnostics diag = new ConvergenceDiagnostics(2, 5000.0, 1.05, 0.05, 2000);
+		diag.setScalarNames(new String[] { "X", "Y" });
+		Switcher sw = new Switcher();
+		double[] vals = new double[2];
+		int n = 5000;
+		double y = 0.0;
+		for (int i = 0; i < n; ++i) {
+			for (int t = 0; t < 2; ++t) {
+				vals[0] = 3.0 + prng.nextGaussian();
+				y = 0.9 * y + prng.nextGaussian();
+				vals[1] = y;
+				sw.first = (prng.nextDouble() < 0.5);
+				diag.addSample(t, vals, sw);
+			}
+		}
+		diag.update();
+		assertEquals(2 * n, diag.getNoOfSamples());
+		assertTrue(diag.getESS(0) > 0.6 * 2 * n);
+		assertTrue(diag.getESS(0) <= 2 * n);
+		// AR(1) with coefficient 0.9 has an ESS of roughly N/19.
+		assertTrue(diag.getESS(1) > 2 * n / 40.0 && diag.getESS(1) < 2 * n / 8.0);
+		assertEquals(1.0, diag.getRHat(0), 0.02);
+		assertTrue(diag.getASDSF() < 0.05);
+		assertFalse(diag.isConverged());
+	}
+
+	@Test
+	public void testConvergence() {
+		PRNG prng = new PRNG(new BigInteger("49193538192926113129390326306797599946"));
+		ConvergenceDiagnostics diag = new ConvergenceDiagnostics(1, 200.0, 1.05, 0.05, 1000);
+		diag.setScalarNames(new String[] { "X" });
+		double[] vals = new double[1];
+		int i = 0;
+		boolean isConverged = false;
+		while (!isConverged && i < 100000) {
+			vals[0] = prng.nextGaussian();
+			isConverged = diag.addSample(0, vals, null);
+			++i;
+		}
+		assertTrue(isConverged);
+		assertTrue(i >= 1000 && i < 2000);
+		assertTrue(Double.isNaN(diag.getASDSF()));
+	}
+
+	@Test
+	public void testNonStationary() {
+		PRNG prng = new PRNG(new BigInteger("49193538192926113129390326306797599946"));
+		ConvergenceDiagnostics diag = new ConvergenceDiagnostics(1, 10.0, 1.1, 0.05, 2000);
+		diag.setScalarNames(new String[] { "X" });
+		Switcher sw = new Switcher();
+		double[] vals = new double[1];
+		int n = 10000;
+		for (int i = 0; i < n; ++i) {
+			vals[0] = i / 1000.0 + prng.nextGaussian();
+			sw.first = (i < n / 2);
+			assertFalse(diag.addSample(0, vals, sw));
+		}
+		assertTrue(diag.getRHat(0) > 1.5);
+		assertTrue(diag.getASDSF() > 0.5);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidSample() {
+		ConvergenceDiagnostics diag = new ConvergenceDiagnostics(1, 10.0, 1.1, 0.05, 100);
+		diag.setScalarNames(new String[] { "X" });
+		diag.addSample(0, new double[2], null);
+	}
+}
@@ -0,0 +1,52 @@
+package se.cbb.jprime.mcmc;
+
+import org.junit.*;
+
+import se.cbb.jprime.math.LogDouble;
+import se.cbb.jprime.math.PRNG;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test class.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class TestHeatedAcceptor {
+
+	@Test
+	public void testColdEqualsMetropolisHastings() {
+		HeatedAcceptor heated = new HeatedAcceptor(new PRNG(5), 1.0);
+		MetropolisHastingsAcceptor mh = new MetropolisHastingsAcceptor(new PRNG(5));
+		assertTrue(heated.isCold());
+		LogDouble oldP = new LogDouble(0.5);
+		for (int i = 1; i < 1000; ++i) {
+			LogDouble newP = new LogDouble(i / 1000.0);
+			assertEquals(mh.acceptProposedState(newP, oldP, null), heated.acceptProposedState(newP, oldP, null));
+		}
+	}
+
+	@Test
+	public void testHeating() {
+		HeatedAcceptor cold = new HeatedAcceptor(new PRNG(7), 1.0);
+		HeatedAcceptor hot = new HeatedAcceptor(new PRNG(7), 0.2);
+		assertFalse(hot.isCold());
+		LogDouble oldP = new LogDouble(1.0);
+		LogDouble newP = new LogDouble(0.01);
+		int coldCnt = 0;
+		int hotCnt = 0;
+		for (int i = 0; i < 10000; ++i) {
+			if (cold.acceptProposedState(newP, oldP, null)) { coldCnt++; }
+			if (hot.acceptProposedState(newP, oldP, null)) { hotCnt++; }
+		}
+		// Acceptance probabilities 0.01 and 0.01^0.2=0.398.
+		assertEquals(100, coldCnt, 50);
+		assertEquals(3981, hotCnt, 200);
+		assertTrue(hot.acceptProposedState(oldP, newP, null));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidBeta() {
+		new HeatedAcceptor(new PRNG(), 1.5);
+	}
+}
@@ -0,0 +1,166 @@
+package se.cbb.jprime.mcmc;
+
+import java.io.BufferedWriter;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Map;
+
+import org.junit.*;
+
+import se.cbb.jprime.io.SampleWriter;
+import se.cbb.jprime.io.Sampler;
+import se.cbb.jprime.math.LogDouble;
+import se.cbb.jprime.math.PRNG;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test class.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class TestIndependentRunsManager {
+
+	/**
+	 * Standard normal density of a parameter.
+	 */
+	static class NormalModel implements InferenceModel {
+
+		private DoubleParameter x;
+
+		NormalModel(DoubleParameter x) {
+			this.x = x;
+		}
+
+		@Override
+		public LogDouble getDataProbability() {
+			return new LogDouble(-0.5 * this.x.getValue() * this.x.getValue(), 1);
+		}
+
+		@Override
+		public Dependent[] getParentDependents() {
+			return new Dependent[] { this.x };
+		}
+
+		@Override
+		public void cacheAndUpdate(Map<Dependent, ChangeInfo> changeInfos, boolean willSample) {
+			changeInfos.put(this, new ChangeInfo(this));
+		}
+
+		@Override
+		public void clearCache(boolean willSample) {
+		}
+
+		@Override
+		public void restoreCache(boolean willSample) {
+		}
+
+		@Override
+		public String getModelName() {
+			return "NormalModel";
+		}
+
+		@Override
+		public Class<?> getSampleType() {
+			return LogDouble.class;
+		}
+
+		@Override
+		public String getSampleHeader() {
+			return "NormalModel";
+		}
+
+		@Override
+		public String getSampleValue(SamplingMode mode) {
+			return this.getDataProbability().toString();
+		}
+
+		@Override
+		public String getPreInfo(String prefix) {
+			return null;
+		}
+
+		@Override
+		public String getPostInfo(String prefix) {
+			return null;
+		}
+	}
+
+	/**
+	 * Creates a chain sampling a standard normal parameter.
+	 */
+	private static MCMCManager createChain(long seed, int iterations, StringWriter out) {
+		return createChain(seed, iterations, new SampleWriter(new BufferedWriter(out), 1));
+	}
+
+	/**
+	 * Creates a chain sampling a standard normal parameter, sampling every 10th iteration.
+	 */
+	static MCMCManager createChain(long seed, int iterations, Sampler sampler) {
+		return createChain(seed, iterations, sampler, false);
+	}
+
+	/**
+	 * Creates a chain sampling a standard normal parameter, sampling every 10th iteration,
+	 * optionally with a (cold) heated acceptor.
+	 */
+	static MCMCManager createChain(long seed, int iterations, Sampler sampler, boolean isHeated) {
+		PRNG prng = new PRNG(new BigInteger("" + seed));
+		Iteration iter = new Iteration(iterations);
+		DoubleParameter x = new DoubleParameter("X", 1.0);
+		NormalProposer prop = new NormalProposer(x, new ConstantTuningParameter(1.0), prng);
+		MultiProposerSelector sel = new MultiProposerSelector(prng);
+		sel.add(prop, new ConstantProposerWeight(1.0));
+		ProposalAcceptor acc = isHeated ? new HeatedAcceptor(prng, 1.0) : new MetropolisHastingsAcceptor(prng);
+		MCMCManager chain = new MCMCManager(iter, new ConstantThinner(iter, 10), sel, acc,
+				sampler, prng, new ProposerStatistics());
+		chain.addModel(new NormalModel(x));
+		chain.addSampleable(iter);
+		chain.addSampleable(chain);
+		chain.addSampleable(x);
+		return chain;
+	}
+
+	@Test
+	public void testSameAsSequential() throws Exception {
+		int n = 3;
+		ArrayList<MCMCManager> chains = new ArrayList<MCMCManager>(n);
+		StringWriter[] outs = new StringWriter[n];
+		for (int i = 0; i < n; ++i) {
+			outs[i] = new StringWriter();
+			chains.add(createChain(4711 + i, 5000, outs[i]));
+		}
+		IndependentRunsManager runs = new IndependentRunsManager(chains);
+		assertEquals(n, runs.getNoOfChains());
+		runs.run();
+		for (int i = 0; i < n; ++i) {
+			chains.get(i).getSampler().close();
+			StringWriter expected = new StringWriter();
+			MCMCManager ref = createChain(4711 + i, 5000, expected);
+			ref.run();
+			ref.getSampler().close();
+			assertEquals(expected.toString(), outs[i].toString());
+		}
+		assertNotNull(runs.getPostInfo(""));
+	}
+
+	@Test
+	public void testSharedDiagnostics() throws Exception {
+		int n = 4;
+		ConvergenceDiagnostics diag = new ConvergenceDiagnostics(n, 200.0, 1.1, 0.05, 500);
+		ArrayList<MCMCManager> chains = new ArrayList<MCMCManager>(n);
+		for (int i = 0; i < n; ++i) {
+			MCMCManager chain = createChain(17 + i, 1000000, new StringWriter());
+			ArrayList<RealParameter> params = new ArrayList<RealParameter>();
+			params.add((DoubleParameter) chain.getSampleables().get(2));
+			chain.setConvergenceDiagnostics(diag, i, params, null, 0);
+			chains.add(chain);
+		}
+		new IndependentRunsManager(chains).run();
+		assertTrue(diag.isConverged());
+		for (MCMCManager chain : chains) {
+			assertTrue(chain.getIteration().getIteration() < 1000000);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package se.cbb.jprime.mcmc;
+
+import java.io.BufferedWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+
+import org.junit.*;
+
+import se.cbb.jprime.io.SampleWriter;
+import se.cbb.jprime.io.Sampler;
+import se.cbb.jprime.math.PRNG;
+
+import static org.junit.Assert.*;
+
+/**
+ * JUnit test class.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class TestMC3Manager {
+
+	/**
+	 * Creates heated chains sampling a standard normal parameter through a shared sampler.
+	 */
+	private static ArrayList<MCMCManager> createChains(int n, int iterations, Sampler sampler) {
+		ArrayList<MCMCManager> chains = new ArrayList<MCMCManager>(n);
+		for (int i = 0; i < n; ++i) {
+			chains.add(TestIndependentRunsManager.createChain(4711 + i, iterations, sampler, true));
+		}
+		return chains;
+	}
+
+	/**
+	 * Returns the inverse temperature of a chain.
+	 */
+	private static double getBeta(MCMCManager chain) {
+		return ((HeatedAcceptor) chain.getProposalAcceptor()).getBeta();
+	}
+
+	/**
+	 * Sets the parameter value of a chain, and computes its initial posterior density.
+	 */
+	private static void init(MCMCManager chain, double x) throws Exception {
+		((DoubleParameter) chain.getSampleables().get(2)).setValue(x);
+		chain.initRun();
+	}
+
+	@Test
+	public void testTemperatureLadder() {
+		ArrayList<MCMCManager> chains = createChains(4, 100, new SampleWriter(new BufferedWriter(new StringWriter()), 1));
+		MC3Manager mc3 = new MC3Manager(chains, 0.5, 10, new PRNG(5));
+		assertEquals(4, mc3.getNoOfChains());
+		assertSame(chains.get(0), mc3.getColdChain());
+		assertEquals(1.0, getBeta(chains.get(0)), 1e-12);
+		assertEquals(1.0 / 1.5, getBeta(chains.get(1)), 1e-12);
+		assertEquals(1.0 / 2.0, getBeta(chains.get(2)), 1e-12);
+		assertEquals(1.0 / 2.5, getBeta(chains.get(3)), 1e-12);
+		assertTrue(chains.get(0).getOutput());
+		for (int i = 1; i < 4; ++i) {
+			assertFalse(chains.get(i).getOutput());
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void testUnheatedChain() {
+		ArrayList<MCMCManager> chains = new ArrayList<MCMCManager>();
+		chains.add(TestIndependentRunsManager.createChain(1, 100, new SampleWriter(new BufferedWriter(new StringWriter()), 1)));
+		new MC3Manager(chains, 0.5, 10, new PRNG(5));
+	}
+
+	@Test
+	public void testSwap() throws Exception {
+		ArrayList<MCMCManager> chains = createChains(2, 100, new SampleWriter(new BufferedWriter(new StringWriter()), 1));
+		MC3Manager mc3 = new MC3Manager(chains, 1.0, 10, new PRNG(5));
+		MCMCManager cold = chains.get(0);
+		MCMCManager hot = chains.get(1);
+
+		// Hot chain in a better state: always accepted, and the output follows the cold temperature.
+		init(cold, 3.0);
+		init(hot, 0.0);
+		assertTrue(mc3.trySwap());
+		assertSame(hot, mc3.getColdChain());
+		assertEquals(1.0, getBeta(hot), 1e-12);
+		assertEquals(0.5, getBeta(cold), 1e-12);
+		assertTrue(hot.getOutput());
+		assertFalse(cold.getOutput());
+
+		// Hot chain in a worse state: accepted with probability (P_hot/P_cold)^(1-0.5).
+		double expected = Math.exp(0.5 * -4.5);
+		int accepted = 0;
+		int n = 20000;
+		for (int i = 0; i < n; ++i) {
+			if (mc3.trySwap()) {
+				accepted++;
+				assertSame(cold, mc3.getColdChain());
+				assertTrue(cold.getOutput());
+				assertFalse(hot.getOutput());
+				// Swap back, always accepted.
+				assertTrue(mc3.trySwap());
+			}
+			assertSame(hot, mc3.getColdChain());
+		}
+		assertEquals(expected, accepted / (double) n, 0.01);
+	}
+
+	@Test
+	public void testRun() throws Exception {
+		StringWriter out = new StringWriter();
+		SampleWriter sampler = new SampleWriter(new BufferedWriter(out), 1);
+		ArrayList<MCMCManager> chains = createChains(3, 2000, sampler);
+		MC3Manager mc3 = new MC3Manager(chains, 1.0, 10, new PRNG(5));
+		mc3.run();
+		sampler.close();
+
+		// Only the chain which is cold in the end writes output.
+		int noOfOutputs = 0;
+		for (MCMCManager chain : chains) {
+			if (chain.getOutput()) {
+				noOfOutputs++;
+				assertSame(chain, mc3.getColdChain());
+			}
+		}
+		assertEquals(1, noOfOutputs);
+		assertEquals(1.0, getBeta(mc3.getColdChain()), 1e-12);
+
+		// Header and one sample every 10th iteration, irrespective of swaps.
+		String[] lines = out.toString().split("\n");
+		assertEquals(1 + 2000 / 10 + 1, lines.length);
+		assertTrue(mc3.getPostInfo("").contains("Final cold chain"));
+
+		// Identical with the same seeds.
+		StringWriter out2 = new StringWriter();
+		SampleWriter sampler2 = new SampleWriter(new BufferedWriter(out2), 1);
+		new MC3Manager(createChains(3, 2000, sampler2), 1.0, 10, new PRNG(5)).run();
+		sampler2.close();
+		assertEquals(out.toString(), out2.toString());
+	}
+}
@@ -0,0 +1,71 @@
+package se.cbb.jprime.misc;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * JUnit test case.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class TestDoubleKeySlotCache {
+
+	@Test
+	public void testSingle() {
+		DoubleKeySlotCache cache = new DoubleKeySlotCache(10, true);
+		assertEquals(DoubleKeySlotCache.NULL, cache.get(345.4543));
+		int slot = cache.put(345.4543);
+		assertEquals(slot, cache.get(345.4543));
+		assertEquals(slot, cache.put(345.4543));
+		assertEquals(1, cache.size());
+		assertEquals(DoubleKeySlotCache.NULL, cache.put(1e-9));
+	}
+
+	@Test
+	public void testOverfulfilled() {
+		DoubleKeySlotCache cache = new DoubleKeySlotCache(8, true);
+		double[] keys = new double[60];
+		keys[0] = 0.0001234567;
+		for (int i = 1; i < keys.length; ++i) {
+			keys[i] = keys[i-1] * 1.7;
+		}
+		boolean[] used = new boolean[8];
+		for (int i = 0; i < 8; ++i) {
+			int slot = cache.put(keys[i]);
+			assertFalse(used[slot]);
+			used[slot] = true;
+		}
+
+		// All recently used: first inserted is evicted.
+		cache.put(keys[8]);
+		assertFalse(cache.containsKey(keys[0]));
+
+		// Second chance for the recently used key.
+		cache.get(keys[1]);
+		cache.put(keys[9]);
+		assertTrue(cache.containsKey(keys[1]));
+		assertFalse(cache.containsKey(keys[2]));
+
+		for (int i = 10; i < keys.length; ++i) {
+			int slot = cache.put(keys[i]);
+			assertTrue(slot >= 0 && slot < 8);
+			assertEquals(slot, cache.get(keys[i]));
+		}
+		assertEquals(8, cache.size());
+
+		// All keys stored should be distinct and retrievable.
+		used = new boolean[8];
+		int found = 0;
+		for (double k : keys) {
+			int slot = cache.get(k);
+			if (slot != DoubleKeySlotCache.NULL) {
+				assertFalse(used[slot]);
+				used[slot] = true;
+				++found;
+			}
+		}
+		assertEquals(8, found);
+	}
+
+}
@@ -42,6 +42,17 @@ public class TestSequenceData {
 		assertEquals(80, patterns.get("lvllvmlll")[0]);
 		assertEquals(2, patterns.get("---h-----")[1]);
 		assertTrue(patterns.size() < D.getNoOfPositions());
+		
+		// Compact pattern index.
+		assertEquals(patterns.size(), D.getNoOfPatterns());
+		int p = D.getPatternIndex(80);
+		assertEquals(80, D.getPatternFirstPositions()[p]);
+		assertEquals(10, D.getPatternState(0, p));
+		int noOfOccs = 0;
+		for (int w : D.getPatternWeights()) {
+			noOfOccs += w;
+		}
+		assertEquals(D.getNoOfPositions(), noOfOccs);
 	}
 }
 
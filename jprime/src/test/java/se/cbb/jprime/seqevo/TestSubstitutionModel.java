@@ -4,15 +4,21 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.net.URL;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.Random;
 
+import org.biojava3.core.sequence.DNASequence;
 import org.biojava3.core.sequence.ProteinSequence;
 import org.biojava3.core.sequence.compound.AminoAcidCompound;
 import org.biojava3.core.sequence.io.FastaReaderHelper;
 import org.junit.Test;
 
 import se.cbb.jprime.io.NewickTree;
+import se.cbb.jprime.io.NewickTreeReader;
 import se.cbb.jprime.math.LogDouble;
+import se.cbb.jprime.mcmc.ChangeInfo;
+import se.cbb.jprime.mcmc.Dependent;
 import se.cbb.jprime.mcmc.DoubleParameter;
 import se.cbb.jprime.topology.DoubleMap;
 import se.cbb.jprime.topology.NamesMap;
@@ -54,6 +60,182 @@ public class TestSubstitutionModel {
 		LogDouble L = sm.getDataProbability();
 		assertTrue(L.greaterThan(0.0));
 		assertTrue(L.lessThan(1.0));
+		
+		// Pattern-parallel model should yield the same result.
+		SubstitutionModel smp = new SubstitutionModel("JTT", D, siteRates, Q, T, names, bls, true, 3);
+		assertEquals(L.getLogValue(), smp.getDataProbability().getLogValue(), 1e-8);
+		smp.close();
+	}
+
+	/**
+	 * Creates a caterpillar tree with leaves L0,...,L(n-1), i.e., of maximal depth.
+	 */
+	private static NewickTree createCaterpillar(int n) throws Exception {
+		String nw = "L0";
+		for (int i = 1; i < n; ++i) {
+			nw = "(" + nw + ",L" + i + ")";
+		}
+		return NewickTreeReader.readTree(nw + ";", false);
+	}
+
+	/**
+	 * Creates random DNA sequences for leaves L0,...,L(n-1), mutated from a common ancestor.
+	 */
+	private static MSAData createDNA(int n, int noOfCols, Random rnd) {
+		String acgt = "acgt";
+		char[] anc = new char[noOfCols];
+		for (int j = 0; j < noOfCols; ++j) {
+			anc[j] = acgt.charAt(rnd.nextInt(4));
+		}
+		LinkedHashMap<String, DNASequence> seqs = new LinkedHashMap<String, DNASequence>();
+		for (int i = 0; i < n; ++i) {
+			char[] seq = anc.clone();
+			for (int j = 0; j < noOfCols; ++j) {
+				if (rnd.nextDouble() < 0.3) {
+					seq[j] = acgt.charAt(rnd.nextInt(4));
+				}
+			}
+			seqs.put("L" + i, new DNASequence(new String(seq)));
+		}
+		return new MSAData(SequenceType.DNA, seqs);
 	}
-}
 
+	@Test
+	public void testScaling() throws Exception {
+		// With saturated JC69 branches, every leaf contributes a factor 1/4 to every column,
+		// so the likelihood of 600 leaves is (1/4)^600 per column, far below the smallest double.
+		int n = 600;
+		int noOfCols = 50;
+		NewickTree rawT = createCaterpillar(n);
+		RBTree T = new RBTree(rawT, "T");
+		NamesMap names = rawT.getVertexNamesMap(true, "Names");
+		DoubleMap bls = new DoubleMap("BLs", T.getNoOfVertices(), 100.0);
+		MSAData D = createDNA(n, noOfCols, new Random(4711));
+		GammaSiteRateHandler siteRates = new GammaSiteRateHandler(new DoubleParameter("k", 1.0), 1);
+		SubstitutionModel sm = new SubstitutionModel("JC69", D, siteRates, JC69.createJC69(100), T, names, bls, true);
+		double logL = sm.getDataProbability().getLogValue();
+		assertFalse(Double.isInfinite(logL));
+		assertFalse(Double.isNaN(logL));
+		assertEquals(noOfCols * n * Math.log(0.25), logL, 1e-6);
+		sm.close();
+	}
+
+	@Test
+	public void testPartialUpdate() throws Exception {
+		int n = 30;
+		Random rnd = new Random(17);
+		NewickTree rawT = createCaterpillar(n);
+		RBTree T = new RBTree(rawT, "T");
+		NamesMap names = rawT.getVertexNamesMap(true, "Names");
+		DoubleMap bls = new DoubleMap("BLs", T.getNoOfVertices(), 0.1);
+		for (int x = 0; x < T.getNoOfVertices(); ++x) {
+			bls.set(x, 0.01 + 0.2 * rnd.nextDouble());
+		}
+		MSAData D = createDNA(n, 200, rnd);
+		GammaSiteRateHandler siteRates = new GammaSiteRateHandler(new DoubleParameter("k", 0.7), 4);
+		SubstitutionModel sm = new SubstitutionModel("JC69", D, siteRates, JC69.createJC69(100), T, names, bls, true);
+
+		// Perturb the branch of a leaf and of two internal vertices in turn, and either reject or accept.
+		int leaf = T.getLeaves().get(0);
+		int[] vertices = new int[] { leaf, T.getParent(leaf), T.getParent(T.getParent(T.getParent(leaf))) };
+		for (int x : vertices) {
+			for (boolean doRestore : new boolean[] { true, false }) {
+				double before = sm.getDataProbability().getLogValue();
+				bls.cache(new int[] { x });
+				bls.set(x, bls.get(x) * 1.5);
+				HashMap<Dependent, ChangeInfo> changeInfos = new HashMap<Dependent, ChangeInfo>();
+				changeInfos.put(bls, new ChangeInfo(bls, "Perturbed branch length", new int[] { x }));
+				sm.cacheAndUpdate(changeInfos, false);
+
+				// Incremental update must match a full recomputation.
+				double full = new SubstitutionModel("JC69", D, siteRates, JC69.createJC69(1), T, names, bls, true).getDataProbability().getLogValue();
+				assertEquals(full, sm.getDataProbability().getLogValue(), 1e-8);
+				assertTrue(Math.abs(full - before) > 1e-6);
+
+				if (doRestore) {
+					sm.restoreCache(false);
+					bls.restoreCache();
+					assertEquals(before, sm.getDataProbability().getLogValue(), 1e-8);
+				} else {
+					sm.clearCache(false);
+					bls.clearCache();
+					assertEquals(full, sm.getDataProbability().getLogValue(), 1e-8);
+				}
+				full = new SubstitutionModel("JC69", D, siteRates, JC69.createJC69(1), T, names, bls, true).getDataProbability().getLogValue();
+				assertEquals(full, sm.getDataProbability().getLogValue(), 1e-8);
+			}
+		}
+		sm.close();
+	}
+
+	@Test
+	public void testAmbiguityStates() throws Exception {
+		int n = 20;
+		Random rnd = new Random(5);
+		NewickTree rawT = createCaterpillar(n);
+		RBTree T = new RBTree(rawT, "T");
+		NamesMap names = rawT.getVertexNamesMap(true, "Names");
+		DoubleMap bls = new DoubleMap("BLs", T.getNoOfVertices(), 0.1);
+		for (int x = 0; x < T.getNoOfVertices(); ++x) {
+			bls.set(x, 0.01 + 0.2 * rnd.nextDouble());
+		}
+		
+		// Gap-heavy alignment with ambiguity states.
+		MSAData D0 = createDNA(n, 100, rnd);
+		LinkedHashMap<String, DNASequence> seqs = new LinkedHashMap<String, DNASequence>();
+		for (int i = 0; i < n; ++i) {
+			char[] seq = D0.getSequence("L" + i).toCharArray();
+			for (int j = 0; j < seq.length; ++j) {
+				double r = rnd.nextDouble();
+				if (r < 0.3) {
+					seq[j] = '-';
+				} else if (r < 0.4) {
+					seq[j] = 'n';
+				} else if (r < 0.45) {
+					seq[j] = 'r';
+				}
+			}
+			seqs.put("L" + i, new DNASequence(new String(seq)));
+		}
+		MSAData D = new MSAData(SequenceType.DNA, seqs);
+		GammaSiteRateHandler siteRates = new GammaSiteRateHandler(new DoubleParameter("k", 0.7), 2);
+		
+		// Cached ambiguity leaf likelihoods must equal those computed from P.
+		SubstitutionMatrixHandler Q = JC69.createJC69(10);
+		double[] ws = new double[] { 0.3 };
+		double[] P = new double[16];
+		int[] slots = new int[1];
+		Q.getTransitionMatrices(ws, new int[] { 0 }, 1, P, slots);
+		int gap = SequenceType.DNA.char2int('-');
+		assertEquals(slots[0], Q.prepareAmbiguityLikelihoods(0.3, slots[0], new int[] { gap }));
+		double[] cached = new double[4];
+		double[] computed = new double[4];
+		Q.getLeafLikelihood(P, 0, slots[0], gap, cached, 0);
+		Q.getLeafLikelihood(P, 0, gap, computed, 0);
+		assertArrayEquals(computed, cached, 1e-12);
+		
+		// A tiny cache evicts slots between updates, which must not affect the likelihood.
+		SubstitutionModel sm = new SubstitutionModel("JC69", D, siteRates, JC69.createJC69(3), T, names, bls, true);
+		for (int leaf : T.getLeaves().subList(0, 5)) {
+			for (boolean doRestore : new boolean[] { true, false }) {
+				double before = sm.getDataProbability().getLogValue();
+				bls.cache(new int[] { leaf });
+				bls.set(leaf, bls.get(leaf) * 1.5);
+				HashMap<Dependent, ChangeInfo> changeInfos = new HashMap<Dependent, ChangeInfo>();
+				changeInfos.put(bls, new ChangeInfo(bls, "Perturbed branch length", new int[] { leaf }));
+				sm.cacheAndUpdate(changeInfos, false);
+				double full = new SubstitutionModel("JC69", D, siteRates, JC69.createJC69(100), T, names, bls, true).getDataProbability().getLogValue();
+				assertEquals(full, sm.getDataProbability().getLogValue(), 1e-8);
+				if (doRestore) {
+					sm.restoreCache(false);
+					bls.restoreCache();
+					assertEquals(before, sm.getDataProbability().getLogValue(), 1e-8);
+				} else {
+					sm.clearCache(false);
+					bls.clearCache();
+				}
+			}
+		}
+		sm.close();
+	}
+}
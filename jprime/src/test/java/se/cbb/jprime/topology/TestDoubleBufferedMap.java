@@ -0,0 +1,42 @@
+package se.cbb.jprime.topology;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * JUnit test case.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class TestDoubleBufferedMap {
+
+	@Test
+	public void testCacheAndRestore() {
+		DoubleBufferedMap<double[]> map = new DoubleBufferedMap<double[]>("Map", 3);
+		for (int x = 0; x < 3; ++x) {
+			map.set(x, new double[] { x }, new double[1]);
+		}
+
+		// Rejected partial change.
+		map.cache(new int[] { 2, 0 });
+		map.get(0)[0] = 10.0;
+		map.get(2)[0] = 12.0;
+		assertEquals(0.0, map.getSpare(0)[0], 1e-12);
+		map.restoreCache();
+		assertEquals(0.0, map.get(0)[0], 1e-12);
+		assertEquals(1.0, map.get(1)[0], 1e-12);
+		assertEquals(2.0, map.get(2)[0], 1e-12);
+
+		// Accepted full change.
+		map.cache(null);
+		for (int x = 0; x < 3; ++x) {
+			map.get(x)[0] = 20.0 + x;
+		}
+		map.clearCache();
+		assertEquals(21.0, map.get(1)[0], 1e-12);
+		map.restoreCache();
+		assertEquals(21.0, map.get(1)[0], 1e-12);
+	}
+
+}
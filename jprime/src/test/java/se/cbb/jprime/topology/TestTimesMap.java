@@ -0,0 +1,48 @@
+package se.cbb.jprime.topology;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * JUnit test case.
+ *
+ * @author Joel Sjöstrand.
+ */
+public class TestTimesMap {
+
+	@Test
+	public void testPartialThenFullCacheAndRestore() {
+		double[] vt = new double[] { 0.0, 0.0, 0.0, 0.4, 1.0 };
+		double[] at = new double[] { 0.4, 0.4, 1.0, 0.6, 0.5 };
+		TimesMap map = new TimesMap("Times", vt, at);
+
+		// Rejected partial change.
+		map.cache(new int[] { 3, 0 });
+		map.getVertexTimes()[3] = 0.7;
+		map.getArcTimes()[3] = 0.3;
+		map.getArcTimes()[0] = 0.7;
+		map.restoreCache();
+		assertEquals(0.4, map.getVertexTime(3), 1e-12);
+		assertEquals(0.6, map.getArcTime(3), 1e-12);
+		assertEquals(0.4, map.getArcTime(0), 1e-12);
+
+		// Rejected full change after a partial one.
+		map.cache(null);
+		for (int x = 0; x < 5; ++x) {
+			map.getArcTimes()[x] = 10.0 + x;
+			map.getVertexTimes()[x] = 20.0 + x;
+		}
+		map.restoreCache();
+		assertArrayEquals(new double[] { 0.4, 0.4, 1.0, 0.6, 0.5 }, map.getArcTimes(), 1e-12);
+		assertArrayEquals(new double[] { 0.0, 0.0, 0.0, 0.4, 1.0 }, map.getVertexTimes(), 1e-12);
+
+		// Accepted change is kept.
+		map.cache(new int[] { 4 });
+		map.getArcTimes()[4] = 0.8;
+		map.clearCache();
+		map.restoreCache();
+		assertEquals(0.8, map.getArcTime(4), 1e-12);
+	}
+
+}